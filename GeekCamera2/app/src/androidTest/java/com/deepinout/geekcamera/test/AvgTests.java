@@ -64,6 +64,7 @@ public class AvgTests {
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testAvg50"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testAvg51"));
         suite.addTest(TestSuite.createTest(MainActivityTest.class, "testAvg52"));
+        suite.addTest(TestSuite.createTest(MainActivityTest.class, "testAvgAccumulator"));
         return suite;
     }
 }
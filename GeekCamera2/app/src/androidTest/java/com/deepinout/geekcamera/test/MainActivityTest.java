@@ -1,6 +1,7 @@
 package com.deepinout.geekcamera.test;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
@@ -13,10 +14,12 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
 
 import com.deepinout.geekcamera.LocationSupplier;
 import com.deepinout.geekcamera.MyPreferenceFragment;
+import com.deepinout.geekcamera.PanoramaProcessor;
 import com.deepinout.geekcamera.PanoramaProcessorException;
 import com.deepinout.geekcamera.cameracontroller.CameraController2;
 import com.deepinout.geekcamera.HDRProcessor;
@@ -42,8 +45,10 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 //import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.hardware.camera2.CameraMetadata;
@@ -16592,6 +16597,103 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         //checkHistogramDetails(hdrHistogramDetails, 1, 39, 253);
     }
 
+    private byte [] readFileBytes(String filename) throws IOException {
+        File file = new File(filename);
+        byte [] data = new byte[(int)file.length()];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while( offset < data.length ) {
+                int n_read = inputStream.read(data, offset, data.length - offset);
+                if( n_read < 0 )
+                    throw new IOException("unexpected end of file: " + filename);
+                offset += n_read;
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+        return data;
+    }
+
+    /** Tests that merging the frames of a noise reduction batch one at a time as they arrive
+     *  (ImageSaver's AvgAccumulator) gives the same result as averaging the whole batch at once, as
+     *  done by subTestAvg() (and by ImageSaver when all the JPEGs are kept).
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void testAvgAccumulator() throws IOException, InterruptedException {
+        Log.d(TAG, "testAvgAccumulator");
+
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            Log.d(TAG, "renderscript requires Android Lollipop or better");
+            return;
+        }
+
+        setToDefault();
+        Thread.sleep(1000); // wait for camera to open
+
+        final int iso = 1600;
+        final long exposure_time = 1000000000L/16;
+        final float zoom_factor = 1.0f;
+        List<byte []> jpeg_images = new ArrayList<>();
+        for(int i=0;i<5;i++) {
+            jpeg_images.add(readFileBytes(avg_images_path + "testAvg3/input" + i + ".jpg"));
+        }
+
+        // batch average
+        HDRProcessor hdrProcessor = mActivity.getApplicationInterface().getHDRProcessor();
+        Bitmap batch_bitmap;
+        try {
+            int inSampleSize = hdrProcessor.getAvgSampleSize(iso);
+            List<Bitmap> bitmaps = new ArrayList<>();
+            for(byte [] jpeg_image : jpeg_images) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                if( inSampleSize > 1 ) {
+                    // see ImageSaver.setBitmapOptionsSampleSize()
+                    options.inDensity = inSampleSize;
+                    options.inTargetDensity = 1;
+                }
+                bitmaps.add(BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options));
+            }
+            int width = bitmaps.get(0).getWidth();
+            int height = bitmaps.get(0).getHeight();
+            HDRProcessor.AvgData avg_data = hdrProcessor.processAvg(bitmaps.get(0), bitmaps.get(1), 1.0f, iso, zoom_factor);
+            for(int i=2;i<bitmaps.size();i++) {
+                hdrProcessor.updateAvg(avg_data, width, height, bitmaps.get(i), (float)i, iso, zoom_factor);
+            }
+            batch_bitmap = hdrProcessor.avgBrighten(avg_data.allocation_out, width, height, iso, exposure_time);
+            avg_data.destroy();
+        }
+        catch(HDRProcessorException e) {
+            e.printStackTrace();
+            throw new RuntimeException();
+        }
+
+        // streamed
+        Bitmap streamed_bitmap = mActivity.getApplicationInterface().getImageSaver().testAvgAccumulator(jpeg_images, iso, exposure_time, zoom_factor);
+        assertNotNull(streamed_bitmap);
+
+        assertEquals(batch_bitmap.getWidth(), streamed_bitmap.getWidth());
+        assertEquals(batch_bitmap.getHeight(), streamed_bitmap.getHeight());
+        int width = batch_bitmap.getWidth();
+        int height = batch_bitmap.getHeight();
+        int [] batch_pixels = new int[width];
+        int [] streamed_pixels = new int[width];
+        for(int y=0;y<height;y++) {
+            batch_bitmap.getPixels(batch_pixels, 0, width, 0, y, width, 1);
+            streamed_bitmap.getPixels(streamed_pixels, 0, width, 0, y, width, 1);
+            for(int x=0;x<width;x++) {
+                if( batch_pixels[x] != streamed_pixels[x] ) {
+                    Log.e(TAG, "pixel " + x + " , " + y + " differs: " + Integer.toHexString(batch_pixels[x]) + " vs " + Integer.toHexString(streamed_pixels[x]));
+                }
+                assertEquals(batch_pixels[x], streamed_pixels[x]);
+            }
+        }
+
+        batch_bitmap.recycle();
+        streamed_bitmap.recycle();
+    }
+
     private int tonemapConvert(int in, TonemapCurve curve, int channel) {
         float in_f = in/255.0f;
         float out_f = 0.0f;
@@ -16948,6 +17050,221 @@ public class MainActivityTest extends ActivityInstrumentationTestCase2<MainActiv
         }
     }
 
+    /** Returns the i-th frame of a synthetic panorama, taken from the supplied scene.
+     */
+    private Bitmap createSyntheticPanoramaFrame(Bitmap scene, int i, int frame_width, int step) {
+        Bitmap frame = Bitmap.createBitmap(scene, i*step, 0, frame_width, scene.getHeight());
+        Bitmap copy = frame.copy(Bitmap.Config.ARGB_8888, true);
+        if( frame != scene )
+            frame.recycle();
+        return copy;
+    }
+
+    /** Tests that aligning a panorama incrementally, with only the previous frame kept, and the
+     *  frames reloaded one at a time for rendering (as ImageSaver does whilst a panorama is being
+     *  captured), gives the same transforms and result as when all of the frames are kept in
+     *  memory (as PanoramaProcessor.panorama() does). Uses synthetic frames, so no test data is
+     *  needed.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void testPanoramaIncremental() throws IOException, InterruptedException {
+        Log.d(TAG, "testPanoramaIncremental");
+
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            Log.d(TAG, "renderscript requires Android Lollipop or better");
+            return;
+        }
+
+        setToDefault();
+        Thread.sleep(1000); // wait for camera to open
+
+        final int n_frames = 4;
+        final int frame_width = 720;
+        final int frame_height = 960;
+        final float panorama_pics_per_screen = 2.0f;
+        final float camera_angle_y = 50.0f;
+        final int step = (int)(frame_width / panorama_pics_per_screen);
+        final boolean crop = true;
+
+        // create a textured scene, wide enough for all of the frames
+        final Bitmap scene = Bitmap.createBitmap(frame_width + (n_frames-1)*step, frame_height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(scene);
+        canvas.drawColor(Color.rgb(128, 128, 128));
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        Random random = new Random(12345);
+        for(int i=0;i<600;i++) {
+            paint.setColor(Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            float x = random.nextFloat() * scene.getWidth();
+            float y = random.nextFloat() * scene.getHeight();
+            float size = 8.0f + random.nextFloat() * 40.0f;
+            if( random.nextBoolean() )
+                canvas.drawRect(x, y, x + size, y + size*(0.5f+random.nextFloat()), paint);
+            else
+                canvas.drawCircle(x, y, size/2.0f, paint);
+        }
+
+        PanoramaProcessor panoramaProcessor = mActivity.getApplicationInterface().getPanoramaProcessor();
+        Bitmap batch_panorama;
+        Bitmap incremental_panorama;
+        List<Matrix> batch_transforms = new ArrayList<>();
+        List<Matrix> incremental_transforms = new ArrayList<>();
+        try {
+            // all frames kept in memory
+            final List<Bitmap> bitmaps = new ArrayList<>();
+            PanoramaProcessor.Stitcher batch_stitcher = panoramaProcessor.startPanorama(panorama_pics_per_screen, camera_angle_y, crop);
+            for(int i=0;i<n_frames;i++) {
+                bitmaps.add(createSyntheticPanoramaFrame(scene, i, frame_width, step));
+            }
+            for(int i=0;i<n_frames;i++) {
+                panoramaProcessor.addPanoramaFrame(batch_stitcher, bitmaps.get(i));
+                batch_transforms.add(batch_stitcher.getTransform(i));
+            }
+            batch_panorama = panoramaProcessor.finishPanorama(batch_stitcher, new PanoramaProcessor.FrameSource() {
+                @Override
+                public Bitmap getFrame(int i) {
+                    return bitmaps.get(i);
+                }
+
+                @Override
+                public void releaseFrame(int i, Bitmap bitmap) {
+                }
+            });
+            for(Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+
+            // incremental, each frame recreated as it arrives, and again for rendering
+            PanoramaProcessor.Stitcher incremental_stitcher = panoramaProcessor.startPanorama(panorama_pics_per_screen, camera_angle_y, crop);
+            Bitmap last_bitmap = null;
+            for(int i=0;i<n_frames;i++) {
+                last_bitmap = createSyntheticPanoramaFrame(scene, i, frame_width, step);
+                Bitmap prev_bitmap = panoramaProcessor.addPanoramaFrame(incremental_stitcher, last_bitmap);
+                if( prev_bitmap != null )
+                    prev_bitmap.recycle();
+                incremental_transforms.add(incremental_stitcher.getTransform(i));
+            }
+            incremental_panorama = panoramaProcessor.finishPanorama(incremental_stitcher, new PanoramaProcessor.FrameSource() {
+                @Override
+                public Bitmap getFrame(int i) {
+                    return createSyntheticPanoramaFrame(scene, i, frame_width, step);
+                }
+
+                @Override
+                public void releaseFrame(int i, Bitmap bitmap) {
+                    bitmap.recycle();
+                }
+            });
+            last_bitmap.recycle();
+        }
+        catch(PanoramaProcessorException e) {
+            e.printStackTrace();
+            fail();
+            return;
+        }
+        scene.recycle();
+
+        float [] batch_values = new float[9];
+        float [] incremental_values = new float[9];
+        for(int i=0;i<n_frames;i++) {
+            Log.d(TAG, "transform " + i + ": " + batch_transforms.get(i) + " vs " + incremental_transforms.get(i));
+            batch_transforms.get(i).getValues(batch_values);
+            incremental_transforms.get(i).getValues(incremental_values);
+            for(int j=0;j<9;j++) {
+                assertEquals(batch_values[j], incremental_values[j], 0.0f);
+            }
+        }
+
+        saveBitmap(incremental_panorama, "testPanoramaIncremental_output.jpg");
+        assertEquals(batch_panorama.getWidth(), incremental_panorama.getWidth());
+        assertEquals(batch_panorama.getHeight(), incremental_panorama.getHeight());
+        int width = batch_panorama.getWidth();
+        int height = batch_panorama.getHeight();
+        int [] batch_pixels = new int[width];
+        int [] incremental_pixels = new int[width];
+        for(int y=0;y<height;y++) {
+            batch_panorama.getPixels(batch_pixels, 0, width, 0, y, width, 1);
+            incremental_panorama.getPixels(incremental_pixels, 0, width, 0, y, width, 1);
+            for(int x=0;x<width;x++) {
+                assertEquals(batch_pixels[x], incremental_pixels[x]);
+            }
+        }
+        batch_panorama.recycle();
+        incremental_panorama.recycle();
+    }
+
+    /** Creates a textured bitmap for testBlendPyramidsBanded().
+     */
+    private Bitmap createSyntheticBlendImage(int width, int height, long seed) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Random random = new Random(seed);
+        canvas.drawColor(Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        for(int i=0;i<400;i++) {
+            paint.setColor(Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            float x = random.nextFloat() * width;
+            float y = random.nextFloat() * height;
+            float size = 8.0f + random.nextFloat() * 40.0f;
+            if( random.nextBoolean() )
+                canvas.drawRect(x, y, x + size, y + size*(0.5f+random.nextFloat()), paint);
+            else
+                canvas.drawCircle(x, y, size/2.0f, paint);
+        }
+        return bitmap;
+    }
+
+    /** Tests that blending the panorama pyramids in bands gives the same result as blending the
+     *  whole images at once. Uses synthetic images, so no test data is needed.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void testBlendPyramidsBanded() throws InterruptedException {
+        Log.d(TAG, "testBlendPyramidsBanded");
+
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ) {
+            Log.d(TAG, "renderscript requires Android Lollipop or better");
+            return;
+        }
+
+        setToDefault();
+        Thread.sleep(1000); // wait for camera to open
+
+        // height chosen so that the last band is only partially filled
+        final int width = 512;
+        final int height = 2400;
+        Bitmap lhs = createSyntheticBlendImage(width, height, 12345);
+        Bitmap rhs = createSyntheticBlendImage(width, height, 67890);
+
+        PanoramaProcessor panoramaProcessor = mActivity.getApplicationInterface().getPanoramaProcessor();
+        Bitmap unbanded = panoramaProcessor.testBlendPyramids(lhs, rhs, 0);
+        saveBitmap(unbanded, "testBlendPyramidsBanded_output.jpg");
+        assertEquals(width, unbanded.getWidth());
+        assertEquals(height, unbanded.getHeight());
+
+        final int [] band_heights = new int[]{1024, 256};
+        int [] unbanded_pixels = new int[width];
+        int [] banded_pixels = new int[width];
+        for(int band_height : band_heights) {
+            Log.d(TAG, "band_height: " + band_height);
+            Bitmap banded = panoramaProcessor.testBlendPyramids(lhs, rhs, band_height);
+            assertEquals(width, banded.getWidth());
+            assertEquals(height, banded.getHeight());
+            for(int y=0;y<height;y++) {
+                unbanded.getPixels(unbanded_pixels, 0, width, 0, y, width, 1);
+                banded.getPixels(banded_pixels, 0, width, 0, y, width, 1);
+                for(int x=0;x<width;x++) {
+                    assertEquals(unbanded_pixels[x], banded_pixels[x]);
+                }
+            }
+            banded.recycle();
+        }
+
+        unbanded.recycle();
+        lhs.recycle();
+        rhs.recycle();
+    }
+
     /** Tests panorama algorithm on test samples "testPanoramaWhite".
      *  This tests that auto-alignment fails gracefully if we can't find any matches.
      */
@@ -0,0 +1,158 @@
+package com.deepinout.geekcamera;
+
+import java.util.Arrays;
+
+/** Histograms of the value (maximum of the colour components, as computed by
+ *  HDRProcessor.computeHistogram() with avg==false) of an image, accumulated over columns, so that
+ *  the histogram of any vertical strip of the image is the difference of two entries. This means
+ *  the median and mean brightness of a strip can be found in O(n_bins_c), without scanning the
+ *  image again or allocating.
+ *  The image is divided into columns column_width pixels wide; strip boundaries are rounded to
+ *  the nearest column. Pixels are sampled every sample_step'th row and column.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class ColumnHistogram {
+    public static final int n_bins_c = 256;
+
+    private final int width;
+    private final int column_width;
+    private final int sample_step;
+    private final int n_columns;
+    // entry c*n_bins_c + v is the number of samples with value v in columns [0, c)
+    private final int [] cumulative;
+    // entry c is the number of samples in columns [0, c)
+    private final int [] cumulative_count;
+    // entry c is the sum of the values of samples in columns [0, c)
+    private final long [] cumulative_sum;
+    private boolean finished;
+
+    public ColumnHistogram(int width, int column_width, int sample_step) {
+        if( width <= 0 || column_width <= 0 || sample_step <= 0 ) {
+            throw new IllegalArgumentException("invalid dimensions");
+        }
+        this.width = width;
+        this.column_width = column_width;
+        this.sample_step = sample_step;
+        this.n_columns = (width + column_width - 1) / column_width;
+        this.cumulative = new int[(n_columns+1)*n_bins_c];
+        this.cumulative_count = new int[n_columns+1];
+        this.cumulative_sum = new long[n_columns+1];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getSampleStep() {
+        return sample_step;
+    }
+
+    /** Clears the histograms, so this object can be reused for another image of the same width.
+     */
+    public void reset() {
+        Arrays.fill(cumulative, 0);
+        Arrays.fill(cumulative_count, 0);
+        Arrays.fill(cumulative_sum, 0);
+        finished = false;
+    }
+
+    /** Adds a row of width ARGB pixels, starting at offset. The caller should only pass every
+     *  sample_step'th row; within the row, every sample_step'th pixel is used.
+     */
+    public void addRow(int [] pixels, int offset) {
+        if( finished ) {
+            throw new IllegalStateException("already finished");
+        }
+        for(int x=0;x<width;x+=sample_step) {
+            int color = pixels[offset+x];
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = color & 0xff;
+            int value = Math.max(r, Math.max(g, b));
+            // until finish() is called, row c+1 holds the counts for column c
+            int c = x / column_width + 1;
+            cumulative[c*n_bins_c + value]++;
+            cumulative_count[c]++;
+            cumulative_sum[c] += value;
+        }
+    }
+
+    /** Must be called once all rows have been added, before querying strips.
+     */
+    public void finish() {
+        if( finished ) {
+            throw new IllegalStateException("already finished");
+        }
+        for(int c=1;c<=n_columns;c++) {
+            int base = c*n_bins_c;
+            int prev_base = base - n_bins_c;
+            for(int v=0;v<n_bins_c;v++) {
+                cumulative[base + v] += cumulative[prev_base + v];
+            }
+            cumulative_count[c] += cumulative_count[c-1];
+            cumulative_sum[c] += cumulative_sum[c-1];
+        }
+        finished = true;
+    }
+
+    /** Returns the index of the column boundary nearest to pixel position x. Positions at or
+     *  beyond the width of the image map to the end of the final column, which may be partial.
+     */
+    private int getColumnBoundary(int x) {
+        if( !finished ) {
+            throw new IllegalStateException("not finished");
+        }
+        if( x >= width )
+            return n_columns;
+        int c = (x + column_width/2) / column_width;
+        return Math.max(0, Math.min(n_columns, c));
+    }
+
+    /** Returns the number of samples in the strip of pixels [x0, x1).
+     */
+    public int getCount(int x0, int x1) {
+        int c0 = getColumnBoundary(x0);
+        int c1 = getColumnBoundary(x1);
+        if( c1 <= c0 )
+            return 0;
+        return cumulative_count[c1] - cumulative_count[c0];
+    }
+
+    /** Returns the median value of the strip of pixels [x0, x1), defined in the same way as
+     *  HDRProcessor.getHistogramInfo(): the smallest value v such that at least half (rounded down)
+     *  of the samples have a value <= v. Returns -1 if the strip has no samples.
+     */
+    public int getMedian(int x0, int x1) {
+        int c0 = getColumnBoundary(x0);
+        int c1 = getColumnBoundary(x1);
+        if( c1 <= c0 )
+            return -1;
+        int total = cumulative_count[c1] - cumulative_count[c0];
+        if( total == 0 )
+            return -1;
+        int middle = total / 2;
+        int base0 = c0*n_bins_c;
+        int base1 = c1*n_bins_c;
+        int count = 0;
+        for(int v=0;v<n_bins_c;v++) {
+            count += cumulative[base1 + v] - cumulative[base0 + v];
+            if( count >= middle )
+                return v;
+        }
+        return n_bins_c-1; // shouldn't happen
+    }
+
+    /** Returns the mean value of the strip of pixels [x0, x1), or -1 if the strip has no samples.
+     */
+    public float getMean(int x0, int x1) {
+        int c0 = getColumnBoundary(x0);
+        int c1 = getColumnBoundary(x1);
+        if( c1 <= c0 )
+            return -1.0f;
+        int total = cumulative_count[c1] - cumulative_count[c0];
+        if( total == 0 )
+            return -1.0f;
+        return (cumulative_sum[c1] - cumulative_sum[c0]) / (float)total;
+    }
+}
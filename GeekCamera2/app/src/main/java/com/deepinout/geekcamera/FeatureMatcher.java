@@ -0,0 +1,304 @@
+package com.deepinout.geekcamera;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Pure Java helpers for matching features (corners) between images for panorama alignment, see
+ *  PanoramaProcessor.autoAlignmentByFeature(). This has no dependencies on Android, so can be run
+ *  on a plain JVM.
+ */
+public class FeatureMatcher {
+
+    /** Computes the distance between two feature descriptors, based on normalised cross correlation.
+     *  The sums are accumulated as integers. Values are luminances from 0 to 255, so for
+     *  descriptors of up to 258 values every sum is below 2^24, and so is exactly representable as
+     *  a float. This means the result is bit exact with accumulating the sums as floats.
+     * @param pixels0     The descriptors for the features of the first image. Each descriptor is a
+     *                    square of wid2 luminance values.
+     * @param pixel_idx0  The index in pixels0 of the first value of the descriptor.
+     * @param pixels1     The descriptors for the features of the second image.
+     * @param pixel_idx1  The index in pixels1 of the first value of the descriptor.
+     * @param wid2        The number of values in each descriptor.
+     * @return A distance from 0 to 1, where lower values mean a better match.
+     */
+    public static float computeDistance(int [] pixels0, int pixel_idx0, int [] pixels1, int pixel_idx1, int wid2) {
+        int fsum = 0, gsum = 0;
+        int f2sum = 0, g2sum = 0;
+        int fgsum = 0;
+
+        for(int i=0;i<wid2;i++) {
+            int value0 = pixels0[pixel_idx0++];
+            int value1 = pixels1[pixel_idx1++];
+
+            fsum += value0;
+            f2sum += value0*value0;
+            gsum += value1;
+            g2sum += value1*value1;
+            fgsum += value0*value1;
+        }
+        // the remaining calculations must be done in float, to match the previous float implementation
+        float fden = wid2*(float)f2sum - (float)fsum*(float)fsum;
+        float f_recip = fden==0 ? 0.0f : 1/ fden;
+        float gden = wid2*(float)g2sum - (float)gsum*(float)gsum;
+        float g_recip = gden==0 ? 0.0f : 1/ gden;
+        float fg_corr = wid2*(float)fgsum-(float)fsum*(float)gsum;
+        // negate, as we want it so that lower value means better match, and normalise to 0-1
+        return 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
+    }
+
+    /** Candidate matches between features of two images, stored as parallel arrays to avoid
+     *  creating an object for each candidate. Candidates are grouped by index0: the candidates for
+     *  feature i of the first image are stored from corner_start[i] to corner_start[i+1].
+     */
+    public static class Candidates {
+        public final int [] index0;
+        public final int [] index1;
+        public final float [] distance; // from 0 to 1, higher means poorer match
+        public final int [] corner_start;
+        public final int size;
+
+        Candidates(int [] index0, int [] index1, int [] corner_start, int size) {
+            this.index0 = index0;
+            this.index1 = index1;
+            this.distance = new float[size];
+            this.corner_start = corner_start;
+            this.size = size;
+        }
+    }
+
+    /** Finds the candidate matches between the features of two images, where a feature in the
+     *  second image is a candidate if its offset from the feature in the first image is less than
+     *  max_dist_x horizontally and less than max_dist_y vertically.
+     *  Rather than comparing every pair of features, the features of the second image are bucketed
+     *  into horizontal bands of height max_dist_y, so each feature of the first image only needs
+     *  to be compared with the features in the (up to) three bands that overlap the allowed range.
+     * @param xs0 The x coordinates of the features in the first image.
+     * @param ys0 The y coordinates of the features in the first image.
+     * @param xs1 The x coordinates of the features in the second image.
+     * @param ys1 The y coordinates of the features in the second image.
+     */
+    public static Candidates findCandidates(int [] xs0, int [] ys0, int [] xs1, int [] ys1, int max_dist_x, int max_dist_y) {
+        return findCandidates(xs0, ys0, xs1, ys1, 0, 0, max_dist_x, max_dist_y);
+    }
+
+    /** As findCandidates(), but the allowed range is centred on the expected offset (offset_x,
+     *  offset_y) of the features in the second image relative to the first, rather than on zero.
+     *  This allows a much smaller range to be searched when the offset between the images is
+     *  roughly known in advance.
+     */
+    public static Candidates findCandidates(int [] xs0, int [] ys0, int [] xs1, int [] ys1, int offset_x, int offset_y, int max_dist_x, int max_dist_y) {
+        final int n0 = xs0.length;
+        final int n1 = xs1.length;
+        final int cell_height = Math.max(max_dist_y, 1);
+        int max_y = 0;
+        for(int y : ys1) {
+            max_y = Math.max(max_y, y);
+        }
+        final int n_cells = max_y/cell_height + 1;
+
+        // counting sort of the second image's features into cells
+        int [] cell_start = new int[n_cells+1];
+        for(int y : ys1) {
+            cell_start[y/cell_height + 1]++;
+        }
+        for(int c=0;c<n_cells;c++) {
+            cell_start[c+1] += cell_start[c];
+        }
+        int [] cell_fill = Arrays.copyOf(cell_start, n_cells);
+        int [] cell_indices = new int[n1];
+        for(int j=0;j<n1;j++) {
+            cell_indices[cell_fill[ys1[j]/cell_height]++] = j;
+        }
+
+        int capacity = Math.max(16, 4*n0);
+        int [] index0 = new int[capacity];
+        int [] index1 = new int[capacity];
+        int [] corner_start = new int[n0+1];
+        int size = 0;
+        for(int i=0;i<n0;i++) {
+            corner_start[i] = size;
+            int x0 = xs0[i] + offset_x;
+            int y0 = ys0[i] + offset_y;
+            int cell_lo = Math.max(0, (y0 - max_dist_y)/cell_height);
+            int cell_hi = Math.min(n_cells-1, Math.max(0, (y0 + max_dist_y)/cell_height));
+            for(int c=cell_lo;c<=cell_hi;c++) {
+                for(int k=cell_start[c];k<cell_start[c+1];k++) {
+                    int j = cell_indices[k];
+                    int dx = xs1[j] - x0;
+                    int dy = ys1[j] - y0;
+                    if( Math.abs(dx) < max_dist_x && Math.abs(dy) < max_dist_y ) {
+                        if( size == capacity ) {
+                            capacity *= 2;
+                            index0 = Arrays.copyOf(index0, capacity);
+                            index1 = Arrays.copyOf(index1, capacity);
+                        }
+                        index0[size] = i;
+                        index1[size] = j;
+                        size++;
+                    }
+                }
+            }
+        }
+        corner_start[n0] = size;
+        return new Candidates(index0, index1, corner_start, size);
+    }
+
+    /** Computes the distance for each candidate from st_indx (inclusive) to nd_indx (exclusive).
+     * @param pixels0 The descriptors for the features of the first image, see computeDistance().
+     * @param pixels1 The descriptors for the features of the second image.
+     * @param wid2    The number of values in each descriptor.
+     */
+    public static void computeDistances(Candidates candidates, int st_indx, int nd_indx, int [] pixels0, int [] pixels1, int wid2) {
+        for(int indx=st_indx;indx<nd_indx;indx++) {
+            candidates.distance[indx] = computeDistance(pixels0, candidates.index0[indx]*wid2, pixels1, candidates.index1[indx]*wid2, wid2);
+        }
+    }
+
+    /** The number of candidates below which ComputeDistancesTask doesn't split any further.
+     */
+    private static final int distances_chunk_size_c = 256;
+
+    private static class ComputeDistancesTask extends RecursiveAction {
+        private final Candidates candidates;
+        private final int st_indx;
+        private final int nd_indx;
+        private final int [] pixels0;
+        private final int [] pixels1;
+        private final int wid2;
+
+        ComputeDistancesTask(Candidates candidates, int st_indx, int nd_indx, int [] pixels0, int [] pixels1, int wid2) {
+            this.candidates = candidates;
+            this.st_indx = st_indx;
+            this.nd_indx = nd_indx;
+            this.pixels0 = pixels0;
+            this.pixels1 = pixels1;
+            this.wid2 = wid2;
+        }
+
+        @Override
+        protected void compute() {
+            if( nd_indx - st_indx <= distances_chunk_size_c ) {
+                computeDistances(candidates, st_indx, nd_indx, pixels0, pixels1, wid2);
+            }
+            else {
+                int mid_indx = (st_indx + nd_indx)/2;
+                invokeAll(
+                        new ComputeDistancesTask(candidates, st_indx, mid_indx, pixels0, pixels1, wid2),
+                        new ComputeDistancesTask(candidates, mid_indx, nd_indx, pixels0, pixels1, wid2)
+                );
+            }
+        }
+    }
+
+    /** As computeDistances(), but for all candidates, split into chunks across the supplied pool.
+     *  Since each candidate is computed independently, the results are identical to
+     *  computeDistances().
+     */
+    public static void computeDistancesParallel(ForkJoinPool pool, Candidates candidates, int [] pixels0, int [] pixels1, int wid2) {
+        pool.invoke(new ComputeDistancesTask(candidates, 0, candidates.size, pixels0, pixels1, wid2));
+    }
+
+    /** The matches chosen by selectMatches(), as parallel arrays, in order of increasing distance.
+     */
+    public static class Matches {
+        public final int [] index0;
+        public final int [] index1;
+        public final float [] distance;
+        public final int size;
+        public final boolean [] rejected0; // for debugging: features of the first image rejected by Lowe's test
+
+        Matches(int [] index0, int [] index1, float [] distance, int size, boolean [] rejected0) {
+            this.index0 = index0;
+            this.index1 = index1;
+            this.distance = distance;
+            this.size = size;
+            this.rejected0 = rejected0;
+        }
+    }
+
+    /** Returns a key for a distance, such that comparing keys as ints gives the same order as
+     *  comparing the distances with Float.compare().
+     */
+    private static int sortableKey(float distance) {
+        int bits = Float.floatToIntBits(distance);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    /** Chooses matches from the candidates, such that each feature is used in at most one match.
+     *  Candidates are considered from best (lowest distance) to worst. A candidate is rejected by
+     *  Lowe's ratio test if the ratio of its distance to the distance of the next best candidate for
+     *  the same feature of the first image is greater than lowe_ratio; rejecting a candidate also
+     *  rejects that feature of the first image.
+     *  Rather than sorting all candidates, only the best max_per_corner candidates for each
+     *  feature of the first image are kept (found by partial selection), together with the
+     *  distance of the next best for the ratio test.
+     */
+    public static Matches selectMatches(Candidates candidates, int n_corners0, int n_corners1, int max_per_corner, float lowe_ratio) {
+        // partial selection of the best max_per_corner+1 candidates for each feature
+        final int keep = max_per_corner+1;
+        int [] best_indx = new int[keep];
+        float [] best_dist = new float[keep];
+        long [] keys = new long[n_corners0*max_per_corner];
+        float [] next_distance = new float[candidates.size];
+        int n_keys = 0;
+        for(int i=0;i<n_corners0;i++) {
+            int n_best = 0;
+            for(int k=candidates.corner_start[i];k<candidates.corner_start[i+1];k++) {
+                float dist = candidates.distance[k];
+                if( n_best == keep && Float.compare(dist, best_dist[keep-1]) >= 0 )
+                    continue;
+                // insertion into the sorted list of best candidates (ties keep the earlier candidate first)
+                int pos = Math.min(n_best, keep-1);
+                while( pos > 0 && Float.compare(dist, best_dist[pos-1]) < 0 ) {
+                    best_dist[pos] = best_dist[pos-1];
+                    best_indx[pos] = best_indx[pos-1];
+                    pos--;
+                }
+                best_dist[pos] = dist;
+                best_indx[pos] = k;
+                if( n_best < keep )
+                    n_best++;
+            }
+            for(int r=0;r<n_best && r<max_per_corner;r++) {
+                int k = best_indx[r];
+                next_distance[k] = r+1 < n_best ? best_dist[r+1] : Float.NaN;
+                keys[n_keys++] = (((long)sortableKey(best_dist[r])) << 32) | k;
+            }
+        }
+        Arrays.sort(keys, 0, n_keys);
+
+        boolean [] rejected0 = new boolean[n_corners0];
+        boolean [] has_matched0 = new boolean[n_corners0];
+        boolean [] has_matched1 = new boolean[n_corners1];
+        int [] index0 = new int[Math.min(n_corners0, n_corners1)];
+        int [] index1 = new int[index0.length];
+        float [] distance = new float[index0.length];
+        int size = 0;
+        for(int n=0;n<n_keys;n++) {
+            int k = (int)keys[n]; // lower 32 bits
+            int i0 = candidates.index0[k];
+            int i1 = candidates.index1[k];
+            if( has_matched0[i0] || has_matched1[i1] ) {
+                continue;
+            }
+            // Lowe's test
+            float next = next_distance[k];
+            if( !Float.isNaN(next) ) {
+                float ratio = candidates.distance[k] / next;
+                if( ratio+1.0e-5 > lowe_ratio ) {
+                    has_matched0[i0] = true;
+                    rejected0[i0] = true;
+                    continue;
+                }
+            }
+            index0[size] = i0;
+            index1[size] = i1;
+            distance[size] = candidates.distance[k];
+            size++;
+            has_matched0[i0] = true;
+            has_matched1[i1] = true;
+        }
+        return new Matches(index0, index1, distance, size, rejected0);
+    }
+}
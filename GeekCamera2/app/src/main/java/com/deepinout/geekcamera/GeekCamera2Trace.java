@@ -3,6 +3,16 @@ package com.deepinout.geekcamera;
 import android.os.Build;
 import android.os.Trace;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Traces sections of the application, both to systrace (when tracing is enabled), and to a
+ *  TraceRecorder, so that timing metrics such as capture latencies are always available (see
+ *  flush() and getHistograms()), without needing logging to be enabled.
+ *  Systrace receives the sections as they happen, as android.os.Trace can't be given timestamps
+ *  after the event; the recorded events are passed to the sinks (the histograms, and any added
+ *  with addSink()) by flush().
+ */
 public class GeekCamera2Trace {
     public static final String GET_CAMERA_MANAGER = "GC2_App_create_CameraManager";
     public static final String OPEN_CAMERA = "GC2_App_openCamera";
@@ -31,35 +41,103 @@ public class GeekCamera2Trace {
     public static final String GC2_CAPTURE_SAVE_JPEG = "GC2_CAPTURE_SAVE_JPEG";
     public static final String GC2_CAPTURE_UPDATE_DB = "GC2_CAPTURE_UPDATE_DB";
     public static final String GC2_CAPTURE_DECODE_BITMAP_THUMBNAIL = "GC2_CAPTURE_DECODE_BITMAP_THUMBNAIL";
+    public static final String GC2_CAPTURE_SHUTTER_2_SAVED = "GC2_CAPTURE_SHUTTER_2_SAVED";
+
+    private static final boolean record_metrics_c = true; // whether to record to the TraceRecorder
+    //private static final boolean record_metrics_c = false;
+    private static final int recorder_capacity_c = 512; // events per thread - must be a power of 2
+    private static final TraceRecorder recorder = new TraceRecorder(recorder_capacity_c);
+    private static final HistogramTraceSink histograms = new HistogramTraceSink();
+    private static final List<TraceRecorder.Sink> sinks = new CopyOnWriteArrayList<>();
+    private static final TraceRecorder.Sink flush_sink = new TraceRecorder.Sink() {
+        @Override
+        public void onSpan(String name, long thread_id, long start_ns, long end_ns) {
+            histograms.onSpan(name, thread_id, start_ns, end_ns);
+            for(TraceRecorder.Sink sink : sinks) {
+                sink.onSpan(name, thread_id, start_ns, end_ns);
+            }
+        }
+
+        @Override
+        public void onCounter(String name, long thread_id, long timestamp_ns, long value) {
+            histograms.onCounter(name, thread_id, timestamp_ns, value);
+            for(TraceRecorder.Sink sink : sinks) {
+                sink.onCounter(name, thread_id, timestamp_ns, value);
+            }
+        }
+    };
 
     public static boolean isFirstPreviewBuffer = false;
     public static void beginAsyncSection(String methodName, int cookie) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && Trace.isEnabled()) {
             Trace.beginAsyncSection(methodName, cookie);
         }
+        if( record_metrics_c ) {
+            recorder.beginAsyncSpan(methodName, cookie);
+        }
     }
 
     public static void endAsyncSection(String methodName, int cookie) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && Trace.isEnabled()) {
             Trace.endAsyncSection(methodName, cookie);
         }
+        if( record_metrics_c ) {
+            recorder.endAsyncSpan(methodName, cookie);
+        }
     }
 
     public static void beginSection(String sectionName) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&Trace.isEnabled()) {
             Trace.beginSection(sectionName);
         }
+        if( record_metrics_c ) {
+            recorder.beginSpan(sectionName);
+        }
     }
 
     public static void endSection() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&Trace.isEnabled()) {
             Trace.endSection();
         }
+        if( record_metrics_c ) {
+            recorder.endSpan();
+        }
     }
 
     public static void setCounter(String counterName, long counterValue) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&Trace.isEnabled()) {
             Trace.setCounter(counterName, counterValue);
         }
+        if( record_metrics_c ) {
+            recorder.setCounter(counterName, counterValue);
+        }
+    }
+
+    /** Adds a sink to receive the recorded events from future calls to flush().
+     */
+    public static void addSink(TraceRecorder.Sink sink) {
+        sinks.add(sink);
+    }
+
+    public static void removeSink(TraceRecorder.Sink sink) {
+        sinks.remove(sink);
+    }
+
+    /** Passes the events recorded since the last flush to the histograms and the added sinks.
+     *  Events are only held for a limited number per thread, so this should be called regularly
+     *  (e.g., after each photo is saved).
+     */
+    public static void flush() {
+        recorder.drainTo(flush_sink);
+    }
+
+    /** Returns the histograms of the durations of each section, as of the last flush().
+     */
+    public static HistogramTraceSink getHistograms() {
+        return histograms;
+    }
+
+    public static TraceRecorder getRecorder() {
+        return recorder;
     }
 }
@@ -0,0 +1,52 @@
+package com.deepinout.geekcamera;
+
+/** Predicts the offset between two frames from the gyro rotation matrices recorded when they were
+ *  taken (see GyroSensor.getRotationMatrix()), so that the search for the alignment between the
+ *  frames can be restricted to a window around the prediction.
+ *  The matrices map device coordinates to world coordinates, and the camera is assumed to point
+ *  along the device's -z axis, with x to the right and y up, as for the vectors recorded for
+ *  panoramas in ImageSaver.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class GyroAlignmentPrior {
+    /** The largest angle between the viewing directions of the two frames for which we make a
+     *  prediction, in degrees.
+     */
+    public static final float max_angle_c = 60.0f;
+
+    /** Returns the focal length in pixels, for an image of the supplied width whose horizontal
+     *  field of view is camera_angle (in radians).
+     */
+    public static float getFocalLength(int width, double camera_angle) {
+        return (float)(width / (2.0 * Math.tan(camera_angle/2.0)));
+    }
+
+    /** Predicts where the centre of the frame taken at rotation matrix appears in the frame taken
+     *  at rotation matrix_ref.
+     * @param matrix_ref   The row major 3x3 rotation matrix of the reference frame.
+     * @param matrix       The row major 3x3 rotation matrix of the other frame.
+     * @param focal_length The focal length in pixels, see getFocalLength().
+     * @param result       Output array of length 2, receiving the offset {x, y} in pixels from the
+     *                     centre of the reference frame, with y pointing down.
+     * @return Whether a prediction could be made - false if the frames are too far apart.
+     */
+    public static boolean predictOffset(float [] matrix_ref, float [] matrix, float focal_length, float [] result) {
+        // the viewing direction of the frame in world coordinates, i.e., matrix . (0, 0, -1)
+        float wx = -matrix[2];
+        float wy = -matrix[5];
+        float wz = -matrix[8];
+        // and transformed into the device coordinates of the reference frame, by the inverse
+        // (transpose) of matrix_ref
+        float dx = matrix_ref[0]*wx + matrix_ref[3]*wy + matrix_ref[6]*wz;
+        float dy = matrix_ref[1]*wx + matrix_ref[4]*wy + matrix_ref[7]*wz;
+        float dz = matrix_ref[2]*wx + matrix_ref[5]*wy + matrix_ref[8]*wz;
+        float depth = -dz;
+        if( depth < Math.cos(Math.toRadians(max_angle_c)) ) {
+            return false;
+        }
+        result[0] = focal_length * dx / depth;
+        result[1] = - focal_length * dy / depth;
+        return true;
+    }
+}
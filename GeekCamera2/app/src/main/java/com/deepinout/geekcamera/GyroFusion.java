@@ -0,0 +1,477 @@
+package com.deepinout.geekcamera;
+
+/** The sensor fusion used by GyroSensor: integrates gyroscope readings into the rotation of the
+ *  device relative to when recording started, corrects drift against the accelerometer, and tracks
+ *  the targets used for panorama.
+ *  The rotation is held as a unit quaternion (x, y, z, w), which is renormalised periodically
+ *  rather than after every update. Updates don't allocate, and for the small rotations between
+ *  gyro events don't need sqrt, sin or cos. Targets are held in a fixed capacity array.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it (e.g., by replaying recorded sensor streams).
+ */
+public class GyroFusion {
+    public interface TargetCallback {
+        /** Called when the target has been achieved.
+         * @param indx Index of the target that has been achieved.
+         */
+        void onAchieved(int indx);
+        /* Called when the orientation is significantly far from the target.
+         */
+        void onTooFar();
+    }
+
+    private static final float NS2S = 1.0f / 1000000000.0f;
+    // renormalise the quaternions after this many updates
+    private static final int renormalise_interval_c = 16;
+    // below this half angle (in radians), we use a Taylor expansion for sin and cos; the error of
+    // the expansions is below 1.0e-10
+    private static final float small_half_angle_c = 0.05f;
+    public static final int max_targets_c = 4;
+
+    private long timestamp;
+
+    private boolean has_gyroVector;
+    private final float [] gyroVector = new float[3];
+    // rotation including corrections from the accelerometer
+    private float qx, qy, qz, qw = 1.0f;
+    // rotation from the gyroscope only
+    private float gqx, gqy, gqz, gqw = 1.0f;
+    private int n_updates_since_renormalise;
+
+    private boolean has_init_accel = false;
+    private final float [] initAccelVector = new float[3];
+    private final float [] accelVector = new float[3];
+
+    private boolean has_original_rotation;
+    private float oqx, oqy, oqz, oqw = 1.0f;
+    private boolean has_rotationVector;
+    private final float [] rotationVector = new float[3];
+
+    // temporary vectors:
+    private final float [] tempVector = new float[3];
+    private final float [] upVector = new float[3];
+    private final float [] forwardVector = new float[3];
+
+    private boolean hasTarget;
+    private final float [] targetVectors = new float[3*max_targets_c];
+    private int n_targets;
+    private float targetAngle; // target angle in radians
+    private float uprightAngleTol; // in radians
+    private boolean targetAchieved;
+    private float tooFarAngle; // in radians
+    private TargetCallback targetCallback;
+    private boolean has_lastTargetAngle;
+    private float lastTargetAngle;
+    private int is_upright; // if hasTarget==true, this stores whether the "upright" orientation of the device is close enough to the orientation when recording was started: 0 for yes, otherwise -1 for too anti-clockwise, +1 for too clockwise
+
+    public GyroFusion() {
+        setToIdentity();
+    }
+
+    /** Resets the rotation to the identity.
+     */
+    public void setToIdentity() {
+        qx = qy = qz = 0.0f;
+        qw = 1.0f;
+        gqx = gqy = gqz = 0.0f;
+        gqw = 1.0f;
+        n_updates_since_renormalise = 0;
+
+        for(int i=0;i<3;i++) {
+            initAccelVector[i] = 0.0f;
+            // don't set accelVector, rotationVector, gyroVector to 0 here, as we continually smooth the values even when not recording
+        }
+        has_init_accel = false;
+        has_original_rotation = false;
+    }
+
+    /** Clears the smoothed sensor values, for when the sensors are (re-)enabled.
+     */
+    public void resetSensorValues() {
+        has_rotationVector = false;
+        has_gyroVector = false;
+        for(int i=0;i<3;i++) {
+            accelVector[i] = 0.0f;
+            rotationVector[i] = 0.0f;
+            gyroVector[i] = 0.0f;
+        }
+    }
+
+    /** Forgets the time of the last gyro event, so the next event starts integrating afresh.
+     */
+    public void resetTimestamp() {
+        timestamp = 0;
+    }
+
+    /** Sets the 3x3 row major rotation matrix for the quaternion (x, y, z, w), as
+     *  SensorManager.getRotationMatrixFromVector() does.
+     */
+    public static void quaternionToMatrix(float [] matrix, float x, float y, float z, float w) {
+        float xx2 = 2.0f*x*x, yy2 = 2.0f*y*y, zz2 = 2.0f*z*z;
+        float xy2 = 2.0f*x*y, xz2 = 2.0f*x*z, yz2 = 2.0f*y*z;
+        float xw2 = 2.0f*x*w, yw2 = 2.0f*y*w, zw2 = 2.0f*z*w;
+        matrix[0] = 1.0f - yy2 - zz2;
+        matrix[1] = xy2 - zw2;
+        matrix[2] = xz2 + yw2;
+        matrix[3] = xy2 + zw2;
+        matrix[4] = 1.0f - xx2 - zz2;
+        matrix[5] = yz2 - xw2;
+        matrix[6] = xz2 - yw2;
+        matrix[7] = yz2 + xw2;
+        matrix[8] = 1.0f - xx2 - yy2;
+    }
+
+    /** Rotates vector by the quaternion (x, y, z, w), storing the result in result (which may be
+     *  the same array as vector).
+     */
+    private static void rotateVector(float [] result, float x, float y, float z, float w, float [] vector) {
+        // v' = v + 2w(q x v) + 2q x (q x v)
+        float vx = vector[0], vy = vector[1], vz = vector[2];
+        float tx = 2.0f*(y*vz - z*vy);
+        float ty = 2.0f*(z*vx - x*vz);
+        float tz = 2.0f*(x*vy - y*vx);
+        result[0] = vx + w*tx + (y*tz - z*ty);
+        result[1] = vy + w*ty + (z*tx - x*tz);
+        result[2] = vz + w*tz + (x*ty - y*tx);
+    }
+
+    /** As rotateVector(), but rotating by the inverse of the quaternion.
+     */
+    private static void rotateVectorInverse(float [] result, float x, float y, float z, float w, float [] vector) {
+        rotateVector(result, -x, -y, -z, w, vector);
+    }
+
+    private void renormalise() {
+        float mag2 = qx*qx + qy*qy + qz*qz + qw*qw;
+        if( mag2 > 1.0e-10f ) {
+            float scale = (float)(1.0/Math.sqrt(mag2));
+            qx *= scale; qy *= scale; qz *= scale; qw *= scale;
+        }
+        mag2 = gqx*gqx + gqy*gqy + gqz*gqz + gqw*gqw;
+        if( mag2 > 1.0e-10f ) {
+            float scale = (float)(1.0/Math.sqrt(mag2));
+            gqx *= scale; gqy *= scale; gqz *= scale; gqw *= scale;
+        }
+        n_updates_since_renormalise = 0;
+    }
+
+    private void adjustGyroForAccel() {
+        if( timestamp == 0 ) {
+            // don't have a gyro matrix yet
+            return;
+        }
+        else if( !has_init_accel ) {
+            return;
+        }
+
+        rotateVector(tempVector, qx, qy, qz, qw, accelVector);
+        // tempVector is now the accelVector transformed by the gyro rotation
+        double cos_angle = (tempVector[0] * initAccelVector[0] + tempVector[1] * initAccelVector[1] + tempVector[2] * initAccelVector[2]);
+        if( cos_angle >= 0.99999999995 ) {
+            // gyroscope already matches accelerometer
+            return;
+        }
+
+        // compute rotation to transform tempVector to initAccelVector
+        // compute (tempVector X initAccelVector) normalised
+        double a_x = tempVector[1] * initAccelVector[2] - tempVector[2] * initAccelVector[1];
+        double a_y = tempVector[2] * initAccelVector[0] - tempVector[0] * initAccelVector[2];
+        double a_z = tempVector[0] * initAccelVector[1] - tempVector[1] * initAccelVector[0];
+        double a_mag = Math.sqrt(a_x*a_x + a_y*a_y + a_z*a_z);
+        if( a_mag < 1.0e-5 ) {
+            // parallel or anti-parallel case
+            return;
+        }
+
+        double angle = Math.acos(cos_angle);
+        angle *= 0.02f; // filter
+        double half_angle = 0.5*angle;
+        double scale = Math.sin(half_angle) / a_mag;
+        float ax = (float)(a_x * scale);
+        float ay = (float)(a_y * scale);
+        float az = (float)(a_z * scale);
+        float aw = (float)Math.cos(half_angle);
+
+        // replace the rotation with (correction).(rotation)
+        // since [correction.rotation].[accelVector] = correction.tempVector = initAccelVector
+        float nx = aw*qx + ax*qw + ay*qz - az*qy;
+        float ny = aw*qy - ax*qz + ay*qw + az*qx;
+        float nz = aw*qz + ax*qy - ay*qx + az*qw;
+        float nw = aw*qw - ax*qx - ay*qy - az*qz;
+        qx = nx; qy = ny; qz = nz; qw = nw;
+    }
+
+    /** Processes an accelerometer event.
+     */
+    public void onAccelerometer(float x, float y, float z) {
+        final float sensor_alpha = 0.8f; // for filter
+        accelVector[0] = sensor_alpha * accelVector[0] + (1.0f-sensor_alpha) * x;
+        accelVector[1] = sensor_alpha * accelVector[1] + (1.0f-sensor_alpha) * y;
+        accelVector[2] = sensor_alpha * accelVector[2] + (1.0f-sensor_alpha) * z;
+
+        double mag = Math.sqrt(accelVector[0]*accelVector[0] + accelVector[1]*accelVector[1] + accelVector[2]*accelVector[2]);
+        if( mag > 1.0e-8 ) {
+            accelVector[0] /= mag;
+            accelVector[1] /= mag;
+            accelVector[2] /= mag;
+        }
+
+        if( !has_init_accel ) {
+            System.arraycopy(accelVector, 0, initAccelVector, 0, 3);
+            has_init_accel = true;
+        }
+
+        adjustGyroForAccel();
+        checkTargets();
+    }
+
+    /** Processes a gyroscope event.
+     * @param event_timestamp The time of the event in nanoseconds.
+     * @param x, y, z The angular speed around each axis, in radians per second.
+     */
+    public void onGyroscope(long event_timestamp, float x, float y, float z) {
+        if( has_gyroVector ) {
+            final float sensor_alpha = 0.5f; // for filter
+            gyroVector[0] = sensor_alpha * gyroVector[0] + (1.0f-sensor_alpha) * x;
+            gyroVector[1] = sensor_alpha * gyroVector[1] + (1.0f-sensor_alpha) * y;
+            gyroVector[2] = sensor_alpha * gyroVector[2] + (1.0f-sensor_alpha) * z;
+        }
+        else {
+            gyroVector[0] = x;
+            gyroVector[1] = y;
+            gyroVector[2] = z;
+            has_gyroVector = true;
+        }
+
+        if( timestamp != 0 ) {
+            final float dT = (event_timestamp - timestamp) * NS2S;
+            // The delta rotation over the timestep is by omega*dT about the axis omega/|omega|,
+            // which as a quaternion is (sin(theta/2)*omega/|omega|, cos(theta/2)), where
+            // theta = |omega|*dT.
+            final float omega2 = gyroVector[0]*gyroVector[0] + gyroVector[1]*gyroVector[1] + gyroVector[2]*gyroVector[2];
+            final float half_dT = 0.5f*dT;
+            final float half_theta2 = omega2*half_dT*half_dT;
+            float sin_scale; // sin(theta/2)/|omega|
+            float dw; // cos(theta/2)
+            if( half_theta2 < small_half_angle_c*small_half_angle_c ) {
+                // sin(a)/|omega| = (dT/2)(1 - a^2/6 + a^4/120), cos(a) = 1 - a^2/2 + a^4/24
+                sin_scale = half_dT * (1.0f - half_theta2*(1.0f/6.0f) + half_theta2*half_theta2*(1.0f/120.0f));
+                dw = 1.0f - 0.5f*half_theta2 + half_theta2*half_theta2*(1.0f/24.0f);
+            }
+            else {
+                double omega = Math.sqrt(omega2);
+                double half_theta = omega*half_dT;
+                sin_scale = (float)(Math.sin(half_theta)/omega);
+                dw = (float)Math.cos(half_theta);
+            }
+            final float dx = sin_scale*gyroVector[0];
+            final float dy = sin_scale*gyroVector[1];
+            final float dz = sin_scale*gyroVector[2];
+
+            // rotation = rotation * delta
+            float nx = qw*dx + qx*dw + qy*dz - qz*dy;
+            float ny = qw*dy - qx*dz + qy*dw + qz*dx;
+            float nz = qw*dz + qx*dy - qy*dx + qz*dw;
+            float nw = qw*dw - qx*dx - qy*dy - qz*dz;
+            qx = nx; qy = ny; qz = nz; qw = nw;
+
+            nx = gqw*dx + gqx*dw + gqy*dz - gqz*dy;
+            ny = gqw*dy - gqx*dz + gqy*dw + gqz*dx;
+            nz = gqw*dz + gqx*dy - gqy*dx + gqz*dw;
+            nw = gqw*dw - gqx*dx - gqy*dy - gqz*dz;
+            gqx = nx; gqy = ny; gqz = nz; gqw = nw;
+
+            if( ++n_updates_since_renormalise >= renormalise_interval_c ) {
+                renormalise();
+            }
+
+            adjustGyroForAccel();
+        }
+
+        timestamp = event_timestamp;
+        checkTargets();
+    }
+
+    /** Processes a rotation vector (or game rotation vector) event.
+     * @param x, y, z The first 3 values of the event, the vector part of the unit quaternion.
+     * @param w The 4th value of the event, or 0 if not available.
+     */
+    public void onRotationVector(float x, float y, float z, float w) {
+        if( has_rotationVector ) {
+            //final float sensor_alpha = 0.7f; // for filter
+            final float sensor_alpha = 0.8f; // for filter
+            rotationVector[0] = sensor_alpha * rotationVector[0] + (1.0f-sensor_alpha) * x;
+            rotationVector[1] = sensor_alpha * rotationVector[1] + (1.0f-sensor_alpha) * y;
+            rotationVector[2] = sensor_alpha * rotationVector[2] + (1.0f-sensor_alpha) * z;
+        }
+        else {
+            rotationVector[0] = x;
+            rotationVector[1] = y;
+            rotationVector[2] = z;
+            has_rotationVector = true;
+        }
+
+        // as SensorManager.getRotationMatrixFromVector() for a vector of length 3
+        float rx = rotationVector[0], ry = rotationVector[1], rz = rotationVector[2];
+        float rw = 1.0f - rx*rx - ry*ry - rz*rz;
+        rw = rw > 0.0f ? (float)Math.sqrt(rw) : 0.0f;
+
+        if( !has_original_rotation ) {
+            oqx = rx; oqy = ry; oqz = rz; oqw = rw;
+            has_original_rotation = w != 1.0;
+        }
+
+        // current = original^-1 * new
+        qx = oqw*rx - oqx*rw - oqy*rz + oqz*ry;
+        qy = oqw*ry + oqx*rz - oqy*rw - oqz*rx;
+        qz = oqw*rz - oqx*ry + oqy*rx - oqz*rw;
+        qw = oqw*rw + oqx*rx + oqy*ry + oqz*rz;
+        checkTargets();
+    }
+
+    public void setTarget(float target_x, float target_y, float target_z, float targetAngle, float uprightAngleTol, float tooFarAngle, TargetCallback targetCallback) {
+        this.hasTarget = true;
+        this.n_targets = 0;
+        addTarget(target_x, target_y, target_z);
+        this.targetAngle = targetAngle;
+        this.uprightAngleTol = uprightAngleTol;
+        this.tooFarAngle = tooFarAngle;
+        this.targetCallback = targetCallback;
+        this.has_lastTargetAngle = false;
+        this.lastTargetAngle = 0.0f;
+    }
+
+    public void addTarget(float target_x, float target_y, float target_z) {
+        if( n_targets == max_targets_c ) {
+            throw new RuntimeException("too many targets");
+        }
+        targetVectors[3*n_targets] = target_x;
+        targetVectors[3*n_targets+1] = target_y;
+        targetVectors[3*n_targets+2] = target_z;
+        n_targets++;
+    }
+
+    public void clearTarget() {
+        this.hasTarget = false;
+        this.n_targets = 0;
+        this.targetCallback = null;
+        this.has_lastTargetAngle = false;
+        this.lastTargetAngle = 0.0f;
+    }
+
+    public void disableTargetCallback() {
+        this.targetCallback = null;
+    }
+
+    public TargetCallback getTargetCallback() {
+        return this.targetCallback;
+    }
+
+    public boolean hasTarget() {
+        return this.hasTarget;
+    }
+
+    public boolean isTargetAchieved() {
+        return this.hasTarget && this.targetAchieved;
+    }
+
+    public int isUpright() {
+        return this.is_upright;
+    }
+
+    private void checkTargets() {
+        if( !hasTarget ) {
+            return;
+        }
+        int n_too_far = 0;
+        targetAchieved = false;
+
+        // vector pointing in "up" direction
+        upVector[0] = 0.0f; upVector[1] = 1.0f; upVector[2] = 0.0f;
+        rotateVector(upVector, qx, qy, qz, qw, upVector);
+        final float ux = upVector[0];
+        final float uy = upVector[1];
+        final float uz = upVector[2];
+        // vector pointing behind the device's screen
+        forwardVector[0] = 0.0f; forwardVector[1] = 0.0f; forwardVector[2] = -1.0f;
+        rotateVector(forwardVector, qx, qy, qz, qw, forwardVector);
+
+        for(int indx=0;indx<n_targets;indx++) {
+            final float tx = targetVectors[3*indx];
+            final float ty = targetVectors[3*indx+1];
+            final float tz = targetVectors[3*indx+2];
+            // first check if we are still "upright"
+            is_upright = 0;
+
+            // project up vector into plane perpendicular to targetVector
+            // v' = v - (v.n)n
+            float u_dot_n = ux * tx + uy * ty + uz * tz;
+            float p_ux = ux - u_dot_n * tx;
+            float p_uy = uy - u_dot_n * ty;
+            float p_uz = uz - u_dot_n * tz;
+            float p_u_mag2 = p_ux*p_ux + p_uy*p_uy + p_uz*p_uz;
+            if( p_u_mag2 > 1.0e-10f ) {
+                // compute p_u X (0 1 0), with p_u normalised
+                // (p_uy isn't needed)
+                float p_u_mag = (float)Math.sqrt(p_u_mag2);
+                float cx = - p_uz / p_u_mag;
+                float cy = 0.0f;
+                float cz = p_ux / p_u_mag;
+                float sin_angle_up = (float)Math.sqrt(cx*cx + cy*cy + cz*cz);
+                float angle_up = (float)Math.asin(Math.min(sin_angle_up, 1.0f));
+
+                if( Math.abs(angle_up) > this.uprightAngleTol ) {
+                    float dot = cx*forwardVector[0] + cy*forwardVector[1] + cz*forwardVector[2];
+                    is_upright = (dot < 0) ? 1 : -1;
+                }
+            }
+
+            float cos_angle = forwardVector[0] * tx + forwardVector[1] * ty + forwardVector[2] * tz;
+            float angle = (float)Math.acos(Math.max(-1.0f, Math.min(cos_angle, 1.0f)));
+            if( is_upright == 0 ) {
+                if( angle <= targetAngle ) {
+                    targetAchieved = true;
+                    if( targetCallback != null ) {
+                        if( has_lastTargetAngle ) {
+                            if( angle > lastTargetAngle ) {
+                                // started to get worse, so call callback
+                                targetCallback.onAchieved(indx);
+                            }
+                            // else, don't call callback yet, as we may get closer to the target
+                        }
+                    }
+                    // only bother setting the lastTargetAngle if within the target angle - otherwise we'll have problems if there is more than one target set
+                    has_lastTargetAngle = true;
+                    lastTargetAngle = angle;
+                }
+            }
+
+            if( angle > tooFarAngle ) {
+                n_too_far++;
+            }
+        }
+        if( n_too_far > 0 && n_too_far == n_targets ) {
+            if( targetCallback != null ) {
+                targetCallback.onTooFar();
+            }
+        }
+    }
+
+    /** Applies the inverse of the current rotation to in.
+     */
+    public void getRelativeInverseVector(float [] out, float [] in) {
+        rotateVectorInverse(out, qx, qy, qz, qw, in);
+    }
+
+    /** As getRelativeInverseVector(), but for the rotation from the gyroscope only.
+     */
+    public void getRelativeInverseVectorGyroOnly(float [] out, float [] in) {
+        rotateVectorInverse(out, gqx, gqy, gqz, gqw, in);
+    }
+
+    /** Returns the current rotation as a 3x3 row major matrix.
+     */
+    public void getRotationMatrix(float [] out) {
+        quaternionToMatrix(out, qx, qy, qz, qw);
+    }
+}
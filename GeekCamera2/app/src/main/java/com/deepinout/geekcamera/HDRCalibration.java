@@ -0,0 +1,289 @@
+package com.deepinout.geekcamera;
+
+/** Samples images on a regular grid, for estimating the response functions between the exposures
+ *  of an HDR burst (see HDRProcessor.createFunctionFromBitmaps()), and the luminance histogram
+ *  used to sort them (see HDRProcessor.computeMedianLuminance()).
+ *  Rather than reading each sample with Bitmap.getPixel(), each row of samples is read in bulk
+ *  via a PixelSource into a reusable buffer, and the samples are kept in primitive arrays, so
+ *  that a denser grid costs little more than the original 100 samples.
+ *  Instances hold their own buffers, so must only be used from a single thread.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class HDRCalibration {
+    /** Supplies the pixels of an image, e.g., from Bitmap.getPixels().
+     */
+    public interface PixelSource {
+        /** Reads width ARGB pixels of row y, starting from column x, into pixels[0] to
+         *  pixels[width-1].
+         */
+        void getRow(int [] pixels, int x, int y, int width);
+    }
+
+    private final int n_w_samples;
+    private final int n_h_samples;
+
+    private int [] in_row = new int[0];
+    private int [] out_row = new int[0];
+
+    // samples from the last call to sampleResponse()
+    private double [] x_samples;
+    private double [] y_samples;
+    private double [] weights;
+    private int n_samples;
+
+    // the fitted response function, from the last call to fit()
+    private float parameter_A = 1.0f;
+    private float parameter_B = 0.0f;
+
+    /**
+     * @param n_samples The number of points of the sample grid, which is sqrt(n_samples) across
+     *                  (rounded down).
+     */
+    public HDRCalibration(int n_samples) {
+        if( n_samples <= 0 ) {
+            throw new IllegalArgumentException("invalid number of samples");
+        }
+        this.n_w_samples = (int)Math.sqrt(n_samples);
+        this.n_h_samples = n_samples/n_w_samples;
+        int capacity = Math.max(1, n_w_samples*n_h_samples);
+        this.x_samples = new double[capacity];
+        this.y_samples = new double[capacity];
+        this.weights = new double[capacity];
+    }
+
+    /** Returns the coordinate of the i-th of n samples spread evenly (excluding the borders) over
+     *  size pixels.
+     */
+    private static int getSampleCoord(int i, int n, int size) {
+        double alpha = ((double)i+1.0) / ((double)n+1.0);
+        return (int)(alpha * size);
+    }
+
+    private static int [] ensureCapacity(int [] array, int size) {
+        if( array.length < size )
+            return new int[size];
+        return array;
+    }
+
+    /** Calculates average of RGB values for the supplied color.
+     */
+    private static double averageRGB(int color) {
+        int r = (color & 0xFF0000) >> 16;
+        int g = (color & 0xFF00) >> 8;
+        int b = (color & 0xFF);
+        return (r + g + b)/3.0;
+        //return 0.27*r + 0.67*g + 0.06*b;
+    }
+
+    /** Samples pairs of values (the average of the rgb values) from the images in_source and
+     *  out_source, each of size width x height, and computes the weight for each sample, ready for
+     *  fit(). The in image is offset by (offset_x, offset_y) relative to the out image; samples
+     *  falling outside the in image are skipped.
+     */
+    public void sampleResponse(PixelSource in_source, PixelSource out_source, int width, int height, int offset_x, int offset_y) {
+        // find the range of columns that we need to read
+        int first_x = -1, last_x = -1;
+        for(int x=0;x<n_w_samples;x++) {
+            int x_coord = getSampleCoord(x, n_w_samples, width);
+            if( x_coord + offset_x < 0 || x_coord + offset_x >= width ) {
+                continue;
+            }
+            if( first_x == -1 )
+                first_x = x_coord;
+            last_x = x_coord;
+        }
+
+        n_samples = 0;
+        double avg_in = 0.0;
+        double avg_out = 0.0;
+        if( first_x != -1 ) {
+            int row_width = last_x - first_x + 1;
+            in_row = ensureCapacity(in_row, row_width);
+            out_row = ensureCapacity(out_row, row_width);
+            for(int y=0;y<n_h_samples;y++) {
+                int y_coord = getSampleCoord(y, n_h_samples, height);
+                if( y_coord + offset_y < 0 || y_coord + offset_y >= height ) {
+                    continue;
+                }
+                in_source.getRow(in_row, first_x + offset_x, y_coord + offset_y, row_width);
+                out_source.getRow(out_row, first_x, y_coord, row_width);
+                for(int x=0;x<n_w_samples;x++) {
+                    int x_coord = getSampleCoord(x, n_w_samples, width);
+                    if( x_coord + offset_x < 0 || x_coord + offset_x >= width ) {
+                        continue;
+                    }
+                    double in_value = averageRGB(in_row[x_coord - first_x]);
+                    double out_value = averageRGB(out_row[x_coord - first_x]);
+                    avg_in += in_value;
+                    avg_out += out_value;
+                    x_samples[n_samples] = in_value;
+                    y_samples[n_samples] = out_value;
+                    n_samples++;
+                }
+            }
+        }
+        if( n_samples == 0 ) {
+            // shouldn't happen, but could do with a very large offset - just make up a dummy sample
+            double in_value = 255.0;
+            double out_value = 255.0;
+            avg_in += in_value;
+            avg_out += out_value;
+            x_samples[n_samples] = in_value;
+            y_samples[n_samples] = out_value;
+            n_samples++;
+        }
+        avg_in /= n_samples;
+        avg_out /= n_samples;
+        boolean is_dark_exposure = avg_in < avg_out;
+
+        // calculate weights
+        double min_value = x_samples[0];
+        double max_value = x_samples[0];
+        double min_value_y = y_samples[0];
+        double max_value_y = y_samples[0];
+        for(int i=1;i<n_samples;i++) {
+            min_value = Math.min(min_value, x_samples[i]);
+            max_value = Math.max(max_value, x_samples[i]);
+            min_value_y = Math.min(min_value_y, y_samples[i]);
+            max_value_y = Math.max(max_value_y, y_samples[i]);
+        }
+        double med_value = 0.5*(min_value + max_value);
+        double med_value_y = 0.5*(min_value_y + max_value_y);
+        for(int i=0;i<n_samples;i++) {
+            double value = x_samples[i];
+            double weight = (value <= med_value) ? value - min_value : max_value - value;
+            if( is_dark_exposure ) {
+                // for dark exposure, also need to worry about the y values (which will be brighter than x) being overexposed
+                double value_y = y_samples[i];
+                double weight_y = (value_y <= med_value_y) ? value_y - min_value_y : max_value_y - value_y;
+                if( weight_y < weight )
+                    weight = weight_y;
+            }
+            weights[i] = weight;
+        }
+    }
+
+    public int getNSamples() {
+        return n_samples;
+    }
+
+    public double [] getXSamples() {
+        return x_samples;
+    }
+
+    public double [] getYSamples() {
+        return y_samples;
+    }
+
+    public double [] getWeights() {
+        return weights;
+    }
+
+    public float getParameterA() {
+        return parameter_A;
+    }
+
+    public float getParameterB() {
+        return parameter_B;
+    }
+
+    /** Estimates the relation y = parameter_A * x + parameter_B between the samples from the last
+     *  call to sampleResponse(), using weighted linear least squares. If this gives a function that
+     *  isn't monotonic, or can be negative, we instead fit y = parameter_A * x.
+     * @return Whether the first fit was used.
+     */
+    public boolean fit() {
+        if( n_samples <= 3 ) {
+            // throw RuntimeException, as this is a programming error
+            throw new RuntimeException("not enough samples");
+        }
+
+        // linear Y = AX + B
+        double sum_wx = 0.0;
+        double sum_wx2 = 0.0;
+        double sum_wxy = 0.0;
+        double sum_wy = 0.0;
+        double sum_w = 0.0;
+        for(int i=0;i<n_samples;i++) {
+            double x = x_samples[i];
+            double y = y_samples[i];
+            double w = weights[i];
+            sum_wx += w * x;
+            sum_wx2 += w * x * x;
+            sum_wxy += w * x * y;
+            sum_wy += w * y;
+            sum_w += w;
+        }
+        // need to solve:
+        // A . sum_wx + B . sum_w - sum_wy = 0
+        // A . sum_wx2 + B . sum_wx - sum_wxy = 0
+        // =>
+        // A . sum_wx^2 + B . sum_w . sum_wx - sum_wy . sum_wx = 0
+        // A . sum_w . sum_wx2 + B . sum_w . sum_wx - sum_w . sum_wxy = 0
+        // A ( sum_wx^2 - sum_w . sum_wx2 ) = sum_wy . sum_wx - sum_w . sum_wxy
+        // then plug A into:
+        // B . sum_w = sum_wy - A . sum_wx
+        double A_numer = sum_wy * sum_wx - sum_w * sum_wxy;
+        double A_denom = sum_wx * sum_wx - sum_w * sum_wx2;
+        if( Math.abs(A_denom) >= 1.0e-5 ) {
+            parameter_A = (float)(A_numer / A_denom);
+            parameter_B = (float)((sum_wy - parameter_A * sum_wx) / sum_w);
+            // we don't want a function that is not monotonic, or can be negative!
+            if( parameter_A >= 1.0e-5 && parameter_B >= 1.0e-5 ) {
+                return true;
+            }
+        }
+
+        // fall back to linear Y = AX
+        double numer = 0.0;
+        double denom = 0.0;
+        for(int i=0;i<n_samples;i++) {
+            double x = x_samples[i];
+            double y = y_samples[i];
+            double w = weights[i];
+            numer += w*x*y;
+            denom += w*x*x;
+        }
+        if( denom < 1.0e-5 ) {
+            parameter_A = 1.0f;
+        }
+        else {
+            parameter_A = (float)(numer / denom);
+            // we don't want a function that is not monotonic!
+            if( parameter_A < 1.0e-5 ) {
+                parameter_A = 1.0e-5f;
+            }
+        }
+        parameter_B = 0.0f;
+        return false;
+    }
+
+    /** Adds the luminance (maximum of the rgb values) of each sample from the region of the image
+     *  starting at (x0, y0) of size width x height, to histo (which should have 256 entries).
+     * @return The number of samples.
+     */
+    public int sampleLuminanceHistogram(PixelSource source, int x0, int y0, int width, int height, int [] histo) {
+        int first_x = x0 + getSampleCoord(0, n_w_samples, width);
+        int last_x = x0 + getSampleCoord(n_w_samples-1, n_w_samples, width);
+        int row_width = last_x - first_x + 1;
+        in_row = ensureCapacity(in_row, row_width);
+        int total = 0;
+        for(int y=0;y<n_h_samples;y++) {
+            int y_coord = y0 + getSampleCoord(y, n_h_samples, height);
+            source.getRow(in_row, first_x, y_coord, row_width);
+            for(int x=0;x<n_w_samples;x++) {
+                int x_coord = x0 + getSampleCoord(x, n_w_samples, width);
+                int color = in_row[x_coord - first_x];
+                int r = (color & 0xFF0000) >> 16;
+                int g = (color & 0xFF00) >> 8;
+                int b = (color & 0xFF);
+                int luminance = Math.max(r, g);
+                luminance = Math.max(luminance, b);
+                histo[luminance]++;
+                total++;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,415 @@
+package com.deepinout.geekcamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Pure Java implementation of the HDR merge and tonemapping done by the hdr_n kernel in
+ *  process_hdr.rs. This works on ARGB int [] pixels (as returned by Bitmap.getPixels()), so doesn't
+ *  require RenderScript, and can be run and tested on a plain JVM.
+ *  Rows are split across a ForkJoinPool. The caller may merge the image in horizontal bands
+ *  (tiles), to avoid having to hold the full images as int arrays.
+ */
+public class HDRMergeEngine {
+    // constants from process_hdr.rs
+    public static final float exposure_c = 1.2f; // for exponential tonemapping
+    public static final float filmic_exposure_bias_c = 2.0f / 255.0f; // for filmic tonemapping
+    private static final float safe_range_c = 96.0f;
+    private static final float wiener_C_lo = 2000.0f;
+    private static final float wiener_C_hi = 8000.0f;
+
+    private static final int min_rows_per_task_c = 16;
+
+    // tonemapping algorithms, with the same values as in process_hdr.rs (this class doesn't refer to
+    // HDRProcessor.TonemappingAlgorithm, so that it has no dependencies on Android)
+    public static final int tonemap_algorithm_clamp_c = 0;
+    public static final int tonemap_algorithm_exponential_c = 1;
+    public static final int tonemap_algorithm_reinhard_c = 2;
+    public static final int tonemap_algorithm_filmic_c = 3;
+    public static final int tonemap_algorithm_aces_c = 4;
+
+    /** The parameters for tonemapping, as set on the RenderScript in HDRProcessor.processHDRCore().
+     */
+    public static class TonemapSettings {
+        final int tonemap_algorithm;
+        float tonemap_scale = 1.0f; // for Reinhard
+        float linear_scale = 1.0f; // for exponential and Reinhard
+        float W = 11.2f; // for filmic
+        TonemapLUT lut; // if non-null, used instead of evaluating the tonemapping in floating point
+
+        public TonemapSettings(int tonemap_algorithm) {
+            this.tonemap_algorithm = tonemap_algorithm;
+        }
+
+        public void setTonemapScale(float tonemap_scale) {
+            this.tonemap_scale = tonemap_scale;
+        }
+
+        public void setLinearScale(float linear_scale) {
+            this.linear_scale = linear_scale;
+        }
+
+        public void setW(float W) {
+            this.W = W;
+        }
+
+        /** Sets a lookup table to use for tonemapping, which should have been created from these
+         *  settings.
+         */
+        public void setLUT(TonemapLUT lut) {
+            this.lut = lut;
+        }
+
+        public TonemapLUT getLUT() {
+            return lut;
+        }
+    }
+
+    /** The input images for a band of rows being merged.
+     *  pixels[i] stores the rows of image i starting from row y0[i], each row being width pixels. So
+     *  the pixel (x, y) of image i is at pixels[i][(y-y0[i])*width + x]. The rows stored must include
+     *  all rows of the band, after applying the offset for that image (clamped to the image).
+     */
+    public static class Band {
+        final int [][] pixels;
+        final int [] y0;
+
+        public Band(int [][] pixels, int [] y0) {
+            this.pixels = pixels;
+            this.y0 = y0;
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    public HDRMergeEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public HDRMergeEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Merges and tonemaps rows [out_y0, out_y1) of the output image.
+     * @param band           The input images, see Band.
+     * @param base_bitmap    The index of the base image, which is used as the "in" pixel of the
+     *                       hdr_n kernel.
+     * @param width          Width of the full images.
+     * @param height         Height of the full images.
+     * @param offsets_x      The x offset of each image.
+     * @param offsets_y      The y offset of each image.
+     * @param parameter_A    The response function parameters of each image (for the base image,
+     *                       this should be the identity, i.e., A=1, B=0).
+     * @param parameter_B    See parameter_A.
+     * @param settings       Tonemapping settings.
+     * @param output         Receives the merged rows, starting from row out_y0.
+     */
+    public void mergeRows(Band band, int base_bitmap, int width, int height, int out_y0, int out_y1, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, TonemapSettings settings, int [] output) {
+        MergeTask task = new MergeTask(band, base_bitmap, width, height, out_y0, out_y0, out_y1, offsets_x, offsets_y, parameter_A, parameter_B, settings, output);
+        pool.invoke(task);
+    }
+
+    private static class MergeTask extends RecursiveAction {
+        private final Band band;
+        private final int base_bitmap;
+        private final int width, height;
+        private final int out_y0; // the row stored at the start of output
+        private final int start_y, stop_y;
+        private final int [] offsets_x, offsets_y;
+        private final float [] parameter_A, parameter_B;
+        private final TonemapSettings settings;
+        private final int [] output;
+
+        MergeTask(Band band, int base_bitmap, int width, int height, int out_y0, int start_y, int stop_y, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, TonemapSettings settings, int [] output) {
+            this.band = band;
+            this.base_bitmap = base_bitmap;
+            this.width = width;
+            this.height = height;
+            this.out_y0 = out_y0;
+            this.start_y = start_y;
+            this.stop_y = stop_y;
+            this.offsets_x = offsets_x;
+            this.offsets_y = offsets_y;
+            this.parameter_A = parameter_A;
+            this.parameter_B = parameter_B;
+            this.settings = settings;
+            this.output = output;
+        }
+
+        @Override
+        protected void compute() {
+            if( stop_y - start_y <= min_rows_per_task_c ) {
+                Merger merger = new Merger(band, base_bitmap, width, height, offsets_x, offsets_y, parameter_A, parameter_B, settings);
+                for(int y=start_y;y<stop_y;y++) {
+                    merger.mergeRow(y, output, (y-out_y0)*width);
+                }
+            }
+            else {
+                int mid_y = (start_y + stop_y)/2;
+                invokeAll(
+                        new MergeTask(band, base_bitmap, width, height, out_y0, start_y, mid_y, offsets_x, offsets_y, parameter_A, parameter_B, settings, output),
+                        new MergeTask(band, base_bitmap, width, height, out_y0, mid_y, stop_y, offsets_x, offsets_y, parameter_A, parameter_B, settings, output)
+                );
+            }
+        }
+    }
+
+    /** Does the per-pixel work, equivalent to the hdr_n kernel. Each instance holds its own
+     *  work arrays, so must only be used from a single thread.
+     */
+    static class Merger {
+        private final Band band;
+        private final int base_bitmap;
+        private final int width, height;
+        private final int n_bitmaps;
+        private final int [] offsets_x, offsets_y;
+        private final float [] parameter_A, parameter_B;
+        private final TonemapSettings settings;
+        private final float white_scale; // for filmic
+
+        // work arrays
+        private final int [] pixels;
+        private final float [] this_A;
+        private final float [] this_B;
+
+        Merger(Band band, int base_bitmap, int width, int height, int [] offsets_x, int [] offsets_y, float [] parameter_A, float [] parameter_B, TonemapSettings settings) {
+            this.band = band;
+            this.base_bitmap = base_bitmap;
+            this.width = width;
+            this.height = height;
+            this.n_bitmaps = band.pixels.length;
+            this.offsets_x = offsets_x;
+            this.offsets_y = offsets_y;
+            this.parameter_A = parameter_A;
+            this.parameter_B = parameter_B;
+            this.settings = settings;
+            this.white_scale = 255.0f / uncharted2Tonemap(settings.W);
+            this.pixels = new int[n_bitmaps];
+            this.this_A = new float[n_bitmaps];
+            this.this_B = new float[n_bitmaps];
+        }
+
+        void mergeRow(int y, int [] output, int output_offset) {
+            final int mid_indx = (n_bitmaps-1)/2; // round down to dark image for even number of bitmaps
+            final boolean even = n_bitmaps % 2 == 0;
+            final int [] base_pixels = band.pixels[base_bitmap];
+            final int base_row = (y - band.y0[base_bitmap])*width;
+            for(int x=0;x<width;x++) {
+                int in = base_pixels[base_row + x];
+                for(int i=0;i<n_bitmaps;i++) {
+                    int sx = x + offsets_x[i];
+                    int sy = y + offsets_y[i];
+                    if( sx >= 0 && sy >= 0 && sx < width && sy < height ) {
+                        pixels[i] = band.pixels[i][(sy - band.y0[i])*width + sx];
+                        this_A[i] = parameter_A[i];
+                        this_B[i] = parameter_B[i];
+                    }
+                    else {
+                        pixels[i] = in;
+                        this_A[i] = parameter_A[mid_indx];
+                        this_B[i] = parameter_B[mid_indx];
+                    }
+                }
+
+                float hdr_r, hdr_g, hdr_b;
+                float sum_weight;
+
+                int pixel = pixels[mid_indx];
+                float rgb_r = (pixel >> 16) & 0xFF;
+                float rgb_g = (pixel >> 8) & 0xFF;
+                float rgb_b = pixel & 0xFF;
+                float avg = (rgb_r+rgb_g+rgb_b) / 3.0f;
+                float diff = Math.abs( avg - 127.5f );
+                float weight = 1.0f;
+                if( diff > safe_range_c ) {
+                    // scaling chosen so that 0 and 255 map to a non-zero weight of 0.01
+                    weight = 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                }
+
+                // response function
+                rgb_r = this_A[mid_indx] * rgb_r + this_B[mid_indx];
+                rgb_g = this_A[mid_indx] * rgb_g + this_B[mid_indx];
+                rgb_b = this_A[mid_indx] * rgb_b + this_B[mid_indx];
+
+                hdr_r = weight * rgb_r;
+                hdr_g = weight * rgb_g;
+                hdr_b = weight * rgb_b;
+                sum_weight = weight;
+
+                if( even ) {
+                    int pixel1 = pixels[mid_indx+1];
+                    float rgb1_r = (pixel1 >> 16) & 0xFF;
+                    float rgb1_g = (pixel1 >> 8) & 0xFF;
+                    float rgb1_b = pixel1 & 0xFF;
+                    float avg1 = (rgb1_r+rgb1_g+rgb1_b) / 3.0f;
+                    float diff1 = Math.abs( avg1 - 127.5f );
+                    float weight1 = 1.0f;
+                    if( diff1 > safe_range_c ) {
+                        weight1 = 1.0f - 0.99f * (diff1 - safe_range_c) / (127.5f - safe_range_c);
+                    }
+                    rgb1_r = this_A[mid_indx+1] * rgb1_r + this_B[mid_indx+1];
+                    rgb1_g = this_A[mid_indx+1] * rgb1_g + this_B[mid_indx+1];
+                    rgb1_b = this_A[mid_indx+1] * rgb1_b + this_B[mid_indx+1];
+
+                    hdr_r += weight1 * rgb1_r;
+                    hdr_g += weight1 * rgb1_g;
+                    hdr_b += weight1 * rgb1_b;
+                    sum_weight += weight1;
+
+                    avg = (avg+avg1)/2.0f;
+                    weight = (weight+weight1)/2.0f;
+                }
+
+                if( weight < 1.0f ) {
+                    float base_r = rgb_r, base_g = rgb_g, base_b = rgb_b;
+                    int adj_indx = mid_indx;
+                    int step_dir = avg <= 127.5f ? 1 : -1;
+                    if( even && step_dir == 1 ) {
+                        adj_indx++; // so we move one beyond the middle pair of images (since mid_indx will be the darker of the pair)
+                    }
+
+                    int n_adj = (n_bitmaps-1)/2;
+                    for(int k=0;k<n_adj;k++) {
+                        // now look at a neighbour image
+                        weight = 1.0f - weight;
+                        adj_indx += step_dir;
+
+                        int adj_pixel = pixels[adj_indx];
+                        rgb_r = (adj_pixel >> 16) & 0xFF;
+                        rgb_g = (adj_pixel >> 8) & 0xFF;
+                        rgb_b = adj_pixel & 0xFF;
+                        if( k+1 < n_adj ) {
+                            // there will be at least one more adjacent image to look at
+                            avg = (rgb_r+rgb_g+rgb_b) / 3.0f;
+                            diff = Math.abs( avg - 127.5f );
+                            if( diff > safe_range_c ) {
+                                weight *= 1.0f - 0.99f * (diff - safe_range_c) / (127.5f - safe_range_c);
+                            }
+                        }
+                        rgb_r = this_A[adj_indx] * rgb_r + this_B[adj_indx];
+                        rgb_g = this_A[adj_indx] * rgb_g + this_B[adj_indx];
+                        rgb_b = this_A[adj_indx] * rgb_b + this_B[adj_indx];
+
+                        float value = Math.max(rgb_r, rgb_g);
+                        value = Math.max(value, rgb_b);
+                        if( value <= 250.0f ) {
+                            // deghosting, see process_hdr.rs
+                            float wiener_C = wiener_C_lo; // higher value means more HDR but less ghosting
+                            float wx = Math.abs( value - 127.5f ) - 96.0f;
+                            if( wx > 0.0f ) {
+                                final float scale = (wiener_C_hi-wiener_C_lo)/(127.5f-96.0f);
+                                wiener_C = wiener_C_lo + wx*scale;
+                            }
+                            float diff_r = base_r - rgb_r;
+                            float diff_g = base_g - rgb_g;
+                            float diff_b = base_b - rgb_b;
+                            float L = diff_r*diff_r + diff_g*diff_g + diff_b*diff_b;
+                            float ghost_weight = L/(L+wiener_C);
+                            rgb_r = ghost_weight * base_r + (1.0f-ghost_weight) * rgb_r;
+                            rgb_g = ghost_weight * base_g + (1.0f-ghost_weight) * rgb_g;
+                            rgb_b = ghost_weight * base_b + (1.0f-ghost_weight) * rgb_b;
+                        }
+
+                        hdr_r += weight * rgb_r;
+                        hdr_g += weight * rgb_g;
+                        hdr_b += weight * rgb_b;
+                        sum_weight += weight;
+
+                        if( diff <= safe_range_c ) {
+                            break;
+                        }
+                    }
+                }
+
+                hdr_r /= sum_weight;
+                hdr_g /= sum_weight;
+                hdr_b /= sum_weight;
+
+                if( settings.lut != null )
+                    output[output_offset + x] = settings.lut.tonemap(hdr_r, hdr_g, hdr_b);
+                else
+                    output[output_offset + x] = tonemap(settings, white_scale, hdr_r, hdr_g, hdr_b);
+            }
+        }
+    }
+
+    /** Tonemaps an HDR colour in floating point, as the tonemap() function in process_hdr.rs,
+     *  returning an ARGB pixel.
+     * @param white_scale For filmic tonemapping, should be 255.0f / uncharted2Tonemap(settings.W).
+     */
+    static int tonemap(TonemapSettings settings, float white_scale, float hdr_r, float hdr_g, float hdr_b) {
+        int r, g, b;
+        switch( settings.tonemap_algorithm ) {
+            case tonemap_algorithm_clamp_c:
+                // Simple clamp
+                r = Math.min((int)(hdr_r+0.5f), 255);
+                g = Math.min((int)(hdr_g+0.5f), 255);
+                b = Math.min((int)(hdr_b+0.5f), 255);
+                break;
+            case tonemap_algorithm_exponential_c:
+            {
+                float scale = settings.linear_scale * 255.0f;
+                r = clamp(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_r / 255.0f )));
+                g = clamp(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_g / 255.0f )));
+                b = clamp(scale * (1.0f - (float)Math.exp( - exposure_c * hdr_b / 255.0f )));
+                break;
+            }
+            case tonemap_algorithm_reinhard_c:
+            {
+                float value = Math.max(hdr_r, hdr_g);
+                value = Math.max(value, hdr_b);
+                float scale = 255.0f / ( settings.tonemap_scale + value );
+                scale *= settings.linear_scale;
+                // shouldn't need to clamp - linear_scale should be such that values don't map to more than 255 - but
+                // unlike the RenderScript, we don't get wraparound when converting to a byte, so clamp just in case
+                r = clamp(scale * hdr_r);
+                g = clamp(scale * hdr_g);
+                b = clamp(scale * hdr_b);
+                break;
+            }
+            case tonemap_algorithm_filmic_c:
+                // Filmic Uncharted 2
+                r = clamp(white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_r));
+                g = clamp(white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_g));
+                b = clamp(white_scale * uncharted2Tonemap(filmic_exposure_bias_c * hdr_b));
+                break;
+            case tonemap_algorithm_aces_c:
+            default:
+                r = clamp(aces(hdr_r));
+                g = clamp(aces(hdr_g));
+                b = clamp(aces(hdr_b));
+                break;
+        }
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Rounds and clamps to [0, 255].
+     */
+    private static int clamp(float value) {
+        value += 0.5f;
+        if( value < 0.0f )
+            return 0;
+        else if( value > 255.0f )
+            return 255;
+        return (int)value;
+    }
+
+    static float uncharted2Tonemap(float x) {
+        final float A = 0.15f;
+        final float B = 0.50f;
+        final float C = 0.10f;
+        final float D = 0.20f;
+        final float E = 0.02f;
+        final float F = 0.30f;
+        return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
+    }
+
+    private static float aces(float value) {
+        final float a = 2.51f;
+        final float b = 0.03f;
+        final float c = 2.43f;
+        final float d = 0.59f;
+        final float e = 0.14f;
+        float x = value/255.0f;
+        return 255.0f * (x*(a*x+b))/(x*(c*x+d)+e);
+    }
+}
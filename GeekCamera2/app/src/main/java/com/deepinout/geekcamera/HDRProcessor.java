@@ -19,6 +19,7 @@ import android.os.Environment;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RSInvalidStateException;
+import android.renderscript.RSRuntimeException;
 import android.renderscript.RenderScript;
 import android.renderscript.Script;
 import android.renderscript.ScriptIntrinsicHistogram;
@@ -70,6 +71,23 @@ public class HDRProcessor {
         DROALGORITHM_NONE,
         DROALGORITHM_GAINGAMMA
     }
+    /** Whether the merge step for multiple images is done with RenderScript, or with the pure Java
+     *  HDRMergeEngine.
+     */
+    public enum HDRBackend {
+        HDRBACKEND_RENDERSCRIPT,
+        HDRBACKEND_CPU
+    }
+    private HDRBackend hdr_backend = HDRBackend.HDRBACKEND_RENDERSCRIPT;
+    private HDRMergeEngine hdrMergeEngine; // lazily created
+    private MTBAligner mtbAligner; // lazily created
+    // number of points sampled to fit each response function - a denser grid gives a more robust fit,
+    // and as rows of samples are read in bulk, costs little more than the original 100 samples
+    private static final int n_response_samples_c = 2500;
+    //private static final int n_response_samples_c = 100;
+    private static final int n_luminance_samples_c = 100;
+    private HDRCalibration responseCalibration; // lazily created
+    private HDRCalibration luminanceCalibration; // lazily created
 
     public HDRProcessor(Context context, boolean is_test) {
         this.context = context;
@@ -89,6 +107,16 @@ public class HDRProcessor {
 		sharpnessScript = null;*/
     }
 
+    public void setHDRBackend(HDRBackend hdr_backend) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setHDRBackend: " + hdr_backend);
+        this.hdr_backend = hdr_backend;
+    }
+
+    public HDRBackend getHDRBackend() {
+        return this.hdr_backend;
+    }
+
     public void onDestroy() {
         if( MyDebug.LOG )
             Log.d(TAG, "onDestroy");
@@ -128,134 +156,29 @@ public class HDRProcessor {
             return new ResponseFunction(1.0f, 0.0f);
         }
 
-        /** Computes the response function.
+        /** Computes the response function from the samples of the supplied calibration.
          * We pass the context, so this inner class can be made static.
-         * @param x_samples List of Xi samples. Must be at least 3 samples.
-         * @param y_samples List of Yi samples. Must be same length as x_samples.
-         * @param weights List of weights. Must be same length as x_samples.
+         * @param calibration The samples, from HDRCalibration.sampleResponse(). Must be more than
+         *                    3 samples.
          */
-        ResponseFunction(Context context, int id, List<Double> x_samples, List<Double> y_samples, List<Double> weights) {
+        ResponseFunction(Context context, int id, HDRCalibration calibration) {
             if( MyDebug.LOG )
                 Log.d(TAG, "ResponseFunction");
 
-            if( x_samples.size() != y_samples.size() ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "unequal number of samples");
-                // throw RuntimeException, as this is a programming error
-                throw new RuntimeException();
-            }
-            else if( x_samples.size() != weights.size() ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "unequal number of samples");
-                // throw RuntimeException, as this is a programming error
-                throw new RuntimeException();
-            }
-            else if( x_samples.size() <= 3 ) {
+            if( calibration.getNSamples() <= 3 ) {
                 if( MyDebug.LOG )
                     Log.e(TAG, "not enough samples");
                 // throw RuntimeException, as this is a programming error
                 throw new RuntimeException();
             }
 
-            // linear Y = AX + B
-            boolean done = false;
-            double sum_wx = 0.0;
-            double sum_wx2 = 0.0;
-            double sum_wxy = 0.0;
-            double sum_wy = 0.0;
-            double sum_w = 0.0;
-            for(int i=0;i<x_samples.size();i++) {
-                double x = x_samples.get(i);
-                double y = y_samples.get(i);
-                double w = weights.get(i);
-                sum_wx += w * x;
-                sum_wx2 += w * x * x;
-                sum_wxy += w * x * y;
-                sum_wy += w * y;
-                sum_w += w;
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "sum_wx = " + sum_wx);
-                Log.d(TAG, "sum_wx2 = " + sum_wx2);
-                Log.d(TAG, "sum_wxy = " + sum_wxy);
-                Log.d(TAG, "sum_wy = " + sum_wy);
-                Log.d(TAG, "sum_w = " + sum_w);
-            }
-            // need to solve:
-            // A . sum_wx + B . sum_w - sum_wy = 0
-            // A . sum_wx2 + B . sum_wx - sum_wxy = 0
-            // =>
-            // A . sum_wx^2 + B . sum_w . sum_wx - sum_wy . sum_wx = 0
-            // A . sum_w . sum_wx2 + B . sum_w . sum_wx - sum_w . sum_wxy = 0
-            // A ( sum_wx^2 - sum_w . sum_wx2 ) = sum_wy . sum_wx - sum_w . sum_wxy
-            // then plug A into:
-            // B . sum_w = sum_wy - A . sum_wx
-            double A_numer = sum_wy * sum_wx - sum_w * sum_wxy;
-            double A_denom = sum_wx * sum_wx - sum_w * sum_wx2;
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "A_numer = " + A_numer);
-                Log.d(TAG, "A_denom = " + A_denom);
-            }
-            if( Math.abs(A_denom) < 1.0e-5 ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "denom too small");
-                // will fall back to linear Y = AX
-            }
-            else {
-                parameter_A = (float)(A_numer / A_denom);
-                parameter_B = (float)((sum_wy - parameter_A * sum_wx) / sum_w);
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "parameter_A = " + parameter_A);
-                    Log.d(TAG, "parameter_B = " + parameter_B);
-                }
-                // we don't want a function that is not monotonic, or can be negative!
-                if( parameter_A < 1.0e-5 ) {
-                    if( MyDebug.LOG )
-                        Log.e(TAG, "parameter A too small or negative: " + parameter_A);
-                }
-                else if( parameter_B < 1.0e-5 ) {
-                    if( MyDebug.LOG )
-                        Log.e(TAG, "parameter B too small or negative: " + parameter_B);
-                }
-                else {
-                    done = true;
-                }
-            }
-
+            boolean done = calibration.fit();
             if( !done ) {
                 if( MyDebug.LOG )
-                    Log.e(TAG, "falling back to linear Y = AX");
-                // linear Y = AX
-                double numer = 0.0;
-                double denom = 0.0;
-                for(int i=0;i<x_samples.size();i++) {
-                    double x = x_samples.get(i);
-                    double y = y_samples.get(i);
-                    double w = weights.get(i);
-                    numer += w*x*y;
-                    denom += w*x*x;
-                }
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "numer = " + numer);
-                    Log.d(TAG, "denom = " + denom);
-                }
-
-                if( denom < 1.0e-5 ) {
-                    if( MyDebug.LOG )
-                        Log.e(TAG, "denom too small");
-                    parameter_A = 1.0f;
-                }
-                else {
-                    parameter_A = (float)(numer / denom);
-                    // we don't want a function that is not monotonic!
-                    if( parameter_A < 1.0e-5 ) {
-                        if( MyDebug.LOG )
-                            Log.e(TAG, "parameter A too small or negative: " + parameter_A);
-                        parameter_A = 1.0e-5f;
-                    }
-                }
-                parameter_B = 0.0f;
+                    Log.e(TAG, "fell back to linear Y = AX");
             }
+            parameter_A = calibration.getParameterA();
+            parameter_B = calibration.getParameterB();
 
             if( MyDebug.LOG ) {
                 Log.d(TAG, "parameter_A = " + parameter_A);
@@ -277,11 +200,13 @@ public class HDRProcessor {
                     //writer.append("Parameter," + parameter + "\n");
                     writer.append("Parameters,").append(String.valueOf(parameter_A)).append(",").append(String.valueOf(parameter_B)).append("\n");
                     writer.append("X,Y,Weight\n");
-                    for(int i=0;i<x_samples.size();i++) {
-                        //Log.d(TAG, "log: " + i + " / " + x_samples.size());
-                        double x = x_samples.get(i);
-                        double y = y_samples.get(i);
-                        double w = weights.get(i);
+                    double [] x_samples = calibration.getXSamples();
+                    double [] y_samples = calibration.getYSamples();
+                    double [] weights = calibration.getWeights();
+                    for(int i=0;i<calibration.getNSamples();i++) {
+                        double x = x_samples[i];
+                        double y = y_samples[i];
+                        double w = weights[i];
                         writer.append(String.valueOf(x)).append(",").append(String.valueOf(y)).append(",").append(String.valueOf(w)).append("\n");
                     }
                 }
@@ -387,7 +312,16 @@ public class HDRProcessor {
                 processSingleImage(bitmaps, release_bitmaps, output_bitmap, hdr_alpha, n_tiles, ce_preserve_blacks, dro_tonemapping_algorithm);
                 break;
             case HDRALGORITHM_STANDARD:
-                processHDRCore(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
+                if( hdr_backend == HDRBackend.HDRBACKEND_RENDERSCRIPT && !isRenderscriptAvailable() ) {
+                    // e.g., devices where RenderScript is broken, or no longer supported
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "RenderScript not available, switch to CPU backend");
+                    hdr_backend = HDRBackend.HDRBACKEND_CPU;
+                }
+                if( hdr_backend == HDRBackend.HDRBACKEND_CPU )
+                    processHDRCoreCPU(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
+                else
+                    processHDRCore(bitmaps, release_bitmaps, output_bitmap, assume_sorted, sort_cb, hdr_alpha, n_tiles, ce_preserve_blacks, tonemapping_algorithm);
                 break;
             default:
                 if( MyDebug.LOG )
@@ -405,116 +339,247 @@ public class HDRProcessor {
     private ResponseFunction createFunctionFromBitmaps(int id, Bitmap in_bitmap, Bitmap out_bitmap, int offset_x, int offset_y) {
         if( MyDebug.LOG )
             Log.d(TAG, "createFunctionFromBitmaps");
-        List<Double> x_samples = new ArrayList<>();
-        List<Double> y_samples = new ArrayList<>();
-        List<Double> weights = new ArrayList<>();
-
-        final int n_samples_c = 100;
-        final int n_w_samples = (int)Math.sqrt(n_samples_c);
-        final int n_h_samples = n_samples_c/n_w_samples;
-
-        double avg_in = 0.0;
-        double avg_out = 0.0;
-        for(int y=0;y<n_h_samples;y++) {
-            double alpha = ((double)y+1.0) / ((double)n_h_samples+1.0);
-            int y_coord = (int)(alpha * in_bitmap.getHeight());
-            for(int x=0;x<n_w_samples;x++) {
-                double beta = ((double)x+1.0) / ((double)n_w_samples+1.0);
-                int x_coord = (int)(beta * in_bitmap.getWidth());
-				/*if( MyDebug.LOG )
-					Log.d(TAG, "sample response from " + x_coord + " , " + y_coord);*/
-                if( x_coord + offset_x < 0 || x_coord + offset_x >= in_bitmap.getWidth() || y_coord + offset_y < 0 || y_coord + offset_y >= in_bitmap.getHeight() ) {
-                    continue;
-                }
-                int in_col = in_bitmap.getPixel(x_coord + offset_x, y_coord + offset_y);
-                int out_col = out_bitmap.getPixel(x_coord, y_coord);
-                double in_value = averageRGB(in_col);
-                double out_value = averageRGB(out_col);
-                avg_in += in_value;
-                avg_out += out_value;
-                x_samples.add(in_value);
-                y_samples.add(out_value);
-            }
-        }
-        if( x_samples.size() == 0 ) {
-            Log.e(TAG, "no samples for response function!");
-            // shouldn't happen, but could do with a very large offset - just make up a dummy sample
-            double in_value = 255.0;
-            double out_value = 255.0;
-            avg_in += in_value;
-            avg_out += out_value;
-            x_samples.add(in_value);
-            y_samples.add(out_value);
-        }
-        avg_in /= x_samples.size();
-        avg_out /= x_samples.size();
-        boolean is_dark_exposure = avg_in < avg_out;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "avg_in: " + avg_in);
-            Log.d(TAG, "avg_out: " + avg_out);
-            Log.d(TAG, "is_dark_exposure: " + is_dark_exposure);
+        if( responseCalibration == null ) {
+            responseCalibration = new HDRCalibration(n_response_samples_c);
         }
-        {
-            // calculate weights
-            double min_value = x_samples.get(0);
-            double max_value = x_samples.get(0);
-            for(int i=1;i<x_samples.size();i++) {
-                double value = x_samples.get(i);
-                if( value < min_value )
-                    min_value = value;
-                if( value > max_value )
-                    max_value = value;
-            }
-            double med_value = 0.5*(min_value + max_value);
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "min_value: " + min_value);
-                Log.d(TAG, "max_value: " + max_value);
-                Log.d(TAG, "med_value: " + med_value);
-            }
-            double min_value_y = y_samples.get(0);
-            double max_value_y = y_samples.get(0);
-            for(int i=1;i<y_samples.size();i++) {
-                double value = y_samples.get(i);
-                if( value < min_value_y )
-                    min_value_y = value;
-                if( value > max_value_y )
-                    max_value_y = value;
-            }
-            double med_value_y = 0.5*(min_value_y + max_value_y);
+        responseCalibration.sampleResponse(createPixelSource(in_bitmap), createPixelSource(out_bitmap), in_bitmap.getWidth(), in_bitmap.getHeight(), offset_x, offset_y);
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_samples: " + responseCalibration.getNSamples());
+
+        return new ResponseFunction(context, id, responseCalibration);
+    }
+
+    /** Returns a PixelSource that reads rows of the supplied bitmap in bulk with getPixels().
+     */
+    private static HDRCalibration.PixelSource createPixelSource(final Bitmap bitmap) {
+        return new HDRCalibration.PixelSource() {
+            @Override
+            public void getRow(int [] pixels, int x, int y, int width) {
+                bitmap.getPixels(pixels, 0, width, x, y, width, 1);
+            }
+        };
+    }
+
+    /** Computes the response function for each image, relative to the image base_bitmap, making
+     *  use of the offsets stored in offsets_x and offsets_y.
+     *  For an even number of images, the response functions are remapped so that we aim for a
+     *  brightness between the middle two images.
+     * @param use_hdr_n If true, the entry for base_bitmap is set to the identity function (as
+     *                  required for hdr_n), otherwise it's left as null.
+     */
+    private ResponseFunction [] createResponseFunctions(List<Bitmap> bitmaps, int base_bitmap, boolean use_hdr_n) {
+        int n_bitmaps = bitmaps.size();
+        ResponseFunction [] response_functions = new ResponseFunction[n_bitmaps]; // ResponseFunction for each image (the ResponseFunction entry can be left null to indicate the Identity)
+        for(int i=0;i<n_bitmaps;i++) {
+            ResponseFunction function = null;
+            if( i != base_bitmap ) {
+                function = createFunctionFromBitmaps(i, bitmaps.get(i), bitmaps.get(base_bitmap), offsets_x[i], offsets_y[i]);
+            }
+            else if( use_hdr_n ) {
+                // for hdr_n, need to still create the identity response function
+                function = ResponseFunction.createIdentity();
+            }
+            response_functions[i] = function;
+        }
+        if( n_bitmaps % 2 == 0 ) {
+            // need to remap so that we aim for a brightness between the middle two images
+            float a = (float)Math.sqrt(response_functions[base_bitmap-1].parameter_A);
+            float b = response_functions[base_bitmap-1].parameter_B / (a+1.0f);
             if( MyDebug.LOG ) {
-                Log.d(TAG, "min_value_y: " + min_value_y);
-                Log.d(TAG, "max_value_y: " + max_value_y);
-                Log.d(TAG, "med_value_y: " + med_value_y);
-            }
-            for(int i=0;i<x_samples.size();i++) {
-                double value = x_samples.get(i);
-                double value_y = y_samples.get(i);
-                if( is_dark_exposure ) {
-                    // for dark exposure, also need to worry about the y values (which will be brighter than x) being overexposed
-                    double weight = (value <= med_value) ? value - min_value : max_value - value;
-                    double weight_y = (value_y <= med_value_y) ? value_y - min_value_y : max_value_y - value_y;
-                    if( weight_y < weight )
-                        weight = weight_y;
-                    weights.add(weight);
-                }
-                else {
-                    double weight = (value <= med_value) ? value - min_value : max_value - value;
-                    weights.add(weight);
+                Log.d(TAG, "remap for even number of images");
+                Log.d(TAG, "    a: " + a);
+                Log.d(TAG, "    b: " + b);
+            }
+            if( a < 1.0e-5f ) {
+                // avoid risk of division by 0
+                a = 1.0e-5f;
+                if( MyDebug.LOG )
+                    Log.e(TAG, "    clamp a to: " + a);
+            }
+            for(int i=0;i<n_bitmaps;i++) {
+                float this_A = response_functions[i].parameter_A;
+                float this_B = response_functions[i].parameter_B;
+                response_functions[i].parameter_A = this_A / a;
+                response_functions[i].parameter_B = this_B - this_A * b / a;
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "remapped: " + i);
+                    Log.d(TAG, "    A: " + this_A + " -> " + response_functions[i].parameter_A);
+                    Log.d(TAG, "    B: " + this_B + " -> " + response_functions[i].parameter_B);
                 }
             }
         }
-
-        return new ResponseFunction(context, id, x_samples, y_samples, weights);
+        return response_functions;
     }
 
-    /** Calculates average of RGB values for the supplied color.
+    /** Computes the parameters for tonemapping the HDR image, shared by the RenderScript and Java
+     *  implementations.
+     * @param response_functions The response functions, as returned by createResponseFunctions().
+     * @param median_brightness  The median brightness of the base image.
      */
-    private double averageRGB(int color) {
-        int r = (color & 0xFF0000) >> 16;
-        int g = (color & 0xFF00) >> 8;
-        int b = (color & 0xFF);
-        return (r + g + b)/3.0;
-        //return 0.27*r + 0.67*g + 0.06*b;
+    private static HDRMergeEngine.TonemapSettings computeTonemapSettings(TonemappingAlgorithm tonemapping_algorithm, ResponseFunction [] response_functions, int median_brightness) {
+        float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
+        //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
+        if( MyDebug.LOG )
+            Log.d(TAG, "max_possible_value: " + max_possible_value);
+        if( max_possible_value < 255.0f ) {
+            max_possible_value = 255.0f; // don't make dark images too bright, see below about linear_scale for more details
+            if( MyDebug.LOG )
+                Log.d(TAG, "clamp max_possible_value to: " + max_possible_value);
+        }
+
+        //final float tonemap_scale_c = avg_luminance / 0.8f; // lower values tend to result in too dark pictures; higher values risk over exposed bright areas
+        //final float tonemap_scale_c = 255.0f;
+        //final float tonemap_scale_c = 255.0f - median_brightness;
+        float tonemap_scale_c = 255.0f;
+
+        int median_target = getBrightnessTarget(median_brightness, 2, 119);
+
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "median_target: " + median_target);
+            Log.d(TAG, "compare: " + 255.0f / max_possible_value);
+            Log.d(TAG, "to: " + (((float)median_target)/(float)median_brightness + median_target / 255.0f - 1.0f));
+        }
+        if( 255.0f / max_possible_value < ((float)median_target)/(float)median_brightness + median_target / 255.0f - 1.0f ) {
+            // For Reinhard tonemapping:
+            // As noted below, we have f(V) = V.S / (V+C), where V is the HDR value, C is tonemap_scale_c
+            // and S = (Vmax + C)/Vmax (see below)
+            // Ideally we try to choose C such that we map median value M to target T:
+            // f(M) = T
+            // => T = M . (Vmax + C) / (Vmax . (M + C))
+            // => (T/M).(M + C) = (Vmax + C) / Vmax = 1 + C/Vmax
+            // => C . ( T/M - 1/Vmax ) = 1 - T
+            // => C = (1-T) / (T/M - 1/Vmax)
+            // Since we want C <= 1, we must have:
+            // 1-T <= T/M - 1/Vmax
+            // => 1/Vmax <= T/M + T - 1
+            // If this isn't the case, we set C to 1 (to preserve the median as close as possible).
+            // Note that if we weren't doing the linear scaling below, this would reduce to choosing
+            // C = M(1-T)/T. We also tend to that as max_possible_value tends to infinity. So even though
+            // we only sometimes enter this case, it's important for cases where max_possible_value
+            // might be estimated too large (also consider that if we ever support more than 3 images,
+            // we'd risk having too large values).
+            // If T=M, then this simplifies to C = 1-M.
+            // I've tested that using "C = 1-M" always (and no linear scaling) also gives good results:
+            // much better compared to Open Camera 1.39, though not quite as good as doing both this
+            // and linear scaling (testHDR18, testHDR26, testHDR32 look too grey and/or bright).
+            final float tonemap_denom = ((float)median_target)/(float)median_brightness - (255.0f / max_possible_value);
+            if( MyDebug.LOG )
+                Log.d(TAG, "tonemap_denom: " + tonemap_denom);
+            if( tonemap_denom != 0.0f ) { // just in case
+                tonemap_scale_c = (255.0f - median_target) / tonemap_denom;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemap_scale_c (before setting min): " + tonemap_scale_c);
+                /*if( tonemap_scale_c < 0.5f*255.0f ) {
+                    throw new RuntimeException("tonemap_scale_c: " + tonemap_scale_c);
+                }*/
+                // important to set a min value, see testHDR58, testHDR59, testHDR60 - at least 0.25, but 0.5 works better:
+                //tonemap_scale_c = Math.max(tonemap_scale_c, 0.25f*255.0f);
+                tonemap_scale_c = Math.max(tonemap_scale_c, 0.5f*255.0f);
+            }
+            //throw new RuntimeException(); // test
+        }
+        // Higher tonemap_scale_c values means darker results from the Reinhard tonemapping.
+        // Colours brighter than 255-tonemap_scale_c will be made darker, colours darker than 255-tonemap_scale_c will be made brighter
+        // (tonemap_scale_c==255 means therefore that colours will only be made darker).
+        if( MyDebug.LOG )
+            Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
+        int tonemap_algorithm;
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_CLAMP:
+                tonemap_algorithm = HDRMergeEngine.tonemap_algorithm_clamp_c;
+                break;
+            case TONEMAPALGORITHM_EXPONENTIAL:
+                tonemap_algorithm = HDRMergeEngine.tonemap_algorithm_exponential_c;
+                break;
+            case TONEMAPALGORITHM_REINHARD:
+                tonemap_algorithm = HDRMergeEngine.tonemap_algorithm_reinhard_c;
+                break;
+            case TONEMAPALGORITHM_FILMIC:
+                tonemap_algorithm = HDRMergeEngine.tonemap_algorithm_filmic_c;
+                break;
+            case TONEMAPALGORITHM_ACES:
+            default:
+                tonemap_algorithm = HDRMergeEngine.tonemap_algorithm_aces_c;
+                break;
+        }
+        HDRMergeEngine.TonemapSettings tonemap_settings = new HDRMergeEngine.TonemapSettings(tonemap_algorithm);
+        tonemap_settings.tonemap_scale = tonemap_scale_c;
+
+        // algorithm specific parameters
+        switch( tonemapping_algorithm ) {
+            case TONEMAPALGORITHM_EXPONENTIAL:
+            {
+                // The basic algorithm is f(V) = 1 - exp( - E * V ), where V is the HDR value, E is a
+                // constant. This maps [0, infinity] to [0, 1]. However we have an estimate of the maximum
+                // possible value, Vmax, so we can set a linear scaling S so that [0, Vmax] maps to [0, 1]
+                // f(V) = S . (1 - exp( - E * V ))
+                // so 1 = S . (1 - exp( - E * Vmax ))
+                // => S = 1 / (1 - exp( - E * Vmax ))
+                // Note that Vmax should be set to a minimum of 255, else we'll make darker images brighter.
+                final float E = HDRMergeEngine.exposure_c;
+                float linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
+                if( MyDebug.LOG )
+                    Log.d(TAG, "linear_scale: " + linear_scale);
+                tonemap_settings.linear_scale = linear_scale;
+                break;
+            }
+            case TONEMAPALGORITHM_REINHARD: {
+                // The basic algorithm is f(V) = V / (V+C), where V is the HDR value, C is tonemap_scale_c
+                // This was used until Open Camera 1.39, but has the problem of making images too dark: it
+                // maps [0, infinity] to [0, 1], but since in practice we never have very large V values, we
+                // won't use the full [0, 1] range. So we apply a linear scale S:
+                // f(V) = V.S / (V+C)
+                // S is chosen such that the maximum possible value, Vmax, maps to 1. So:
+                // 1 = Vmax . S / (Vmax + C)
+                // => S = (Vmax + C)/Vmax
+                // Note that we don't actually know the maximum HDR value, but instead we estimate it with
+                // max_possible_value, which gives the maximum value we'd have if even the darkest image was
+                // 255.0.
+                // Note that if max_possible_value was less than 255, we'd end up scaling a max value less than
+                // 1, to [0, 1], i.e., making dark images brighter, which we don't want, which is why above we
+                // set max_possible_value to a minimum of 255. In practice, this is unlikely to ever happen
+                // since max_possible_value is calculated as a maximum possible based on the response functions
+                // (as opposed to the real brightest HDR value), so even for dark photos we'd expect to have
+                // max_possible_value >= 255.
+                // Note that the original Reinhard tonemapping paper describes a non-linear scaling by (1 + CV/Vmax^2),
+                // though this is poorer performance (in terms of calculation time).
+                float linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "linear_scale: " + linear_scale);
+                tonemap_settings.linear_scale = linear_scale;
+                break;
+            }
+            case TONEMAPALGORITHM_FILMIC:
+            {
+                // For filmic, we have f(V) = U(EV) / U(W), where V is the HDR value, U is a function.
+                // We want f(Vmax) = 1, so EVmax = W
+                final float E = HDRMergeEngine.filmic_exposure_bias_c;
+                float W = E * max_possible_value;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "filmic W: " + W);
+                tonemap_settings.W = W;
+                break;
+            }
+        }
+
+        final boolean use_tonemap_lut = true;
+        //final boolean use_tonemap_lut = false;
+        if( use_tonemap_lut ) {
+            // the HDR values are weighted averages of the colours after applying the response functions, so
+            // can't be larger than the response function of 255 for any of the images
+            float max_value = 255.0f;
+            for(ResponseFunction response_function : response_functions) {
+                max_value = Math.max(max_value, response_function.parameter_A * 255 + response_function.parameter_B);
+            }
+            TonemapLUT tonemap_lut = new TonemapLUT(tonemap_settings, max_value);
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "tonemap lut max_value: " + max_value);
+                Log.d(TAG, "tonemap lut size: " + tonemap_lut.getSize());
+            }
+            tonemap_settings.setLUT(tonemap_lut);
+        }
+
+        return tonemap_settings;
     }
 
     /** Core implementation of HDR algorithm.
@@ -535,7 +600,6 @@ public class HDRProcessor {
         int n_bitmaps = bitmaps.size();
         int width = bitmaps.get(0).getWidth();
         int height = bitmaps.get(0).getHeight();
-        ResponseFunction [] response_functions = new ResponseFunction[n_bitmaps]; // ResponseFunction for each image (the ResponseFunction entry can be left null to indicate the Identity)
         offsets_x = new int[n_bitmaps];
         offsets_y = new int[n_bitmaps];
 		/*int [][] buffers = new int[n_bitmaps][];
@@ -572,48 +636,10 @@ public class HDRProcessor {
         final boolean use_hdr_n = n_bitmaps != 3;
 
         // compute response_functions
-        for(int i=0;i<n_bitmaps;i++) {
-            ResponseFunction function = null;
-            if( i != base_bitmap ) {
-                function = createFunctionFromBitmaps(i, bitmaps.get(i), bitmaps.get(base_bitmap), offsets_x[i], offsets_y[i]);
-            }
-            else if( use_hdr_n ) {
-                // for hdr_n, need to still create the identity response function
-                function = ResponseFunction.createIdentity();
-            }
-            response_functions[i] = function;
-        }
+        ResponseFunction [] response_functions = createResponseFunctions(bitmaps, base_bitmap, use_hdr_n);
         if( MyDebug.LOG )
             Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
 
-        if( n_bitmaps % 2 == 0 ) {
-            // need to remap so that we aim for a brightness between the middle two images
-            float a = (float)Math.sqrt(response_functions[base_bitmap-1].parameter_A);
-            float b = response_functions[base_bitmap-1].parameter_B / (a+1.0f);
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "remap for even number of images");
-                Log.d(TAG, "    a: " + a);
-                Log.d(TAG, "    b: " + b);
-            }
-            if( a < 1.0e-5f ) {
-                // avoid risk of division by 0
-                a = 1.0e-5f;
-                if( MyDebug.LOG )
-                    Log.e(TAG, "    clamp a to: " + a);
-            }
-            for(int i=0;i<n_bitmaps;i++) {
-                float this_A = response_functions[i].parameter_A;
-                float this_B = response_functions[i].parameter_B;
-                response_functions[i].parameter_A = this_A / a;
-                response_functions[i].parameter_B = this_B - this_A * b / a;
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "remapped: " + i);
-                    Log.d(TAG, "    A: " + this_A + " -> " + response_functions[i].parameter_A);
-                    Log.d(TAG, "    B: " + this_B + " -> " + response_functions[i].parameter_B);
-                }
-            }
-        }
-
 		/*
 		// calculate average luminance by sampling
 		final int n_samples_c = 100;
@@ -743,137 +769,41 @@ public class HDRProcessor {
                     Log.d(TAG, "tonemapping algorithm: filmic");
                 processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_filmic_c() );
                 break;
-            case TONEMAPALGORITHM_ACES:
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemapping algorithm: aces");
-                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
-                break;
-        }
-
-        float max_possible_value = response_functions[0].parameter_A * 255 + response_functions[0].parameter_B;
-        //float max_possible_value = response_functions[base_bitmap - 1].parameter_A * 255 + response_functions[base_bitmap - 1].parameter_B;
-        if( MyDebug.LOG )
-            Log.d(TAG, "max_possible_value: " + max_possible_value);
-        if( max_possible_value < 255.0f ) {
-            max_possible_value = 255.0f; // don't make dark images too bright, see below about linear_scale for more details
-            if( MyDebug.LOG )
-                Log.d(TAG, "clamp max_possible_value to: " + max_possible_value);
-        }
-
-        //hdr_alpha = 0.0f; // test
-        //final float tonemap_scale_c = avg_luminance / 0.8f; // lower values tend to result in too dark pictures; higher values risk over exposed bright areas
-        //final float tonemap_scale_c = 255.0f;
-        //final float tonemap_scale_c = 255.0f - median_brightness;
-        float tonemap_scale_c = 255.0f;
-
-        int median_target = getBrightnessTarget(median_brightness, 2, 119);
-
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "median_target: " + median_target);
-            Log.d(TAG, "compare: " + 255.0f / max_possible_value);
-            Log.d(TAG, "to: " + (((float)median_target)/(float)median_brightness + median_target / 255.0f - 1.0f));
-        }
-        if( 255.0f / max_possible_value < ((float)median_target)/(float)median_brightness + median_target / 255.0f - 1.0f ) {
-            // For Reinhard tonemapping:
-            // As noted below, we have f(V) = V.S / (V+C), where V is the HDR value, C is tonemap_scale_c
-            // and S = (Vmax + C)/Vmax (see below)
-            // Ideally we try to choose C such that we map median value M to target T:
-            // f(M) = T
-            // => T = M . (Vmax + C) / (Vmax . (M + C))
-            // => (T/M).(M + C) = (Vmax + C) / Vmax = 1 + C/Vmax
-            // => C . ( T/M - 1/Vmax ) = 1 - T
-            // => C = (1-T) / (T/M - 1/Vmax)
-            // Since we want C <= 1, we must have:
-            // 1-T <= T/M - 1/Vmax
-            // => 1/Vmax <= T/M + T - 1
-            // If this isn't the case, we set C to 1 (to preserve the median as close as possible).
-            // Note that if we weren't doing the linear scaling below, this would reduce to choosing
-            // C = M(1-T)/T. We also tend to that as max_possible_value tends to infinity. So even though
-            // we only sometimes enter this case, it's important for cases where max_possible_value
-            // might be estimated too large (also consider that if we ever support more than 3 images,
-            // we'd risk having too large values).
-            // If T=M, then this simplifies to C = 1-M.
-            // I've tested that using "C = 1-M" always (and no linear scaling) also gives good results:
-            // much better compared to Open Camera 1.39, though not quite as good as doing both this
-            // and linear scaling (testHDR18, testHDR26, testHDR32 look too grey and/or bright).
-            final float tonemap_denom = ((float)median_target)/(float)median_brightness - (255.0f / max_possible_value);
-            if( MyDebug.LOG )
-                Log.d(TAG, "tonemap_denom: " + tonemap_denom);
-            if( tonemap_denom != 0.0f ) { // just in case
-                tonemap_scale_c = (255.0f - median_target) / tonemap_denom;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "tonemap_scale_c (before setting min): " + tonemap_scale_c);
-                /*if( tonemap_scale_c < 0.5f*255.0f ) {
-                    throw new RuntimeException("tonemap_scale_c: " + tonemap_scale_c);
-                }*/
-                // important to set a min value, see testHDR58, testHDR59, testHDR60 - at least 0.25, but 0.5 works better:
-                //tonemap_scale_c = Math.max(tonemap_scale_c, 0.25f*255.0f);
-                tonemap_scale_c = Math.max(tonemap_scale_c, 0.5f*255.0f);
-            }
-            //throw new RuntimeException(); // test
+            case TONEMAPALGORITHM_ACES:
+                if( MyDebug.LOG )
+                    Log.d(TAG, "tonemapping algorithm: aces");
+                processHDRScript.set_tonemap_algorithm( processHDRScript.get_tonemap_algorithm_aces_c() );
+                break;
         }
-        // Higher tonemap_scale_c values means darker results from the Reinhard tonemapping.
-        // Colours brighter than 255-tonemap_scale_c will be made darker, colours darker than 255-tonemap_scale_c will be made brighter
-        // (tonemap_scale_c==255 means therefore that colours will only be made darker).
-        if( MyDebug.LOG )
-            Log.d(TAG, "tonemap_scale_c: " + tonemap_scale_c);
-        processHDRScript.set_tonemap_scale(tonemap_scale_c);
 
+        HDRMergeEngine.TonemapSettings tonemap_settings = computeTonemapSettings(tonemapping_algorithm, response_functions, median_brightness);
+        processHDRScript.set_tonemap_scale(tonemap_settings.tonemap_scale);
         // algorithm specific parameters
         switch( tonemapping_algorithm ) {
             case TONEMAPALGORITHM_EXPONENTIAL:
-            {
-                // The basic algorithm is f(V) = 1 - exp( - E * V ), where V is the HDR value, E is a
-                // constant. This maps [0, infinity] to [0, 1]. However we have an estimate of the maximum
-                // possible value, Vmax, so we can set a linear scaling S so that [0, Vmax] maps to [0, 1]
-                // f(V) = S . (1 - exp( - E * V ))
-                // so 1 = S . (1 - exp( - E * Vmax ))
-                // => S = 1 / (1 - exp( - E * Vmax ))
-                // Note that Vmax should be set to a minimum of 255, else we'll make darker images brighter.
-                float E = processHDRScript.get_exposure();
-                float linear_scale = (float)(1.0 / (1.0 - Math.exp(-E * max_possible_value / 255.0)));
-                if( MyDebug.LOG )
-                    Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
-                break;
-            }
-            case TONEMAPALGORITHM_REINHARD: {
-                // The basic algorithm is f(V) = V / (V+C), where V is the HDR value, C is tonemap_scale_c
-                // This was used until Open Camera 1.39, but has the problem of making images too dark: it
-                // maps [0, infinity] to [0, 1], but since in practice we never have very large V values, we
-                // won't use the full [0, 1] range. So we apply a linear scale S:
-                // f(V) = V.S / (V+C)
-                // S is chosen such that the maximum possible value, Vmax, maps to 1. So:
-                // 1 = Vmax . S / (Vmax + C)
-                // => S = (Vmax + C)/Vmax
-                // Note that we don't actually know the maximum HDR value, but instead we estimate it with
-                // max_possible_value, which gives the maximum value we'd have if even the darkest image was
-                // 255.0.
-                // Note that if max_possible_value was less than 255, we'd end up scaling a max value less than
-                // 1, to [0, 1], i.e., making dark images brighter, which we don't want, which is why above we
-                // set max_possible_value to a minimum of 255. In practice, this is unlikely to ever happen
-                // since max_possible_value is calculated as a maximum possible based on the response functions
-                // (as opposed to the real brightest HDR value), so even for dark photos we'd expect to have
-                // max_possible_value >= 255.
-                // Note that the original Reinhard tonemapping paper describes a non-linear scaling by (1 + CV/Vmax^2),
-                // though this is poorer performance (in terms of calculation time).
-                float linear_scale = (max_possible_value + tonemap_scale_c) / max_possible_value;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "linear_scale: " + linear_scale);
-                processHDRScript.set_linear_scale(linear_scale);
+            case TONEMAPALGORITHM_REINHARD:
+                processHDRScript.set_linear_scale(tonemap_settings.linear_scale);
                 break;
-            }
             case TONEMAPALGORITHM_FILMIC:
-            {
-                // For filmic, we have f(V) = U(EV) / U(W), where V is the HDR value, U is a function.
-                // We want f(Vmax) = 1, so EVmax = W
-                float E = processHDRScript.get_filmic_exposure_bias();
-                float W = E * max_possible_value;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "filmic W: " + W);
-                processHDRScript.set_W(W);
+                processHDRScript.set_W(tonemap_settings.W);
                 break;
+        }
+        Allocation tonemap_lut_allocation = null;
+        TonemapLUT tonemap_lut = tonemap_settings.getLUT();
+        if( tonemap_lut != null ) {
+            if( tonemap_lut.isPerValue() ) {
+                tonemap_lut_allocation = Allocation.createSized(rs, Element.F32(rs), tonemap_lut.getSize());
+                tonemap_lut_allocation.copyFrom(tonemap_lut.getScales());
+                processHDRScript.set_tonemap_lut_scales(tonemap_lut_allocation);
+            }
+            else {
+                tonemap_lut_allocation = Allocation.createSized(rs, Element.U8(rs), tonemap_lut.getSize());
+                tonemap_lut_allocation.copyFrom(tonemap_lut.getValues());
+                processHDRScript.set_tonemap_lut(tonemap_lut_allocation);
             }
+            processHDRScript.set_tonemap_lut_size(tonemap_lut.getSize());
+            processHDRScript.set_tonemap_lut_index_scale(tonemap_lut.getIndexScale());
+            processHDRScript.set_use_tonemap_lut(1);
         }
 
         if( MyDebug.LOG )
@@ -902,6 +832,9 @@ public class HDRProcessor {
 		processHDRScript.forEach_hdr_n(allocations[base_bitmap], output_allocation);*/
         if( MyDebug.LOG )
             Log.d(TAG, "### time after processHDRScript: " + (System.currentTimeMillis() - time_s));
+        if( tonemap_lut_allocation != null ) {
+            tonemap_lut_allocation.destroy();
+        }
 
         if( release_bitmaps ) {
             if( MyDebug.LOG )
@@ -950,6 +883,155 @@ public class HDRProcessor {
             Log.d(TAG, "### time for processHDRCore: " + (System.currentTimeMillis() - time_s));
     }
 
+    /** Implementation of the HDR algorithm that doesn't use RenderScript, instead merging the images
+     *  with HDRMergeEngine. The images are processed in horizontal bands, so we only need to hold
+     *  a band of each image as int arrays at a time.
+     *  This uses the hdr_n algorithm for all numbers of images (so for 3 images, results will
+     *  differ slightly from the RenderScript hdr kernel). Alignment is done with MTBAligner, see
+     *  autoAlignmentCPU(). The local contrast enhancement (hdr_alpha) is done with
+     *  adjustHistogramCPU().
+     */
+    private void processHDRCoreCPU(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, boolean assume_sorted, SortCallback sort_cb, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, TonemappingAlgorithm tonemapping_algorithm) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processHDRCoreCPU");
+
+        long time_s = System.currentTimeMillis();
+
+        int n_bitmaps = bitmaps.size();
+        int width = bitmaps.get(0).getWidth();
+        int height = bitmaps.get(0).getHeight();
+        offsets_x = new int[n_bitmaps];
+        offsets_y = new int[n_bitmaps];
+        final int base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2; // index of the bitmap with the base exposure and offsets
+
+        // sort the bitmaps from darkest to brightest, as done by autoAlignment()
+        LuminanceInfo [] luminanceInfos = new LuminanceInfo[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            // as with autoAlignment(), only look at the centre quarter of the images
+            luminanceInfos[i] = computeMedianLuminance(bitmaps.get(i), width/4, height/4, width/2, height/2);
+        }
+        if( !assume_sorted ) {
+            final LuminanceInfo [] unsorted_infos = luminanceInfos.clone();
+            List<Integer> sort_order = new ArrayList<>();
+            for(int i=0;i<n_bitmaps;i++) {
+                sort_order.add(i);
+            }
+            Collections.sort(sort_order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return unsorted_infos[o1].compareTo(unsorted_infos[o2]);
+                }
+            });
+            List<Bitmap> unsorted_bitmaps = new ArrayList<>(bitmaps);
+            bitmaps.clear();
+            for(int i=0;i<n_bitmaps;i++) {
+                bitmaps.add(unsorted_bitmaps.get(sort_order.get(i)));
+                luminanceInfos[i] = unsorted_infos[sort_order.get(i)];
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "sort_order: " + sort_order);
+            if( sort_cb != null ) {
+                sort_cb.sortOrder(sort_order);
+            }
+        }
+        int median_brightness = luminanceInfos[base_bitmap].median_value;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "### time after sorting: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "median_brightness: " + median_brightness);
+        }
+
+        if( n_bitmaps > 1 ) {
+            // as with processHDRCore(), align the centre quarter of the images
+            int mtb_width = width/2;
+            int mtb_height = height/2;
+            autoAlignmentCPU(offsets_x, offsets_y, bitmaps, luminanceInfos, base_bitmap, mtb_width/2, mtb_height/2, mtb_width, mtb_height, MTBAligner.getInitialStepSize(Math.max(width, height), 1), 1);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after autoAlignmentCPU: " + (System.currentTimeMillis() - time_s));
+        }
+
+        ResponseFunction [] response_functions = createResponseFunctions(bitmaps, base_bitmap, true);
+        float [] parameter_A = new float[n_bitmaps];
+        float [] parameter_B = new float[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            parameter_A[i] = response_functions[i].parameter_A;
+            parameter_B[i] = response_functions[i].parameter_B;
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after creating response functions: " + (System.currentTimeMillis() - time_s));
+
+        HDRMergeEngine.TonemapSettings tonemap_settings = computeTonemapSettings(tonemapping_algorithm, response_functions, median_brightness);
+
+        Bitmap dest_bitmap;
+        if( release_bitmaps ) {
+            // the base bitmap has no offset, so we can write each band back to it after it's been read
+            dest_bitmap = bitmaps.get(base_bitmap);
+            if( !dest_bitmap.isMutable() ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "base bitmap isn't mutable, so create a new output bitmap");
+                dest_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+        }
+        else {
+            dest_bitmap = output_bitmap;
+        }
+
+        if( hdrMergeEngine == null ) {
+            hdrMergeEngine = new HDRMergeEngine();
+        }
+        final int band_height_c = 128;
+        int max_offset_y = 0;
+        for(int i=0;i<n_bitmaps;i++) {
+            max_offset_y = Math.max(max_offset_y, Math.abs(offsets_y[i]));
+        }
+        int [][] band_pixels = new int[n_bitmaps][];
+        int [] band_y0 = new int[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
+            band_pixels[i] = new int[width*Math.min(band_height_c + 2*max_offset_y, height)];
+        }
+        HDRMergeEngine.Band band = new HDRMergeEngine.Band(band_pixels, band_y0);
+        int [] output_pixels = new int[width*band_height_c];
+        for(int y0=0;y0<height;y0+=band_height_c) {
+            int y1 = Math.min(y0+band_height_c, height);
+            for(int i=0;i<n_bitmaps;i++) {
+                int src_y0 = Math.max(y0 + offsets_y[i], 0);
+                int src_y1 = Math.min(y1 + offsets_y[i], height);
+                band_y0[i] = src_y0;
+                if( src_y1 > src_y0 ) {
+                    bitmaps.get(i).getPixels(band_pixels[i], 0, width, 0, src_y0, width, src_y1 - src_y0);
+                }
+            }
+            hdrMergeEngine.mergeRows(band, base_bitmap, width, height, y0, y1, offsets_x, offsets_y, parameter_A, parameter_B, tonemap_settings, output_pixels);
+            dest_bitmap.setPixels(output_pixels, 0, width, 0, y0, width, y1 - y0);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after merging: " + (System.currentTimeMillis() - time_s));
+
+        if( hdr_alpha != 0.0f ) {
+            adjustHistogramCPU(dest_bitmap, width, height, hdr_alpha, n_tiles, ce_preserve_blacks, time_s);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after adjustHistogramCPU: " + (System.currentTimeMillis() - time_s));
+        }
+
+        if( release_bitmaps ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "release bitmaps");
+            for(int i=0;i<bitmaps.size();i++) {
+                Bitmap bitmap = bitmaps.get(i);
+                if( bitmap != dest_bitmap ) {
+                    bitmap.recycle();
+                }
+            }
+
+            // make it so that we store the output bitmap as first in the list
+            bitmaps.set(0, dest_bitmap);
+            for(int i=1;i<bitmaps.size();i++) {
+                bitmaps.set(i, null);
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time for processHDRCoreCPU: " + (System.currentTimeMillis() - time_s));
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private void processSingleImage(List<Bitmap> bitmaps, boolean release_bitmaps, Bitmap output_bitmap, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, DROTonemappingAlgorithm dro_tonemapping_algorithm) {
         if( MyDebug.LOG )
@@ -1008,9 +1090,21 @@ public class HDRProcessor {
                 //	throw new HDRProcessorException(HDRProcessorException.UNEQUAL_SIZES); // test
 
                 ScriptC_avg_brighten script = new ScriptC_avg_brighten(rs);
-                script.invoke_setBrightenParameters(gain, gamma, low_x, mid_x, max_brightness);
-
-                script.forEach_dro_brighten(allocation, output_allocation);
+                // the scale only depends on the max rgb value, so can be looked up rather than computed per pixel
+                final boolean use_brighten_lut = true;
+                //final boolean use_brighten_lut = false;
+                if( use_brighten_lut ) {
+                    float [] brighten_scales = TonemapLUT.createBrightenScales(gain, gamma, low_x, mid_x, max_brightness);
+                    Allocation brighten_scales_allocation = Allocation.createSized(rs, Element.F32(rs), brighten_scales.length);
+                    brighten_scales_allocation.copyFrom(brighten_scales);
+                    script.set_brighten_scales(brighten_scales_allocation);
+                    script.forEach_dro_brighten_lut(allocation, output_allocation);
+                    brighten_scales_allocation.destroy();
+                }
+                else {
+                    script.invoke_setBrightenParameters(gain, gamma, low_x, mid_x, max_brightness);
+                    script.forEach_dro_brighten(allocation, output_allocation);
+                }
 
                 // output is now the input for subsequent operations
                 if( free_output_allocation ) {
@@ -1094,6 +1188,21 @@ public class HDRProcessor {
         }
     }
 
+    /** Whether RenderScript can be used, creating the RenderScript context if necessary.
+     */
+    private boolean isRenderscriptAvailable() {
+        try {
+            initRenderscript();
+            return true;
+        }
+        catch(RSRuntimeException e) {
+            if( MyDebug.LOG )
+                Log.e(TAG, "failed to create RenderScript context");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     private int cached_avg_sample_size = 1;
 
     /** As part of the noise reduction process, the caller should scale the input images down by the factor returned
@@ -1709,6 +1818,59 @@ public class HDRProcessor {
         freeScripts();
     }
 
+    /** The median threshold bitmap alignment of autoAlignment() (for use_mtb true, with the bitmaps
+     *  already sorted), but using MTBAligner instead of RenderScript.
+     *  The region of each bitmap to align is read in bands of rows and converted to greyscale, so we
+     *  don't need to hold it as an int array.
+     * @param luminanceInfos The luminance of the region of each bitmap.
+     * @param initial_step_size See MTBAligner.getInitialStepSize().
+     */
+    private void autoAlignmentCPU(int [] offsets_x, int [] offsets_y, List<Bitmap> bitmaps, LuminanceInfo [] luminanceInfos, int base_bitmap, int mtb_x, int mtb_y, int mtb_width, int mtb_height, int initial_step_size, int min_step_size) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "autoAlignmentCPU");
+        int n_bitmaps = bitmaps.size();
+        for(int i=0;i<n_bitmaps;i++) {
+            offsets_x[i] = 0;
+            offsets_y[i] = 0;
+        }
+        if( mtb_width == 0 || mtb_height == 0 ) {
+            return;
+        }
+        int n_levels = MTBAligner.getNLevels(initial_step_size);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "initial_step_size: " + initial_step_size);
+            Log.d(TAG, "n_levels: " + n_levels);
+        }
+
+        MTBAligner.MTBPyramid [] pyramids = new MTBAligner.MTBPyramid[n_bitmaps];
+        byte [] grey = new byte[mtb_width*mtb_height];
+        final int band_height_c = 64;
+        int [] band_pixels = new int[mtb_width*Math.min(band_height_c, mtb_height)];
+        for(int i=0;i<n_bitmaps;i++) {
+            if( luminanceInfos[i].noisy ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "image " + i + " not suitable for image alignment");
+                continue;
+            }
+            for(int y0=0;y0<mtb_height;y0+=band_height_c) {
+                int n_rows = Math.min(band_height_c, mtb_height-y0);
+                bitmaps.get(i).getPixels(band_pixels, 0, mtb_width, mtb_x, mtb_y+y0, mtb_width, n_rows);
+                MTBAligner.createGreyscale(band_pixels, mtb_width*n_rows, grey, y0*mtb_width);
+            }
+            pyramids[i] = MTBAligner.createPyramid(grey, mtb_width, mtb_height, luminanceInfos[i].median_value, n_levels);
+        }
+
+        if( mtbAligner == null ) {
+            mtbAligner = new MTBAligner();
+        }
+        mtbAligner.align(offsets_x, offsets_y, pyramids, base_bitmap, initial_step_size, min_step_size);
+        if( MyDebug.LOG ) {
+            for(int i=0;i<n_bitmaps;i++) {
+                Log.d(TAG, "resultant offsets for image " + i + ": " + offsets_x[i] + " , " + offsets_y[i]);
+            }
+        }
+    }
+
     static class BrightnessDetails {
         final int median_brightness; // median brightness value of the median image
 
@@ -1775,8 +1937,13 @@ public class HDRProcessor {
             Log.d(TAG, "mtb_height: " + mtb_height);
         }
 
+        // For median threshold bitmaps, use MTBAligner, which packs the bitmaps into bits and
+        // aligns over a pyramid; this is faster than create_mtb.rs/align_mtb.rs for large images.
+        final boolean use_mtb_aligner = use_mtb;
+        //final boolean use_mtb_aligner = false;
+
         // create RenderScript
-        if( createMTBScript == null ) {
+        if( !use_mtb_aligner && createMTBScript == null ) {
             createMTBScript = new ScriptC_create_mtb(rs);
             if( MyDebug.LOG )
                 Log.d(TAG, "### time after creating createMTBScript: " + (System.currentTimeMillis() - time_s));
@@ -1872,6 +2039,15 @@ public class HDRProcessor {
                 Log.d(TAG, "median_brightness: " + median_brightness);
         }
 
+        if( use_mtb_aligner ) {
+            // n.b., use the full width and height for the initial step size, as below
+            int initial_step_size = MTBAligner.getInitialStepSize(Math.max(full_width, full_height), max_align_scale);
+            autoAlignmentCPU(offsets_x, offsets_y, bitmaps, luminanceInfos, base_bitmap, mtb_x, mtb_y, mtb_width, mtb_height, initial_step_size, min_step_size);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after autoAlignmentCPU: " + (System.currentTimeMillis() - time_s));
+            return new BrightnessDetails(median_brightness);
+        }
+
         for(int i=0;i<allocations.length;i++) {
             int median_value = -1;
             if( use_mtb ) {
@@ -2231,36 +2407,12 @@ public class HDRProcessor {
             Log.d(TAG, "mtb_width: " + mtb_width);
             Log.d(TAG, "mtb_height: " + mtb_height);
         }
-        final int n_samples_c = 100;
-        final int n_w_samples = (int)Math.sqrt(n_samples_c);
-        final int n_h_samples = n_samples_c/n_w_samples;
+        if( luminanceCalibration == null ) {
+            luminanceCalibration = new HDRCalibration(n_luminance_samples_c);
+        }
 
         int [] histo = new int[256];
-        for(int i=0;i<256;i++)
-            histo[i] = 0;
-        int total = 0;
-        //double sum_log_luminance = 0.0;
-        for(int y=0;y<n_h_samples;y++) {
-            double alpha = ((double) y + 1.0) / ((double) n_h_samples + 1.0);
-            //int y_coord = (int) (alpha * bitmap.getHeight());
-            int y_coord = mtb_y + (int) (alpha * mtb_height);
-            for(int x=0;x<n_w_samples;x++) {
-                double beta = ((double) x + 1.0) / ((double) n_w_samples + 1.0);
-                //int x_coord = (int) (beta * bitmap.getWidth());
-                int x_coord = mtb_x + (int) (beta * mtb_width);
-				/*if( MyDebug.LOG )
-					Log.d(TAG, "sample value from " + x_coord + " , " + y_coord);*/
-                int color = bitmap.getPixel(x_coord, y_coord);
-                int r = (color & 0xFF0000) >> 16;
-                int g = (color & 0xFF00) >> 8;
-                int b = (color & 0xFF);
-                int luminance = Math.max(r, g);
-                luminance = Math.max(luminance, b);
-                histo[luminance]++;
-                //sum_log_luminance += Math.log(luminance+1.0); // add 1 so we don't take log of 0...;
-                total++;
-            }
-        }
+        int total = luminanceCalibration.sampleLuminanceHistogram(createPixelSource(bitmap), mtb_x, mtb_y, mtb_width, mtb_height, histo);
 		/*float avg_luminance = (float)(Math.exp( sum_log_luminance / total ));
 		if( MyDebug.LOG )
 			Log.d(TAG, "avg_luminance: " + avg_luminance);*/
@@ -2328,6 +2480,124 @@ public class HDRProcessor {
         return new LuminanceInfo(min_value, 127, hi_value, true);
     }
 
+    /** Clips the histogram of a tile for the Contrast Limited AHE algorithm used by adjustHistogram()
+     *  and adjustHistogramCPU(), modifying histogram.
+     * @param n_pixels         The number of pixels in the tile.
+     * @param temp_c_histogram Workspace of length 256.
+     */
+    private static void clipHistogram(int [] histogram, int n_pixels, boolean ce_preserve_blacks, int [] temp_c_histogram) {
+        int clip_limit = (5 * n_pixels) / 256;
+        /*if( MyDebug.LOG ) {
+            Log.d(TAG, "clip_limit: " + clip_limit);
+            Log.d(TAG, "    relative clip limit: " + clip_limit*256.0f/n_pixels);
+        }*/
+        {
+            // find real clip limit
+            int bottom = 0, top = clip_limit;
+            while( top - bottom > 1 ) {
+                int middle = (top + bottom)/2;
+                int sum = 0;
+                for(int x=0;x<256;x++) {
+                    if( histogram[x] > middle ) {
+                        sum += (histogram[x] - clip_limit);
+                    }
+                }
+                if( sum > (clip_limit - middle) * 256 )
+                    top = middle;
+                else
+                    bottom = middle;
+            }
+            clip_limit = (top + bottom)/2;
+            /*if( MyDebug.LOG ) {
+                Log.d(TAG, "updated clip_limit: " + clip_limit);
+                Log.d(TAG, "    relative updated clip limit: " + clip_limit*256.0f/n_pixels);
+            }*/
+        }
+        int n_clipped = 0;
+        for(int x=0;x<256;x++) {
+            if( histogram[x] > clip_limit ) {
+                /*if( MyDebug.LOG ) {
+                    Log.d(TAG, "    " + x + " : " + histogram[x] + " : " + (histogram[x]*256.0f/n_pixels));
+                }*/
+                n_clipped += (histogram[x] - clip_limit);
+                histogram[x] = clip_limit;
+            }
+        }
+        int n_clipped_per_bucket = n_clipped / 256;
+        /*if( MyDebug.LOG ) {
+            Log.d(TAG, "n_clipped: " + n_clipped);
+            Log.d(TAG, "n_clipped_per_bucket: " + n_clipped_per_bucket);
+        }*/
+        for(int x=0;x<256;x++) {
+            histogram[x] += n_clipped_per_bucket;
+        }
+
+        if( ce_preserve_blacks ) {
+            // This helps tests such as testHDR52, testHDR57, testAvg26, testAvg30
+            // The basic idea is that we want to avoid making darker pixels darker (by too
+            // much). We do this by adjusting the histogram:
+            // * We can set a minimum value of each histogram value. E.g., if we set all
+            //   pixels up to a certain brightness to a value equal to n_pixels/256, then
+            //   we prevent those pixels from being made darker. In practice, we choose
+            //   a tapered minimum, starting at (n_pixels/256) for black pixels, linearly
+            //   interpolating to no minimum at brightness 128 (dark_threshold_c).
+            // * For any adjusted value of the histogram, we redistribute, by reducing
+            //   the histogram values of brighter pixels with values larger than (n_pixels/256),
+            //   reducing them to a minimum of (n_pixels/256).
+            // * Lastly, we only modify a given histogram value if pixels of that brightness
+            //   would be made darker by the CLAHE algorithm. We can do this by looking at
+            //   the cumulative histogram (as computed before modifying any values).
+            if( MyDebug.LOG ) {
+                for(int x=0;x<256;x++) {
+                    Log.d(TAG, "pre-brighten histogram[" + x + "] = " + histogram[x]);
+                }
+            }
+
+            temp_c_histogram[0] = histogram[0];
+            for(int x=1;x<256;x++) {
+                temp_c_histogram[x] = temp_c_histogram[x-1] + histogram[x];
+            }
+
+            // avoid making pixels too dark
+            int equal_limit = n_pixels / 256;
+            if( MyDebug.LOG )
+                Log.d(TAG, "equal_limit: " + equal_limit);
+            //final int dark_threshold_c = 64;
+            final int dark_threshold_c = 128;
+            //final int dark_threshold_c = 256;
+            for(int x=0;x<dark_threshold_c;x++) {
+                int c_equal_limit = equal_limit * (x+1);
+                if( temp_c_histogram[x] >= c_equal_limit ) {
+                    continue;
+                }
+                float alpha = 1.0f - ((float)x)/((float)dark_threshold_c);
+                //float alpha = 1.0f - ((float)x)/256.0f;
+                int limit = (int)(alpha * equal_limit);
+                //int limit = equal_limit;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "x: " + x + " ; limit: " + limit);
+                /*histogram[x] = Math.max(histogram[x], limit);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);*/
+                if( histogram[x] < limit ) {
+                    // top up by redistributing later values
+                    for(int y=x+1;y<256 && histogram[x] < limit;y++) {
+                        if( histogram[y] > equal_limit ) {
+                            int move = histogram[y] - equal_limit;
+                            move = Math.min(move, limit - histogram[x]);
+                            histogram[x] += move;
+                            histogram[y] -= move;
+                        }
+                    }
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);
+                    /*if( temp_c_histogram[x] >= c_equal_limit )
+                        throw new RuntimeException(); // test*/
+                }
+            }
+        }
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     void adjustHistogram(Allocation allocation_in, Allocation allocation_out, int width, int height, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, long time_s) {
         if( MyDebug.LOG )
@@ -2492,116 +2762,7 @@ public class HDRProcessor {
 
                     // clip histogram, for Contrast Limited AHE algorithm
                     int n_pixels = (stop_x - start_x) * (stop_y - start_y);
-                    int clip_limit = (5 * n_pixels) / 256;
-					/*if( MyDebug.LOG ) {
-                        Log.d(TAG, "clip_limit: " + clip_limit);
-                        Log.d(TAG, "    relative clip limit: " + clip_limit*256.0f/n_pixels);
-                    }*/
-                    {
-                        // find real clip limit
-                        int bottom = 0, top = clip_limit;
-                        while( top - bottom > 1 ) {
-                            int middle = (top + bottom)/2;
-                            int sum = 0;
-                            for(int x=0;x<256;x++) {
-                                if( histogram[x] > middle ) {
-                                    sum += (histogram[x] - clip_limit);
-                                }
-                            }
-                            if( sum > (clip_limit - middle) * 256 )
-                                top = middle;
-                            else
-                                bottom = middle;
-                        }
-                        clip_limit = (top + bottom)/2;
-                        /*if( MyDebug.LOG ) {
-                            Log.d(TAG, "updated clip_limit: " + clip_limit);
-                            Log.d(TAG, "    relative updated clip limit: " + clip_limit*256.0f/n_pixels);
-                        }*/
-                    }
-                    int n_clipped = 0;
-                    for(int x=0;x<256;x++) {
-                        if( histogram[x] > clip_limit ) {
-                            /*if( MyDebug.LOG ) {
-                                Log.d(TAG, "    " + x + " : " + histogram[x] + " : " + (histogram[x]*256.0f/n_pixels));
-                            }*/
-                            n_clipped += (histogram[x] - clip_limit);
-                            histogram[x] = clip_limit;
-                        }
-                    }
-                    int n_clipped_per_bucket = n_clipped / 256;
-						/*if( MyDebug.LOG ) {
-							Log.d(TAG, "n_clipped: " + n_clipped);
-							Log.d(TAG, "n_clipped_per_bucket: " + n_clipped_per_bucket);
-						}*/
-                    for(int x=0;x<256;x++) {
-                        histogram[x] += n_clipped_per_bucket;
-                    }
-
-                    if( ce_preserve_blacks ) {
-                        // This helps tests such as testHDR52, testHDR57, testAvg26, testAvg30
-                        // The basic idea is that we want to avoid making darker pixels darker (by too
-                        // much). We do this by adjusting the histogram:
-                        // * We can set a minimum value of each histogram value. E.g., if we set all
-                        //   pixels up to a certain brightness to a value equal to n_pixels/256, then
-                        //   we prevent those pixels from being made darker. In practice, we choose
-                        //   a tapered minimum, starting at (n_pixels/256) for black pixels, linearly
-                        //   interpolating to no minimum at brightness 128 (dark_threshold_c).
-                        // * For any adjusted value of the histogram, we redistribute, by reducing
-                        //   the histogram values of brighter pixels with values larger than (n_pixels/256),
-                        //   reducing them to a minimum of (n_pixels/256).
-                        // * Lastly, we only modify a given histogram value if pixels of that brightness
-                        //   would be made darker by the CLAHE algorithm. We can do this by looking at
-                        //   the cumulative histogram (as computed before modifying any values).
-                        if( MyDebug.LOG ) {
-                            for(int x=0;x<256;x++) {
-                                Log.d(TAG, "pre-brighten histogram[" + x + "] = " + histogram[x]);
-                            }
-                        }
-
-                        temp_c_histogram[0] = histogram[0];
-                        for(int x=1;x<256;x++) {
-                            temp_c_histogram[x] = temp_c_histogram[x-1] + histogram[x];
-                        }
-
-                        // avoid making pixels too dark
-                        int equal_limit = n_pixels / 256;
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "equal_limit: " + equal_limit);
-                        //final int dark_threshold_c = 64;
-                        final int dark_threshold_c = 128;
-                        //final int dark_threshold_c = 256;
-                        for(int x=0;x<dark_threshold_c;x++) {
-                            int c_equal_limit = equal_limit * (x+1);
-                            if( temp_c_histogram[x] >= c_equal_limit ) {
-                                continue;
-                            }
-                            float alpha = 1.0f - ((float)x)/((float)dark_threshold_c);
-                            //float alpha = 1.0f - ((float)x)/256.0f;
-                            int limit = (int)(alpha * equal_limit);
-                            //int limit = equal_limit;
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "x: " + x + " ; limit: " + limit);
-                            /*histogram[x] = Math.max(histogram[x], limit);
-							if( MyDebug.LOG )
-								Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);*/
-                            if( histogram[x] < limit ) {
-                                // top up by redistributing later values
-                                for(int y=x+1;y<256 && histogram[x] < limit;y++) {
-                                    if( histogram[y] > equal_limit ) {
-                                        int move = histogram[y] - equal_limit;
-                                        move = Math.min(move, limit - histogram[x]);
-                                        histogram[x] += move;
-                                        histogram[y] -= move;
-                                    }
-                                }
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "    histogram pulled up to: "  + histogram[x]);
-	                        	/*if( temp_c_histogram[x] >= c_equal_limit )
-                        			throw new RuntimeException(); // test*/
-                            }
-                        }
-                    }
+                    clipHistogram(histogram, n_pixels, ce_preserve_blacks, temp_c_histogram);
 
                     // compute cumulative histogram
                     int histogram_offset = 256*(i*n_tiles+j);
@@ -2620,21 +2781,37 @@ public class HDRProcessor {
             if( MyDebug.LOG )
                 Log.d(TAG, "time after creating histograms: " + (System.currentTimeMillis() - time_s));
 
-            Allocation c_histogramAllocation = Allocation.createSized(rs, Element.I32(rs), n_tiles*n_tiles*256);
-            c_histogramAllocation.copyFrom(c_histogram);
 			/*if( histogramAdjustScript == null ) {
 				histogramAdjustScript = new ScriptC_histogram_adjust(rs);
 			}*/
             ScriptC_histogram_adjust histogramAdjustScript = new ScriptC_histogram_adjust(rs);
-            histogramAdjustScript.set_c_histogram(c_histogramAllocation);
             histogramAdjustScript.set_hdr_alpha(hdr_alpha);
             histogramAdjustScript.set_n_tiles(n_tiles);
             histogramAdjustScript.set_width(width);
             histogramAdjustScript.set_height(height);
 
+            // with the lookup tables, the per pixel work is just interpolating between the tiles
+            final boolean use_ce_lut = true;
+            //final boolean use_ce_lut = false;
+            Allocation c_histogramAllocation;
+            if( use_ce_lut ) {
+                float [] ce_tables = TonemapLUT.createContrastEnhancementTables(c_histogram, n_tiles, hdr_alpha);
+                c_histogramAllocation = Allocation.createSized(rs, Element.F32(rs), n_tiles*n_tiles*256);
+                c_histogramAllocation.copyFrom(ce_tables);
+                histogramAdjustScript.set_ce_tables(c_histogramAllocation);
+            }
+            else {
+                c_histogramAllocation = Allocation.createSized(rs, Element.I32(rs), n_tiles*n_tiles*256);
+                c_histogramAllocation.copyFrom(c_histogram);
+                histogramAdjustScript.set_c_histogram(c_histogramAllocation);
+            }
+
             if( MyDebug.LOG )
                 Log.d(TAG, "time before histogramAdjustScript: " + (System.currentTimeMillis() - time_s));
-            histogramAdjustScript.forEach_histogram_adjust(allocation_in, allocation_out);
+            if( use_ce_lut )
+                histogramAdjustScript.forEach_histogram_adjust_lut(allocation_in, allocation_out);
+            else
+                histogramAdjustScript.forEach_histogram_adjust(allocation_in, allocation_out);
             if( MyDebug.LOG )
                 Log.d(TAG, "time after histogramAdjustScript: " + (System.currentTimeMillis() - time_s));
 
@@ -2643,6 +2820,87 @@ public class HDRProcessor {
         }
     }
 
+    /** As adjustHistogram() (using the lookup tables), but without RenderScript, for
+     *  processHDRCoreCPU(). The bitmap is modified in place, in horizontal bands.
+     */
+    private void adjustHistogramCPU(Bitmap bitmap, int width, int height, float hdr_alpha, int n_tiles, boolean ce_preserve_blacks, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "adjustHistogramCPU");
+        // the tiles are as in adjustHistogram()
+        int [] tile_start_x = new int[n_tiles+1];
+        int [] tile_start_y = new int[n_tiles+1];
+        for(int i=0;i<=n_tiles;i++) {
+            double a = ((double)i)/(double)n_tiles;
+            tile_start_x[i] = (int)(a * width);
+            tile_start_y[i] = (int)(a * height);
+        }
+        int [] tile_x = new int[width];
+        int [] tile_y = new int[height];
+        for(int i=0;i<n_tiles;i++) {
+            for(int x=tile_start_x[i];x<tile_start_x[i+1];x++)
+                tile_x[x] = i;
+            for(int y=tile_start_y[i];y<tile_start_y[i+1];y++)
+                tile_y[y] = i;
+        }
+
+        // create histograms, based on the max RGB value as in adjustHistogram()
+        int [] histograms = new int[n_tiles*n_tiles*256];
+        final int band_height_c = 128;
+        int [] pixels = new int[width*Math.min(band_height_c, height)];
+        for(int y0=0;y0<height;y0+=band_height_c) {
+            int y1 = Math.min(y0+band_height_c, height);
+            bitmap.getPixels(pixels, 0, width, 0, y0, width, y1 - y0);
+            for(int y=y0;y<y1;y++) {
+                int row_offset = (y-y0)*width;
+                int j = tile_y[y];
+                for(int x=0;x<width;x++) {
+                    int pixel = pixels[row_offset+x];
+                    int value = Math.max((pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF);
+                    value = Math.max(value, pixel & 0xFF);
+                    histograms[256*(tile_x[x]*n_tiles+j)+value]++;
+                }
+            }
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "time after creating histograms: " + (System.currentTimeMillis() - time_s));
+
+        int [] c_histogram = new int[n_tiles*n_tiles*256];
+        int [] histogram = new int[256];
+        int [] temp_c_histogram = new int[256];
+        for(int i=0;i<n_tiles;i++) {
+            int tile_width = tile_start_x[i+1] - tile_start_x[i];
+            if( tile_width == 0 )
+                continue;
+            for(int j=0;j<n_tiles;j++) {
+                int tile_height = tile_start_y[j+1] - tile_start_y[j];
+                if( tile_height == 0 )
+                    continue;
+                int histogram_offset = 256*(i*n_tiles+j);
+                System.arraycopy(histograms, histogram_offset, histogram, 0, 256);
+                clipHistogram(histogram, tile_width*tile_height, ce_preserve_blacks, temp_c_histogram);
+                c_histogram[histogram_offset] = histogram[0];
+                for(int x=1;x<256;x++) {
+                    c_histogram[histogram_offset+x] = c_histogram[histogram_offset+x-1] + histogram[x];
+                }
+            }
+        }
+        float [] ce_tables = TonemapLUT.createContrastEnhancementTables(c_histogram, n_tiles, hdr_alpha);
+
+        for(int y0=0;y0<height;y0+=band_height_c) {
+            int y1 = Math.min(y0+band_height_c, height);
+            bitmap.getPixels(pixels, 0, width, 0, y0, width, y1 - y0);
+            for(int y=y0;y<y1;y++) {
+                int row_offset = (y-y0)*width;
+                for(int x=0;x<width;x++) {
+                    pixels[row_offset+x] = TonemapLUT.contrastEnhance(pixels[row_offset+x], x, y, width, height, ce_tables, n_tiles);
+                }
+            }
+            bitmap.setPixels(pixels, 0, width, 0, y0, width, y1 - y0);
+        }
+        if( MyDebug.LOG )
+            Log.d(TAG, "time after adjusting histogram: " + (System.currentTimeMillis() - time_s));
+    }
+
     /**
      * @param avg If true, compute the color value as the average of the rgb values. If false,
      *            compute the color value as the maximum of the rgb values.
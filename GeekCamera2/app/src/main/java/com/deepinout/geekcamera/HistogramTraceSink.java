@@ -0,0 +1,170 @@
+package com.deepinout.geekcamera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A TraceRecorder.Sink that keeps a histogram of the durations of each named span, so that
+ *  percentiles (e.g., p50/p95/p99) can be reported, and the latest value of each counter.
+ *  Durations are held in buckets with a relative width of 1/16 (so percentiles are accurate to
+ *  within about 6%), so the memory used doesn't grow with the number of spans recorded.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class HistogramTraceSink implements TraceRecorder.Sink {
+    private static final int sub_bucket_bits_c = 4;
+    private static final int n_sub_buckets_c = 1 << sub_bucket_bits_c;
+    private static final int n_buckets_c = (64 - sub_bucket_bits_c) * n_sub_buckets_c;
+
+    /** The histogram of durations for a named span.
+     */
+    public static class Histogram {
+        private final long [] buckets = new long[n_buckets_c];
+        private long count;
+        private long total_ns;
+        private long min_ns = Long.MAX_VALUE;
+        private long max_ns = Long.MIN_VALUE;
+
+        private void add(long duration_ns) {
+            duration_ns = Math.max(duration_ns, 0);
+            buckets[getBucket(duration_ns)]++;
+            count++;
+            total_ns += duration_ns;
+            min_ns = Math.min(min_ns, duration_ns);
+            max_ns = Math.max(max_ns, duration_ns);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMinNs() {
+            return count == 0 ? 0 : min_ns;
+        }
+
+        public long getMaxNs() {
+            return count == 0 ? 0 : max_ns;
+        }
+
+        public long getMeanNs() {
+            return count == 0 ? 0 : total_ns / count;
+        }
+
+        /** Returns the duration that the fraction of the spans were no longer than (e.g., 0.95 for
+         *  the 95th percentile), or 0 if no spans have been recorded.
+         */
+        public long getPercentileNs(double fraction) {
+            if( count == 0 )
+                return 0;
+            long rank = (long)Math.ceil(fraction * count);
+            rank = Math.max(1, Math.min(count, rank));
+            long cumulative = 0;
+            for(int i=0;i<n_buckets_c;i++) {
+                cumulative += buckets[i];
+                if( cumulative >= rank ) {
+                    long value = getBucketLower(i) + getBucketWidth(i)/2;
+                    return Math.max(min_ns, Math.min(max_ns, value));
+                }
+            }
+            return max_ns; // shouldn't happen
+        }
+    }
+
+    /** Returns the bucket for a non-negative value. Values less than 2*n_sub_buckets_c have their
+     *  own buckets; otherwise each power of 2 range is split into n_sub_buckets_c buckets.
+     */
+    static int getBucket(long value) {
+        if( value < n_sub_buckets_c )
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - sub_bucket_bits_c;
+        return (shift + 1) * n_sub_buckets_c + (int)((value >> shift) & (n_sub_buckets_c-1));
+    }
+
+    static long getBucketLower(int bucket) {
+        if( bucket < n_sub_buckets_c )
+            return bucket;
+        int shift = bucket / n_sub_buckets_c - 1;
+        long sub_bucket = bucket % n_sub_buckets_c;
+        return (1L << (shift + sub_bucket_bits_c)) | (sub_bucket << shift);
+    }
+
+    static long getBucketWidth(int bucket) {
+        if( bucket < n_sub_buckets_c )
+            return 1;
+        int shift = bucket / n_sub_buckets_c - 1;
+        return 1L << shift;
+    }
+
+    private final Map<String, Histogram> histograms = new HashMap<>();
+    private final Map<String, Long> counters = new HashMap<>();
+
+    @Override
+    public synchronized void onSpan(String name, long thread_id, long start_ns, long end_ns) {
+        Histogram histogram = histograms.get(name);
+        if( histogram == null ) {
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+        histogram.add(end_ns - start_ns);
+    }
+
+    @Override
+    public synchronized void onCounter(String name, long thread_id, long timestamp_ns, long value) {
+        counters.put(name, value);
+    }
+
+    /** Returns the names of the spans recorded, in alphabetical order.
+     */
+    public synchronized List<String> getSpanNames() {
+        List<String> names = new ArrayList<>(histograms.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /** Returns a copy of the histogram for the named span, or null if no such spans have been
+     *  recorded.
+     */
+    public synchronized Histogram getHistogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if( histogram == null )
+            return null;
+        Histogram copy = new Histogram();
+        System.arraycopy(histogram.buckets, 0, copy.buckets, 0, n_buckets_c);
+        copy.count = histogram.count;
+        copy.total_ns = histogram.total_ns;
+        copy.min_ns = histogram.min_ns;
+        copy.max_ns = histogram.max_ns;
+        return copy;
+    }
+
+    /** Returns the latest value of the named counter, or null if it hasn't been recorded.
+     */
+    public synchronized Long getCounter(String name) {
+        return counters.get(name);
+    }
+
+    public synchronized void clear() {
+        histograms.clear();
+        counters.clear();
+    }
+
+    /** Returns a summary of the percentiles of each span, one line per span.
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for(String name : getSpanNames()) {
+            Histogram histogram = getHistogram(name);
+            summary.append(name);
+            summary.append(": n=").append(histogram.getCount());
+            summary.append(" p50=").append(histogram.getPercentileNs(0.5)/1000).append("us");
+            summary.append(" p95=").append(histogram.getPercentileNs(0.95)/1000).append("us");
+            summary.append(" p99=").append(histogram.getPercentileNs(0.99)/1000).append("us");
+            summary.append(" max=").append(histogram.getMaxNs()/1000).append("us");
+            summary.append("\n");
+        }
+        return summary.toString();
+    }
+}
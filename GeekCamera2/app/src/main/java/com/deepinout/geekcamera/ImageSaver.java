@@ -1,9 +1,11 @@
 package com.deepinout.geekcamera;
 
 import com.deepinout.geekcamera.cameracontroller.CameraController;
+import com.deepinout.geekcamera.cameracontroller.JpegBufferPool;
 import com.deepinout.geekcamera.cameracontroller.RawImage;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
@@ -21,8 +23,14 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -70,16 +78,41 @@ public class ImageSaver extends Thread {
      * Also note, main_activity.imageQueueChanged() should be called on UI thread after n_images_to_save increases or
      * decreases.
      * Access to n_images_to_save should always be synchronized to this (i.e., the ImageSaver class).
-     * n_real_images_to_save excludes "Dummy" requests, and should also be synchronized, and modified
-     * at the same time as n_images_to_save.
+     * n_bytes_to_save is the sum of the costs (payload sizes in bytes, see computeRequestCost()) of the requests
+     * counted by n_images_to_save, and should also be synchronized, and modified at the same time as n_images_to_save.
      */
     private int n_images_to_save = 0;
-    private int n_real_images_to_save = 0;
-    private final int queue_capacity;
+    private long n_bytes_to_save = 0;
+    private final long queue_budget; // in bytes
+    private final int n_smp_avg_images; // how many bitmaps to decompress at once when averaging a batch of JPEGs, see saveImageNow()
     private final BlockingQueue<Request> queue;
-    private final static int queue_cost_jpeg_c = 1; // also covers WEBP
-    private final static int queue_cost_dng_c = 6;
-    //private final static int queue_cost_dng_c = 1;
+    // Estimates of the payload size of a single image, used to compute the cost of a photo that hasn't been taken yet.
+    // These start from typical values, and are then updated from the sizes of actual requests, see addRequest().
+    // Access should be synchronized to this.
+    private final static long queue_cost_jpeg_default_c = 5*1024*1024; // also covers WEBP
+    private final static long queue_cost_dng_default_c = 6*queue_cost_jpeg_default_c;
+    private long queue_cost_jpeg = queue_cost_jpeg_default_c;
+    private long queue_cost_dng = queue_cost_dng_default_c;
+
+    /* The save pipeline, used for requests where each image is saved independently (see canPipeline()). Each image is
+     * decoded and post-processed on processExecutor, compressed on encodeExecutor, and then written (along with the Exif
+     * tags, media store/broadcast and thumbnail update) on writeExecutor. So for a continuous burst, the rate of saving
+     * is limited by the slowest of these stages, rather than the sum of them.
+     * writeExecutor has a single thread, and each write task waits for the earlier stages of its own image, so images
+     * are written in the order they were taken from the queue (needed for the filename suffixes and thumbnails).
+     * Each image in the pipeline holds a full size decoded bitmap and then its compressed data until it's written, so
+     * the number of images in the pipeline is limited by pipeline_slots: the saver thread acquires a slot before
+     * submitting each image, and the write task releases it. So if writing is slower than the earlier stages, the saver
+     * thread blocks (with the remaining requests held in the queue, against queue_budget), rather than decoded images
+     * building up ahead of the writer. This also bounds the executors' task queues.
+     * n_pipeline_images is the number of images submitted to the pipeline but not yet written, and should be
+     * synchronized to this.
+     */
+    private final ExecutorService processExecutor;
+    private final ExecutorService encodeExecutor;
+    private final ExecutorService writeExecutor;
+    private final Semaphore pipeline_slots;
+    private int n_pipeline_images = 0;
 
     // Should be same as MainActivity.app_is_paused, but we keep our own copy to make threading easier (otherwise, all
     // accesses of MainActivity.app_is_paused would need to be synchronized).
@@ -97,7 +130,8 @@ public class ImageSaver extends Thread {
         enum Type {
             JPEG, // also covers WEBP
             RAW,
-            DUMMY
+            AVERAGE_FRAME, // a single JPEG frame of a noise reduction batch, to be merged into avg_accumulator
+            PANORAMA_FRAME // a single JPEG frame of a panorama batch, to be added to panorama_accumulator
         }
         final Type type;
         enum ProcessType {
@@ -122,6 +156,21 @@ public class ImageSaver extends Thread {
          * If process_type==NORMAL, then multiple images are saved sequentially.
          */
         final List<byte []> jpeg_images;
+        /* jpeg_buffer: if non-null, jpeg_images holds the single array jpeg_buffer.getData(), which is
+         * usually longer than the JPEG - see getJpegLength(). Only used for requests that are saved with
+         * the save pipeline, which releases the buffer once the image is written.
+         */
+        JpegBufferPool.Buffer jpeg_buffer;
+        /* avg_accumulator: for process_type AVERAGE or type AVERAGE_FRAME. If non-null, the frames of the batch are
+         * merged as they arrive (see processAvgFrame()), and jpeg_images only holds the first frame.
+         */
+        AvgAccumulator avg_accumulator;
+        /* panorama_accumulator: for process_type PANORAMA or type PANORAMA_FRAME. If non-null, the frames of the batch
+         * are aligned as they arrive (see processPanoramaFrame()). Unlike avg_accumulator, jpeg_images still holds all
+         * of the frames, as they're needed for the base images, and are reloaded one at a time for rendering.
+         */
+        PanoramaAccumulator panorama_accumulator;
+        float [] panorama_frame_gyro_rotation_matrix; // for type PANORAMA_FRAME: the gyro rotation matrix of the frame, or null if not known
         final RawImage raw_image; // for raw
         final boolean image_capture_intent;
         final Uri image_capture_intent_uri;
@@ -138,7 +187,9 @@ public class ImageSaver extends Thread {
         boolean do_auto_stabilise;
         final double level_angle; // in degrees
         final List<float []> gyro_rotation_matrix; // used for panorama (one 3x3 matrix per jpeg_images entry), otherwise can be null
-        boolean panorama_dir_left_to_right; // used for panorama
+        // used for panorama; volatile as for the batch request, this is set on the UI thread once the direction is
+        // known, whilst frames are still being added (see addPanoramaFrames())
+        volatile boolean panorama_dir_left_to_right;
         float camera_view_angle_x; // used for panorama
         float camera_view_angle_y; // used for panorama
         final boolean is_front_facing;
@@ -168,6 +219,7 @@ public class ImageSaver extends Thread {
         final String custom_tag_artist;
         final String custom_tag_copyright;
         final int sample_factor; // sampling factor for thumbnail, higher means lower quality
+        long cost; // payload size in bytes, set when added to the queue, see addRequest()
 
         Request(Type type,
                 ProcessType process_type,
@@ -238,16 +290,30 @@ public class ImageSaver extends Thread {
             this.sample_factor = sample_factor;
         }
 
+        /** Returns the length of the JPEG held in data, which must be one of jpeg_images.
+         */
+        int getJpegLength(byte [] data) {
+            if( jpeg_buffer != null && jpeg_buffer.getData() == data )
+                return jpeg_buffer.getLength();
+            return data.length;
+        }
+
         /** Returns a copy of this object. Note that it is not a deep copy - data such as JPEG and RAW
          *  data will not be copied.
          */
         Request copy() {
-            return new Request(this.type,
+            return copy(this.type, this.jpeg_images);
+        }
+
+        /** As copy(), but with the supplied type and images.
+         */
+        Request copy(Type type, List<byte []> jpeg_images) {
+            return new Request(type,
                     this.process_type,
                     this.force_suffix,
                     this.suffix_offset,
                     this.save_base,
-                    this.jpeg_images,
+                    jpeg_images,
                     this.raw_image,
                     this.image_capture_intent, this.image_capture_intent_uri,
                     this.using_camera2,
@@ -269,14 +335,114 @@ public class ImageSaver extends Thread {
         }
     }
 
+    /** Holds the running average for a noise reduction (process_type AVERAGE) batch. Rather than
+     *  keeping the JPEGs of the whole burst until the batch is finished, each frame is queued as a
+     *  Request.Type.AVERAGE_FRAME request as soon as it arrives, and merged into the average when
+     *  taken from the queue, after which its JPEG data can be garbage collected. So at most one
+     *  decoded frame plus the running average are held, however many frames are in the burst, and
+     *  frames waiting to be merged count against queue_budget like any other image.
+     *  The merging happens on the saver thread, as the HDRProcessor isn't thread safe. Apart from
+     *  cancelled and n_queued, fields should only be accessed from the saver thread (or from the
+     *  thread calling finishImageBatch(), once all frames have been processed).
+     *  If the batch is abandoned, the running average is freed by cancel() if no frames are still
+     *  queued, otherwise by the saver thread once it has finished with the last queued frame.
+     */
+    private static class AvgAccumulator {
+        int inSampleSize;
+        int width;
+        int height;
+        int n_frames; // number of frames merged so far
+        Bitmap first_bitmap; // holds the first frame until the second arrives
+        HDRProcessor.AvgData avg_data; // created from the first two frames
+        boolean failed; // set if merging a frame failed, in which case only the first frame is saved
+        volatile boolean cancelled; // set if the batch is abandoned
+        private int n_queued; // number of frames queued but not yet processed by the saver thread
+
+        /** Called before a frame is queued to be merged.
+         */
+        synchronized void frameQueued() {
+            n_queued++;
+        }
+
+        /** Called by the saver thread once it has finished with a queued frame.
+         */
+        synchronized void frameDone() {
+            n_queued--;
+            if( cancelled && n_queued == 0 ) {
+                release();
+            }
+        }
+
+        /** Abandons the batch.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            if( n_queued == 0 ) {
+                release();
+            }
+        }
+
+        synchronized void release() {
+            if( first_bitmap != null ) {
+                first_bitmap.recycle();
+                first_bitmap = null;
+            }
+            if( avg_data != null ) {
+                avg_data.destroy();
+                avg_data = null;
+            }
+        }
+    }
+
+    /** Holds the stitcher for a panorama batch. Each frame is queued as a
+     *  Request.Type.PANORAMA_FRAME request as soon as it arrives, and aligned against the previous
+     *  frame when taken from the queue, so that most of the work of stitching is done whilst the
+     *  user is still capturing the panorama. Only the most recent decoded frame is held; the
+     *  frames are decoded again when the panorama is rendered, one at a time, rather than holding
+     *  all of the decoded frames at once.
+     *  The direction of the panorama isn't known until the second frame, so frames are only
+     *  queued from then on, and only for left to right panoramas - for right to left panoramas,
+     *  the accumulator is cancelled and the batch is stitched once finished, as before.
+     *  As with AvgAccumulator, apart from cancelled, fields should only be accessed from the saver
+     *  thread (or from the thread calling finishImageBatch(), once all frames have been processed).
+     */
+    private static class PanoramaAccumulator {
+        PanoramaProcessor.Stitcher stitcher;
+        byte [] first_jpeg; // used for the exif orientation of all frames
+        Bitmap last_bitmap; // the most recently added frame, still needed by the stitcher
+        boolean failed; // set if a frame couldn't be added, in which case the batch is stitched once finished
+        volatile boolean cancelled; // set if the batch is abandoned
+
+        void release() {
+            if( last_bitmap != null ) {
+                last_bitmap.recycle();
+                last_bitmap = null;
+            }
+        }
+    }
+
     ImageSaver(MainActivity main_activity) {
         if( MyDebug.LOG )
             Log.d(TAG, "ImageSaver");
         this.main_activity = main_activity;
 
         ActivityManager activityManager = (ActivityManager) main_activity.getSystemService(Activity.ACTIVITY_SERVICE);
-        this.queue_capacity = computeQueueSize(activityManager.getLargeMemoryClass());
-        this.queue = new ArrayBlockingQueue<>(queue_capacity); // since we remove from the queue and then process in the saver thread, in practice the number of background photos - including the one being processed - is one more than the length of this queue
+        this.queue_budget = computeQueueBudget(activityManager.getLargeMemoryClass());
+        // noise reduction is supported with a 256MB large heap, as frames are normally merged as they arrive (see
+        // AvgAccumulator); but when all the JPEGs are kept (SAVEBASE_ALL), several frames are decompressed at once
+        this.n_smp_avg_images = activityManager.getLargeMemoryClass() >= 512 ? 4 : 2;
+        // the queue itself is unbounded, as requests are instead admitted against queue_budget, see addRequest()
+        this.queue = new LinkedBlockingQueue<>();
+
+        // decoding and compressing full size bitmaps is memory intensive, so don't use too many threads
+        int n_threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors()/2));
+        if( MyDebug.LOG )
+            Log.d(TAG, "save pipeline threads: " + n_threads);
+        this.processExecutor = Executors.newFixedThreadPool(n_threads);
+        this.encodeExecutor = Executors.newFixedThreadPool(n_threads);
+        this.writeExecutor = Executors.newSingleThreadExecutor();
+        // enough images to keep each of the process threads busy, whilst another image is encoded or written
+        this.pipeline_slots = new Semaphore(n_threads+1);
 
         this.hdrProcessor = new HDRProcessor(main_activity, main_activity.is_test);
         this.panoramaProcessor = new PanoramaProcessor(main_activity, hdrProcessor);
@@ -284,129 +450,123 @@ public class ImageSaver extends Thread {
         p.setAntiAlias(true);
     }
 
-    /** Returns the length of the image saver queue. In practice, the number of images that can be taken at once before the UI
+    /** Returns the length of the image saver queue, in terms of the number of JPEG images that can
+     *  be held at once. In practice, the number of images that can be taken at once before the UI
      *  blocks is 1 more than this, as 1 image will be taken off the queue to process straight away.
      */
-    public int getQueueSize() {
-        return this.queue_capacity;
+    public synchronized int getQueueSize() {
+        return (int)(queue_budget/queue_cost_jpeg);
     }
 
-    /** Compute a sensible size for the queue, based on the device's memory (large heap).
+    /** Compute a sensible budget in bytes for the payloads held by the queue, based on the device's
+     *  memory (large heap).
      */
-    public static int computeQueueSize(int large_heap_memory) {
+    public static long computeQueueBudget(int large_heap_memory) {
         if( MyDebug.LOG )
             Log.d(TAG, "large max memory = " + large_heap_memory + "MB");
-        int max_queue_size;
         if( MyDebug.LOG )
             Log.d(TAG, "test_small_queue_size?: " + test_small_queue_size);
         if( test_small_queue_size ) {
             large_heap_memory = 0;
         }
 
-        if( large_heap_memory >= 512 ) {
-            // This should be at least 5*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a burst of 5 photos
-            // (e.g., in expo mode) with RAW+JPEG without blocking (we subtract 1, as the first image can be immediately
-            // taken off the queue).
-            // This should also be at least 19 so we can take a burst of 20 photos with JPEG without blocking (we subtract 1,
-            // as the first image can be immediately taken off the queue).
-            // This should be at most 70 for large heap 512MB (estimate based on reserving 160MB for post-processing and HDR
-            // operations, then estimate a JPEG image at 5MB).
-            max_queue_size = 34;
-        }
-        else if( large_heap_memory >= 256 ) {
-            // This should be at most 19 for large heap 256MB.
-            max_queue_size = 12;
-        }
-        else if( large_heap_memory >= 128 ) {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            // This should be at most 8 for large heap 128MB (allowing 80MB for post-processing).
-            max_queue_size = 8;
-        }
-        else {
-            // This should be at least 1*(queue_cost_jpeg_c+queue_cost_dng_c)-1 so we can take a photo with RAW+JPEG
-            // without blocking (we subtract 1, as the first image can be immediately taken off the queue).
-            max_queue_size = 6;
-        }
-        //max_queue_size = 1;
-        //max_queue_size = 3;
+        // Reserve memory for the post-processing and HDR operations (which need to decode the JPEGs to bitmaps); we
+        // reserve at most 160MB, or half the heap on smaller devices. We then only use 3/4 of what remains for
+        // the queue, to allow for the overhead of everything else the application holds.
+        long heap = large_heap_memory * 1024L * 1024L;
+        long reserve = Math.min(160L*1024L*1024L, heap/2);
+        long budget = ((heap - reserve) * 3) / 4;
+        // This should be at least enough so we can take a photo with RAW+JPEG without blocking, even on devices with
+        // a small heap.
+        budget = Math.max(budget, queue_cost_jpeg_default_c + queue_cost_dng_default_c);
         if( MyDebug.LOG )
-            Log.d(TAG, "max_queue_size = " + max_queue_size);
-        return max_queue_size;
+            Log.d(TAG, "queue budget = " + budget + " bytes");
+        return budget;
     }
 
-    /** Computes the cost for a particular request.
+    /** Computes the cost for a particular request - this is the size in bytes of the payload held by the request
+     *  (the JPEG data, or the RAW image buffers).
      *  Note that for RAW+DNG mode, computeRequestCost() is called twice for a given photo (one for each
      *  of the two requests: one RAW, one JPEG).
-     * @param is_raw Whether RAW/DNG or JPEG.
-     * @param n_images This is the number of JPEG or RAW images that are in the request.
      */
-    public static int computeRequestCost(boolean is_raw, int n_images) {
-        if( MyDebug.LOG ) {
+    public static long computeRequestCost(List<byte []> jpeg_images, RawImage raw_image) {
+        if( MyDebug.LOG )
             Log.d(TAG, "computeRequestCost");
-            Log.d(TAG, "is_raw: " + is_raw);
-            Log.d(TAG, "n_images: " + n_images);
+        long cost = 0;
+        if( jpeg_images != null ) {
+            for(byte [] jpeg_image : jpeg_images) {
+                cost += jpeg_image.length;
+            }
         }
-        int cost;
-        if( is_raw )
-            cost = n_images * queue_cost_dng_c;
-        else {
-            cost = n_images * queue_cost_jpeg_c;
-            //cost = (n_images > 1 ? 2 : 1) * queue_cost_jpeg_c;
+        if( raw_image != null ) {
+            cost += raw_image.getSizeInBytes();
         }
+        if( MyDebug.LOG )
+            Log.d(TAG, "cost: " + cost);
         return cost;
     }
 
-    /** Computes the cost (in terms of number of slots on the image queue) of a new photo.
-     * @param n_raw The number of JPEGs that will be taken.
+    /** Estimates the cost (in bytes) of a photo that hasn't been taken yet.
+     * @param n_raw The number of RAW images that will be taken.
+     * @param n_jpegs The number of JPEGs that will be taken.
+     * @param cost_jpeg The estimated size in bytes of a single JPEG.
+     * @param cost_dng The estimated size in bytes of a single RAW image.
+     */
+    public static long computePhotoCost(int n_raw, int n_jpegs, long cost_jpeg, long cost_dng) {
+        return n_raw * cost_dng + n_jpegs * cost_jpeg;
+    }
+
+    /** Computes the cost (in bytes) of a new photo, based on the sizes of the most recent images.
+     * @param n_raw The number of RAW images that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
-    int computePhotoCost(int n_raw, int n_jpegs) {
+    synchronized long computePhotoCost(int n_raw, int n_jpegs) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "computePhotoCost");
             Log.d(TAG, "n_raw: " + n_raw);
             Log.d(TAG, "n_jpegs: " + n_jpegs);
         }
-        int cost = 0;
-        if( n_raw > 0 )
-            cost += computeRequestCost(true, n_raw);
-        if( n_jpegs > 0 )
-            cost += computeRequestCost(false, n_jpegs);
+        long cost = computePhotoCost(n_raw, n_jpegs, queue_cost_jpeg, queue_cost_dng);
         if( MyDebug.LOG )
             Log.d(TAG, "cost: " + cost);
         return cost;
     }
 
     /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
-     * @param n_raw The number of JPEGs that will be taken.
+     * @param n_raw The number of RAW images that will be taken.
      * @param n_jpegs The number of JPEGs that will be taken.
      */
-    boolean queueWouldBlock(int n_raw, int n_jpegs) {
-        int photo_cost = this.computePhotoCost(n_raw, n_jpegs);
+    synchronized boolean queueWouldBlock(int n_raw, int n_jpegs) {
+        long photo_cost = this.computePhotoCost(n_raw, n_jpegs);
         return this.queueWouldBlock(photo_cost);
     }
 
     /** Whether taking an extra photo would overflow the queue, resulting in the UI hanging.
      * @param photo_cost The result returned by computePhotoCost().
      */
-    synchronized boolean queueWouldBlock(int photo_cost) {
+    synchronized boolean queueWouldBlock(long photo_cost) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "queueWouldBlock");
             Log.d(TAG, "photo_cost: " + photo_cost);
-            Log.d(TAG, "n_images_to_save: " + n_images_to_save);
-            Log.d(TAG, "queue_capacity: " + queue_capacity);
+            Log.d(TAG, "n_bytes_to_save: " + n_bytes_to_save);
+            Log.d(TAG, "queue_budget: " + queue_budget);
         }
-        // we add one to queue, to account for the image currently being processed; n_images_to_save includes an image
-        // currently being processed
-        if( n_images_to_save == 0 ) {
-            // In theory, we should never have the extra_cost large enough to block the queue even when no images are being
+        return wouldBlock(n_bytes_to_save, photo_cost, queue_budget);
+    }
+
+    /** Whether a request of the supplied cost would have to wait before being admitted to the queue.
+     *  Note that n_bytes_to_save includes a request currently being processed.
+     */
+    public static boolean wouldBlock(long n_bytes_to_save, long cost, long queue_budget) {
+        if( n_bytes_to_save == 0 ) {
+            // In theory, we should never have the cost large enough to block the queue even when no images are being
             // saved - but we have this just in case. This means taking the photo will likely block the UI, but we don't want
             // to disallow ever taking photos!
             if( MyDebug.LOG )
                 Log.d(TAG, "queue is empty");
             return false;
         }
-        else if( n_images_to_save + photo_cost > queue_capacity + 1 ) {
+        else if( n_bytes_to_save + cost > queue_budget ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "queue would block");
             return true;
@@ -418,27 +578,26 @@ public class ImageSaver extends Thread {
 
     /** Returns the maximum number of DNG images that might be held by the image saver queue at once, before blocking.
      */
-    int getMaxDNG() {
-        int max_dng = (queue_capacity+1)/queue_cost_dng_c;
+    synchronized int getMaxDNG() {
+        int max_dng = (int)(queue_budget/queue_cost_dng);
         max_dng++; // increase by 1, as the user can still take one extra photo if the queue is exactly full
         if( MyDebug.LOG )
             Log.d(TAG, "max_dng = " + max_dng);
         return max_dng;
     }
 
-    /** Returns the number of images to save, weighted by their cost (e.g., so a single RAW image
-     *  will be counted as multiple images).
+    /** Returns the total cost in bytes of the images still to save, including any image currently
+     *  being processed.
      */
-    public synchronized int getNImagesToSave() {
-        return n_images_to_save;
+    public synchronized long getNBytesToSave() {
+        return n_bytes_to_save;
     }
 
-    /** Returns the number of images to save (e.g., so a single RAW image will only be counted as
-     *  one image, unlike getNImagesToSave()).
-
+    /** Returns the number of images to save (so a single RAW image will only be counted as one
+     *  image, see getNBytesToSave() for the size of the images to save).
      */
-    public synchronized int getNRealImagesToSave() {
-        return n_real_images_to_save;
+    public synchronized int getNImagesToSave() {
+        return n_images_to_save;
     }
 
     /** Application has paused.
@@ -460,6 +619,10 @@ public class ImageSaver extends Thread {
     void onDestroy() {
         if( MyDebug.LOG )
             Log.d(TAG, "onDestroy");
+        // any images still in the pipeline will still be saved
+        processExecutor.shutdown();
+        encodeExecutor.shutdown();
+        writeExecutor.shutdown();
         if( panoramaProcessor != null ) {
             panoramaProcessor.onDestroy();
         }
@@ -481,6 +644,15 @@ public class ImageSaver extends Thread {
                 // even though we still have a last image to be saved.
                 if( MyDebug.LOG )
                     Log.d(TAG, "ImageSaver thread found new request from queue, size is now: " + queue.size());
+                if( canPipeline(request) ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "request is jpeg, use save pipeline");
+                    // the request will be marked as done by the last of its write tasks
+                    savePipelined(request);
+                    continue;
+                }
+                // other requests are processed on this thread, so make sure any earlier images have been written first
+                waitUntilPipelineDone();
                 boolean success;
                 switch (request.type) {
                     case RAW:
@@ -493,10 +665,15 @@ public class ImageSaver extends Thread {
                             Log.d(TAG, "request is jpeg");
                         success = saveImageNow(request);
                         break;
-                    case DUMMY:
+                    case AVERAGE_FRAME:
                         if (MyDebug.LOG)
-                            Log.d(TAG, "request is dummy");
-                        success = true;
+                            Log.d(TAG, "request is noise reduction frame");
+                        success = processAvgFrame(request);
+                        break;
+                    case PANORAMA_FRAME:
+                        if (MyDebug.LOG)
+                            Log.d(TAG, "request is panorama frame");
+                        success = processPanoramaFrame(request);
                         break;
                     default:
                         if (MyDebug.LOG)
@@ -509,39 +686,199 @@ public class ImageSaver extends Thread {
                     //noinspection BusyWait
                     Thread.sleep(2000);
                 }
-                if( MyDebug.LOG ) {
-                    if( success )
-                        Log.d(TAG, "ImageSaver thread successfully saved image");
-                    else
-                        Log.e(TAG, "ImageSaver thread failed to save image");
+                requestDone(request, success);
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+                if( MyDebug.LOG )
+                    Log.e(TAG, "interrupted while trying to read from ImageSaver queue");
+            }
+        }
+    }
+
+    /** Called when a request taken from the queue has been processed and saved.
+     */
+    private void requestDone(Request request, boolean success) {
+        if( MyDebug.LOG ) {
+            if( success )
+                Log.d(TAG, "ImageSaver thread successfully saved image");
+            else
+                Log.e(TAG, "ImageSaver thread failed to save image");
+        }
+        synchronized( this ) {
+            n_images_to_save--;
+            n_bytes_to_save -= request.cost;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
+                Log.d(TAG, "bytes to save is now: " + n_bytes_to_save);
+            }
+            if( MyDebug.LOG && n_images_to_save < 0 ) {
+                Log.e(TAG, "images to save has become negative");
+                throw new RuntimeException();
+            }
+            else if( MyDebug.LOG && n_bytes_to_save < 0 ) {
+                Log.e(TAG, "bytes to save has become negative");
+                throw new RuntimeException();
+            }
+            // also wakes up any thread waiting in addRequest() for the queue to have space
+            notifyAll();
+
+            main_activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    main_activity.imageQueueChanged();
                 }
-                synchronized( this ) {
-                    n_images_to_save--;
-                    if( request.type != Request.Type.DUMMY )
-                        n_real_images_to_save--;
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "ImageSaver thread processed new request from queue, images to save is now: " + n_images_to_save);
-                    if( MyDebug.LOG && n_images_to_save < 0 ) {
-                        Log.e(TAG, "images to save has become negative");
-                        throw new RuntimeException();
+            });
+        }
+    }
+
+    /** Whether the request can be saved with the save pipeline, rather than on the saver thread.
+     *  This is the case for requests where each image is saved independently.
+     */
+    private static boolean canPipeline(Request request) {
+        return request.type == Request.Type.JPEG && request.process_type == Request.ProcessType.NORMAL && !request.image_capture_intent;
+    }
+
+    /** Submits each of the images of the request to the save pipeline. The request is marked as
+     *  done once its last image has been written.
+     *  This has the same behaviour as saveImages(request, "_", false, true, true), except that it
+     *  returns immediately.
+     */
+    private void savePipelined(final Request request) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "savePipelined");
+        final int n_images = request.jpeg_images.size();
+        final int mid_image = n_images/2;
+        final boolean raw_only = main_activity.getApplicationInterface().isRawOnly();
+        // only accessed from the write tasks, which all run on the single writeExecutor thread
+        final boolean [] request_success = new boolean[]{true};
+        synchronized( this ) {
+            n_pipeline_images += n_images;
+        }
+        for(int i=0;i<n_images;i++) {
+            final byte [] image = request.jpeg_images.get(i);
+            final String filename_suffix = (n_images > 1 || request.force_suffix) ? "_" + (i + request.suffix_offset) : "";
+            final boolean share_image = (i == mid_image);
+            final boolean last_image = (i == n_images-1);
+
+            // wait until an earlier image has been written, if the pipeline is full
+            pipeline_slots.acquireUninterruptibly();
+
+            // stage 1: decode and post-process
+            final Future<Bitmap> processed = processExecutor.submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws IOException {
+                    if( raw_only )
+                        return null;
+                    return postProcessBitmap(request, image, null, false).bitmap;
+                }
+            });
+            // stage 2: compress
+            final Future<byte []> encoded = encodeExecutor.submit(new Callable<byte []>() {
+                @Override
+                public byte [] call() throws Exception {
+                    Bitmap bitmap = processed.get();
+                    return bitmap == null ? null : encodeBitmap(request, bitmap);
+                }
+            });
+            // stage 3: write, exif, broadcast and thumbnail - in order of submission
+            // n.b., use execute() rather than submit(), so that a RuntimeException isn't swallowed by a Future, but
+            // crashes as if we'd saved on the saver thread
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if( !writePipelinedImage(request, image, processed, encoded, filename_suffix, share_image, raw_only) ) {
+                            if( MyDebug.LOG )
+                                Log.e(TAG, "writePipelinedImage failed for image: " + filename_suffix);
+                            request_success[0] = false;
+                        }
                     }
-                    else if( MyDebug.LOG && n_real_images_to_save < 0 ) {
-                        Log.e(TAG, "real images to save has become negative");
-                        throw new RuntimeException();
+                    finally {
+                        // the decoded and encoded image are no longer needed
+                        pipeline_slots.release();
                     }
-                    notifyAll();
-
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
+                    if( last_image && request.jpeg_buffer != null ) {
+                        // all stages have finished with the data
+                        request.jpeg_buffer.release();
+                        request.jpeg_buffer = null;
+                    }
+                    if( test_slow_saving ) {
+                        try {
+                            Thread.sleep(2000);
+                        }
+                        catch(InterruptedException e) {
+                            e.printStackTrace();
                         }
-                    });
+                    }
+                    synchronized( ImageSaver.this ) {
+                        n_pipeline_images--;
+                        ImageSaver.this.notifyAll();
+                    }
+                    if( last_image ) {
+                        requestDone(request, request_success[0]);
+                    }
                 }
+            });
+        }
+    }
+
+    /** The final stage of the save pipeline, run on writeExecutor.
+     */
+    private boolean writePipelinedImage(Request request, byte [] data, Future<Bitmap> processed, Future<byte []> encoded, String filename_suffix, boolean share_image, boolean raw_only) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "writePipelinedImage");
+        long time_s = System.currentTimeMillis();
+        main_activity.savingImage(true);
+        boolean success = false;
+        try {
+            // n.b., must get processed first, so an IOException from post-processing isn't reported via the encode stage
+            Bitmap bitmap = processed.get();
+            byte [] encoded_data = encoded.get();
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "Save pipeline performance: time waiting for earlier stages: " + (System.currentTimeMillis() - time_s));
             }
-            catch(InterruptedException e) {
+            success = writeSingleImageNow(request, data, bitmap, encoded_data, filename_suffix, true, share_image, raw_only, time_s);
+        }
+        catch(ExecutionException e) {
+            if( e.getCause() instanceof IOException ) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "I/O error post-processing image: " + e.getCause().getMessage());
                 e.printStackTrace();
+                main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+                System.gc();
+            }
+            else {
+                // as for when saving on the saver thread, treat as a programming error
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        catch(InterruptedException e) {
+            e.printStackTrace();
+            if( MyDebug.LOG )
+                Log.e(TAG, "interrupted while waiting for save pipeline");
+        }
+        main_activity.savingImage(false);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "Save pipeline performance: total time: " + (System.currentTimeMillis() - time_s));
+        }
+        return success;
+    }
+
+    /** Waits until all images submitted to the save pipeline have been written.
+     */
+    private void waitUntilPipelineDone() {
+        synchronized( this ) {
+            while( n_pipeline_images > 0 ) {
                 if( MyDebug.LOG )
-                    Log.e(TAG, "interrupted while trying to read from ImageSaver queue");
+                    Log.d(TAG, "wait until pipeline done: " + n_pipeline_images);
+                try {
+                    wait();
+                }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "interrupted while waiting for save pipeline");
+                }
             }
         }
     }
@@ -551,6 +888,8 @@ public class ImageSaver extends Thread {
      *  until it isn't full. Otherwise it will return immediately. The function always returns true for background saving.
      *  If do_in_background is false, the photo is saved on the current thread, and the function returns whether the photo was saved
      *  successfully.
+     *  If jpeg_buffer is non-null, then images should contain just jpeg_buffer.getData(). The ImageSaver takes over the
+     *  reference to jpeg_buffer, and releases it when no longer needed.
      */
     boolean saveImageJpeg(boolean do_in_background,
                           boolean is_hdr,
@@ -558,6 +897,7 @@ public class ImageSaver extends Thread {
                           int suffix_offset,
                           boolean save_expo,
                           List<byte []> images,
+                          JpegBufferPool.Buffer jpeg_buffer,
                           boolean image_capture_intent, Uri image_capture_intent_uri,
                           boolean using_camera2,
                           Request.ImageFormat image_format, int image_quality,
@@ -588,6 +928,7 @@ public class ImageSaver extends Thread {
                 suffix_offset,
                 save_expo,
                 images,
+                jpeg_buffer,
                 null,
                 image_capture_intent, image_capture_intent_uri,
                 using_camera2,
@@ -630,6 +971,7 @@ public class ImageSaver extends Thread {
                 suffix_offset,
                 false,
                 null,
+                null,
                 raw_image,
                 false, null,
                 false,
@@ -678,6 +1020,13 @@ public class ImageSaver extends Thread {
             Log.d(TAG, "startImageBatch");
             Log.d(TAG, "do_in_background? " + do_in_background);
         }
+        if( pending_image_average_request != null && pending_image_average_request.avg_accumulator != null ) {
+            // previous batch was never finished
+            pending_image_average_request.avg_accumulator.cancel();
+        }
+        if( pending_image_average_request != null && pending_image_average_request.panorama_accumulator != null ) {
+            pending_image_average_request.panorama_accumulator.cancelled = true;
+        }
         pending_image_average_request = new Request(Request.Type.JPEG,
                 processType,
                 false,
@@ -702,6 +1051,13 @@ public class ImageSaver extends Thread {
                 custom_tag_artist,
                 custom_tag_copyright,
                 sample_factor);
+        if( processType == Request.ProcessType.AVERAGE && save_base != Request.SaveBase.SAVEBASE_ALL && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            // merge the frames as they arrive - not done for SAVEBASE_ALL, as then we need to keep all of the JPEGs anyway
+            pending_image_average_request.avg_accumulator = new AvgAccumulator();
+        }
+        else if( processType == Request.ProcessType.PANORAMA && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            pending_image_average_request.panorama_accumulator = new PanoramaAccumulator();
+        }
     }
 
     void addImageBatch(byte [] image, float [] gyro_rotation_matrix) {
@@ -711,16 +1067,68 @@ public class ImageSaver extends Thread {
             Log.e(TAG, "addImageBatch called but no pending_image_average_request");
             return;
         }
-        pending_image_average_request.jpeg_images.add(image);
+        if( pending_image_average_request.avg_accumulator != null ) {
+            // the batch request only keeps the first frame, for the exif data of the final image (and for SAVEBASE_FIRST)
+            if( pending_image_average_request.jpeg_images.size() == 0 )
+                pending_image_average_request.jpeg_images.add(image);
+            List<byte []> frame_images = new ArrayList<>();
+            frame_images.add(image);
+            Request frame_request = pending_image_average_request.copy(Request.Type.AVERAGE_FRAME, frame_images);
+            frame_request.avg_accumulator = pending_image_average_request.avg_accumulator;
+            frame_request.avg_accumulator.frameQueued();
+            addRequest(frame_request);
+        }
+        else {
+            pending_image_average_request.jpeg_images.add(image);
+        }
         if( gyro_rotation_matrix != null ) {
             float [] copy = new float[gyro_rotation_matrix.length];
             System.arraycopy(gyro_rotation_matrix, 0, copy, 0, gyro_rotation_matrix.length);
             pending_image_average_request.gyro_rotation_matrix.add(copy);
         }
+        // n.b., only queue panorama frames once the gyro rotation matrix has been recorded, as it's used for the alignment
+        if( pending_image_average_request.panorama_accumulator != null ) {
+            addPanoramaFrames(pending_image_average_request);
+        }
         if( MyDebug.LOG )
             Log.d(TAG, "image average request images: " + pending_image_average_request.jpeg_images.size());
     }
 
+    /** Queues the newly added frames of a panorama batch to be aligned. See PanoramaAccumulator.
+     */
+    private void addPanoramaFrames(Request batch_request) {
+        PanoramaAccumulator accumulator = batch_request.panorama_accumulator;
+        List<byte []> jpeg_images = batch_request.jpeg_images;
+        int n_images = jpeg_images.size();
+        if( n_images < 2 ) {
+            // wait until we know the direction
+            return;
+        }
+        int first_new_image = n_images-1;
+        if( n_images == 2 ) {
+            if( !batch_request.panorama_dir_left_to_right ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "right to left panorama, stitch once finished");
+                accumulator.cancelled = true;
+                batch_request.panorama_accumulator = null;
+                return;
+            }
+            accumulator.first_jpeg = jpeg_images.get(0);
+            accumulator.stitcher = panoramaProcessor.startPanorama(MyApplicationInterface.getPanoramaPicsPerScreen(), batch_request.camera_view_angle_y, batch_request.panorama_crop);
+            first_new_image = 0;
+        }
+        for(int i=first_new_image;i<n_images;i++) {
+            List<byte []> frame_images = new ArrayList<>();
+            frame_images.add(jpeg_images.get(i));
+            Request frame_request = batch_request.copy(Request.Type.PANORAMA_FRAME, frame_images);
+            frame_request.panorama_accumulator = accumulator;
+            // the batch request's list is still being added to, so pass the frame's matrix directly
+            if( batch_request.gyro_rotation_matrix != null && i < batch_request.gyro_rotation_matrix.size() )
+                frame_request.panorama_frame_gyro_rotation_matrix = batch_request.gyro_rotation_matrix.get(i);
+            addRequest(frame_request);
+        }
+    }
+
     Request getImageBatchRequest() {
         return pending_image_average_request;
     }
@@ -736,8 +1144,7 @@ public class ImageSaver extends Thread {
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(false, pending_image_average_request.jpeg_images.size());
-            addRequest(pending_image_average_request, cost);
+            addRequest(pending_image_average_request);
         }
         else {
             // wait for queue to be empty
@@ -751,6 +1158,13 @@ public class ImageSaver extends Thread {
         if( MyDebug.LOG )
             Log.d(TAG, "flushImageBatch");
         // aside from resetting the state, this allows the allocated JPEG data to be garbage collected
+        if( pending_image_average_request != null && pending_image_average_request.avg_accumulator != null ) {
+            // if any frames are still in the queue, the last of them will release the accumulator's resources
+            pending_image_average_request.avg_accumulator.cancel();
+        }
+        if( pending_image_average_request != null && pending_image_average_request.panorama_accumulator != null ) {
+            pending_image_average_request.panorama_accumulator.cancelled = true;
+        }
         pending_image_average_request = null;
     }
 
@@ -763,6 +1177,7 @@ public class ImageSaver extends Thread {
                               int suffix_offset,
                               boolean save_expo,
                               List<byte []> jpeg_images,
+                              JpegBufferPool.Buffer jpeg_buffer,
                               RawImage raw_image,
                               boolean image_capture_intent, Uri image_capture_intent_uri,
                               boolean using_camera2,
@@ -815,11 +1230,22 @@ public class ImageSaver extends Thread {
                 custom_tag_copyright,
                 sample_factor);
 
+        if( jpeg_buffer != null ) {
+            if( do_in_background && canPipeline(request) ) {
+                // the save pipeline writes the JPEG directly from the pooled buffer
+                request.jpeg_buffer = jpeg_buffer;
+            }
+            else {
+                // other code paths require an exactly sized array
+                jpeg_images.set(0, jpeg_buffer.copyData());
+                jpeg_buffer.release();
+            }
+        }
+
         if( do_in_background ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "add background request");
-            int cost = computeRequestCost(is_raw, is_raw ? 1 : request.jpeg_images.size());
-            addRequest(request, cost);
+            addRequest(request);
             success = true; // always return true when done in background
         }
         else {
@@ -838,11 +1264,13 @@ public class ImageSaver extends Thread {
         return success;
     }
 
-    /** Adds a request to the background queue, blocking if the queue is already full
+    /** Adds a request to the background queue, blocking if the queue is already full (i.e., if the
+     *  total cost of the requests still to save would exceed the queue budget).
      */
-    private void addRequest(Request request, int cost) {
+    private void addRequest(Request request) {
+        request.cost = computeRequestCost(request.jpeg_images, request.raw_image);
         if( MyDebug.LOG )
-            Log.d(TAG, "addRequest, cost: " + cost);
+            Log.d(TAG, "addRequest, cost: " + request.cost);
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && main_activity.isDestroyed() ) {
             // If the application is being destroyed as a new photo is being taken, it's not safe to continue, e.g., we'll
             // crash if needing to use RenderScript.
@@ -850,85 +1278,54 @@ public class ImageSaver extends Thread {
             Log.e(TAG, "application is destroyed, image lost!");
             return;
         }
-        // this should not be synchronized on "this": BlockingQueue is thread safe, and if it's blocking in queue.put(), we'll hang because
-        // the saver queue will need to synchronize on "this" in order to notifyAll() the main thread
-        boolean done = false;
-        while( !done ) {
-            try {
-                if( MyDebug.LOG )
-                    Log.d(TAG, "ImageSaver thread adding to queue, size: " + queue.size());
-                synchronized( this ) {
-                    // see above for why we don't synchronize the queue.put call
-                    // but we synchronize modification to avoid risk of problems related to compiler optimisation (local caching or reordering)
-                    // also see FindBugs warning due to inconsistent synchronisation
-                    n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
-                    if( request.type != Request.Type.DUMMY )
-                        n_real_images_to_save++;
-
-                    main_activity.runOnUiThread(new Runnable() {
-                        public void run() {
-                            main_activity.imageQueueChanged();
-                        }
-                    });
-                }
-                if( queue.size() + 1 > queue_capacity ) {
-                    Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + queue.size());
-                    test_queue_blocked = true;
-                    //throw new RuntimeException(); // test
+        synchronized( this ) {
+            // update the estimates used for the cost of future photos
+            if( request.type == Request.Type.RAW ) {
+                if( request.cost > 0 )
+                    queue_cost_dng = request.cost;
+            }
+            else if( request.jpeg_images != null && request.jpeg_images.size() > 0 ) {
+                if( request.cost > 0 )
+                    queue_cost_jpeg = request.cost / request.jpeg_images.size();
+            }
+
+            // wait until there is room in the budget; note that wait() releases the lock, so the saver thread can
+            // still synchronize on "this" to finish the current request, and notifyAll() when done
+            if( wouldBlock(n_bytes_to_save, request.cost, queue_budget) ) {
+                Log.e(TAG, "ImageSaver thread is going to block, queue already full: " + n_bytes_to_save + " bytes");
+                test_queue_blocked = true;
+                //throw new RuntimeException(); // test
+            }
+            while( wouldBlock(n_bytes_to_save, request.cost, queue_budget) ) {
+                try {
+                    wait();
                 }
-                queue.put(request); // if queue is full, put() blocks until it isn't full
-                if( MyDebug.LOG ) {
-                    synchronized( this ) { // keep FindBugs happy
-                        Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
-                        Log.d(TAG, "images still to save is now: " + n_images_to_save);
-                        Log.d(TAG, "real images still to save is now: " + n_real_images_to_save);
-                    }
+                catch(InterruptedException e) {
+                    e.printStackTrace();
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "interrupted while trying to add to ImageSaver queue");
                 }
-                done = true;
             }
-            catch(InterruptedException e) {
-                e.printStackTrace();
-                if( MyDebug.LOG )
-                    Log.e(TAG, "interrupted while trying to add to ImageSaver queue");
-            }
-        }
-        if( cost > 0 ) {
-            // add "dummy" requests to simulate the cost
-            for(int i=0;i<cost-1;i++) {
-                addDummyRequest();
+
+            n_images_to_save++; // increment before adding to the queue, just to make sure the main thread doesn't think we're all done
+            n_bytes_to_save += request.cost;
+
+            main_activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    main_activity.imageQueueChanged();
+                }
+            });
+
+            // queue is unbounded, so this won't block
+            queue.add(request);
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "ImageSaver thread added to queue, size is now: " + queue.size());
+                Log.d(TAG, "images still to save is now: " + n_images_to_save);
+                Log.d(TAG, "bytes still to save is now: " + n_bytes_to_save);
             }
         }
     }
 
-    private void addDummyRequest() {
-        Request dummy_request = new Request(Request.Type.DUMMY,
-                Request.ProcessType.NORMAL,
-                false,
-                0,
-                Request.SaveBase.SAVEBASE_NONE,
-                null,
-                null,
-                false, null,
-                false,
-                Request.ImageFormat.STD, 0,
-                false, 0.0, null,
-                false,
-                false,
-                null,
-                null,
-                0,
-                0,
-                1.0f,
-                null, null, 0, 0, null, null, null, null, null, null,
-                false, false, null, false, 0.0,
-                0.0, false,
-                null, null,
-                1);
-        if( MyDebug.LOG )
-            Log.d(TAG, "add dummy request");
-        addRequest(dummy_request, 1); // cost must be 1, so we don't have infinite recursion!
-    }
-
     /** Wait until the queue is empty and all pending images have been saved.
      */
     void waitUntilDone() {
@@ -972,11 +1369,13 @@ public class ImageSaver extends Thread {
     }
 
     /** Loads a single jpeg as a Bitmaps.
+     * @param jpeg_length The length of the jpeg, which may be less than jpeg_image.length (see
+     *                    Request.getJpegLength()).
      * @param mutable Whether the bitmap should be mutable. Note that when converting to bitmaps
      *                for the image post-processing (auto-stabilise etc), in general we need the
      *                bitmap to be mutable (for photostamp to work).
      */
-    private Bitmap loadBitmap(byte [] jpeg_image, boolean mutable, int inSampleSize) {
+    private Bitmap loadBitmap(byte [] jpeg_image, int jpeg_length, boolean mutable, int inSampleSize) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "loadBitmap");
             Log.d(TAG, "mutable?: " + mutable);
@@ -990,7 +1389,7 @@ public class ImageSaver extends Thread {
             // setting is ignored in Android 5 onwards
             options.inPurgeable = true;
         }
-        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_image.length, options);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg_image, 0, jpeg_length, options);
         if( bitmap == null ) {
             Log.e(TAG, "failed to decode bitmap");
         }
@@ -1003,19 +1402,22 @@ public class ImageSaver extends Thread {
         Bitmap bitmap;
         final BitmapFactory.Options options;
         final byte [] jpeg;
-        LoadBitmapThread(BitmapFactory.Options options, byte [] jpeg) {
+        final int jpeg_length;
+        LoadBitmapThread(BitmapFactory.Options options, byte [] jpeg, int jpeg_length) {
             this.options = options;
             this.jpeg = jpeg;
+            this.jpeg_length = jpeg_length;
         }
 
         public void run() {
-            this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+            this.bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg_length, options);
         }
     }
 
     /** Converts the array of jpegs to Bitmaps. The bitmap with index mutable_id will be marked as mutable (or set to -1 to have no mutable bitmaps).
+     *  The jpegs should be from the jpeg_images of the supplied request.
      */
-    private List<Bitmap> loadBitmaps(List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
+    private List<Bitmap> loadBitmaps(Request request, List<byte []> jpeg_images, int mutable_id, int inSampleSize) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "loadBitmaps");
             Log.d(TAG, "mutable_id: " + mutable_id);
@@ -1033,7 +1435,8 @@ public class ImageSaver extends Thread {
         }
         LoadBitmapThread [] threads = new LoadBitmapThread[jpeg_images.size()];
         for(int i=0;i<jpeg_images.size();i++) {
-            threads[i] = new LoadBitmapThread( i==mutable_id ? mutable_options : options, jpeg_images.get(i) );
+            byte [] jpeg = jpeg_images.get(i);
+            threads[i] = new LoadBitmapThread( i==mutable_id ? mutable_options : options, jpeg, request.getJpegLength(jpeg) );
         }
         // start threads
         if( MyDebug.LOG )
@@ -1291,6 +1694,157 @@ public class ImageSaver extends Thread {
         return true;
     }
 
+    /** Processes a frame of a noise reduction batch, see AvgAccumulator. Run in saver thread.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean processAvgFrame(Request request) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processAvgFrame");
+        AvgAccumulator accumulator = request.avg_accumulator;
+        try {
+            if( accumulator.cancelled || accumulator.failed ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "batch was cancelled or failed");
+                accumulator.release();
+                request.jpeg_images.clear();
+                return false;
+            }
+            byte [] jpeg_image = request.jpeg_images.get(0);
+            // we no longer need the JPEG data once merged (for the first frame, the batch request keeps its own reference)
+            request.jpeg_images.clear();
+            return mergeAvgFrame(accumulator, jpeg_image, request.iso, request.zoom_factor);
+        }
+        finally {
+            accumulator.frameDone();
+        }
+    }
+
+    /** Decodes a frame of a noise reduction batch, and merges it into the batch's running average.
+     *  If the merging fails, the running average is freed, and the accumulator is marked as failed.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean mergeAvgFrame(AvgAccumulator accumulator, byte [] jpeg_image, int iso, float zoom_factor) {
+        long time_s = System.currentTimeMillis();
+        if( accumulator.n_frames == 0 ) {
+            accumulator.inSampleSize = hdrProcessor.getAvgSampleSize(iso);
+        }
+        Bitmap new_bitmap = loadBitmap(jpeg_image, jpeg_image.length, false, accumulator.inSampleSize);
+        if( new_bitmap == null ) {
+            Log.e(TAG, "failed to decode frame " + accumulator.n_frames);
+            return false;
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "*** time for loading frame: " + (System.currentTimeMillis() - time_s));
+        }
+
+        try {
+            if( accumulator.n_frames == 0 ) {
+                accumulator.width = new_bitmap.getWidth();
+                accumulator.height = new_bitmap.getHeight();
+                accumulator.first_bitmap = new_bitmap;
+            }
+            else if( accumulator.n_frames == 1 ) {
+                Bitmap first_bitmap = accumulator.first_bitmap;
+                // processAvg recycles both bitmaps
+                accumulator.first_bitmap = null;
+                accumulator.avg_data = hdrProcessor.processAvg(first_bitmap, new_bitmap, 1.0f, iso, zoom_factor);
+            }
+            else {
+                float avg_factor = (float)accumulator.n_frames;
+                hdrProcessor.updateAvg(accumulator.avg_data, accumulator.width, accumulator.height, new_bitmap, avg_factor, iso, zoom_factor);
+                // updateAvg recycles new_bitmap
+            }
+        }
+        catch(HDRProcessorException e) {
+            Log.e(TAG, "HDRProcessorException from merging frame " + accumulator.n_frames + ": " + e.getCode());
+            e.printStackTrace();
+            // the batch will be saved as just the first frame once finished
+            accumulator.failed = true;
+            accumulator.release();
+            return false;
+        }
+        accumulator.n_frames++;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "*** time for merging frame " + (accumulator.n_frames-1) + ": " + (System.currentTimeMillis() - time_s));
+        }
+        return true;
+    }
+
+    /** For testing: merges the supplied JPEGs one at a time, as done for a noise reduction batch
+     *  (see AvgAccumulator), and returns the brightened result, or null if there were fewer than
+     *  two frames, or merging failed. Shouldn't be called whilst the saver thread is processing
+     *  images, as the HDRProcessor isn't thread safe.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap testAvgAccumulator(List<byte []> jpeg_images, int iso, long exposure_time, float zoom_factor) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "testAvgAccumulator");
+        AvgAccumulator accumulator = new AvgAccumulator();
+        for(byte [] jpeg_image : jpeg_images) {
+            mergeAvgFrame(accumulator, jpeg_image, iso, zoom_factor);
+        }
+        Bitmap bitmap = null;
+        if( accumulator.n_frames >= 2 && !accumulator.failed ) {
+            bitmap = hdrProcessor.avgBrighten(accumulator.avg_data.allocation_out, accumulator.width, accumulator.height, iso, exposure_time);
+        }
+        accumulator.release();
+        return bitmap;
+    }
+
+    /** Decodes a frame of a panorama batch, and adds it to the batch's stitcher. See
+     *  PanoramaAccumulator. Run in saver thread.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean processPanoramaFrame(Request request) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "processPanoramaFrame");
+        PanoramaAccumulator accumulator = request.panorama_accumulator;
+        if( accumulator.cancelled || accumulator.failed ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "batch was cancelled or failed");
+            accumulator.release();
+            return false;
+        }
+
+        long time_s = System.currentTimeMillis();
+        byte [] jpeg_image = request.jpeg_images.get(0);
+        Bitmap bitmap = loadBitmap(jpeg_image, jpeg_image.length, false, 1);
+        // the batch request keeps its own reference to the JPEG data
+        request.jpeg_images.clear();
+        if( bitmap == null ) {
+            Log.e(TAG, "failed to decode frame " + accumulator.stitcher.getNFrames());
+            accumulator.failed = true;
+            accumulator.release();
+            return false;
+        }
+        // rotate the bitmap if necessary for exif tags
+        bitmap = rotateForExif(bitmap, accumulator.first_jpeg, accumulator.first_jpeg.length);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "panorama performance: time for loading frame: " + (System.currentTimeMillis() - time_s));
+        }
+
+        try {
+            Bitmap prev_bitmap = panoramaProcessor.addPanoramaFrame(accumulator.stitcher, bitmap, request.panorama_frame_gyro_rotation_matrix);
+            if( prev_bitmap != null ) {
+                prev_bitmap.recycle();
+            }
+            accumulator.last_bitmap = bitmap;
+        }
+        catch(PanoramaProcessorException e) {
+            Log.e(TAG, "PanoramaProcessorException from addPanoramaFrame: " + e.getCode());
+            e.printStackTrace();
+            // the batch will be stitched from the JPEGs once finished, which will report the failure
+            bitmap.recycle();
+            accumulator.failed = true;
+            accumulator.release();
+            return false;
+        }
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "panorama performance: time for adding frame " + (accumulator.stitcher.getNFrames()-1) + ": " + (System.currentTimeMillis() - time_s));
+        }
+        return true;
+    }
+
     /** May be run in saver thread or picture callback thread (depending on whether running in background).
      */
     private boolean saveImageNow(final Request request) {
@@ -1349,7 +1903,30 @@ public class ImageSaver extends Thread {
 				throw new RuntimeException();
 			}*/
             Bitmap nr_bitmap;
-            if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            if( request.avg_accumulator != null ) {
+                // the frames have already been merged as they arrived, see processAvgFrame()
+                AvgAccumulator accumulator = request.avg_accumulator;
+                if( MyDebug.LOG )
+                    Log.d(TAG, "frames merged: " + accumulator.n_frames);
+                if( accumulator.n_frames >= 2 && !accumulator.failed ) {
+                    long time_s = System.currentTimeMillis();
+                    nr_bitmap = hdrProcessor.avgBrighten(accumulator.avg_data.allocation_out, accumulator.width, accumulator.height, request.iso, request.exposure_time);
+                    if( MyDebug.LOG ) {
+                        Log.d(TAG, "*** time for brighten: " + (System.currentTimeMillis() - time_s));
+                    }
+                }
+                else {
+                    // not enough frames to merge (or merging failed), so just save the first
+                    Log.e(TAG, "not enough frames for noise reduction, or merging failed");
+                    nr_bitmap = loadBitmap(request.jpeg_images.get(0), request.getJpegLength(request.jpeg_images.get(0)), true, 1);
+                }
+                accumulator.release();
+                if( nr_bitmap == null ) {
+                    main_activity.savingImage(false);
+                    return false;
+                }
+            }
+            else if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
                 try {
                     long time_s = System.currentTimeMillis();
                     // initialise allocation from first two bitmaps
@@ -1358,10 +1935,10 @@ public class ImageSaver extends Thread {
                     //final boolean use_smp = false;
                     final boolean use_smp = true;
                     // n_smp_images is how many bitmaps to decompress at once if use_smp==true. Beware of setting too high -
-                    // e.g., storing 4 16MP bitmaps takes 256MB of heap (NR requires at least 512MB large heap); also need to make
-                    // sure there isn't a knock on effect on performance
+                    // e.g., storing 4 16MP bitmaps takes 256MB of heap (so we only use 4 with at least 512MB large heap); also
+                    // need to make sure there isn't a knock on effect on performance
                     //final int n_smp_images = 2;
-                    final int n_smp_images = 4;
+                    final int n_smp_images = n_smp_avg_images;
                     long this_time_s = System.currentTimeMillis();
                     List<Bitmap> bitmaps = null;
                     Bitmap bitmap0, bitmap1;
@@ -1382,15 +1959,15 @@ public class ImageSaver extends Thread {
                         for(int j=0;j<n_load;j++) {
                             sub_jpeg_list.add(request.jpeg_images.get(j));
                         }
-                        bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
+                        bitmaps = loadBitmaps(request, sub_jpeg_list, -1, inSampleSize);
                         if( MyDebug.LOG )
                             Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
                         bitmap0 = bitmaps.get(0);
                         bitmap1 = bitmaps.get(1);
                     }
                     else {
-                        bitmap0 = loadBitmap(request.jpeg_images.get(0), false, inSampleSize);
-                        bitmap1 = loadBitmap(request.jpeg_images.get(1), false, inSampleSize);
+                        bitmap0 = loadBitmap(request.jpeg_images.get(0), request.getJpegLength(request.jpeg_images.get(0)), false, inSampleSize);
+                        bitmap1 = loadBitmap(request.jpeg_images.get(1), request.getJpegLength(request.jpeg_images.get(1)), false, inSampleSize);
                     }
                     if( MyDebug.LOG ) {
                         Log.d(TAG, "*** time for loading first bitmaps: " + (System.currentTimeMillis() - this_time_s));
@@ -1436,7 +2013,7 @@ public class ImageSaver extends Thread {
                                 for(int j=i;j<i+n_load;j++) {
                                     sub_jpeg_list.add(request.jpeg_images.get(j));
                                 }
-                                List<Bitmap> new_bitmaps = loadBitmaps(sub_jpeg_list, -1, inSampleSize);
+                                List<Bitmap> new_bitmaps = loadBitmaps(request, sub_jpeg_list, -1, inSampleSize);
                                 bitmaps.addAll(new_bitmaps);
                                 if( MyDebug.LOG )
                                     Log.d(TAG, "length of bitmaps list is now: " + bitmaps.size());
@@ -1444,7 +2021,7 @@ public class ImageSaver extends Thread {
                             }
                         }
                         else {
-                            new_bitmap = loadBitmap(request.jpeg_images.get(i), false, inSampleSize);
+                            new_bitmap = loadBitmap(request.jpeg_images.get(i), request.getJpegLength(request.jpeg_images.get(i)), false, inSampleSize);
                         }
                         if( MyDebug.LOG ) {
                             Log.d(TAG, "*** time for loading extra bitmap: " + (System.currentTimeMillis() - this_time_s));
@@ -1529,7 +2106,7 @@ public class ImageSaver extends Thread {
             int base_bitmap = (request.jpeg_images.size()-1)/2;
             if( MyDebug.LOG )
                 Log.d(TAG, "base_bitmap: " + base_bitmap);
-            List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, base_bitmap, 1);
+            List<Bitmap> bitmaps = loadBitmaps(request, request.jpeg_images, base_bitmap, 1);
             if( bitmaps == null ) {
                 if( MyDebug.LOG )
                     Log.e(TAG, "failed to load bitmaps");
@@ -1689,37 +2266,74 @@ public class ImageSaver extends Thread {
 
             if( MyDebug.LOG )
                 Log.d(TAG, "panorama_dir_left_to_right: " + request.panorama_dir_left_to_right);
-            if( !request.panorama_dir_left_to_right ) {
-                Collections.reverse(request.jpeg_images);
-                // shouldn't use gyro_rotation_matrix from this point, but keep in sync with jpeg_images just in case
-                Collections.reverse(request.gyro_rotation_matrix);
+            PanoramaProcessor.Stitcher stitcher = null;
+            if( request.panorama_accumulator != null ) {
+                // the frames have already been aligned as they arrived, see processPanoramaFrame()
+                PanoramaAccumulator accumulator = request.panorama_accumulator;
+                if( !accumulator.failed && accumulator.stitcher != null && request.panorama_dir_left_to_right && accumulator.stitcher.getNFrames() == request.jpeg_images.size() ) {
+                    stitcher = accumulator.stitcher;
+                }
+                else {
+                    Log.e(TAG, "can't use aligned frames, stitch from the JPEGs instead");
+                }
+                // the stitcher no longer needs the last frame, as the frames are decoded again for rendering
+                accumulator.release();
             }
 
-            List<Bitmap> bitmaps = loadBitmaps(request.jpeg_images, -1, 1);
-            if( bitmaps == null ) {
-                if( MyDebug.LOG )
-                    Log.e(TAG, "failed to load bitmaps");
-                main_activity.savingImage(false);
-                return false;
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "panorama performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
-            }
+            List<Bitmap> bitmaps = null;
+            if( stitcher == null ) {
+                if( !request.panorama_dir_left_to_right ) {
+                    Collections.reverse(request.jpeg_images);
+                    // keep in sync with jpeg_images, as used for the alignment
+                    if( request.gyro_rotation_matrix != null )
+                        Collections.reverse(request.gyro_rotation_matrix);
+                }
 
-            // rotate the bitmaps if necessary for exif tags
-            for(int i=0;i<bitmaps.size();i++) {
-                Bitmap bitmap = bitmaps.get(i);
-                bitmap = rotateForExif(bitmap, request.jpeg_images.get(0));
-                bitmaps.set(i, bitmap);
-            }
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "panorama performance: time after rotating for exif: " + (System.currentTimeMillis() - time_s));
+                bitmaps = loadBitmaps(request, request.jpeg_images, -1, 1);
+                if( bitmaps == null ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "failed to load bitmaps");
+                    main_activity.savingImage(false);
+                    return false;
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "panorama performance: time after decompressing base exposures: " + (System.currentTimeMillis() - time_s));
+                }
+
+                // rotate the bitmaps if necessary for exif tags
+                for(int i=0;i<bitmaps.size();i++) {
+                    Bitmap bitmap = bitmaps.get(i);
+                    bitmap = rotateForExif(bitmap, request.jpeg_images.get(0), request.getJpegLength(request.jpeg_images.get(0)));
+                    bitmaps.set(i, bitmap);
+                }
+                if( MyDebug.LOG ) {
+                    Log.d(TAG, "panorama performance: time after rotating for exif: " + (System.currentTimeMillis() - time_s));
+                }
             }
 
             Bitmap panorama;
             try {
                 if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
-                    panorama = panoramaProcessor.panorama(bitmaps, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop);
+                    if( stitcher != null ) {
+                        final List<byte []> jpeg_images = request.jpeg_images;
+                        panorama = panoramaProcessor.finishPanorama(stitcher, new PanoramaProcessor.FrameSource() {
+                            @Override
+                            public Bitmap getFrame(int i) {
+                                Bitmap bitmap = loadBitmap(jpeg_images.get(i), jpeg_images.get(i).length, false, 1);
+                                if( bitmap == null )
+                                    return null;
+                                return rotateForExif(bitmap, jpeg_images.get(0), jpeg_images.get(0).length);
+                            }
+
+                            @Override
+                            public void releaseFrame(int i, Bitmap bitmap) {
+                                bitmap.recycle();
+                            }
+                        });
+                    }
+                    else {
+                        panorama = panoramaProcessor.panorama(bitmaps, request.gyro_rotation_matrix, MyApplicationInterface.getPanoramaPicsPerScreen(), request.camera_view_angle_y, request.panorama_crop);
+                    }
                 }
                 else {
                     Log.e(TAG, "shouldn't have offered panorama as an option if not on Android 5");
@@ -1729,10 +2343,11 @@ public class ImageSaver extends Thread {
             catch(PanoramaProcessorException e) {
                 Log.e(TAG, "PanoramaProcessorException from panorama: " + e.getCode());
                 e.printStackTrace();
-                if( e.getCode() == PanoramaProcessorException.UNEQUAL_SIZES || e.getCode() == PanoramaProcessorException.FAILED_TO_CROP ) {
+                if( e.getCode() == PanoramaProcessorException.UNEQUAL_SIZES || e.getCode() == PanoramaProcessorException.FAILED_TO_CROP || e.getCode() == PanoramaProcessorException.FAILED_TO_LOAD ) {
                     main_activity.getPreview().showToast(null, R.string.failed_to_process_panorama);
                     Log.e(TAG, "panorama failed: " + e.getCode());
-                    bitmaps.clear();
+                    if( bitmaps != null )
+                        bitmaps.clear();
                     System.gc();
                     main_activity.savingImage(false);
                     return false;
@@ -1747,7 +2362,8 @@ public class ImageSaver extends Thread {
             }
             if( MyDebug.LOG )
                 Log.d(TAG, "panorama: " + panorama);
-            bitmaps.clear();
+            if( bitmaps != null )
+                bitmaps.clear();
             System.gc();
 
 			main_activity.savingImage(false);
@@ -1834,67 +2450,6 @@ public class ImageSaver extends Thread {
         }
     }
 
-    /** Computes the width and height of a centred crop region after having rotated an image.
-     * @param result - Array of length 2 which will be filled with the returned width and height.
-     * @param level_angle_rad_abs - Absolute value of angle of rotation, in radians.
-     * @param w0 - Rotated width.
-     * @param h0 - Rotated height.
-     * @param w1 - Original width.
-     * @param h1 - Original height.
-     * @param max_width - Maximum width to return.
-     * @param max_height - Maximum height to return.
-     * @return - Whether a crop region could be successfully calculated.
-     */
-    public static boolean autoStabiliseCrop(int [] result, double level_angle_rad_abs, double w0, double h0, int w1, int h1, int max_width, int max_height) {
-        boolean ok = false;
-        result[0] = 0;
-        result[1] = 0;
-
-        double tan_theta = Math.tan(level_angle_rad_abs);
-        double sin_theta = Math.sin(level_angle_rad_abs);
-        double denom = ( h0/w0 + tan_theta );
-        double alt_denom = ( w0/h0 + tan_theta );
-        if( denom == 0.0 || denom < 1.0e-14 ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "zero denominator?!");
-        }
-        else if( alt_denom == 0.0 || alt_denom < 1.0e-14 ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "zero alt denominator?!");
-        }
-        else {
-            int w2 = (int)(( h0 + 2.0*h1*sin_theta*tan_theta - w0*tan_theta ) / denom);
-            int h2 = (int)(w2*h0/w0);
-            int alt_h2 = (int)(( w0 + 2.0*w1*sin_theta*tan_theta - h0*tan_theta ) / alt_denom);
-            int alt_w2 = (int)(alt_h2*w0/h0);
-            if( MyDebug.LOG ) {
-                //Log.d(TAG, "h0 " + h0 + " 2.0*h1*sin_theta*tan_theta " + 2.0*h1*sin_theta*tan_theta + " w0*tan_theta " + w0*tan_theta + " / h0/w0 " + h0/w0 + " tan_theta " + tan_theta);
-                Log.d(TAG, "w2 = " + w2 + " , h2 = " + h2);
-                Log.d(TAG, "alt_w2 = " + alt_w2 + " , alt_h2 = " + alt_h2);
-            }
-            if( alt_w2 < w2 ) {
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "chose alt!");
-                }
-                w2 = alt_w2;
-                h2 = alt_h2;
-            }
-            if( w2 <= 0 )
-                w2 = 1;
-            else if( w2 > max_width )
-                w2 = max_width;
-            if( h2 <= 0 )
-                h2 = 1;
-            else if( h2 > max_height )
-                h2 = max_height;
-
-            ok = true;
-            result[0] = w2;
-            result[1] = h2;
-        }
-        return ok;
-    }
-
     /** Performs the auto-stabilise algorithm on the image.
      * @param data The jpeg data.
      * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
@@ -1902,7 +2457,7 @@ public class ImageSaver extends Thread {
      * @param is_front_facing Whether the camera is front-facing.
      * @return A bitmap representing the auto-stabilised jpeg.
      */
-    private Bitmap autoStabilise(byte [] data, Bitmap bitmap, double level_angle, boolean is_front_facing) {
+    private Bitmap autoStabilise(final Request request, byte [] data, Bitmap bitmap, double level_angle, boolean is_front_facing) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "autoStabilise");
             Log.d(TAG, "level_angle: " + level_angle);
@@ -1918,7 +2473,7 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG )
                 Log.d(TAG, "need to decode bitmap to auto-stabilise");
             // bitmap doesn't need to be mutable here, as this won't be the final bitmap returned from the auto-stabilise code
-            bitmap = loadBitmapWithRotation(data, false);
+            bitmap = loadBitmapWithRotation(data, request.getJpegLength(data), false);
             if( bitmap == null ) {
                 main_activity.getPreview().showToast(null, R.string.failed_to_auto_stabilise);
                 System.gc();
@@ -1992,12 +2547,13 @@ public class ImageSaver extends Thread {
             }
 
             int [] crop = new int [2];
-            if( autoStabiliseCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, bitmap.getWidth(), bitmap.getHeight()) ) {
+            if( AutoStabiliseCrop.computeCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, bitmap.getWidth(), bitmap.getHeight()) ) {
                 int w2 = crop[0];
                 int h2 = crop[1];
                 int x0 = (bitmap.getWidth()-w2)/2;
                 int y0 = (bitmap.getHeight()-h2)/2;
                 if( MyDebug.LOG ) {
+                    Log.d(TAG, "w2 = " + w2 + " , h2 = " + h2);
                     Log.d(TAG, "x0 = " + x0 + " , y0 = " + y0);
                 }
                 // We need the bitmap to be mutable for photostamp to work - contrary to the documentation for Bitmap.createBitmap
@@ -2022,7 +2578,7 @@ public class ImageSaver extends Thread {
      * @param bitmap Optional argument - the bitmap if already unpacked from the jpeg data.
      * @return A bitmap representing the mirrored jpeg.
      */
-    private Bitmap mirrorImage(byte [] data, Bitmap bitmap) {
+    private Bitmap mirrorImage(final Request request, byte [] data, Bitmap bitmap) {
         if( MyDebug.LOG ) {
             Log.d(TAG, "mirrorImage");
         }
@@ -2030,7 +2586,7 @@ public class ImageSaver extends Thread {
             if( MyDebug.LOG )
                 Log.d(TAG, "need to decode bitmap to mirror");
             // bitmap doesn't need to be mutable here, as this won't be the final bitmap returned from the mirroring code
-            bitmap = loadBitmapWithRotation(data, false);
+            bitmap = loadBitmapWithRotation(data, request.getJpegLength(data), false);
             if( bitmap == null ) {
                 // don't bother warning to the user - we simply won't mirror the image
                 System.gc();
@@ -2070,7 +2626,7 @@ public class ImageSaver extends Thread {
             if( bitmap == null ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "decode bitmap in order to stamp info");
-                bitmap = loadBitmapWithRotation(data, true);
+                bitmap = loadBitmapWithRotation(data, request.getJpegLength(data), true);
                 if( bitmap == null ) {
                     main_activity.getPreview().showToast(null, R.string.failed_to_stamp);
                     System.gc();
@@ -2258,30 +2814,34 @@ public class ImageSaver extends Thread {
                     // rotate the bitmap if necessary for exif tags
                     if( MyDebug.LOG )
                         Log.d(TAG, "rotate pre-existing bitmap for exif tags?");
-                    bitmap = rotateForExif(bitmap, data);
+                    bitmap = rotateForExif(bitmap, data, request.getJpegLength(data));
                 }
             }
         }
         if( request.do_auto_stabilise ) {
-            bitmap = autoStabilise(data, bitmap, request.level_angle, request.is_front_facing);
+            bitmap = autoStabilise(request, data, bitmap, request.level_angle, request.is_front_facing);
         }
         if( MyDebug.LOG ) {
             Log.d(TAG, "Save single image performance: time after auto-stabilise: " + (System.currentTimeMillis() - time_s));
         }
         if( request.mirror ) {
-            bitmap = mirrorImage(data, bitmap);
+            bitmap = mirrorImage(request, data, bitmap);
         }
         if( request.image_format != Request.ImageFormat.STD && bitmap == null ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "need to decode bitmap to convert file format");
-            bitmap = loadBitmapWithRotation(data, true);
+            bitmap = loadBitmapWithRotation(data, request.getJpegLength(data), true);
             if( bitmap == null ) {
                 // if we can't load bitmap for converting file formats, don't want to continue
                 System.gc();
                 throw new IOException();
             }
         }
-        bitmap = stampImage(request, data, bitmap);
+        // stampImage() uses the shared Paint p (and the application interface's text bounds), so only stamp one
+        // image at a time, as this may be called from multiple threads of the save pipeline
+        synchronized( p ) {
+            bitmap = stampImage(request, data, bitmap);
+        }
         if( MyDebug.LOG ) {
             Log.d(TAG, "Save single image performance: time after photostamp: " + (System.currentTimeMillis() - time_s));
         }
@@ -2320,11 +2880,62 @@ public class ImageSaver extends Thread {
         }
         long time_s = System.currentTimeMillis();
 
-        boolean success = false;
         final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
         boolean raw_only = !ignore_raw_only && applicationInterface.isRawOnly();
         if( MyDebug.LOG )
             Log.d(TAG, "raw_only: " + raw_only);
+
+        main_activity.savingImage(true);
+
+        boolean success = false;
+        boolean post_processed = true;
+        if( !raw_only ) {
+            try {
+                PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap, ignore_exif_orientation);
+                bitmap = postProcessBitmapResult.bitmap;
+            }
+            catch(IOException e) {
+                if( MyDebug.LOG )
+                    Log.e(TAG, "I/O error post-processing image: " + e.getMessage());
+                e.printStackTrace();
+                main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
+                post_processed = false;
+            }
+        }
+
+        if( post_processed ) {
+            success = writeSingleImageNow(request, data, bitmap, null, filename_suffix, update_thumbnail, share_image, raw_only, time_s);
+        }
+        else {
+            if( bitmap != null ) {
+                bitmap.recycle();
+            }
+            System.gc();
+        }
+
+        main_activity.savingImage(false);
+
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "Save single image performance: total time: " + (System.currentTimeMillis() - time_s));
+        }
+        return success;
+    }
+
+    /** Writes an image that has already been post-processed: creates the file, writes the data,
+     *  sets the Exif tags, broadcasts/updates the media store, and updates the thumbnail. The
+     *  bitmap (if non-null) is recycled.
+     *  @param bitmap - The post-processed bitmap, or null to save data unchanged.
+     *  @param encoded_data - If non-null, the bitmap already compressed with encodeBitmap(), which
+     *                      is written instead of compressing the bitmap again.
+     *  @param raw_only - Whether RAW Only is set, in which case the JPEG is not saved.
+     *  See saveSingleImageNow() for the other parameters.
+     */
+    private boolean writeSingleImageNow(final Request request, byte [] data, Bitmap bitmap, byte [] encoded_data, String filename_suffix, boolean update_thumbnail, boolean share_image, boolean raw_only, long time_s) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "writeSingleImageNow");
+
+        boolean success = false;
+        final MyApplicationInterface applicationInterface = main_activity.getApplicationInterface();
         StorageUtils storageUtils = main_activity.getStorageUtils();
 
         String extension;
@@ -2342,21 +2953,13 @@ public class ImageSaver extends Thread {
         if( MyDebug.LOG )
             Log.d(TAG, "extension: " + extension);
 
-        main_activity.savingImage(true);
-
         // If using SAF or image_capture_intent is true, or using scoped storage, only saveUri is non-null
         // Otherwise, only picFile is non-null
         File picFile = null;
         Uri saveUri = null;
         boolean use_media_store = false;
-        GeekCamera2Trace.beginSection(GeekCamera2Trace.GC2_CAPTURE_INSERT_DB);
         ContentValues contentValues = null; // used if using scoped storage
         try {
-            if( !raw_only ) {
-                PostProcessBitmapResult postProcessBitmapResult = postProcessBitmap(request, data, bitmap, ignore_exif_orientation);
-                bitmap = postProcessBitmapResult.bitmap;
-            }
-
             if( raw_only ) {
                 // don't save the JPEG
                 success = true;
@@ -2381,7 +2984,7 @@ public class ImageSaver extends Thread {
                         if( MyDebug.LOG )
                             Log.d(TAG, "create bitmap");
                         // bitmap we return doesn't need to be mutable
-                        bitmap = loadBitmapWithRotation(data, false);
+                        bitmap = loadBitmapWithRotation(data, request.getJpegLength(data), false);
                     }
                     if( bitmap != null ) {
                         int width = bitmap.getWidth();
@@ -2446,8 +3049,13 @@ public class ImageSaver extends Thread {
                     contentValues.put(MediaStore.Images.Media.IS_PENDING, 1);
                 }
 
-                saveUri = main_activity.getContentResolver().insert(folder, contentValues);
-                GeekCamera2Trace.endSection();
+                GeekCamera2Trace.beginSection(GeekCamera2Trace.GC2_CAPTURE_INSERT_DB);
+                try {
+                    saveUri = main_activity.getContentResolver().insert(folder, contentValues);
+                }
+                finally {
+                    GeekCamera2Trace.endSection();
+                }
                 if( MyDebug.LOG )
                     Log.d(TAG, "saveUri: " + saveUri);
                 if( saveUri == null ) {
@@ -2465,37 +3073,34 @@ public class ImageSaver extends Thread {
 
             if( picFile != null || saveUri != null ) {
                 GeekCamera2Trace.beginSection(GeekCamera2Trace.GC2_CAPTURE_SAVE_JPEG);
-                OutputStream outputStream;
-                if( picFile != null )
-                    outputStream = new FileOutputStream(picFile);
-                else
-                    outputStream = main_activity.getContentResolver().openOutputStream(saveUri);
                 try {
-                    if( bitmap != null ) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "compress bitmap, quality " + request.image_quality);
-                        Bitmap.CompressFormat compress_format;
-                        switch( request.image_format ) {
-                            case WEBP:
-                                compress_format = Bitmap.CompressFormat.WEBP;
-                                break;
-                            case PNG:
-                                compress_format = Bitmap.CompressFormat.PNG;
-                                break;
-                            default:
-                                compress_format = Bitmap.CompressFormat.JPEG;
-                                break;
+                    OutputStream outputStream;
+                    if( picFile != null )
+                        outputStream = new FileOutputStream(picFile);
+                    else
+                        outputStream = main_activity.getContentResolver().openOutputStream(saveUri);
+                    try {
+                        if( encoded_data != null ) {
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "write already compressed bitmap");
+                            outputStream.write(encoded_data);
+                        }
+                        else if( bitmap != null ) {
+                            if( MyDebug.LOG )
+                                Log.d(TAG, "compress bitmap, quality " + request.image_quality);
+                            bitmap.compress(getCompressFormat(request.image_format), request.image_quality, outputStream);
+                        }
+                        else {
+                            outputStream.write(data, 0, request.getJpegLength(data));
                         }
-                        bitmap.compress(compress_format, request.image_quality, outputStream);
                     }
-                    else {
-                        outputStream.write(data);
+                    finally {
+                        outputStream.close();
                     }
                 }
                 finally {
-                    outputStream.close();
+                    GeekCamera2Trace.endSection();
                 }
-                GeekCamera2Trace.endSection();
                 if( MyDebug.LOG )
                     Log.d(TAG, "saveImageNow saved photo");
                 if( MyDebug.LOG ) {
@@ -2571,8 +3176,12 @@ public class ImageSaver extends Thread {
                             contentValues.clear();
                             contentValues.put(MediaStore.Images.Media.IS_PENDING, 0);
                             GeekCamera2Trace.beginSection(GeekCamera2Trace.GC2_CAPTURE_UPDATE_DB);
-                            main_activity.getContentResolver().update(saveUri, contentValues, null, null);
-                            GeekCamera2Trace.endSection();
+                            try {
+                                main_activity.getContentResolver().update(saveUri, contentValues, null, null);
+                            }
+                            finally {
+                                GeekCamera2Trace.endSection();
+                            }
                         }
 
                         // no need to broadcast when using mediastore method
@@ -2623,6 +3232,10 @@ public class ImageSaver extends Thread {
             main_activity.getPreview().showToast(null, R.string.failed_to_save_photo);
         }
 
+        // the photo is now saved (or failed to save) - for bursts, this records the time until the first image is saved
+        GeekCamera2Trace.endAsyncSection(GeekCamera2Trace.GC2_CAPTURE_SHUTTER_2_SAVED, 0);
+        GeekCamera2Trace.flush();
+
         if( raw_only ) {
             // no saved image to record
         }
@@ -2659,7 +3272,7 @@ public class ImageSaver extends Thread {
                 }
                 options.inSampleSize = sample_size;
                 GeekCamera2Trace.beginSection(GeekCamera2Trace.GC2_CAPTURE_DECODE_BITMAP_THUMBNAIL);
-                thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                thumbnail = BitmapFactory.decodeByteArray(data, 0, request.getJpegLength(data), options);
                 GeekCamera2Trace.endSection();
                 if( MyDebug.LOG ) {
                     Log.d(TAG, "thumbnail width: " + thumbnail.getWidth());
@@ -2668,7 +3281,7 @@ public class ImageSaver extends Thread {
                 // now get the rotation from the Exif data
                 if( MyDebug.LOG )
                     Log.d(TAG, "rotate thumbnail for exif tags?");
-                thumbnail = rotateForExif(thumbnail, data);
+                thumbnail = rotateForExif(thumbnail, data, request.getJpegLength(data));
             }
             else {
                 int width = bitmap.getWidth();
@@ -2722,12 +3335,29 @@ public class ImageSaver extends Thread {
 
         System.gc();
 
-        main_activity.savingImage(false);
+        return success;
+    }
 
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "Save single image performance: total time: " + (System.currentTimeMillis() - time_s));
+    private static Bitmap.CompressFormat getCompressFormat(Request.ImageFormat image_format) {
+        switch( image_format ) {
+            case WEBP:
+                return Bitmap.CompressFormat.WEBP;
+            case PNG:
+                return Bitmap.CompressFormat.PNG;
+            default:
+                return Bitmap.CompressFormat.JPEG;
         }
-        return success;
+    }
+
+    /** Compresses the post-processed bitmap to the request's image format, for the encode stage of
+     *  the save pipeline.
+     */
+    private static byte [] encodeBitmap(Request request, Bitmap bitmap) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "encodeBitmap, quality " + request.image_quality);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        bitmap.compress(getCompressFormat(request.image_format), request.image_quality, outputStream);
+        return outputStream.toByteArray();
     }
 
     /** As setExifFromFile, but can read the Exif tags directly from the jpeg data rather than a file.
@@ -2739,7 +3369,7 @@ public class ImageSaver extends Thread {
         }
         InputStream inputStream = null;
         try {
-            inputStream = new ByteArrayInputStream(data);
+            inputStream = new ByteArrayInputStream(data, 0, request.getJpegLength(data));
             ExifInterface exif = new ExifInterface(inputStream);
             ExifInterface exif_new = new ExifInterface(to_file.getAbsolutePath());
             setExif(request, exif, exif_new);
@@ -2767,7 +3397,7 @@ public class ImageSaver extends Thread {
         }
         InputStream inputStream = null;
         try {
-            inputStream = new ByteArrayInputStream(data);
+            inputStream = new ByteArrayInputStream(data, 0, request.getJpegLength(data));
             ExifInterface exif = new ExifInterface(inputStream);
             ExifInterface exif_new = new ExifInterface(to_file_descriptor);
             setExif(request, exif, exif_new);
@@ -3226,8 +3856,9 @@ public class ImageSaver extends Thread {
      *  rotation is required, the input bitmap is returned. If rotation is required, the input
      *  bitmap is recycled.
      * @param data Jpeg data containing the Exif information to use.
+     * @param jpeg_length The length of the jpeg held in data.
      */
-    private Bitmap rotateForExif(Bitmap bitmap, byte [] data) {
+    private Bitmap rotateForExif(Bitmap bitmap, byte [] data, int jpeg_length) {
         if( MyDebug.LOG )
             Log.d(TAG, "rotateForExif");
         InputStream inputStream = null;
@@ -3236,7 +3867,7 @@ public class ImageSaver extends Thread {
 
             if( MyDebug.LOG )
                 Log.d(TAG, "use data stream to read exif tags");
-            inputStream = new ByteArrayInputStream(data);
+            inputStream = new ByteArrayInputStream(data, 0, jpeg_length);
             exif = new ExifInterface(inputStream);
 
             int exif_orientation_s = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
@@ -3311,16 +3942,17 @@ public class ImageSaver extends Thread {
     /** Loads the bitmap from the supplied jpeg data, rotating if necessary according to the
      *  supplied EXIF orientation tag.
      * @param data The jpeg data.
+     * @param jpeg_length The length of the jpeg held in data.
      * @param mutable Whether to create a mutable bitmap.
      * @return A bitmap representing the correctly rotated jpeg.
      */
-    private Bitmap loadBitmapWithRotation(byte [] data, boolean mutable) {
-        Bitmap bitmap = loadBitmap(data, mutable, 1);
+    private Bitmap loadBitmapWithRotation(byte [] data, int jpeg_length, boolean mutable) {
+        Bitmap bitmap = loadBitmap(data, jpeg_length, mutable, 1);
         if( bitmap != null ) {
             // rotate the bitmap if necessary for exif tags
             if( MyDebug.LOG )
                 Log.d(TAG, "rotate bitmap for exif tags?");
-            bitmap = rotateForExif(bitmap, data);
+            bitmap = rotateForExif(bitmap, data, jpeg_length);
         }
         return bitmap;
     }
@@ -0,0 +1,107 @@
+package com.deepinout.geekcamera;
+
+import java.util.Locale;
+
+/** A TraceRecorder.Sink that writes the events in the JSON trace event format (as read by
+ *  chrome://tracing or Perfetto), with timestamps in microseconds.
+ *  At most max_events are kept, so that leaving the sink attached can't use unbounded memory;
+ *  later events are counted but not written.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class JsonTraceSink implements TraceRecorder.Sink {
+    private final int max_events;
+    private final StringBuilder events = new StringBuilder();
+    private int n_events;
+    private int n_skipped;
+
+    public JsonTraceSink(int max_events) {
+        this.max_events = max_events;
+    }
+
+    private static void appendString(StringBuilder builder, String string) {
+        builder.append('"');
+        for(int i=0;i<string.length();i++) {
+            char ch = string.charAt(i);
+            if( ch == '"' || ch == '\\' ) {
+                builder.append('\\').append(ch);
+            }
+            else if( ch < 0x20 ) {
+                builder.append(String.format(Locale.US, "\\u%04x", (int)ch));
+            }
+            else {
+                builder.append(ch);
+            }
+        }
+        builder.append('"');
+    }
+
+    private static void appendMicroseconds(StringBuilder builder, long time_ns) {
+        // keep nanosecond precision, as a fractional number of microseconds
+        if( time_ns < 0 ) {
+            builder.append('-');
+            time_ns = -time_ns;
+        }
+        builder.append(time_ns / 1000).append('.');
+        long fraction = time_ns % 1000;
+        if( fraction < 100 )
+            builder.append('0');
+        if( fraction < 10 )
+            builder.append('0');
+        builder.append(fraction);
+    }
+
+    private boolean startEvent(String name, String phase, long thread_id, long timestamp_ns) {
+        if( n_events >= max_events ) {
+            n_skipped++;
+            return false;
+        }
+        if( n_events > 0 )
+            events.append(",\n");
+        n_events++;
+        events.append("{\"name\":");
+        appendString(events, name);
+        events.append(",\"ph\":\"").append(phase).append("\",\"pid\":0,\"tid\":").append(thread_id);
+        events.append(",\"ts\":");
+        appendMicroseconds(events, timestamp_ns);
+        return true;
+    }
+
+    @Override
+    public synchronized void onSpan(String name, long thread_id, long start_ns, long end_ns) {
+        if( startEvent(name, "X", thread_id, start_ns) ) {
+            events.append(",\"dur\":");
+            appendMicroseconds(events, end_ns - start_ns);
+            events.append('}');
+        }
+    }
+
+    @Override
+    public synchronized void onCounter(String name, long thread_id, long timestamp_ns, long value) {
+        if( startEvent(name, "C", thread_id, timestamp_ns) ) {
+            events.append(",\"args\":{\"value\":").append(value).append("}}");
+        }
+    }
+
+    public synchronized int getNEvents() {
+        return n_events;
+    }
+
+    /** Returns the number of events not written, due to max_events being reached.
+     */
+    public synchronized int getNSkipped() {
+        return n_skipped;
+    }
+
+    /** Returns the JSON document for the events received so far.
+     */
+    public synchronized String getJson() {
+        return "{\"traceEvents\":[\n" + events + "\n],\"displayTimeUnit\":\"ns\"}\n";
+    }
+
+    public synchronized void clear() {
+        events.setLength(0);
+        n_events = 0;
+        n_skipped = 0;
+    }
+}
@@ -0,0 +1,316 @@
+package com.deepinout.geekcamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Pure Java implementation of the median threshold bitmap (MTB) alignment done by create_mtb.rs
+ *  and align_mtb.rs, so it can be run and tested on a plain JVM.
+ *  The threshold and exclusion bitmaps are packed 64 pixels to a long, and the error for an offset
+ *  is computed with XOR and Long.bitCount(). Rather than sampling every step_size'th pixel of the
+ *  full resolution bitmaps (as align_mtb.rs does), the greyscale image is downscaled into a
+ *  pyramid, with a bitmap for each level; at each level, the 9 candidate offsets are tested in
+ *  parallel on a ForkJoinPool.
+ */
+public class MTBAligner {
+    public static final int min_diff_c = 4; // should be same value as in create_mtb.rs/create_mtb()
+    private static final int min_level_size_c = 8; // don't align at levels smaller than this, instead use a finer level
+
+    /** The median threshold bitmaps for an image, at each level of a pyramid. Level 0 is the full
+     *  resolution; each level is half the width and height of the previous.
+     *  For each level, bit x%64 of word (y*words_per_row + x/64) represents pixel (x, y). A threshold
+     *  bit is set if the pixel is brighter than the median; an exclusion bit is set if the pixel is
+     *  far enough from the median to be counted (i.e., not noise).
+     */
+    public static class MTBPyramid {
+        final int n_levels;
+        final int [] widths;
+        final int [] heights;
+        final int [] words_per_row;
+        final long [][] threshold;
+        final long [][] exclusion;
+
+        MTBPyramid(int n_levels) {
+            this.n_levels = n_levels;
+            this.widths = new int[n_levels];
+            this.heights = new int[n_levels];
+            this.words_per_row = new int[n_levels];
+            this.threshold = new long[n_levels][];
+            this.exclusion = new long[n_levels][];
+        }
+
+        public int getNLevels() {
+            return n_levels;
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    public MTBAligner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public MTBAligner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Converts n ARGB pixels to greyscale, using the maximum of the colour components (as
+     *  create_mtb.rs does), writing them to grey starting at grey_offset.
+     */
+    public static void createGreyscale(int [] pixels, int n, byte [] grey, int grey_offset) {
+        for(int i=0;i<n;i++) {
+            int color = pixels[i];
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = color & 0xff;
+            grey[grey_offset+i] = (byte)Math.max(r, Math.max(g, b));
+        }
+    }
+
+    /** Returns the initial step size for the supplied image size, i.e., the smallest power of 2
+     *  that's at least the largest offset we expect to need. The maximum offset found by align() is
+     *  one less than this. This is the same as computed by HDRProcessor.autoAlignment().
+     * @param max_dim The larger of the width and height of the full image (not the cropped region
+     *                being aligned).
+     */
+    public static int getInitialStepSize(int max_dim, int max_align_scale) {
+        int max_ideal_size = (max_align_scale * max_dim) / 150;
+        int initial_step_size = 1;
+        while( initial_step_size < max_ideal_size ) {
+            initial_step_size *= 2;
+        }
+        return initial_step_size;
+    }
+
+    /** Returns the number of pyramid levels needed by align() for the supplied initial_step_size.
+     */
+    public static int getNLevels(int initial_step_size) {
+        int n_levels = 1;
+        while( (2 << n_levels) <= initial_step_size ) {
+            n_levels++;
+        }
+        return n_levels;
+    }
+
+    /** Creates the pyramid of median threshold bitmaps for a greyscale image.
+     * @param grey         The greyscale image, width*height values (see createGreyscale()).
+     * @param median_value The median brightness of the image.
+     * @param n_levels     The number of levels to create, see getNLevels().
+     */
+    public static MTBPyramid createPyramid(byte [] grey, int width, int height, int median_value, int n_levels) {
+        // avoid too low/high median_values, otherwise we'll detect dark or light pixels as "noisy" - needed for testHDR61
+        median_value = Math.max(median_value, min_diff_c+1);
+        median_value = Math.min(median_value, 255-(min_diff_c+1));
+
+        MTBPyramid pyramid = new MTBPyramid(n_levels);
+        byte [] level_grey = grey;
+        int level_width = width;
+        int level_height = height;
+        for(int level=0;level<n_levels;level++) {
+            if( level > 0 ) {
+                // downscale by 2, averaging each 2x2 block
+                int new_width = Math.max(level_width/2, 1);
+                int new_height = Math.max(level_height/2, 1);
+                byte [] new_grey = new byte[new_width*new_height];
+                for(int y=0;y<new_height;y++) {
+                    int y0 = Math.min(2*y, level_height-1);
+                    int y1 = Math.min(2*y+1, level_height-1);
+                    for(int x=0;x<new_width;x++) {
+                        int x0 = Math.min(2*x, level_width-1);
+                        int x1 = Math.min(2*x+1, level_width-1);
+                        int sum = (level_grey[y0*level_width+x0] & 0xff) + (level_grey[y0*level_width+x1] & 0xff)
+                                + (level_grey[y1*level_width+x0] & 0xff) + (level_grey[y1*level_width+x1] & 0xff);
+                        new_grey[y*new_width+x] = (byte)((sum+2) >> 2);
+                    }
+                }
+                level_grey = new_grey;
+                level_width = new_width;
+                level_height = new_height;
+            }
+
+            int words_per_row = (level_width+63) >> 6;
+            long [] threshold = new long[words_per_row*level_height];
+            long [] exclusion = new long[words_per_row*level_height];
+            for(int y=0;y<level_height;y++) {
+                int row = y*level_width;
+                int word_row = y*words_per_row;
+                for(int x=0;x<level_width;x++) {
+                    int value = level_grey[row+x] & 0xff;
+                    long bit = 1L << (x & 63);
+                    int word = word_row + (x >> 6);
+                    if( value > median_value )
+                        threshold[word] |= bit;
+                    // ignore small differences to reduce effect of noise
+                    if( Math.abs(value - median_value) > min_diff_c )
+                        exclusion[word] |= bit;
+                }
+            }
+            pyramid.widths[level] = level_width;
+            pyramid.heights[level] = level_height;
+            pyramid.words_per_row[level] = words_per_row;
+            pyramid.threshold[level] = threshold;
+            pyramid.exclusion[level] = exclusion;
+        }
+        return pyramid;
+    }
+
+    /** Returns the 64 bits for pixels [start, start+64) of a row; pixels outside of the row are 0.
+     */
+    private static long getBits(long [] bits, int row_offset, int words_per_row, int start) {
+        int word = start >> 6; // rounds towards negative infinity
+        int bit = start & 63;
+        long lo = ( word >= 0 && word < words_per_row ) ? bits[row_offset+word] : 0;
+        if( bit == 0 )
+            return lo;
+        long hi = ( word+1 >= 0 && word+1 < words_per_row ) ? bits[row_offset+word+1] : 0;
+        return (lo >>> bit) | (hi << (64-bit));
+    }
+
+    /** Returns the number of differing (non-excluded) pixels between pyramid0 and pyramid1 at the
+     *  supplied level, comparing pixel (x, y) of pyramid0 with (x+off_x, y+off_y) of pyramid1, for
+     *  x in [x0, x1) and y in [y0, y1).
+     */
+    public static long computeError(MTBPyramid pyramid0, MTBPyramid pyramid1, int level, int off_x, int off_y, int x0, int x1, int y0, int y1) {
+        final int words_per_row = pyramid0.words_per_row[level];
+        final long [] threshold0 = pyramid0.threshold[level];
+        final long [] exclusion0 = pyramid0.exclusion[level];
+        final long [] threshold1 = pyramid1.threshold[level];
+        final long [] exclusion1 = pyramid1.exclusion[level];
+        final int word0 = x0 >> 6;
+        final int word1 = (x1-1) >> 6;
+        long error = 0;
+        for(int y=y0;y<y1;y++) {
+            int row0 = y*words_per_row;
+            int row1 = (y+off_y)*words_per_row;
+            for(int w=word0;w<=word1;w++) {
+                int wx = w << 6;
+                long mask = -1L;
+                if( wx < x0 )
+                    mask &= -1L << (x0 - wx);
+                if( wx + 64 > x1 )
+                    mask &= -1L >>> (wx + 64 - x1);
+                long t1 = getBits(threshold1, row1, words_per_row, wx + off_x);
+                long e1 = getBits(exclusion1, row1, words_per_row, wx + off_x);
+                long diff = (threshold0[row0+w] ^ t1) & exclusion0[row0+w] & e1 & mask;
+                error += Long.bitCount(diff);
+            }
+        }
+        return error;
+    }
+
+    /** Computes the errors for the 9 offsets (off_x+dx*step, off_y+dy*step) for dx, dy in
+     *  {-1, 0, 1}, in parallel.
+     */
+    private static class CandidatesTask extends RecursiveAction {
+        private final MTBPyramid pyramid0;
+        private final MTBPyramid pyramid1;
+        private final int level;
+        private final int off_x, off_y;
+        private final int step;
+        private final int candidate; // -1 for the parent task
+        private final long [] errors;
+
+        CandidatesTask(MTBPyramid pyramid0, MTBPyramid pyramid1, int level, int off_x, int off_y, int step, int candidate, long [] errors) {
+            this.pyramid0 = pyramid0;
+            this.pyramid1 = pyramid1;
+            this.level = level;
+            this.off_x = off_x;
+            this.off_y = off_y;
+            this.step = step;
+            this.candidate = candidate;
+            this.errors = errors;
+        }
+
+        @Override
+        protected void compute() {
+            if( candidate == -1 ) {
+                CandidatesTask [] tasks = new CandidatesTask[9];
+                for(int j=0;j<9;j++) {
+                    tasks[j] = new CandidatesTask(pyramid0, pyramid1, level, off_x, off_y, step, j, errors);
+                }
+                invokeAll(tasks);
+                return;
+            }
+            int width = pyramid0.widths[level];
+            int height = pyramid0.heights[level];
+            // only compare over the region where all 9 candidates are inside pyramid1, so the errors
+            // are computed over the same pixels (as align_mtb.rs does)
+            int x0 = Math.max(0, step - off_x);
+            int x1 = Math.min(width, width - step - off_x);
+            int y0 = Math.max(0, step - off_y);
+            int y1 = Math.min(height, height - step - off_y);
+            int dx = (candidate % 3) - 1;
+            int dy = (candidate / 3) - 1;
+            errors[candidate] = computeError(pyramid0, pyramid1, level, off_x + dx*step, off_y + dy*step, x0, x1, y0, y1);
+        }
+    }
+
+    /** Whether there's any region where all 9 candidates of CandidatesTask are inside the image.
+     */
+    private static boolean hasCandidatesRegion(MTBPyramid pyramid, int level, int off_x, int off_y, int step) {
+        int width = pyramid.widths[level];
+        int height = pyramid.heights[level];
+        return Math.min(width, width - step - off_x) > Math.max(0, step - off_x) &&
+                Math.min(height, height - step - off_y) > Math.max(0, step - off_y);
+    }
+
+    /** Computes the offsets of each image relative to the image base_index, such that pixel
+     *  (x+offsets_x[i], y+offsets_y[i]) of image i corresponds to pixel (x, y) of the base image.
+     *  This has the same contract as HDRProcessor.autoAlignment(): offsets are found by halving the
+     *  step size from initial_step_size down to min_step_size, at each step moving the offset by
+     *  -step_size, 0 or +step_size in each direction, whichever gives the lowest error.
+     * @param pyramids Pyramids with at least getNLevels(initial_step_size) levels. A null entry
+     *                 means that image isn't suitable for alignment, and its offsets are left as 0
+     *                 (if the base image is null, all offsets are 0).
+     * @param min_step_size Should be a power of 2.
+     */
+    public void align(int [] offsets_x, int [] offsets_y, MTBPyramid [] pyramids, int base_index, int initial_step_size, int min_step_size) {
+        for(int i=0;i<offsets_x.length;i++) {
+            offsets_x[i] = 0;
+            offsets_y[i] = 0;
+        }
+        MTBPyramid base = pyramids[base_index];
+        if( base == null ) {
+            return;
+        }
+        long [] errors = new long[9];
+        for(int i=0;i<pyramids.length;i++) {
+            if( i == base_index || pyramids[i] == null ) {
+                continue;
+            }
+            int step_size = initial_step_size;
+            while( step_size > min_step_size ) {
+                step_size /= 2;
+                // the level where step_size is 1 pixel
+                int level = 0;
+                while( (1 << (level+1)) <= step_size ) {
+                    level++;
+                }
+                // if that level is too small (or wasn't created), test the offsets at the coarsest level
+                // that is large enough instead, where step_size is more than 1 pixel
+                while( level > 0 && ( level >= base.n_levels || base.widths[level] < min_level_size_c || base.heights[level] < min_level_size_c ) ) {
+                    level--;
+                }
+                int step = step_size >> level;
+                // offsets so far are multiples of 2*step_size, so exactly representable at this level
+                int off_x = offsets_x[i] >> level;
+                int off_y = offsets_y[i] >> level;
+                if( !hasCandidatesRegion(base, level, off_x, off_y, step) ) {
+                    // offset is too large for the image
+                    continue;
+                }
+                pool.invoke(new CandidatesTask(base, pyramids[i], level, off_x, off_y, step, -1, errors));
+
+                int best_id = -1;
+                long best_error = -1;
+                for(int j=0;j<9;j++) {
+                    if( best_id == -1 || errors[j] < best_error ) {
+                        best_error = errors[j];
+                        best_id = j;
+                    }
+                }
+                offsets_x[i] += ((best_id % 3) - 1) * step_size;
+                offsets_y[i] += ((best_id / 3) - 1) * step_size;
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.deepinout.geekcamera;
 
+import com.deepinout.geekcamera.cameracontroller.CameraCharacteristicsCache;
 import com.deepinout.geekcamera.cameracontroller.CameraController;
 import com.deepinout.geekcamera.cameracontroller.CameraControllerManager;
 import com.deepinout.geekcamera.cameracontroller.CameraControllerManager2;
@@ -20,6 +21,9 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.Manifest;
 import android.app.Notification;
@@ -130,6 +134,11 @@ public class MainActivity extends Activity {
     private GestureDetector gestureDetector;
     private boolean screen_is_locked; // whether screen is "locked" - this is Open Camera's own lock to guard against accidental presses, not the standard Android lock
     private final Map<Integer, Bitmap> preloaded_bitmap_resources = new Hashtable<>();
+    private ExecutorService startup_executor;
+    private StartupOrchestrator startup_orchestrator;
+    private boolean startup_complete; // whether the startup timeline has been completed, see cameraSetup()
+    private StartupOrchestrator.Task<Void> init_sensors_task; // null once joined, see waitForSensors()
+    private StartupOrchestrator.Task<Void> preload_icons_task; // null once joined, see waitForPreloadedIcons()
     private ValueAnimator gallery_save_anim;
     private boolean last_continuous_fast_burst; // whether the last photo operation was a continuous_fast_burst
 
@@ -206,6 +215,22 @@ public class MainActivity extends Activity {
             Log.d(TAG, "onCreate: " + this);
             debug_time = System.currentTimeMillis();
         }
+        // enough threads for the camera features snapshot loading, camera opening, sensor lookup and icon preloading to run
+        // in parallel
+        startup_executor = Executors.newFixedThreadPool(4);
+        startup_orchestrator = new StartupOrchestrator(startup_executor);
+        if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ) {
+            // read the persisted camera features snapshot in the background, before it's first needed by
+            // CameraControllerManager2 (see initCamera2Support())
+            final Context context = getApplicationContext();
+            startup_orchestrator.submit("load_camera_snapshot", new Callable<Void>() {
+                @Override
+                public Void call() {
+                    CameraCharacteristicsCache.getInstance().loadSnapshot(context);
+                    return null;
+                }
+            });
+        }
         activity_count++;
         if( MyDebug.LOG )
             Log.d(TAG, "activity_count: " + activity_count);
@@ -220,6 +245,7 @@ public class MainActivity extends Activity {
 
         setContentView(R.layout.activity_main);
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false); // initialise any unset preferences to their default values
+        startup_orchestrator.checkpoint("preference_defaults");
         if( MyDebug.LOG )
             Log.d(TAG, "onCreate: time after setting default preference values: " + (System.currentTimeMillis() - debug_time));
 
@@ -275,6 +301,7 @@ public class MainActivity extends Activity {
         mainUI = new MainUI(this);
         manualSeekbars = new ManualSeekbars();
         applicationInterface = new MyApplicationInterface(this, savedInstanceState);
+        startup_orchestrator.checkpoint("application_interface");
         if( MyDebug.LOG )
             Log.d(TAG, "onCreate: time after creating application interface: " + (System.currentTimeMillis() - debug_time));
         textFormatter = new TextFormatter(this);
@@ -300,35 +327,33 @@ public class MainActivity extends Activity {
         if( MyDebug.LOG )
             Log.d(TAG, "onCreate: time after updating folder history: " + (System.currentTimeMillis() - debug_time));
 
-        // set up sensors
-        mSensorManager = (SensorManager)getSystemService(Context.SENSOR_SERVICE);
-
-        // accelerometer sensor (for device orientation)
-        if( mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null ) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "found accelerometer");
-            mSensorAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        }
-        else {
-            if( MyDebug.LOG )
-                Log.d(TAG, "no support for accelerometer");
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after creating accelerometer sensor: " + (System.currentTimeMillis() - debug_time));
-
-        // magnetic sensor (for compass direction)
-        magneticSensor.initSensor(mSensorManager);
+        // set up sensors - looking these up can be slow, and they aren't needed until they're registered in onResume(),
+        // so do this in the background
+        init_sensors_task = startup_orchestrator.submit("init_sensors", new Callable<Void>() {
+            @Override
+            public Void call() {
+                initSensors();
+                return null;
+            }
+        });
         if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after creating magnetic sensor: " + (System.currentTimeMillis() - debug_time));
+            Log.d(TAG, "onCreate: time after starting sensor initialisation: " + (System.currentTimeMillis() - debug_time));
 
         // clear any seek bars (just in case??)
         mainUI.closeExposureUI();
 
         // set up the camera and its preview
         preview = new Preview(applicationInterface, ((ViewGroup) this.findViewById(R.id.preview)));
+        startup_orchestrator.checkpoint("create_preview");
         if( MyDebug.LOG )
             Log.d(TAG, "onCreate: time after creating preview: " + (System.currentTimeMillis() - debug_time));
 
+        // start opening the camera now, so this happens in parallel with the rest of the startup, rather than waiting until the
+        // preview surface is available
+        preview.startEarlyCameraOpen(startup_orchestrator);
+        if( MyDebug.LOG )
+            Log.d(TAG, "onCreate: time after starting camera open: " + (System.currentTimeMillis() - debug_time));
+
         // Setup multi-camera buttons (must be done after creating preview so we know which Camera API is being used,
         // and before initialising on-screen visibility).
         // We only allow the separate icon for switching cameras if:
@@ -638,11 +663,19 @@ public class MainActivity extends Activity {
 
         setModeFromIntents(savedInstanceState);
 
-        // load icons
-        preloadIcons(R.array.flash_icons);
-        preloadIcons(R.array.focus_mode_icons);
+        startup_orchestrator.checkpoint("setup_ui");
+
+        // load icons - these are only needed when the popup is opened, see getPreloadedBitmap()
+        preload_icons_task = startup_orchestrator.submit("preload_icons", new Callable<Void>() {
+            @Override
+            public Void call() {
+                preloadIcons(R.array.flash_icons);
+                preloadIcons(R.array.focus_mode_icons);
+                return null;
+            }
+        });
         if( MyDebug.LOG )
-            Log.d(TAG, "onCreate: time after preloading icons: " + (System.currentTimeMillis() - debug_time));
+            Log.d(TAG, "onCreate: time after starting preloading icons: " + (System.currentTimeMillis() - debug_time));
 
         // initialise text to speech engine
         textToSpeechSuccess = false;
@@ -681,10 +714,60 @@ public class MainActivity extends Activity {
             notificationManager.createNotificationChannel(channel);
         }
 
+        startup_orchestrator.checkpoint("on_create_done");
         if( MyDebug.LOG )
             Log.d(TAG, "onCreate: total time for Activity startup: " + (System.currentTimeMillis() - debug_time));
     }
 
+    /** Looks up the sensors. This is run on a background thread of the startup orchestrator, see
+     *  waitForSensors().
+     */
+    private void initSensors() {
+        SensorManager sensor_manager = (SensorManager)getSystemService(Context.SENSOR_SERVICE);
+
+        // accelerometer sensor (for device orientation)
+        if( sensor_manager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "found accelerometer");
+            mSensorAccelerometer = sensor_manager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        }
+        else {
+            if( MyDebug.LOG )
+                Log.d(TAG, "no support for accelerometer");
+        }
+
+        // magnetic sensor (for compass direction)
+        magneticSensor.initSensor(sensor_manager);
+
+        mSensorManager = sensor_manager;
+    }
+
+    /** Waits for initSensors() to complete, if it hasn't already. Must be called on the UI thread
+     *  before using the sensors.
+     */
+    private void waitForSensors() {
+        if( init_sensors_task != null ) {
+            init_sensors_task.join();
+            init_sensors_task = null;
+        }
+    }
+
+    /** Waits for the icons to be preloaded, if they haven't already. Must be called on the UI
+     *  thread before using preloaded_bitmap_resources.
+     */
+    private void waitForPreloadedIcons() {
+        if( preload_icons_task != null ) {
+            preload_icons_task.join();
+            preload_icons_task = null;
+        }
+    }
+
+    /** Returns the orchestrator that recorded the startup timeline of this activity.
+     */
+    public StartupOrchestrator getStartupOrchestrator() {
+        return startup_orchestrator;
+    }
+
     /** Whether to use codepaths that are compatible with scoped storage.
      */
     public static boolean useScopedStorage() {
@@ -1144,6 +1227,17 @@ public class MainActivity extends Activity {
         applicationInterface.getLocationSupplier().freeLocationListeners();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onTrimMemory: " + level);
+        super.onTrimMemory(level);
+        if( level >= TRIM_MEMORY_RUNNING_LOW && preview != null && preview.getCameraController() != null ) {
+            // drop the pooled JPEG buffers (also dropped when the camera is closed)
+            preview.getCameraController().trimMemory();
+        }
+    }
+
     @Override
     protected void onDestroy() {
         if( MyDebug.LOG ) {
@@ -1181,12 +1275,15 @@ public class MainActivity extends Activity {
             RenderScript.releaseAllContexts();
         }
         // Need to recycle to avoid out of memory when running tests - probably good practice to do anyway
+        waitForPreloadedIcons();
         for(Map.Entry<Integer, Bitmap> entry : preloaded_bitmap_resources.entrySet()) {
             if( MyDebug.LOG )
                 Log.d(TAG, "recycle: " + entry.getKey());
             entry.getValue().recycle();
         }
         preloaded_bitmap_resources.clear();
+        // any startup tasks still running (e.g., a camera that's being released) are allowed to complete
+        startup_executor.shutdown();
         if( textToSpeech != null ) {
             // http://stackoverflow.com/questions/4242401/tts-error-leaked-serviceconnection-android-speech-tts-texttospeech-solved
             if( MyDebug.LOG )
@@ -1383,6 +1480,7 @@ public class MainActivity extends Activity {
         // Note that we do it here rather than customising the theme's android:windowBackground, so this doesn't affect other views - in particular, the MyPreferenceFragment settings
         getWindow().getDecorView().getRootView().setBackgroundColor(Color.BLACK);
 
+        waitForSensors();
         mSensorManager.registerListener(accelerometerListener, mSensorAccelerometer, SensorManager.SENSOR_DELAY_NORMAL);
         magneticSensor.registerMagneticListener(mSensorManager);
         orientationEventListener.enable();
@@ -1496,6 +1594,10 @@ public class MainActivity extends Activity {
             createImageSavingNotification();
         }
 
+        GeekCamera2Trace.flush();
+        if( MyDebug.LOG )
+            Log.d(TAG, "trace metrics:\n" + GeekCamera2Trace.getHistograms().getSummary());
+
         // intentionally do this again, just in case something turned location on since - keep this right at the end:
         applicationInterface.getLocationSupplier().freeLocationListeners();
 
@@ -2048,6 +2150,7 @@ public class MainActivity extends Activity {
     }
 
     public Bitmap getPreloadedBitmap(int resource) {
+        waitForPreloadedIcons();
         return this.preloaded_bitmap_resources.get(resource);
     }
 
@@ -2673,6 +2776,7 @@ public class MainActivity extends Activity {
     		preview.updateFocus(saved_focus_value, true, false);
     	}*/
 
+        waitForSensors();
         magneticSensor.registerMagneticListener(mSensorManager); // check whether we need to register or unregister the magnetic listener
         magneticSensor.checkMagneticAccuracy();
 
@@ -3497,7 +3601,7 @@ public class MainActivity extends Activity {
         if( MyDebug.LOG )
             Log.d(TAG, "createImageSavingNotification");
         if( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ) {
-            int n_images_to_save = applicationInterface.getImageSaver().getNRealImagesToSave();
+            int n_images_to_save = applicationInterface.getImageSaver().getNImagesToSave();
             Notification.Builder builder = new Notification.Builder(this, CHANNEL_ID)
                     .setSmallIcon(R.drawable.ic_stat_notify_take_photo)
                     .setContentTitle(getString(R.string.app_name))
@@ -4667,6 +4771,18 @@ public class MainActivity extends Activity {
             this.showPhotoVideoToast(false);
         }
         block_startup_toast = false;
+        if( !startup_complete ) {
+            // the first camera setup (immediately followed by the preview starting) completes the startup timeline
+            startup_complete = true;
+            startup_orchestrator.checkpoint("camera_setup");
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "startup timeline:");
+                for(StartupOrchestrator.Phase phase : startup_orchestrator.getTimeline()) {
+                    Log.d(TAG, "    " + phase);
+                }
+                Log.d(TAG, "total time UI thread waited for startup tasks: " + (startup_orchestrator.getTotalJoinNs()/1000000) + "ms");
+            }
+        }
         if( MyDebug.LOG )
             Log.d(TAG, "cameraSetup: total time for cameraSetup: " + (System.currentTimeMillis() - debug_time));
     }
@@ -4829,7 +4945,9 @@ public class MainActivity extends Activity {
     public boolean supportsNoiseReduction() {
         // require at least Android 5, for the Renderscript support in HDRProcessor, but we require
         // Android 7 to limit to more modern devices (for performance reasons)
-        return( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && preview.usingCamera2API() && large_heap_memory >= 512 && preview.supportsBurst() && preview.supportsExposureTime() );
+        // 256MB is enough, as the frames are merged as they arrive, so only the running average and one decoded frame are
+        // held at a time (see ImageSaver.AvgAccumulator)
+        return( Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && preview.usingCamera2API() && large_heap_memory >= 256 && preview.supportsBurst() && preview.supportsExposureTime() );
         //return false; // currently blocked for release
     }
 
@@ -14,6 +14,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 
 import com.deepinout.geekcamera.cameracontroller.CameraController;
+import com.deepinout.geekcamera.cameracontroller.JpegBufferPool;
 import com.deepinout.geekcamera.cameracontroller.RawImage;
 import com.deepinout.geekcamera.preview.ApplicationInterface;
 import com.deepinout.geekcamera.preview.BasicApplicationInterface;
@@ -1345,7 +1346,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
             }
         }
 
-        int photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
+        long photo_cost = imageSaver.computePhotoCost(n_raw, n_jpegs);
         if( imageSaver.queueWouldBlock(photo_cost) ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "canTakeNewPhoto: no, as queue would block");
@@ -1354,6 +1355,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
 
         // even if the queue isn't full, we may apply additional limits
         int n_images_to_save = imageSaver.getNImagesToSave();
+        long n_bytes_to_save = imageSaver.getNBytesToSave();
         PhotoMode photo_mode = getPhotoMode();
         if( photo_mode == PhotoMode.FastBurst || photo_mode == PhotoMode.Panorama ) {
             // only allow one fast burst at a time, so require queue to be empty
@@ -1365,7 +1367,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( photo_mode == PhotoMode.NoiseReduction ) {
             // allow a max of 2 photos in memory when at max of 8 images
-            if( n_images_to_save >= 2*photo_cost ) {
+            if( n_bytes_to_save >= 2*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for nr");
                 return false;
@@ -1373,7 +1375,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( n_jpegs > 1 ) {
             // if in any other kind of burst mode (e.g., expo burst, HDR), allow a max of 3 photos in memory
-            if( n_images_to_save >= 3*photo_cost ) {
+            if( n_bytes_to_save >= 3*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for burst");
                 return false;
@@ -1381,15 +1383,15 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         }
         if( n_raw > 0 ) {
             // if RAW mode, allow a max of 3 photos
-            if( n_images_to_save >= 3*photo_cost ) {
+            if( n_bytes_to_save >= 3*photo_cost ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "canTakeNewPhoto: no, as too many for raw");
                 return false;
             }
         }
         // otherwise, still have a max limit of 5 photos
-        if( n_images_to_save >= 5*photo_cost ) {
-            if( main_activity.supportsNoiseReduction() && n_images_to_save <= 8 ) {
+        if( n_bytes_to_save >= 5*photo_cost ) {
+            if( main_activity.supportsNoiseReduction() && n_bytes_to_save <= imageSaver.computePhotoCost(0, CameraController.N_IMAGES_NR_DARK) ) {
                 // if we take a photo in NR mode, then switch to std mode, it doesn't make sense to suddenly block!
                 // so need to at least allow a new photo, if the number of photos is less than 1 NR photo
             }
@@ -1865,6 +1867,10 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     panorama_dir_left_to_right = indx == 0;
                     if( MyDebug.LOG )
                         Log.d(TAG, "set panorama_dir_left_to_right to " + panorama_dir_left_to_right);
+                    // also set now rather than waiting for finishPanorama(), so that ImageSaver can start stitching
+                    // the frames as they arrive
+                    if( imageSaver.getImageBatchRequest() != null )
+                        imageSaver.getImageBatchRequest().panorama_dir_left_to_right = panorama_dir_left_to_right;
                 }
                 main_activity.takePicturePressed(false, false);
             }
@@ -3067,6 +3073,13 @@ public class MyApplicationInterface extends BasicApplicationInterface {
      * @return Whether saving was successful.
      */
     private boolean saveImage(boolean save_expo, List<byte []> images, Date current_date) {
+        return saveImage(save_expo, images, null, current_date);
+    }
+
+    /** As saveImage(boolean, List, Date), but if jpeg_buffer is non-null, images should contain just
+     *  jpeg_buffer.getData(), and this takes over the reference to jpeg_buffer.
+     */
+    private boolean saveImage(boolean save_expo, List<byte []> images, JpegBufferPool.Buffer jpeg_buffer, Date current_date) {
         GeekCamera2Trace.endAsyncSection(GeekCamera2Trace.GC2_CAPTURE_IMG_AVAILABLE_2_SAVE_IMG, 0);
         if( MyDebug.LOG )
             Log.d(TAG, "saveImage");
@@ -3182,6 +3195,8 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                 Log.d(TAG, "ignore panorama image as target no longer achieved!");
             // n.b., gyroSensor.hasTarget() will be false if this is the first picture in the panorama series
             panorama_pic_accepted = false;
+            if( jpeg_buffer != null )
+                jpeg_buffer.release();
             success = true; // still treat as success
         }
         else if( photo_mode == PhotoMode.NoiseReduction || photo_mode == PhotoMode.Panorama ) {
@@ -3249,7 +3264,13 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                 this.gyroSensor.getRotationMatrix(gyro_rotation_matrix);
             }
 
-            imageSaver.addImageBatch(images.get(0), gyro_rotation_matrix);
+            byte [] image = images.get(0);
+            if( jpeg_buffer != null ) {
+                // batches are always post-processed, which requires an exactly sized array
+                image = jpeg_buffer.copyData();
+                jpeg_buffer.release();
+            }
+            imageSaver.addImageBatch(image, gyro_rotation_matrix);
             success = true;
         }
         else {
@@ -3261,7 +3282,7 @@ public class MyApplicationInterface extends BasicApplicationInterface {
                     // (It wouldn't be a huge problem if we did start from _1, but it would be inconsistent with the naming
                     // of images where images.size() > 1 (e.g., expo bracketing mode) where we also start from _0.)
                     force_suffix ? (n_capture_images-1) : 0,
-                    save_expo, images,
+                    save_expo, images, jpeg_buffer,
                     image_capture_intent, image_capture_intent_uri,
                     using_camera2,
                     image_format, image_quality,
@@ -3307,6 +3328,26 @@ public class MyApplicationInterface extends BasicApplicationInterface {
         return success;
     }
 
+    @Override
+    public boolean onPictureTaken(JpegBufferPool.Buffer buffer, Date current_date) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "onPictureTaken (pooled buffer)");
+
+        n_capture_images++;
+        if( MyDebug.LOG )
+            Log.d(TAG, "n_capture_images is now " + n_capture_images);
+
+        List<byte []> images = new ArrayList<>();
+        images.add(buffer.getData());
+
+        boolean success = saveImage(false, images, buffer, current_date);
+
+        if( MyDebug.LOG )
+            Log.d(TAG, "onPictureTaken complete, success: " + success);
+
+        return success;
+    }
+
     @Override
     public boolean onBurstPictureTaken(List<byte []> images, Date current_date) {
         if( MyDebug.LOG )
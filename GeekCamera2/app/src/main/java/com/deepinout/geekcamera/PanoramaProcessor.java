@@ -5,8 +5,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -306,23 +306,27 @@ public class PanoramaProcessor {
     /** Updates every allocation in pyramid0 to be a blend from the left hand of pyramid0 to the
      *  right hand of pyramid1.
      *  Note that the width of the blend region will be half of the width of each image.
-     * @param best_path If non-null, the blend region will follow the supplied best path.
+     * @param best_path If non-null, the blend region will follow the supplied best path: for each
+     *                  row of the best path (which are spread evenly over the full height), the x
+     *                  coordinate of the centre of the blend region, as a fraction of the width.
+     *                  Values should be in the range [0.25, 0.75].
+     * @param y_offset The pyramids may be for a horizontal band of the full images being blended,
+     *                 in which case this is the y coordinate of the top of the band, in the full
+     *                 resolution images. Should be 0 if the pyramids are for the full images.
+     * @param full_height The height of the full resolution images being blended.
      */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void mergePyramids(ScriptC_pyramid_blending script, List<Allocation> pyramid0, List<Allocation> pyramid1, int [] best_path, int best_path_n_x) {
+    private void mergePyramids(ScriptC_pyramid_blending script, List<Allocation> pyramid0, List<Allocation> pyramid1, float [] best_path,
+                               int y_offset, int full_height) {
         if( MyDebug.LOG )
             Log.d(TAG, "mergePyramids");
 
         if( best_path == null ) {
-            best_path = new int[1];
-            best_path_n_x = 3;
-            best_path[0] = 1;
-            //best_path[0] = 2; // test
-        }
-        if( MyDebug.LOG ) {
-            for(int i=0;i<best_path.length;i++)
-                Log.d(TAG, "best_path[" + i + "]: " + best_path[i]);
+            best_path = new float[1];
+            best_path[0] = 0.5f;
         }
+        if( MyDebug.LOG )
+            Log.d(TAG, "best_path length: " + best_path.length);
         //Allocation bestPathAllocation = Allocation.createSized(rs, Element.I32(rs), best_path.length);
         //script.bind_best_path(bestPathAllocation);
         //bestPathAllocation.copyFrom(best_path);
@@ -377,75 +381,42 @@ public class PanoramaProcessor {
             blend_width = Math.max(blend_width, 2);*/
             //blend_width = 1; // test
 
-            //float best_path_x_width = width / (best_path_n_x+1.0f); // width of each "bucket" for the best paths
-            //blend_width = Math.min(blend_width, (int)(2.0f*best_path_x_width+0.5f));
-            float best_path_y_scale = best_path.length/(float)height;
+            // the best path is defined over the full images, so compute it for the rows of this band
+            // (the dimensions of each level are exact, as the images must be a multiple of getBlendDimension())
+            int level_y_offset = y_offset >> i;
+            int level_full_height = full_height >> i;
+
+            float best_path_y_scale = best_path.length/(float)level_full_height;
             /*if( MyDebug.LOG ) {
                 Log.d(TAG, "i = " + i);
                 Log.d(TAG, "    width: " + width);
                 Log.d(TAG, "    blend_width: " + blend_width);
                 Log.d(TAG, "    height: " + height);
-                //Log.d(TAG, "    best_path_x_width: " + best_path_x_width);
                 Log.d(TAG, "    best_path_y_scale: " + best_path_y_scale);
             }*/
 
             // compute interpolated_best_path
             for(int y=0;y<height;y++) {
-                if( false )
-                {
-                    // no interpolation:
-                    int best_path_y_index = (int)((y+0.5f)*best_path_y_scale);
-                    int best_path_value = best_path[best_path_y_index];
-                    //interpolated_best_path[y] = (int)((best_path_value+1) * best_path_x_width + 0.5f);
-                    float alpha = best_path_value / (best_path_n_x-1.0f);
-                    float frac = (1.0f - alpha) * 0.25f + alpha * 0.75f;
-                    interpolated_best_path[y] = (int)(frac*width + 0.5f);
-                    /*if( MyDebug.LOG ) {
-                        Log.d(TAG, "    interpolated_best_path[" + y + "]: " + interpolated_best_path[y] + " (best_path_value " + best_path_value + ")");
-                    }*/
+                int full_y = level_y_offset + y;
+                // linear interpolation between the centres of the best path's rows
+                float best_path_y_index = (full_y+0.5f)*best_path_y_scale - 0.5f;
+                float frac;
+                if( best_path_y_index <= 0.0f ) {
+                    frac = best_path[0];
                 }
-                //if( false )
-                {
-                    // linear interpolation
-                    float best_path_y_index = ((y+0.5f)*best_path_y_scale);
-                    float best_path_value;
-                    if( best_path_y_index <= 0.5f ) {
-                        best_path_value = best_path[0];
-                    }
-                    else if( best_path_y_index >= best_path.length-1+0.5f ) {
-                        best_path_value = best_path[best_path.length-1];
-                    }
-                    else {
-                        best_path_y_index -= 0.5f;
-                        int best_path_y_index_i = (int)best_path_y_index;
-                        float linear_alpha = best_path_y_index - best_path_y_index_i;
-                        //float alpha = linear_alpha;
-                        //final float edge_length = 0.25f;
-                        final float edge_length = 0.1f;
-                        float alpha;
-                        if( linear_alpha < edge_length )
-                            alpha = 0.0f;
-                        else if( linear_alpha > 1.0f-edge_length )
-                            alpha = 1.0f;
-                        else
-                            alpha = (linear_alpha - edge_length) / (1.0f - 2.0f*edge_length);
-                        int prev_best_path = best_path[best_path_y_index_i];
-                        int next_best_path = best_path[best_path_y_index_i+1];
-                        best_path_value = (1.0f-alpha) * prev_best_path + alpha * next_best_path;
-                        /*if( MyDebug.LOG ) {
-                            Log.d(TAG, "    alpha: " + alpha);
-                            Log.d(TAG, "    prev_best_path: " + prev_best_path);
-                            Log.d(TAG, "    next_best_path: " + next_best_path);
-                        }*/
-                    }
-                    //interpolated_best_path[y] = (int)((best_path_value+1) * best_path_x_width + 0.5f);
-                    float alpha = best_path_value / (best_path_n_x-1.0f);
-                    float frac = (1.0f - alpha) * 0.25f + alpha * 0.75f;
-                    interpolated_best_path[y] = (int)(frac*width + 0.5f);
-                    /*if( MyDebug.LOG ) {
-                        Log.d(TAG, "    interpolated_best_path[" + y + "]: " + interpolated_best_path[y] + " (best_path_value " + best_path_value + ")");
-                    }*/
+                else if( best_path_y_index >= best_path.length-1 ) {
+                    frac = best_path[best_path.length-1];
+                }
+                else {
+                    int best_path_y_index_i = (int)best_path_y_index;
+                    float alpha = best_path_y_index - best_path_y_index_i;
+                    frac = (1.0f-alpha) * best_path[best_path_y_index_i] + alpha * best_path[best_path_y_index_i+1];
                 }
+                frac = Math.max(0.25f, Math.min(0.75f, frac));
+                interpolated_best_path[y] = (int)(frac*width + 0.5f);
+                /*if( MyDebug.LOG ) {
+                    Log.d(TAG, "    interpolated_best_path[" + y + "]: " + interpolated_best_path[y] + " (frac " + frac + ")");
+                }*/
                 if( interpolated_best_path[y] - blend_width/2 < 0 ) {
                     Log.e(TAG, "    interpolated_best_path[" + y + "]: " + interpolated_best_path[y]);
                     Log.e(TAG, "    blend_width: " + blend_width);
@@ -552,6 +523,9 @@ public class PanoramaProcessor {
     }*/
 
     private final static int blend_n_levels = 4; // number of levels used for pyramid blending
+    // blendPyramids() processes the images in horizontal bands of this height, so that only one band's
+    // pyramids are held at once; must be a multiple of getBlendDimension()
+    private final static int blend_band_height_c = 1024;
 
     /** Bitmaps passed to blendPyramids must have width and height each a multiple of the value
      *  returned by this function.
@@ -560,12 +534,49 @@ public class PanoramaProcessor {
         return (int)(Math.pow(2.0, blend_n_levels)+0.5);
     }
 
+    /** Returns the number of rows that each band in blendPyramids() must be extended by above and
+     *  below, so that the blended result for the band's rows is identical to blending the full
+     *  images.
+     *  The kernels treat the 2 pixels along each edge of an allocation differently, so the rows
+     *  near the edge of a band differ from those of the full image. Working through the levels of
+     *  the pyramid, creating the Laplacian pyramid affects up to 5 rows at each level (less at the
+     *  bottom and top levels), and collapsing the pyramid (expanding then adding each level)
+     *  spreads this to 2*r+1 rows at the next level down, for r rows at a level. For 4 levels this
+     *  means 47 rows at full resolution, so we use 4*getBlendDimension() = 64, which also keeps the
+     *  bands aligned to multiples of getBlendDimension(), as the reduce kernel requires.
+     */
+    private static int getBlendBandMargin() {
+        return 4*getBlendDimension();
+    }
+
     /** Returns a bitmap that blends between lhs and rhs, using Laplacian pyramid blending.
      *  Note that the width of the blend region will be half of the width of the image. The blend
      *  region will follow a path in order to minimise the transition between the images.
+     *  The images are blended in horizontal bands of blend_band_height_c rows (each extended by
+     *  getBlendBandMargin() rows either side), to reduce the memory required for the pyramids; the
+     *  result is identical to blending the whole images at once.
      */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     private Bitmap blendPyramids(Bitmap lhs, Bitmap rhs) {
+        //return blendPyramids(lhs, rhs, 0);
+        return blendPyramids(lhs, rhs, blend_band_height_c);
+    }
+
+    /** For testing: as blendPyramids(Bitmap, Bitmap), but with the supplied band height.
+     * @param band_height If 0, the whole images are blended at once. Otherwise, should be a
+     *                    multiple of getBlendDimension().
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap testBlendPyramids(Bitmap lhs, Bitmap rhs, int band_height) {
+        initRenderscript();
+        return blendPyramids(lhs, rhs, band_height);
+    }
+
+    /** As blendPyramids(Bitmap, Bitmap), but with the supplied band height (or 0 to blend the
+     *  whole images at once).
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private Bitmap blendPyramids(Bitmap lhs, Bitmap rhs, int band_height) {
         long time_s = 0;
         if( MyDebug.LOG )
             time_s = System.currentTimeMillis();
@@ -614,14 +625,8 @@ public class PanoramaProcessor {
 
         //final boolean find_best_path = false;
         final boolean find_best_path = true;
-        //final int best_path_n_x = 3;
-        final int best_path_n_x = 7;
-        final int best_path_n_y = 8;
-        //final int best_path_n_y = 16;
-        int [] best_path = null;
+        float [] best_path = null;
         if( find_best_path ) {
-            best_path = new int[best_path_n_y];
-
             //Bitmap best_path_lhs = lhs;
             //Bitmap best_path_rhs = rhs;
             final int scale_factor = 4;
@@ -634,119 +639,131 @@ public class PanoramaProcessor {
                 saveBitmap(best_path_rhs, "best_path_rhs.jpg");
             }*/
 
-            Allocation lhs_allocation = Allocation.createFromBitmap(rs, best_path_lhs);
-            Allocation rhs_allocation = Allocation.createFromBitmap(rs, best_path_rhs);
-
-            int [] errors = new int[1];
-            Allocation errorsAllocation = Allocation.createSized(rs, Element.I32(rs), 1);
-            pyramidBlendingScript.bind_errors(errorsAllocation);
-
-            Script.LaunchOptions launch_options = new Script.LaunchOptions();
-            if( MyDebug.LOG )
-                Log.d(TAG, "### blendPyramids: time after creating allocations for best path: " + (System.currentTimeMillis() - time_s));
-
-            pyramidBlendingScript.set_bitmap(rhs_allocation);
-
-            int window_width = Math.max(2, best_path_lhs.getWidth()/8);
-            int start_y = 0, stop_y;
-            for(int y=0;y<best_path_n_y;y++) {
-                best_path[y] = -1;
-                int best_error = -1;
-
-                stop_y = ((y+1) * best_path_lhs.getHeight()) / best_path_n_y;
-                launch_options.setY(start_y, stop_y);
-                start_y = stop_y; // set for next iteration
-
-                //int start_x = 0, stop_x;
-                for(int x=0;x<best_path_n_x;x++) {
-                    // windows for computing best path should be centred with the path centres we'll actually take
-                    float alpha = ((float)x)/(best_path_n_x-1.0f);
-                    float frac = (1.0f - alpha) * 0.25f + alpha * 0.75f;
-                    int mid_x = (int)(frac * best_path_lhs.getWidth() + 0.5f);
-                    int start_x = mid_x - window_width/2;
-                    int stop_x = mid_x + window_width/2;
-                    //stop_x = ((x+1) * best_path_lhs.getWidth()) / best_path_n_x;
-                    launch_options.setX(start_x, stop_x);
-                    //start_x = stop_x; // set for next iteration
-
-                    pyramidBlendingScript.invoke_init_errors();
-                    pyramidBlendingScript.forEach_compute_error(lhs_allocation, launch_options);
-                    errorsAllocation.copyTo(errors);
-
-                    int this_error = errors[0];
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "    best_path error[" + x + "][" + y + "]: " + this_error);
-                    if( best_path[y] == -1 || this_error < best_error ) {
-                        best_path[y] = x;
-                        best_error = this_error;
-                    }
-                }
-
-                //best_path[y] = 1; // test
-                //best_path[y] = y % best_path_n_x; // test
-                if( MyDebug.LOG )
-                    Log.d(TAG, "best_path [" + y + "]: " + best_path[y]);
-            }
-
-            lhs_allocation.destroy();
-            rhs_allocation.destroy();
-            errorsAllocation.destroy();
-
+            final int best_path_width = best_path_lhs.getWidth();
+            final int best_path_height = best_path_lhs.getHeight();
+            int [] best_path_pixels0 = new int[best_path_width*best_path_height];
+            int [] best_path_pixels1 = new int[best_path_width*best_path_height];
+            best_path_lhs.getPixels(best_path_pixels0, 0, best_path_width, 0, 0, best_path_width, best_path_height);
+            best_path_rhs.getPixels(best_path_pixels1, 0, best_path_width, 0, 0, best_path_width, best_path_height);
             if( best_path_lhs != lhs ) {
                 best_path_lhs.recycle();
             }
             if( best_path_rhs != rhs ) {
                 best_path_rhs.recycle();
             }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### blendPyramids: time after reading pixels for best path: " + (System.currentTimeMillis() - time_s));
+
+            // reuse the first pixel array for the costs
+            int [] costs = best_path_pixels0;
+            SeamFinder.computeCostMap(best_path_pixels0, best_path_pixels1, best_path_width*best_path_height, costs);
+            // the seam must stay within [0.25, 0.75] of the width, so that the blend window in
+            // mergePyramids() doesn't run off either side
+            int min_x = (best_path_width+3)/4;
+            int max_x = (3*best_path_width)/4;
+            int [] seam = new int[best_path_height];
+            long seam_cost = SeamFinder.findSeam(costs, best_path_width, best_path_height, min_x, max_x, seam);
+            if( MyDebug.LOG )
+                Log.d(TAG, "best path cost: " + seam_cost);
+
+            best_path = new float[best_path_height];
+            for(int y=0;y<best_path_height;y++) {
+                best_path[y] = seam[y] / (float)best_path_width;
+            }
 
             if( MyDebug.LOG )
                 Log.d(TAG, "### blendPyramids: time after finding best path: " + (System.currentTimeMillis() - time_s));
         }
 
-        List<Allocation> lhs_pyramid = createLaplacianPyramid(pyramidBlendingScript, lhs, blend_n_levels, "lhs");
-        if( MyDebug.LOG )
-            Log.d(TAG, "### blendPyramids: time after createLaplacianPyramid 1st call: " + (System.currentTimeMillis() - time_s));
-        List<Allocation> rhs_pyramid = createLaplacianPyramid(pyramidBlendingScript, rhs, blend_n_levels, "rhs");
-        if( MyDebug.LOG )
-            Log.d(TAG, "### blendPyramids: time after createLaplacianPyramid 2nd call: " + (System.currentTimeMillis() - time_s));
+        final int width = lhs.getWidth();
+        final int height = lhs.getHeight();
+        final boolean use_bands = band_height > 0;
+        if( !use_bands )
+            band_height = height;
+        final int band_margin = use_bands ? getBlendBandMargin() : 0;
+        Bitmap merged_bitmap = null;
+        Canvas merged_canvas = null;
+        Rect src_rect = new Rect();
+        Rect dst_rect = new Rect();
+        for(int band_y0=0;band_y0<height;band_y0+=band_height) {
+            int band_y1 = Math.min(band_y0+band_height, height);
+            // the rows we need to compute for this band, so that the rows [band_y0, band_y1) are
+            // unaffected by the edges of the band
+            int src_y0 = Math.max(band_y0-band_margin, 0);
+            int src_y1 = Math.min(band_y1+band_margin, height);
+            if( MyDebug.LOG )
+                Log.d(TAG, "blend band from " + band_y0 + " to " + band_y1 + ", computing from " + src_y0 + " to " + src_y1);
+            boolean whole_image = src_y0 == 0 && src_y1 == height;
+            Bitmap band_lhs = whole_image ? lhs : Bitmap.createBitmap(lhs, 0, src_y0, width, src_y1-src_y0);
+            Bitmap band_rhs = whole_image ? rhs : Bitmap.createBitmap(rhs, 0, src_y0, width, src_y1-src_y0);
 
-        // debug
-        /*if( MyDebug.LOG )
-		{
-			savePyramid("lhs_laplacian", lhs_pyramid);
-			savePyramid("rhs_laplacian", rhs_pyramid);
-		}*/
+            List<Allocation> lhs_pyramid = createLaplacianPyramid(pyramidBlendingScript, band_lhs, blend_n_levels, "lhs");
+            if( MyDebug.LOG )
+                Log.d(TAG, "### blendPyramids: time after createLaplacianPyramid 1st call: " + (System.currentTimeMillis() - time_s));
+            List<Allocation> rhs_pyramid = createLaplacianPyramid(pyramidBlendingScript, band_rhs, blend_n_levels, "rhs");
+            if( MyDebug.LOG )
+                Log.d(TAG, "### blendPyramids: time after createLaplacianPyramid 2nd call: " + (System.currentTimeMillis() - time_s));
+            if( band_lhs != lhs ) {
+                band_lhs.recycle();
+            }
+            if( band_rhs != rhs ) {
+                band_rhs.recycle();
+            }
 
-        // debug
-        /*if( MyDebug.LOG )
-		{
-			Bitmap lhs_collapsed = collapseLaplacianPyramid(script, lhs_pyramid);
-			saveBitmap(lhs_collapsed, "lhs_collapsed.jpg");
-			Bitmap rhs_collapsed = collapseLaplacianPyramid(script, rhs_pyramid);
-			saveBitmap(rhs_collapsed, "rhs_collapsed.jpg");
-			lhs_collapsed.recycle();
-			rhs_collapsed.recycle();
-		}*/
+            // debug
+            /*if( MyDebug.LOG )
+            {
+                savePyramid("lhs_laplacian", lhs_pyramid);
+                savePyramid("rhs_laplacian", rhs_pyramid);
+            }*/
 
-        mergePyramids(pyramidBlendingScript, lhs_pyramid, rhs_pyramid, best_path, best_path_n_x);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### blendPyramids: time after mergePyramids: " + (System.currentTimeMillis() - time_s));
-        Bitmap merged_bitmap = collapseLaplacianPyramid(pyramidBlendingScript, lhs_pyramid);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### blendPyramids: time after collapseLaplacianPyramid: " + (System.currentTimeMillis() - time_s));
-        // debug
-        /*if( MyDebug.LOG )
-        {
-            savePyramid("merged_laplacian", lhs_pyramid);
-            saveBitmap(merged_bitmap, "merged_bitmap.jpg");
-        }*/
+            // debug
+            /*if( MyDebug.LOG )
+            {
+                Bitmap lhs_collapsed = collapseLaplacianPyramid(script, lhs_pyramid);
+                saveBitmap(lhs_collapsed, "lhs_collapsed.jpg");
+                Bitmap rhs_collapsed = collapseLaplacianPyramid(script, rhs_pyramid);
+                saveBitmap(rhs_collapsed, "rhs_collapsed.jpg");
+                lhs_collapsed.recycle();
+                rhs_collapsed.recycle();
+            }*/
 
-        for(Allocation allocation : lhs_pyramid) {
-            allocation.destroy();
-        }
-        for(Allocation allocation : rhs_pyramid) {
-            allocation.destroy();
+            mergePyramids(pyramidBlendingScript, lhs_pyramid, rhs_pyramid, best_path, src_y0, height);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### blendPyramids: time after mergePyramids: " + (System.currentTimeMillis() - time_s));
+            Bitmap band_merged_bitmap = collapseLaplacianPyramid(pyramidBlendingScript, lhs_pyramid);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### blendPyramids: time after collapseLaplacianPyramid: " + (System.currentTimeMillis() - time_s));
+            // debug
+            /*if( MyDebug.LOG )
+            {
+                savePyramid("merged_laplacian", lhs_pyramid);
+                saveBitmap(band_merged_bitmap, "merged_bitmap.jpg");
+            }*/
+
+            for(Allocation allocation : lhs_pyramid) {
+                allocation.destroy();
+            }
+            for(Allocation allocation : rhs_pyramid) {
+                allocation.destroy();
+            }
+
+            if( whole_image ) {
+                merged_bitmap = band_merged_bitmap;
+            }
+            else {
+                if( merged_bitmap == null ) {
+                    merged_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                    merged_canvas = new Canvas(merged_bitmap);
+                }
+                // copy the rows of this band, discarding the margins
+                src_rect.set(0, band_y0-src_y0, width, band_y1-src_y0);
+                dst_rect.set(0, band_y0, width, band_y1);
+                merged_canvas.drawBitmap(band_merged_bitmap, src_rect, dst_rect, null);
+                band_merged_bitmap.recycle();
+            }
         }
+
         if( MyDebug.LOG )
             Log.d(TAG, "### blendPyramids: time taken: " + (System.currentTimeMillis() - time_s));
         return merged_bitmap;
@@ -779,108 +796,6 @@ public class PanoramaProcessor {
         }
     }
 
-    private static void computeDistancesBetweenMatches(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-        final int wid = 2*feature_descriptor_radius+1;
-        final int wid2 = wid*wid;
-        for(int indx=st_indx;indx<nd_indx;indx++) {
-            FeatureMatch match = matches.get(indx);
-
-				/*float distance = 0;
-				for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-					for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-						int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-						int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-						//int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-						//int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-						int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-						int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-						int dist2 = value0*value0 + value1+value1;
-						distance += ((float)dist2)/65025.0f; // so distance for a given pixel is from 0 to 1
-					}
-				}
-				distance /= (float)wid2; // normalise from 0 to 1
-				match.distance = distance;*/
-
-            float fsum = 0, gsum = 0;
-            float f2sum = 0, g2sum = 0;
-            float fgsum = 0;
-
-            // much faster to read via getPixels() rather than pixel by pixel
-            //bitmaps.get(0).getPixels(pixels0, 0, wid, point0.x - feature_descriptor_radius, point0.y - feature_descriptor_radius, wid, wid);
-            //bitmaps.get(1).getPixels(pixels1, 0, wid, point1.x - feature_descriptor_radius, point1.y - feature_descriptor_radius, wid, wid);
-            //int pixel_idx = 0;
-
-            int pixel_idx0 = match.index0*wid2;
-            int pixel_idx1 = match.index1*wid2;
-
-            for(int dy=-feature_descriptor_radius;dy<=feature_descriptor_radius;dy++) {
-                for(int dx=-feature_descriptor_radius;dx<=feature_descriptor_radius;dx++) {
-                    //int pixel0 = bitmaps.get(0).getPixel(point0.x + dx, point0.y + dy);
-                    //int pixel1 = bitmaps.get(1).getPixel(point1.x + dx, point1.y + dy);
-
-                    //int pixel0 = pixels0[pixel_idx];
-                    //int pixel1 = pixels1[pixel_idx];
-                    //pixel_idx++;
-
-                    //int value0 = (Color.red(pixel0) + Color.green(pixel0) + Color.blue(pixel0))/3;
-                    //int value1 = (Color.red(pixel1) + Color.green(pixel1) + Color.blue(pixel1))/3;
-                    //int value0 = (int)(0.3*Color.red(pixel0) + 0.59*Color.green(pixel0) + 0.11*Color.blue(pixel0));
-                    //int value1 = (int)(0.3*Color.red(pixel1) + 0.59*Color.green(pixel1) + 0.11*Color.blue(pixel1));
-
-                    int value0 = pixels0[pixel_idx0];
-                    int value1 = pixels1[pixel_idx1];
-                    pixel_idx0++;
-                    pixel_idx1++;
-
-                    fsum += value0;
-                    f2sum += value0*value0;
-                    gsum += value1;
-                    g2sum += value1*value1;
-                    fgsum += value0*value1;
-                }
-            }
-            float fden = wid2*f2sum - fsum*fsum;
-            float f_recip = fden==0 ? 0.0f : 1/ fden;
-            float gden = wid2*g2sum - gsum*gsum;
-            float g_recip = gden==0 ? 0.0f : 1/ gden;
-            float fg_corr = wid2*fgsum-fsum*gsum;
-            //if( MyDebug.LOG ) {
-            //	Log.d(TAG, "match distance: ");
-            //	Log.d(TAG, "    fg_corr: " + fg_corr);
-            //	Log.d(TAG, "    fden: " + fden);
-            //	Log.d(TAG, "    gden: " + gden);
-            //	Log.d(TAG, "    f_recip: " + f_recip);
-            //	Log.d(TAG, "    g_recip: " + g_recip);
-            //}
-            // negate, as we want it so that lower value means better match, and normalise to 0-1
-            match.distance = 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
-        }
-    }
-
-    private static class ComputeDistancesBetweenMatchesThread extends Thread {
-        private final List<FeatureMatch> matches;
-        private final int st_indx;
-        private final int nd_indx;
-        private final int feature_descriptor_radius;
-        private final List<Bitmap> bitmaps;
-        private final int [] pixels0;
-        private final int [] pixels1;
-
-        ComputeDistancesBetweenMatchesThread(List<FeatureMatch> matches, int st_indx, int nd_indx, int feature_descriptor_radius, List<Bitmap> bitmaps, int [] pixels0, int [] pixels1) {
-            this.matches = matches;
-            this.st_indx = st_indx;
-            this.nd_indx = nd_indx;
-            this.feature_descriptor_radius = feature_descriptor_radius;
-            this.bitmaps = bitmaps;
-            this.pixels0 = pixels0;
-            this.pixels1 = pixels1;
-        }
-
-        public void run() {
-            computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-        }
-    }
-
     static class AutoAlignmentByFeatureResult {
         final int offset_x;
         final int offset_y;
@@ -895,8 +810,13 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Finds the transformation that maps bitmaps[0] onto bitmaps[1], by matching features.
+     * @param predicted_offset If non-null, the offset {x, y} of bitmaps[1] relative to bitmaps[0]
+     *                         expected from the gyro (see GyroAlignmentPrior), used to restrict the
+     *                         search for matches.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private AutoAlignmentByFeatureResult autoAlignmentByFeature(int width, int height, List<Bitmap> bitmaps, int debug_index) throws PanoramaProcessorException {
+    private AutoAlignmentByFeatureResult autoAlignmentByFeature(int width, int height, List<Bitmap> bitmaps, float [] predicted_offset, int debug_index) throws PanoramaProcessorException {
         if( MyDebug.LOG ) {
             Log.d(TAG, "autoAlignmentByFeature");
             Log.d(TAG, "width: " + width);
@@ -1222,176 +1142,121 @@ public class PanoramaProcessor {
             return new AutoAlignmentByFeatureResult(0, 0, 0.0f, 1.0f);
         }
 
-        // generate candidate matches
-        //noinspection UnnecessaryLocalVariable
-        final int max_match_dist_x = width;
-        final int max_match_dist_y = height/16;
-        final int max_match_dist2 = max_match_dist_x*max_match_dist_x + max_match_dist_y*max_match_dist_y;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "max_match_dist_x: " + max_match_dist_x);
-            Log.d(TAG, "max_match_dist_y: " + max_match_dist_y);
-            Log.d(TAG, "max_match_dist2: " + max_match_dist2);
-        }
-        List<FeatureMatch> matches = new ArrayList<>();
+        // compute descriptors for the features
+        final int wid = 2*feature_descriptor_radius+1;
+        final int wid2 = wid*wid;
+        int [] pixels0 = new int[points_arrays[0].length*wid2];
+        int [] pixels1 = new int[points_arrays[1].length*wid2];
         for(int i=0;i<points_arrays[0].length;i++) {
-            int x0 = points_arrays[0][i].x;
-            int y0 = points_arrays[0][i].y;
-            for(int j=0;j<points_arrays[1].length;j++) {
-                int x1 = points_arrays[1][j].x;
-                int y1 = points_arrays[1][j].y;
-                // only consider a match if close enough in actual distance
-                int dx = x1 - x0;
-                int dy = y1 - y0;
-                int dist2 = dx*dx + dy*dy;
-                if( dist2 < max_match_dist2 )
-                {
-                    FeatureMatch match = new FeatureMatch(i, j);
-                    matches.add(match);
-                }
-            }
+            int x = points_arrays[0][i].x;
+            int y = points_arrays[0][i].y;
+            bitmaps.get(0).getPixels(pixels0, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
+        }
+        for(int i=0;i<points_arrays[1].length;i++) {
+            int x = points_arrays[1][i].x;
+            int y = points_arrays[1][i].y;
+            bitmaps.get(1).getPixels(pixels1, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
+        }
+        // convert to greyscale
+        for(int i=0;i<pixels0.length;i++) {
+            int pixel = pixels0[i];
+            pixels0[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
+        }
+        for(int i=0;i<pixels1.length;i++) {
+            int pixel = pixels1[i];
+            pixels1[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
         }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### possible matches: " + matches.size());
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after finding possible matches: " + (System.currentTimeMillis() - time_s));
 
-        // compute distances between matches
-        {
-            final int wid = 2*feature_descriptor_radius+1;
-            final int wid2 = wid*wid;
-            int [] pixels0 = new int[points_arrays[0].length*wid2];
-            int [] pixels1 = new int[points_arrays[1].length*wid2];
-            for(int i=0;i<points_arrays[0].length;i++) {
-                int x = points_arrays[0][i].x;
-                int y = points_arrays[0][i].y;
-                bitmaps.get(0).getPixels(pixels0, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            for(int i=0;i<points_arrays[1].length;i++) {
-                int x = points_arrays[1][i].x;
-                int y = points_arrays[1][i].y;
-                bitmaps.get(1).getPixels(pixels1, i*wid2, wid, x - feature_descriptor_radius, y - feature_descriptor_radius, wid, wid);
-            }
-            // convert to greyscale
-            for(int i=0;i<pixels0.length;i++) {
-                int pixel = pixels0[i];
-                pixels0[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
-            }
-            for(int i=0;i<pixels1.length;i++) {
-                int pixel = pixels1[i];
-                pixels1[i] = (int)(0.3*Color.red(pixel) + 0.59*Color.green(pixel) + 0.11*Color.blue(pixel));
+        int [][] xs = new int[2][];
+        int [][] ys = new int[2][];
+        for(int i=0;i<2;i++) {
+            xs[i] = new int[points_arrays[i].length];
+            ys[i] = new int[points_arrays[i].length];
+            for(int j=0;j<points_arrays[i].length;j++) {
+                xs[i][j] = points_arrays[i][j].x;
+                ys[i][j] = points_arrays[i][j].y;
+            }
+        }
+
+        // If we have an offset predicted from the gyro, we first only search a window around it, which is much
+        // faster, and less likely to find incorrect matches. If that finds too few matches (e.g., the gyro
+        // prediction was poor), we fall back to searching the full window.
+        // Need enough matches that we still have n_minimum_matches_c (see below) after keeping the best 40%.
+        final int min_prior_matches_c = 10;
+        boolean use_prior = predicted_offset != null;
+        FeatureMatcher.Matches chosen_matches;
+        while( true ) {
+            // generate candidate matches
+            int match_offset_x = 0;
+            int match_offset_y = 0;
+            int max_match_dist_x;
+            int max_match_dist_y;
+            if( use_prior ) {
+                match_offset_x = (int)Math.floor(predicted_offset[0] + 0.5f);
+                match_offset_y = (int)Math.floor(predicted_offset[1] + 0.5f);
+                max_match_dist_x = width/4;
+                max_match_dist_y = height/24;
+            }
+            else {
+                //noinspection UnnecessaryLocalVariable
+                max_match_dist_x = width;
+                // only consider a match if the vertical offset is within max_match_dist_y (the horizontal offset is
+                // unconstrained, as we don't know how far the user has rotated between the images)
+                max_match_dist_y = height/16;
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "use_prior: " + use_prior);
+                Log.d(TAG, "match_offset_x: " + match_offset_x);
+                Log.d(TAG, "match_offset_y: " + match_offset_y);
+                Log.d(TAG, "max_match_dist_x: " + max_match_dist_x);
+                Log.d(TAG, "max_match_dist_y: " + max_match_dist_y);
             }
+            FeatureMatcher.Candidates matches = FeatureMatcher.findCandidates(xs[0], ys[0], xs[1], ys[1], match_offset_x, match_offset_y, max_match_dist_x, max_match_dist_y);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### possible matches: " + matches.size);
+            if( MyDebug.LOG )
+                Log.d(TAG, "### autoAlignmentByFeature: time after finding possible matches: " + (System.currentTimeMillis() - time_s));
 
+            // compute distances between matches
             final boolean use_smp = true;
             if( use_smp ) {
-                // testing shows 2 threads gives slightly better than using more threads, or not using smp
-                //int n_threads = Math.min(matches.size(), Runtime.getRuntime().availableProcessors());
-                int n_threads = Math.min(matches.size(), 2);
-                if( MyDebug.LOG )
-                    Log.d(TAG, "n_threads: " + n_threads);
-                ComputeDistancesBetweenMatchesThread [] threads = new ComputeDistancesBetweenMatchesThread[n_threads];
-                int st_indx = 0;
-                for(int i=0;i<n_threads;i++) {
-                    int nd_indx = (((i+1)*matches.size())/n_threads);
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "thread " + i + " from " + st_indx + " to " + nd_indx);
-                    threads[i] = new ComputeDistancesBetweenMatchesThread(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
-                    st_indx = nd_indx;
-                }
-                // start threads
-                if( MyDebug.LOG )
-                    Log.d(TAG, "start threads");
-                for(int i=0;i<n_threads;i++) {
-                    threads[i].start();
-                }
-                // wait for threads to complete
+                // split into chunks across the common pool, so we make use of all available cores
                 if( MyDebug.LOG )
-                    Log.d(TAG, "wait for threads to complete");
-                try {
-                    for(int i=0;i<n_threads;i++) {
-                        threads[i].join();
-                    }
-                }
-                catch(InterruptedException e) {
-                    Log.e(TAG, "ComputeDistancesBetweenMatchesThread threads interrupted");
-                    e.printStackTrace();
-                    Thread.currentThread().interrupt();
-                }
-                if( MyDebug.LOG )
-                    Log.d(TAG, "threads completed");
+                    Log.d(TAG, "parallelism: " + ForkJoinPool.commonPool().getParallelism());
+                FeatureMatcher.computeDistancesParallel(ForkJoinPool.commonPool(), matches, pixels0, pixels1, wid2);
             }
             else {
-                int st_indx = 0, nd_indx = matches.size();
-				/*final int wid = 2*feature_descriptor_radius+1;
-				final int wid2 = wid*wid;
-				int [] pixels0 = new int[wid2];
-				int [] pixels1 = new int[wid2];*/
-                computeDistancesBetweenMatches(matches, st_indx, nd_indx, feature_descriptor_radius, bitmaps, pixels0, pixels1);
+                FeatureMatcher.computeDistances(matches, 0, matches.size, pixels0, pixels1, wid2);
             }
-        }
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after computing match distances: " + (System.currentTimeMillis() - time_s));
-
-        // sort
-        Collections.sort(matches);
-        if( MyDebug.LOG )
-            Log.d(TAG, "### autoAlignmentByFeature: time after sorting matches: " + (System.currentTimeMillis() - time_s));
-        if( MyDebug.LOG ) {
-            FeatureMatch best_match = matches.get(0);
-            FeatureMatch worst_match = matches.get(matches.size()-1);
-            Log.d(TAG, "best match between " + best_match.index0 + " and " + best_match.index1 + " distance: " + best_match.distance);
-            Log.d(TAG, "worst match between " + worst_match.index0 + " and " + worst_match.index1 + " distance: " + worst_match.distance);
-        }
-
-        // choose matches
-        boolean [] rejected0 = new boolean[points_arrays[0].length];
-        boolean [] has_matched0 = new boolean[points_arrays[0].length];
-        boolean [] has_matched1 = new boolean[points_arrays[1].length];
-        List<FeatureMatch> actual_matches = new ArrayList<>();
-        //final int n_matches = (int)(matches.size()*0.25f)+1;
-        //for(FeatureMatch match : matches) {
-        for(int i=0;i<matches.size();i++){
-            FeatureMatch match = matches.get(i);
-            if( has_matched0[match.index0] || has_matched1[match.index1] ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "### autoAlignmentByFeature: time after computing match distances: " + (System.currentTimeMillis() - time_s));
+
+            // choose matches
+            // Rather than sorting all possible matches, we only keep the best few for each corner - a corner is
+            // unlikely to end up matched with a poorer candidate, as by then its best candidates would have to have
+            // been taken by other corners.
+            final int max_matches_per_corner_c = 8;
+            // Need a threshold of 0.8 or less for Lowe's test to help testPanorama15 images _5 to _6, otherwise we get
+            // too many incorrect matches in the grass region
+            final float lowe_ratio_c = 0.8f;
+            chosen_matches = FeatureMatcher.selectMatches(matches, points_arrays[0].length, points_arrays[1].length, max_matches_per_corner_c, lowe_ratio_c);
+            if( use_prior && chosen_matches.size < min_prior_matches_c ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "only " + chosen_matches.size + " matches using gyro prior, fall back to full search");
+                use_prior = false;
                 continue;
             }
+            break;
+        }
+        boolean [] rejected0 = chosen_matches.rejected0;
+        List<FeatureMatch> actual_matches = new ArrayList<>();
+        for(int i=0;i<chosen_matches.size;i++) {
+            FeatureMatch match = new FeatureMatch(chosen_matches.index0[i], chosen_matches.index1[i]);
+            match.distance = chosen_matches.distance[i];
+            actual_matches.add(match);
             if( MyDebug.LOG ) {
                 Log.d(TAG, "    match between " + match.index0 + " and " + match.index1 + " distance: " + match.distance);
             }
-
-            // Lowe's test
-            boolean found = false;
-            boolean reject = false;
-            for(int j=i+1;j<matches.size() && !found;j++) {
-                FeatureMatch match2 = matches.get(j);
-                if( match.index0 == match2.index0 ) {
-                    found = true;
-                    float ratio = match.distance / match2.distance;
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "        next best match for index0 " + match.index0 + " is with " + match2.index1 + " distance: " + match2.distance + " , ratio: " + ratio);
-                    }
-                    // Need a threshold of 0.8 or less to help testPanorama15 images _5 to _6, otherwise we get too many incorrect
-                    // matches in the grass region
-                    if( ratio+1.0e-5 > 0.8f ) {
-                        if( MyDebug.LOG ) {
-                            Log.d(TAG, "        reject due to Lowe's test, ratio: " + ratio);
-                        }
-                        reject = true;
-                    }
-                }
-            }
-            if( reject ) {
-                has_matched0[match.index0] = true;
-                rejected0[match.index0] = true;
-                continue;
-            }
-
-            actual_matches.add(match);
-            has_matched0[match.index0] = true;
-            has_matched1[match.index1] = true;
-			/*if( actual_matches.size() == n_matches ) {
-				// only use best matches
-				break;
-			}*/
         }
         if( MyDebug.LOG )
             Log.d(TAG, "### autoAlignmentByFeature: time after initial matching: " + (System.currentTimeMillis() - time_s));
@@ -1416,9 +1281,9 @@ public class PanoramaProcessor {
             actual_matches.subList(n_matches,actual_matches.size()).clear();
         if( MyDebug.LOG )
             Log.d(TAG, "### resized to: " + actual_matches.size() + " actual matches");
-        // need to reset has_matched arrays
-        has_matched0 = new boolean[points_arrays[0].length];
-        has_matched1 = new boolean[points_arrays[1].length];
+        // record which features are used by the best matches
+        boolean [] has_matched0 = new boolean[points_arrays[0].length];
+        boolean [] has_matched1 = new boolean[points_arrays[1].length];
         for(FeatureMatch match : actual_matches) {
             has_matched0[match.index0] = true;
             has_matched1[match.index1] = true;
@@ -1454,7 +1319,6 @@ public class PanoramaProcessor {
         //final boolean estimate_rotation = debug_index < 3;
         boolean use_rotation = false;
         boolean use_y_scale = false;
-        final float max_y_scale = 1.05f + 1.0e-5f;
 
         // needed a larger min_rotation_dist of Math.max(width, height)/4.0f to help testPanorama15 images _5 to _6, otherwise
         // we risk choose matches that are too close, and getting an incorrect rotation
@@ -1462,14 +1326,11 @@ public class PanoramaProcessor {
         final float min_rotation_dist = Math.max(5.0f, Math.max(width, height)/4.0f);
         if( MyDebug.LOG )
             Log.d(TAG, "min_rotation_dist: " + min_rotation_dist);
-        //final float min_rotation_dist2 = 1.0e-5f;
-        final float min_rotation_dist2 = min_rotation_dist*min_rotation_dist;
 
         List<FeatureMatch> ransac_matches = new ArrayList<>(); // used for debugging: the matches that were used to define the transform
         if( use_ransac ) {
             // RANSAC
             List<FeatureMatch> best_inliers = new ArrayList<>();
-            List<FeatureMatch> inliers = new ArrayList<>();
             //final float max_inlier_dist = 2.01f;
             //final float max_inlier_dist = 5.01f;
             //final float max_inlier_dist = 10.01f;
@@ -1480,196 +1341,71 @@ public class PanoramaProcessor {
             //final float max_inlier_dist = Math.max(1.26f, Math.max(width, height)/400.0f);
             if( MyDebug.LOG )
                 Log.d(TAG, "max_inlier_dist: " + max_inlier_dist);
-            final float max_inlier_dist2 = max_inlier_dist*max_inlier_dist;
-            for(int i=0;i<actual_matches.size();i++) {
+            final int n_ransac_matches = actual_matches.size();
+            float [] ransac_x0 = new float[n_ransac_matches];
+            float [] ransac_y0 = new float[n_ransac_matches];
+            float [] ransac_x1 = new float[n_ransac_matches];
+            float [] ransac_y1 = new float[n_ransac_matches];
+            // for rotations, only use matches near the middle of the images:
+            // for testPanorama28 - can get poor rotations if using matches too low or high, as photos more likely to be distorted
+            // also helps testPanorama31, testPanorama34, testPanorama35
+            //final float min_height = 0.25f*height;
+            //final float max_height = 0.75f*height;
+            final float min_height = 0.3f*height;
+            final float max_height = 0.7f*height;
+            boolean [] rotation_sample_mask = new boolean[n_ransac_matches];
+            for(int i=0;i<n_ransac_matches;i++) {
                 FeatureMatch match = actual_matches.get(i);
-
-                {
-                    // compute exact translation from the i-th match only
-                    int candidate_offset_x = points_arrays[1][match.index1].x - points_arrays[0][match.index0].x;
-                    int candidate_offset_y = points_arrays[1][match.index1].y - points_arrays[0][match.index0].y;
-                    // find the inliers from this
-                    inliers.clear();
-                    for(FeatureMatch other_match : actual_matches) {
-                        int x0 = points_arrays[0][other_match.index0].x;
-                        int y0 = points_arrays[0][other_match.index0].y;
-                        int x1 = points_arrays[1][other_match.index1].x;
-                        int y1 = points_arrays[1][other_match.index1].y;
-                        int transformed_x0 = x0 + candidate_offset_x;
-                        int transformed_y0 = y0 + candidate_offset_y;
-                        float dx = transformed_x0 - x1;
-                        float dy = transformed_y0 - y1;
-                        float error2 = dx*dx + dy*dy;
-                        if( error2 + 1.0e-5 <= max_inlier_dist2 ) {
-                            inliers.add(other_match);
-                        }
-                    }
-                    if( inliers.size() > best_inliers.size() ) {
-                        // found an improved model!
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "match " + i + " gives better translation model: " + inliers.size() + " inliers vs " + best_inliers.size());
-                        ransac_matches.clear();
-                        ransac_matches.add(match);
-                        best_inliers.clear();
-                        best_inliers.addAll(inliers);
-                        use_rotation = false;
-                        use_y_scale = false;
-                        if( best_inliers.size() == actual_matches.size() ) {
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "all matches are inliers");
-                            // no point trying any further
-                            break;
-                        }
+                ransac_x0[i] = points_arrays[0][match.index0].x;
+                ransac_y0[i] = points_arrays[0][match.index0].y;
+                ransac_x1[i] = points_arrays[1][match.index1].x;
+                ransac_y1[i] = points_arrays[1][match.index1].y;
+                rotation_sample_mask[i] = ransac_y0[i] >= min_height && ransac_y0[i] <= max_height &&
+                        ransac_y1[i] >= min_height && ransac_y1[i] <= max_height;
+            }
+
+            // the matches are sorted with the best first, so the estimators try hypotheses from
+            // those first; the seed is fixed so that results are reproducible
+            final long ransac_seed = 0;
+            RansacEstimator translation_estimator = new RansacEstimator(RansacEstimator.Model.TRANSLATION, max_inlier_dist, ransac_seed);
+            RansacEstimator.Result ransac_result = translation_estimator.estimate(ransac_x0, ransac_y0, ransac_x1, ransac_y1, n_ransac_matches);
+            if( MyDebug.LOG )
+                Log.d(TAG, "translation model: " + ransac_result.n_inliers + " inliers after " + ransac_result.iterations + " iterations");
+
+            if( estimate_rotation && ransac_result.n_inliers < n_ransac_matches ) {
+                // compute exact rotation and translation from pairs of matches
+                RansacEstimator rotation_estimator = new RansacEstimator(RansacEstimator.Model.RIGID, max_inlier_dist, ransac_seed);
+                // need a minimum distance between the pair, otherwise we get poor rotations
+                rotation_estimator.setMinSampleDist(min_rotation_dist);
+                // reject too large angles
+                rotation_estimator.setMaxRotation(30.0f*(float)Math.PI/180.0f);
+                rotation_estimator.setMinInliers(5);
+                rotation_estimator.setSampleMask(rotation_sample_mask);
+                RansacEstimator.Result rotation_result = rotation_estimator.estimate(ransac_x0, ransac_y0, ransac_x1, ransac_y1, n_ransac_matches);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "rotation model: " + rotation_result.n_inliers + " inliers after " + rotation_result.iterations + " iterations");
+                if( rotation_result.transform != null && rotation_result.n_inliers > ransac_result.n_inliers ) {
+                    // found an improved model!
+                    if( MyDebug.LOG ) {
+                        float [] transform = rotation_result.transform;
+                        Log.d(TAG, "rotation model is better: " + rotation_result.n_inliers + " inliers vs " + ransac_result.n_inliers);
+                        Log.d(TAG, "    rotate by " + Math.atan2(transform[3], transform[0]));
+                        Log.d(TAG, "    translate by: " + transform[2] + " , " + transform[5]);
                     }
+                    ransac_result = rotation_result;
+                    use_rotation = true;
+                    // the y scale is estimated from the inliers, below
+                    use_y_scale = estimate_y_scale;
                 }
+            }
 
-                if( estimate_rotation ) {
-                    // compute exact rotation and translation
-                    // we need two points, so compare to every other point
-                    for(int j=0;j<i;j++) {
-                        FeatureMatch match2 = actual_matches.get(j);
-                        final int c0_x = (points_arrays[0][match.index0].x + points_arrays[0][match2.index0].x)/2;
-                        final int c0_y = (points_arrays[0][match.index0].y + points_arrays[0][match2.index0].y)/2;
-                        final int c1_x = (points_arrays[1][match.index1].x + points_arrays[1][match2.index1].x)/2;
-                        final int c1_y = (points_arrays[1][match.index1].y + points_arrays[1][match2.index1].y)/2;
-                        // model is a (scale about c0, followed by) rotation about c0, followed by translation
-                        final float dx0 = (points_arrays[0][match.index0].x - points_arrays[0][match2.index0].x);
-                        final float dy0 = (points_arrays[0][match.index0].y - points_arrays[0][match2.index0].y);
-                        final float dx1 = (points_arrays[1][match.index1].x - points_arrays[1][match2.index1].x);
-                        final float dy1 = (points_arrays[1][match.index1].y - points_arrays[1][match2.index1].y);
-                        final float mag_sq0 = dx0*dx0 + dy0*dy0;
-                        final float mag_sq1 = dx1*dx1 + dy1*dy1;
-                        if( mag_sq0 < min_rotation_dist2 || mag_sq1 < min_rotation_dist2 ) {
-                            continue;
-                        }
-                        //final float min_height = 0.25f*height;
-                        //final float max_height = 0.75f*height;
-                        final float min_height = 0.3f*height;
-                        final float max_height = 0.7f*height;
-                        if( points_arrays[0][match.index0].y < min_height || points_arrays[0][match.index0].y > max_height ||
-                                points_arrays[1][match.index1].y < min_height || points_arrays[1][match.index1].y > max_height ||
-                                points_arrays[0][match2.index0].y < min_height || points_arrays[0][match2.index0].y > max_height ||
-                                points_arrays[1][match2.index1].y < min_height || points_arrays[1][match2.index1].y > max_height
-                                ) {
-                            // for testPanorama28 - can get poor rotations if using matches too low or high, as photos more likely to be distorted
-                            // also helps testPanorama31, testPanorama34, testPanorama35
-                            continue;
-                        }
-
-						/*float y_scale = 1.0f;
-						boolean found_y_scale = false;
-						if( estimate_y_scale && Math.abs(dy0) > min_rotation_dist && Math.abs(dy1) > min_rotation_dist ) {
-							y_scale = dy1 / dy0;
-							if( y_scale <= max_y_scale && y_scale >= 1.0f/max_y_scale ) {
-								found_y_scale = true;
-							}
-							else {
-								y_scale = 1.0f;
-							}
-							dy0 *= y_scale;
-						}*/
-
-                        float angle = (float)(Math.atan2(dy1, dx1) - Math.atan2(dy0, dx0));
-                        if( angle < -Math.PI )
-                            angle += 2.0f*Math.PI;
-                        else if( angle > Math.PI )
-                            angle -= 2.0f*Math.PI;
-                        if( Math.abs(angle) > 30.0f*Math.PI/180.0f ) {
-                            // reject too large angles
-                            continue;
-                        }
-						/*if( MyDebug.LOG ) {
-							Log.d(TAG, "ransac: " + i + " , " + j + ": ");
-							Log.d(TAG, "    match 0: " + points_arrays[0][match.index0].x + " , " + points_arrays[0][match.index0].y);
-							Log.d(TAG, "    match 1: " + points_arrays[1][match.index1].x + " , " + points_arrays[1][match.index1].y);
-							Log.d(TAG, "    match2 0: " + points_arrays[0][match2.index0].x + " , " + points_arrays[0][match2.index0].y);
-							Log.d(TAG, "    match2 1: " + points_arrays[1][match2.index1].x + " , " + points_arrays[1][match2.index1].y);
-							Log.d(TAG, "    y_scale: " + y_scale);
-							Log.d(TAG, "    angle: " + angle);
-							Log.d(TAG, "    mag0: " + Math.sqrt(mag_sq0));
-							Log.d(TAG, "    mag1: " + Math.sqrt(mag_sq1));
-						}*/
-
-                        float y_scale = 1.0f;
-                        boolean found_y_scale = false;
-                        if( estimate_y_scale ) {
-                            //int transformed_dx0 = (int)(dx0 * Math.cos(angle) - dy0 * Math.sin(angle));
-                            int transformed_dy0 = (int)(dx0 * Math.sin(angle) + dy0 * Math.cos(angle));
-                            if( Math.abs(transformed_dy0) > min_rotation_dist && Math.abs(dy1) > min_rotation_dist ) {
-                                y_scale = dy1 / transformed_dy0;
-                                if( y_scale <= max_y_scale && y_scale >= 1.0f/max_y_scale ) {
-                                    found_y_scale = true;
-                                }
-                                else {
-                                    y_scale = 1.0f;
-                                }
-                            }
-                        }
-
-                        // find the inliers from this
-                        inliers.clear();
-                        for(FeatureMatch other_match : actual_matches) {
-                            int x0 = points_arrays[0][other_match.index0].x;
-                            int y0 = points_arrays[0][other_match.index0].y;
-                            int x1 = points_arrays[1][other_match.index1].x;
-                            int y1 = points_arrays[1][other_match.index1].y;
-                            x0 -= c0_x;
-                            y0 -= c0_y;
-                            //y0 *= y_scale;
-                            int transformed_x0 = (int)(x0 * Math.cos(angle) - y0 * Math.sin(angle));
-                            int transformed_y0 = (int)(x0 * Math.sin(angle) + y0 * Math.cos(angle));
-                            transformed_y0 *= y_scale;
-                            transformed_x0 += c1_x;
-                            transformed_y0 += c1_y;
-
-                            float dx = transformed_x0 - x1;
-                            float dy = transformed_y0 - y1;
-							/*if( MyDebug.LOG ) {
-								if( other_match == match )
-									Log.d(TAG, "    ransac on match: " + i + " , " + j + " : " + dx + " , " + dy);
-								else if( other_match == match2 )
-									Log.d(TAG, "    ransac on match2: " + i + " , " + j + " : " + dx + " , " + dy);
-							}*/
-                            float error2 = dx*dx + dy*dy;
-                            if( error2 + 1.0e-5 <= max_inlier_dist2 ) {
-                                inliers.add(other_match);
-                            }
-                        }
-
-                        if( inliers.size() > best_inliers.size() && inliers.size() >= 5 ) {
-                            // found an improved model!
-                            if( MyDebug.LOG ) {
-                                Log.d(TAG, "match " + i + " gives better rotation model: " + inliers.size() + " inliers vs " + best_inliers.size());
-                                Log.d(TAG, "    c0_x: " + c0_x + " , c0_y: " + c0_y);
-                                Log.d(TAG, "    c1_x: " + c1_x + " , c1_y: " + c1_y);
-                                Log.d(TAG, "    dx0: " + dx0 + " , dy0: " + dy0);
-                                Log.d(TAG, "    dx1: " + dx1 + " , dy1: " + dy1);
-                                Log.d(TAG, "    rotate by " + angle + " about: " + c0_x + " , " + c0_y);
-                                Log.d(TAG, "    y scale by " + y_scale);
-                                Log.d(TAG, "    translate by: " + (c1_x-c0_x) + " , " + (c1_y-c0_y));
-                            }
-                            ransac_matches.clear();
-                            ransac_matches.add(match);
-                            ransac_matches.add(match2);
-                            best_inliers.clear();
-                            best_inliers.addAll(inliers);
-                            use_rotation = true;
-                            use_y_scale = found_y_scale;
-                            if( best_inliers.size() == actual_matches.size() ) {
-                                if( MyDebug.LOG )
-                                    Log.d(TAG, "all matches are inliers");
-                                // no point trying any further
-                                break;
-                            }
-                        }
-                    }
-
-                    if( best_inliers.size() == actual_matches.size() ) {
-                        if( MyDebug.LOG )
-                            Log.d(TAG, "all matches are inliers");
-                        // no point trying any further
-                        break;
-                    }
+            for(int i=0;i<n_ransac_matches;i++) {
+                if( ransac_result.inliers[i] )
+                    best_inliers.add(actual_matches.get(i));
+            }
+            if( ransac_result.sample != null ) {
+                for(int index : ransac_result.sample) {
+                    ransac_matches.add(actual_matches.get(index));
                 }
             }
             actual_matches = best_inliers;
@@ -2323,102 +2059,106 @@ public class PanoramaProcessor {
         */
     }
 
-    /**
-     * @return Returns the ratio between maximum and minimum computed brightnesses.
+    private static final int exposure_column_width_c = 8; // width of the columns of the ColumnHistograms used to compare exposures
+    private static final int exposure_sample_step_c = 2; // sample every other pixel, as the strips used to be compared at half scale
+
+    /** Computes the ColumnHistogram for bitmap, reusing the stitcher's spare histogram and row
+     *  buffer where possible.
      */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private float adjustExposuresLocal(List<Bitmap> bitmaps, int bitmap_width, int bitmap_height, int slice_width, long time_s) {
+    private ColumnHistogram computeColumnHistogram(Stitcher stitcher, Bitmap bitmap, long time_s) {
+        final int bitmap_width = bitmap.getWidth();
+        final int bitmap_height = bitmap.getHeight();
+        ColumnHistogram histogram = stitcher.spare_column_histogram;
+        stitcher.spare_column_histogram = null;
+        if( histogram != null && histogram.getWidth() == bitmap_width ) {
+            histogram.reset();
+        }
+        else {
+            histogram = new ColumnHistogram(bitmap_width, exposure_column_width_c, exposure_sample_step_c);
+        }
+        if( stitcher.row_buffer == null || stitcher.row_buffer.length != bitmap_width ) {
+            stitcher.row_buffer = new int[bitmap_width];
+        }
+        for(int y=0;y<bitmap_height;y+=exposure_sample_step_c) {
+            bitmap.getPixels(stitcher.row_buffer, 0, bitmap_width, 0, y, bitmap_width, 1);
+            histogram.addRow(stitcher.row_buffer, 0);
+        }
+        histogram.finish();
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after computing column histogram: " + (System.currentTimeMillis() - time_s));
+        return histogram;
+    }
+
+    /** Computes the brightness of the left hand side of the right image relative to the right
+     *  hand side of the left image, where the right image is the image following the left image in
+     *  the panorama.
+     */
+    private float computeBrightnessScale(ColumnHistogram histogram_l, ColumnHistogram histogram_r, int bitmap_width, int slice_width) {
         final int exposure_hwidth = bitmap_width/10;
         final int offset_x = (bitmap_width - slice_width)/2;
 
-        List<Float> relative_brightness = new ArrayList<>();
-        float current_relative_brightness = 1.0f;
-        relative_brightness.add(current_relative_brightness);
-        float min_relative_brightness = current_relative_brightness;
-        float max_relative_brightness = current_relative_brightness;
+        int median_l = histogram_l.getMedian(offset_x+slice_width-exposure_hwidth, offset_x+slice_width+exposure_hwidth);
+        int median_r = histogram_r.getMedian(offset_x-exposure_hwidth, offset_x+exposure_hwidth);
 
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time before computing brightnesses: " + (System.currentTimeMillis() - time_s));
+        float brightness_scale = ((float)Math.max(median_r, 1)) / (float)Math.max(median_l, 1);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "    left median: " + median_l);
+            Log.d(TAG, "    right median: " + median_r);
+            Log.d(TAG, "    brightness_scale: " + brightness_scale);
+        }
+        return brightness_scale;
+    }
 
-        for(int i=0;i<bitmaps.size()-1;i++) {
-            // compute brightness difference between i-th and (i+1)-th images
-            Bitmap bitmap_l = bitmaps.get(i);
-            Bitmap bitmap_r = bitmaps.get(i+1);
+    /** Records the exposure information for the newly added image of the stitcher (the i-th
+     *  image), used by computeBrightnessTargets().
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void addExposureInfo(Stitcher stitcher, int i, Bitmap bitmap, long time_s) {
+        ColumnHistogram column_histogram = computeColumnHistogram(stitcher, bitmap, time_s);
+        if( i > 0 ) {
+            // compute brightness difference between (i-1)-th and i-th images
             if( MyDebug.LOG )
-                Log.d(TAG, "### time before cropping bitmaps: " + (System.currentTimeMillis() - time_s));
-
-            // scale down for performance
-            Matrix scale_matrix = new Matrix();
-            scale_matrix.postScale(0.5f, 0.5f);
-
-            //bitmap_l = Bitmap.createBitmap(bitmap_l, offset_x+slice_width-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height);
-            //bitmap_r = Bitmap.createBitmap(bitmap_r, offset_x-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height);
-            bitmap_l = Bitmap.createBitmap(bitmap_l, offset_x+slice_width-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height, scale_matrix, true);
-            bitmap_r = Bitmap.createBitmap(bitmap_r, offset_x-exposure_hwidth, 0, 2*exposure_hwidth, bitmap_height, scale_matrix, true);
+                Log.d(TAG, "compare brightnesses from images " + (i-1) + " to " + i + ":");
+            float brightness_scale = computeBrightnessScale(stitcher.prev_column_histogram, column_histogram, stitcher.bitmap_width, stitcher.slice_width);
+            stitcher.current_relative_brightness *= brightness_scale;
             if( MyDebug.LOG )
-                Log.d(TAG, "### time after cropping bitmaps: " + (System.currentTimeMillis() - time_s));
-            // debug
-            /*if( MyDebug.LOG )
-            {
-                saveBitmap(bitmap_l, "exposure_bitmap_l.jpg");
-                saveBitmap(bitmap_r, "exposure_bitmap_r.jpg");
-            }*/
-
-            int [] histo_l = hdrProcessor.computeHistogram(bitmap_l, false);
-            HDRProcessor.HistogramInfo histogramInfo_l = hdrProcessor.getHistogramInfo(histo_l);
-            int [] histo_r = hdrProcessor.computeHistogram(bitmap_r, false);
-            HDRProcessor.HistogramInfo histogramInfo_r = hdrProcessor.getHistogramInfo(histo_r);
-
-            float brightness_scale = ((float)Math.max(histogramInfo_r.median_brightness, 1)) / (float)Math.max(histogramInfo_l.median_brightness, 1);
-            current_relative_brightness *= brightness_scale;
-            if( MyDebug.LOG ) {
-                Log.d(TAG, "compare brightnesses from images " + i + " to " + (i+1) + ":");
-                Log.d(TAG, "    left median: " + histogramInfo_l.median_brightness);
-                Log.d(TAG, "    right median: " + histogramInfo_r.median_brightness);
-                Log.d(TAG, "    brightness_scale: " + brightness_scale);
-                Log.d(TAG, "    current_relative_brightness: " + current_relative_brightness);
-            }
-            relative_brightness.add(current_relative_brightness);
-
-            min_relative_brightness = Math.min(min_relative_brightness, current_relative_brightness);
-            max_relative_brightness = Math.max(max_relative_brightness, current_relative_brightness);
+                Log.d(TAG, "    current_relative_brightness: " + stitcher.current_relative_brightness);
+        }
+        // the previous frame's histogram is no longer needed, so can be reused for the next frame
+        stitcher.spare_column_histogram = stitcher.prev_column_histogram;
+        stitcher.prev_column_histogram = column_histogram;
+        stitcher.relative_brightness.add(stitcher.current_relative_brightness);
+        stitcher.min_relative_brightness = Math.min(stitcher.min_relative_brightness, stitcher.current_relative_brightness);
+        stitcher.max_relative_brightness = Math.max(stitcher.max_relative_brightness, stitcher.current_relative_brightness);
+
+        int [] histo = hdrProcessor.computeHistogram(bitmap, false);
+        HDRProcessor.HistogramInfo histogramInfo = hdrProcessor.getHistogramInfo(histo);
+        stitcher.histogramInfos.add(histogramInfo);
+        if( MyDebug.LOG )
+            Log.d(TAG, "image " + i + " has median brightness " + histogramInfo.median_brightness);
+    }
 
-            if( bitmap_l != bitmaps.get(i) )
-                bitmap_l.recycle();
-            if( bitmap_r != bitmaps.get(i+1) )
-                bitmap_r.recycle();
-        }
+    /** Computes the brightness target for each image, so that exposures are adjusted to match
+     *  neighbouring images, whilst keeping the overall brightness similar. The images are then
+     *  brightened as they're rendered, see renderPanorama().
+     * @return Returns the ratio between maximum and minimum computed brightnesses.
+     */
+    private float computeBrightnessTargets(Stitcher stitcher, long time_s) {
+        final int n_bitmaps = stitcher.histogramInfos.size();
+        List<Float> relative_brightness = stitcher.relative_brightness;
+        List<HDRProcessor.HistogramInfo> histogramInfos = stitcher.histogramInfos;
 
-        float ratio_brightnesses = (max_relative_brightness/min_relative_brightness);
+        float ratio_brightnesses = (stitcher.max_relative_brightness/stitcher.min_relative_brightness);
         if( MyDebug.LOG ) {
-            Log.d(TAG, "min_relative_brightness: " + min_relative_brightness);
-            Log.d(TAG, "max_relative_brightness: " + max_relative_brightness);
+            Log.d(TAG, "min_relative_brightness: " + stitcher.min_relative_brightness);
+            Log.d(TAG, "max_relative_brightness: " + stitcher.max_relative_brightness);
             Log.d(TAG, "ratio of max to min relative brightness: " + ratio_brightnesses);
         }
 
-        /*
-        float avg_relative_brightness = 0.0f;
-        int count = 0;
-        for(float b : relative_brightness) {
-            avg_relative_brightness += b;
-            count++;
-        }
-        avg_relative_brightness /= count;
-        if( MyDebug.LOG )
-            Log.d(TAG, "avg_relative_brightness: " + avg_relative_brightness);
-        */
-
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after computing brightnesses: " + (System.currentTimeMillis() - time_s));
-
-        List<HDRProcessor.HistogramInfo> histogramInfos = new ArrayList<>();
         float mean_median_brightness = 0.0f; // mean of the global median brightnesse
         float mean_equalised_brightness = 0.0f; // mean of the brightnesses if all adjusted to match exposure of the first image
-        for(int i=0;i<bitmaps.size();i++) {
-            Bitmap bitmap = bitmaps.get(i);
-            int [] histo = hdrProcessor.computeHistogram(bitmap, false);
-            HDRProcessor.HistogramInfo histogramInfo = hdrProcessor.getHistogramInfo(histo);
-            histogramInfos.add(histogramInfo);
+        for(int i=0;i<n_bitmaps;i++) {
+            HDRProcessor.HistogramInfo histogramInfo = histogramInfos.get(i);
             mean_median_brightness += histogramInfo.median_brightness;
             float equalised_brightness = histogramInfo.median_brightness/relative_brightness.get(i);
             mean_equalised_brightness += equalised_brightness;
@@ -2427,8 +2167,8 @@ public class PanoramaProcessor {
                 Log.d(TAG, "    and equalised_brightness " + equalised_brightness);
             }
         }
-        mean_median_brightness /= bitmaps.size();
-        mean_equalised_brightness /= bitmaps.size();
+        mean_median_brightness /= n_bitmaps;
+        mean_equalised_brightness /= n_bitmaps;
         if( MyDebug.LOG ) {
             Log.d(TAG, "mean_median_brightness: " + mean_median_brightness);
             Log.d(TAG, "mean_equalised_brightness: " + mean_equalised_brightness);
@@ -2436,15 +2176,9 @@ public class PanoramaProcessor {
 
         float avg_relative_brightness = mean_median_brightness / Math.max(mean_equalised_brightness, 1.0f);
 
-        if( MyDebug.LOG )
-            Log.d(TAG, "### time after computing global histograms: " + (System.currentTimeMillis() - time_s));
-
         float min_preferred_scale = 1000.0f, max_preferred_scale = 0.0f;
-        for(int i=0;i<bitmaps.size();i++) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "    adjust exposure for image: " + i);
-
-            Bitmap bitmap = bitmaps.get(i);
+        stitcher.brightness_targets = new int[n_bitmaps];
+        for(int i=0;i<n_bitmaps;i++) {
             HDRProcessor.HistogramInfo histogramInfo = histogramInfos.get(i);
 
             int brightness_target = (int)(histogramInfo.median_brightness*avg_relative_brightness/relative_brightness.get(i) + 0.1f);
@@ -2470,12 +2204,12 @@ public class PanoramaProcessor {
                 Log.d(TAG, "    actual brightness scale: " + this_brightness_target / (float) histogramInfo.median_brightness);
             }
 
-            hdrProcessor.brightenImage(bitmap, histogramInfo.median_brightness, histogramInfo.max_brightness, this_brightness_target);
+            stitcher.brightness_targets[i] = this_brightness_target;
         }
         if( MyDebug.LOG ) {
             Log.d(TAG, "min_preferred_scale: " + min_preferred_scale);
             Log.d(TAG, "max_preferred_scale: " + max_preferred_scale);
-            Log.d(TAG, "### time after adjusting brightnesses: " + (System.currentTimeMillis() - time_s));
+            Log.d(TAG, "### time after computing brightness targets: " + (System.currentTimeMillis() - time_s));
         }
         /*if( min_preferred_scale < 0.5f || max_preferred_scale > 2.0f ) {
             throw new RuntimeException("");
@@ -2556,191 +2290,396 @@ public class PanoramaProcessor {
         }
     }
 
+    /** The state of a panorama that is being stitched incrementally: frames are passed to
+     *  addPanoramaFrame() as they are captured, so that the alignment and exposure information can
+     *  be computed without holding more than the previous frame, and the panorama is then rendered
+     *  by finishPanorama(). See startPanorama().
+     */
+    public static class Stitcher {
+        private final float panorama_pics_per_screen;
+        private final double camera_angle;
+        private final boolean crop;
+        private final long time_s;
+
+        // set from the first frame
+        private int bitmap_width;
+        private int bitmap_height;
+        private int slice_width;
+        private int offset_x;
+        private int blend_hwidth;
+        private int align_hwidth;
+
+        private int n_frames; // number of frames added so far
+        private Bitmap prev_bitmap; // the most recently added frame (not owned by the stitcher)
+        private float [] prev_gyro_rotation_matrix; // the gyro rotation matrix for prev_bitmap, or null if not known
+        private final Matrix cumulative_transform = new Matrix();
+        private int dst_offset_x;
+        private final List<Matrix> cumulative_transforms = new ArrayList<>(); // i-th entry is the transform to apply to the i-th bitmap so that it's aligned to the same space as the 1st bitmap
+        private final List<Integer> align_x_values = new ArrayList<>();
+        private final List<Integer> dst_offset_x_values = new ArrayList<>();
+
+        private final List<Float> relative_brightness = new ArrayList<>();
+        private float current_relative_brightness = 1.0f;
+        private float min_relative_brightness = 1.0f;
+        private float max_relative_brightness = 1.0f;
+        private final List<HDRProcessor.HistogramInfo> histogramInfos = new ArrayList<>();
+        private int [] brightness_targets; // set by computeBrightnessTargets()
+        private ColumnHistogram prev_column_histogram; // for the most recently added frame
+        private ColumnHistogram spare_column_histogram; // no longer needed, so can be reused
+        private int [] row_buffer;
+
+        private Stitcher(float panorama_pics_per_screen, double camera_angle, boolean crop, long time_s) {
+            this.panorama_pics_per_screen = panorama_pics_per_screen;
+            this.camera_angle = camera_angle;
+            this.crop = crop;
+            this.time_s = time_s;
+        }
+
+        public int getNFrames() {
+            return n_frames;
+        }
+
+        /** Returns a copy of the transform computed for the i-th frame, which aligns it to the same
+         *  space as the first frame. Note that finishPanorama() then adjusts the transforms (e.g.,
+         *  to level the panorama). For testing.
+         */
+        public Matrix getTransform(int i) {
+            return new Matrix(cumulative_transforms.get(i));
+        }
+    }
+
+    /** Supplies the frames of a panorama to finishPanorama() for rendering, one at a time.
+     */
+    public interface FrameSource {
+        /** Returns the i-th frame, which must be identical to the bitmap that was passed to
+         *  addPanoramaFrame(), or null if it couldn't be loaded. The bitmap may be modified.
+         */
+        Bitmap getFrame(int i);
+
+        /** Called once the bitmap returned by getFrame() is no longer needed.
+         */
+        void releaseFrame(int i, Bitmap bitmap);
+    }
+
+    /** Starts a panorama to be stitched incrementally.
+     */
+    public Stitcher startPanorama(float panorama_pics_per_screen, float camera_angle_y, final boolean crop) {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "startPanorama");
+            Log.d(TAG, "camera_angle_y: " + camera_angle_y);
+        }
+
+        long time_s = 0;
+        if( MyDebug.LOG )
+            time_s = System.currentTimeMillis();
+
+        final double camera_angle = Math.toRadians(camera_angle_y);
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "camera_angle_y: " + camera_angle_y);
+            Log.d(TAG, "camera_angle: " + camera_angle);
+        }
+        // max offset error of gyro_tol_degrees - convert this to pixels
+        //int max_offset_error_x = (int)(gyro_tol_degrees * bitmap_width / mActivity.getPreview().getViewAngleY() + 0.5f);
+        //int max_offset_error_y = (int)(gyro_tol_degrees * bitmap_height / mActivity.getPreview().getViewAngleX() + 0.5f);
+        //if we use the above code, remember not to use the camera view angles, but those that the test photos were taken with!
+        //double h = ((double)bitmap_width) / (2.0 * Math.tan(camera_angle/2.0) );
+        /*int max_offset_error_x = (int)(h * Math.tan(Math.toRadians(gyro_tol_degrees)) + 0.5f);
+        max_offset_error_x *= 2; // allow a fudge factor
+        int max_offset_error_y = max_offset_error_x;
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "h: " + h);
+            Log.d(TAG, "max_offset_error_x: " + max_offset_error_x);
+            Log.d(TAG, "max_offset_error_y: " + max_offset_error_y);
+        }
+        */
+
+        return new Stitcher(panorama_pics_per_screen, camera_angle, crop, time_s);
+    }
+
+    /** Adds the next frame to the panorama: the frame is aligned against the previous frame, and
+     *  its exposure information is recorded. The caller retains ownership of the bitmap, but must
+     *  not modify or recycle it until it is returned by the next call to this method (or until
+     *  finishPanorama() is called, for the last frame).
+     *  Should be called on the same thread as finishPanorama(), as the RenderScript scripts are
+     *  shared.
+     * @return The previously added frame, which the stitcher no longer needs, or null if this is the
+     *         first frame.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void computePanoramaTransforms(List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
-                                           List<Bitmap> bitmaps, final int bitmap_width, final int bitmap_height,
-                                           final int offset_x, final int slice_width, final int align_hwidth,
-                                           long time_s) throws PanoramaProcessorException {
-        Matrix cumulative_transform = new Matrix();
+    public Bitmap addPanoramaFrame(Stitcher stitcher, Bitmap bitmap) throws PanoramaProcessorException {
+        return addPanoramaFrame(stitcher, bitmap, null);
+    }
+
+    /** As addPanoramaFrame(Stitcher, Bitmap), but also supplies the gyro rotation matrix recorded
+     *  when the frame was taken (see GyroSensor.getRotationMatrix()), or null if not known. If
+     *  known for both this and the previous frame, the offset predicted by the gyro is used to
+     *  speed up the alignment.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap addPanoramaFrame(Stitcher stitcher, Bitmap bitmap, float [] gyro_rotation_matrix) throws PanoramaProcessorException {
+        final int i = stitcher.n_frames;
+        final long time_s = stitcher.time_s;
+        if( MyDebug.LOG )
+            Log.d(TAG, "addPanoramaFrame: " + i);
+
+        if( i == 0 ) {
+            int bitmap_width = bitmap.getWidth();
+            int bitmap_height = bitmap.getHeight();
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "bitmap_width: " + bitmap_width);
+                Log.d(TAG, "bitmap_height: " + bitmap_height);
+            }
+            stitcher.bitmap_width = bitmap_width;
+            stitcher.bitmap_height = bitmap_height;
+
+            stitcher.slice_width = (int) (bitmap_width / stitcher.panorama_pics_per_screen);
+            if( MyDebug.LOG )
+                Log.d(TAG, "slice_width: " + stitcher.slice_width);
+
+            stitcher.offset_x = (bitmap_width - stitcher.slice_width)/2;
+            // blend_hwidth is the half-width of the region that we blend between.
+            // N.B., when using blendPyramids(), the region we actually have blending over is only half
+            // of the width of the images it receives to blend receive (i.e., the blend region width
+            // is equal to blend_hwidth), because of the code to find a best path.
+            //final int blend_hwidth = 0;
+            //final int blend_hwidth = nextPowerOf2(bitmap_width/20);
+            //final int blend_hwidth = nextPowerOf2(bitmap_width/10);
+            stitcher.blend_hwidth = nextMultiple((int)(bitmap_width/6.1f+0.5f), getBlendDimension()/2);
+            //final int blend_hwidth = nextPowerOf2(bitmap_width/5);
+            stitcher.align_hwidth = bitmap_width/10;
+            //final int align_hwidth = bitmap_width/5;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "    blend_hwidth: " + stitcher.blend_hwidth);
+                Log.d(TAG, "    align_hwidth: " + stitcher.align_hwidth);
+            }
+        }
+        else if( bitmap.getWidth() != stitcher.bitmap_width || bitmap.getHeight() != stitcher.bitmap_height ) {
+            Log.e(TAG, "bitmaps not of equal sizes");
+            throw new PanoramaProcessorException(PanoramaProcessorException.UNEQUAL_SIZES);
+        }
+        /*{
+            // test
+            saveBitmap(bitmap, "input_bitmap_" + i +".png");
+        }*/
+
+        Bitmap prev_bitmap = stitcher.prev_bitmap;
+        computePanoramaTransform(stitcher, i, prev_bitmap, bitmap, gyro_rotation_matrix, time_s);
+        addExposureInfo(stitcher, i, bitmap, time_s);
+
+        stitcher.prev_bitmap = bitmap;
+        stitcher.prev_gyro_rotation_matrix = gyro_rotation_matrix;
+        stitcher.n_frames++;
+        if( MyDebug.LOG )
+            Log.d(TAG, "### time after adding " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+        return prev_bitmap;
+    }
+
+    /** Computes the transform for the i-th frame of the panorama, by aligning it against the
+     *  previous frame.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private void computePanoramaTransform(Stitcher stitcher, int i, Bitmap prev_bitmap, Bitmap bitmap,
+                                          float [] gyro_rotation_matrix, long time_s) throws PanoramaProcessorException {
+        final int bitmap_width = stitcher.bitmap_width;
+        final int bitmap_height = stitcher.bitmap_height;
+        final int offset_x = stitcher.offset_x;
+        final int slice_width = stitcher.slice_width;
+        final int align_hwidth = stitcher.align_hwidth;
+        final Matrix cumulative_transform = stitcher.cumulative_transform;
         int align_x = 0, align_y = 0;
-        int dst_offset_x = 0;
-        List<Integer> align_y_values = new ArrayList<>();
 
         final boolean use_auto_align = true;
         //final boolean use_auto_align = false;
 
-        for(int i=0;i<bitmaps.size();i++) {
-            if( MyDebug.LOG )
-                Log.d(TAG, "process bitmap: " + i);
+        if( MyDebug.LOG )
+            Log.d(TAG, "process bitmap: " + i);
 
-            double angle_z = 0.0;
+        double angle_z = 0.0;
 
-            if( use_auto_align && i > 0 ) {
-                // autoalignment
-                List<Bitmap> alignment_bitmaps = new ArrayList<>();
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), offset_x+slice_width-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), offset_x-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
-                // tall:
+        if( use_auto_align && i > 0 ) {
+            // autoalignment
+            List<Bitmap> alignment_bitmaps = new ArrayList<>();
+            //alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, offset_x+slice_width-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
+            //alignment_bitmaps.add( Bitmap.createBitmap(bitmap, offset_x-align_hwidth, 0, 2*align_hwidth, bitmap_height) );
+            // tall:
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "    align_x: " + align_x);
+                Log.d(TAG, "    offset_x: " + offset_x);
+                Log.d(TAG, "    slice_width: " + slice_width);
+                Log.d(TAG, "    align_x+offset_x+slice_width-align_hwidth: " + (align_x + offset_x + slice_width - align_hwidth));
+                Log.d(TAG, "    bitmap(i-1) width: " + prev_bitmap.getWidth());
+            }
+
+            //final boolean use_align_by_feature = false;
+            final boolean use_align_by_feature = true;
+            float align_downsample = 1.0f;
+            if( use_align_by_feature ) {
+                // scale height to 520
+                // although in theory the alignment algorithm should work on any size, it is best to standardise, as most testing
+                // was done where input images had height 2080 or 2048, and the alignment images were downscaled by a factor of 4
+                align_downsample = bitmap_height/520.0f;
                 if( MyDebug.LOG ) {
-                    Log.d(TAG, "    align_x: " + align_x);
-                    Log.d(TAG, "    offset_x: " + offset_x);
-                    Log.d(TAG, "    slice_width: " + slice_width);
-                    Log.d(TAG, "    align_x+offset_x+slice_width-align_hwidth: " + (align_x + offset_x + slice_width - align_hwidth));
-                    Log.d(TAG, "    bitmap(i-1) width: " + bitmaps.get(i - 1).getWidth());
+                    Log.d(TAG, "downscale by: " + align_downsample);
+                    Log.d(TAG, "### time before downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
                 }
-
-                //final boolean use_align_by_feature = false;
-                final boolean use_align_by_feature = true;
-                float align_downsample = 1.0f;
-                if( use_align_by_feature ) {
-                    // scale height to 520
-                    // although in theory the alignment algorithm should work on any size, it is best to standardise, as most testing
-                    // was done where input images had height 2080 or 2048, and the alignment images were downscaled by a factor of 4
-                    align_downsample = bitmap_height/520.0f;
-                    if( MyDebug.LOG ) {
-                        Log.d(TAG, "downscale by: " + align_downsample);
-                        Log.d(TAG, "### time before downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                    }
-                    // snap to power of 2
-                    for(int k=0,power=1;k<=4;k++,power*=2) {
-                        double ratio = power/align_downsample;
-                        if( ratio >= 0.95f && ratio <= 1.05f ) {
-                            align_downsample = power;
-                            if( MyDebug.LOG )
-                                Log.d(TAG, "snapped downscale to: " + align_downsample);
-                            break;
-                        }
+                // snap to power of 2
+                for(int k=0,power=1;k<=4;k++,power*=2) {
+                    double ratio = power/align_downsample;
+                    if( ratio >= 0.95f && ratio <= 1.05f ) {
+                        align_downsample = power;
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "snapped downscale to: " + align_downsample);
+                        break;
                     }
                 }
+            }
 
-                int align_bitmap_height = (3*bitmap_height)/4;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time before creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                // n.b., we add in reverse order, so we find the transformation to map the next image (i) onto the previous image (i-1)
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
-                //alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
+            int align_bitmap_height = (3*bitmap_height)/4;
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time before creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            // n.b., we add in reverse order, so we find the transformation to map the next image (i) onto the previous image (i-1)
+            //alignment_bitmaps.add( Bitmap.createBitmap(bitmap, align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
+            //alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height) );
+            Matrix align_scale_matrix = new Matrix();
+            align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
+            alignment_bitmaps.add( Bitmap.createBitmap(bitmap, align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
+            alignment_bitmaps.add( Bitmap.createBitmap(prev_bitmap, align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+
+            /*if( use_align_by_feature ) {
                 Matrix align_scale_matrix = new Matrix();
                 align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
-                alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i), align_x+offset_x-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
-                alignment_bitmaps.add( Bitmap.createBitmap(bitmaps.get(i-1), align_x+offset_x+slice_width-align_hwidth, (bitmap_height-align_bitmap_height)/2, 2*align_hwidth, align_bitmap_height, align_scale_matrix, true) );
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time after creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-
-                /*if( use_align_by_feature ) {
-                    Matrix align_scale_matrix = new Matrix();
-                    align_scale_matrix.postScale(1.0f/align_downsample, 1.0f/align_downsample);
-                    for(int j=0;j<alignment_bitmaps.size();j++) {
-                        Bitmap new_bitmap = Bitmap.createBitmap(alignment_bitmaps.get(j), 0, 0, alignment_bitmaps.get(j).getWidth(), alignment_bitmaps.get(j).getHeight(), align_scale_matrix, true);
-                        alignment_bitmaps.get(j).recycle();
-                        alignment_bitmaps.set(j, new_bitmap);
-                    }
-                    if( MyDebug.LOG )
-                        Log.d(TAG, "### time after downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                }*/
-
-                // save bitmaps used for alignments
-                /*if( MyDebug.LOG ) {
-                    for(int j=0;j<alignment_bitmaps.size();j++) {
-                        Bitmap alignment_bitmap = alignment_bitmaps.get(j);
-                        saveBitmap(alignment_bitmap, "alignment_bitmap_" + i + "_" + j +".png");
-                    }
-                }*/
-
-                int this_align_x, this_align_y;
-                float y_scale = 1.0f;
-                if( MyDebug.LOG )
-                    Log.d(TAG, "### time before auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                if( use_align_by_feature ) {
-                    PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, i);
-                    this_align_x = res.offset_x;
-                    this_align_y = res.offset_y;
-                    angle_z = res.rotation;
-                    y_scale = res.y_scale;
-                }
-                else {
-                    final boolean use_mtb = false;
-                    //final boolean use_mtb = true;
-                    int [] offsets_x = new int[alignment_bitmaps.size()];
-                    int [] offsets_y = new int[alignment_bitmaps.size()];
-                    hdrProcessor.autoAlignment(offsets_x, offsets_y, alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, 0, use_mtb, 8);
-                    this_align_x = offsets_x[1];
-                    this_align_y = offsets_y[1];
+                for(int j=0;j<alignment_bitmaps.size();j++) {
+                    Bitmap new_bitmap = Bitmap.createBitmap(alignment_bitmaps.get(j), 0, 0, alignment_bitmaps.get(j).getWidth(), alignment_bitmaps.get(j).getHeight(), align_scale_matrix, true);
+                    alignment_bitmaps.get(j).recycle();
+                    alignment_bitmaps.set(j, new_bitmap);
                 }
                 if( MyDebug.LOG )
-                    Log.d(TAG, "### time after auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
-                this_align_x *= align_downsample;
-                this_align_y *= align_downsample;
-                for(Bitmap alignment_bitmap : alignment_bitmaps) {
-                    alignment_bitmap.recycle();
-                }
-                alignment_bitmaps.clear();
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "    this_align_x: " + this_align_x);
-                    Log.d(TAG, "    this_align_y: " + this_align_y);
-                }
-
-                Matrix this_transform = new Matrix();
-                this_transform.postRotate((float)Math.toDegrees(angle_z), align_x+offset_x-align_hwidth, 0);
-                this_transform.postScale(1.0f, y_scale);
-                this_transform.postTranslate(this_align_x, this_align_y);
+                    Log.d(TAG, "### time after downscaling creating alignment bitmaps for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            }*/
 
-                {
-                    // first need to shift cumulative_transform so that it's about the origin of the new bitmap
-                    cumulative_transform.preTranslate(slice_width, 0.0f);
-                    cumulative_transform.postTranslate(-slice_width, 0.0f);
+            // save bitmaps used for alignments
+            /*if( MyDebug.LOG ) {
+                for(int j=0;j<alignment_bitmaps.size();j++) {
+                    Bitmap alignment_bitmap = alignment_bitmaps.get(j);
+                    saveBitmap(alignment_bitmap, "alignment_bitmap_" + i + "_" + j +".png");
+                }
+            }*/
 
-                    cumulative_transform.preConcat(this_transform);
+            int this_align_x, this_align_y;
+            float y_scale = 1.0f;
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time before auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            if( use_align_by_feature ) {
+                float [] predicted_offset = null;
+                if( stitcher.prev_gyro_rotation_matrix != null && gyro_rotation_matrix != null ) {
+                    // the gyro predicts where the centre of this bitmap is in the previous bitmap, which for a
+                    // perfect left to right panorama would be slice_width to the right
+                    float focal_length = GyroAlignmentPrior.getFocalLength(bitmap_width, stitcher.camera_angle);
+                    float [] gyro_offset = new float[2];
+                    if( GyroAlignmentPrior.predictOffset(stitcher.prev_gyro_rotation_matrix, gyro_rotation_matrix, focal_length, gyro_offset) ) {
+                        float pred_x = gyro_offset[0] - slice_width;
+                        float pred_y = gyro_offset[1];
+                        if( MyDebug.LOG ) {
+                            Log.d(TAG, "gyro offset: " + gyro_offset[0] + " , " + gyro_offset[1]);
+                            Log.d(TAG, "predicted offset: " + pred_x + " , " + pred_y);
+                        }
+                        // if the prediction is far from what we expect, the gyro is unreliable (or the device
+                        // axes don't match the image axes, e.g., if holding the device in landscape), so
+                        // search the full window instead
+                        if( Math.abs(pred_x) <= bitmap_width/8.0f && Math.abs(pred_y) <= bitmap_height/8.0f ) {
+                            // convert to the coordinates of the alignment bitmaps
+                            predicted_offset = new float[]{pred_x/align_downsample, pred_y/align_downsample};
+                        }
+                        else if( MyDebug.LOG ) {
+                            Log.d(TAG, "gyro prediction not trusted");
+                        }
+                    }
+                    else if( MyDebug.LOG ) {
+                        Log.d(TAG, "no gyro prediction");
+                    }
                 }
+                PanoramaProcessor.AutoAlignmentByFeatureResult res = autoAlignmentByFeature(alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, predicted_offset, i);
+                this_align_x = res.offset_x;
+                this_align_y = res.offset_y;
+                angle_z = res.rotation;
+                y_scale = res.y_scale;
+            }
+            else {
+                final boolean use_mtb = false;
+                //final boolean use_mtb = true;
+                int [] offsets_x = new int[alignment_bitmaps.size()];
+                int [] offsets_y = new int[alignment_bitmaps.size()];
+                hdrProcessor.autoAlignment(offsets_x, offsets_y, alignment_bitmaps.get(0).getWidth(), alignment_bitmaps.get(0).getHeight(), alignment_bitmaps, 0, use_mtb, 8);
+                this_align_x = offsets_x[1];
+                this_align_y = offsets_y[1];
+            }
+            if( MyDebug.LOG )
+                Log.d(TAG, "### time after auto-alignment for " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            this_align_x *= align_downsample;
+            this_align_y *= align_downsample;
+            for(Bitmap alignment_bitmap : alignment_bitmaps) {
+                alignment_bitmap.recycle();
+            }
+            alignment_bitmaps.clear();
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "    this_align_x: " + this_align_x);
+                Log.d(TAG, "    this_align_y: " + this_align_y);
+            }
 
-                {
-                    /*float [] values = new float[9];
-                    cumulative_transform.getValues(values);
-                    align_x = - (int)values[Matrix.MTRANS_X];*/
+            Matrix this_transform = new Matrix();
+            this_transform.postRotate((float)Math.toDegrees(angle_z), align_x+offset_x-align_hwidth, 0);
+            this_transform.postScale(1.0f, y_scale);
+            this_transform.postTranslate(this_align_x, this_align_y);
 
-                    float [] points = new float[2];
-                    points[0] = bitmap_width/2.0f;
-                    points[1] = bitmap_height/2.0f;
-                    cumulative_transform.mapPoints(points);
-                    float trans_x = points[0] - bitmap_width/2.0f;
-                    align_x = - (int)trans_x;
-                }
+            {
+                // first need to shift cumulative_transform so that it's about the origin of the new bitmap
+                cumulative_transform.preTranslate(slice_width, 0.0f);
+                cumulative_transform.postTranslate(-slice_width, 0.0f);
 
-                if( MyDebug.LOG ) {
-                    Log.d(TAG, "    align_x is now: " + align_x);
-                    Log.d(TAG, "    align_y is now: " + align_y);
-                }
+                cumulative_transform.preConcat(this_transform);
             }
 
-            align_x_values.add(align_x);
-            align_y_values.add(align_y);
-            dst_offset_x_values.add(dst_offset_x);
-            cumulative_transforms.add(new Matrix(cumulative_transform));
-
             {
-                dst_offset_x += slice_width;
-                // set back to zero after we've saved them, so we don't use them in the later iterations of this loop
-                align_x = 0;
-                align_y = 0;
+                /*float [] values = new float[9];
+                cumulative_transform.getValues(values);
+                align_x = - (int)values[Matrix.MTRANS_X];*/
+
+                float [] points = new float[2];
+                points[0] = bitmap_width/2.0f;
+                points[1] = bitmap_height/2.0f;
+                cumulative_transform.mapPoints(points);
+                float trans_x = points[0] - bitmap_width/2.0f;
+                align_x = - (int)trans_x;
             }
-            if( MyDebug.LOG )
-                Log.d(TAG, "    dst_offset_x is now: " + dst_offset_x);
 
-            if( MyDebug.LOG )
-                Log.d(TAG, "### time after processing " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "    align_x is now: " + align_x);
+                Log.d(TAG, "    align_y is now: " + align_y);
+            }
         }
+
+        stitcher.align_x_values.add(align_x);
+        stitcher.dst_offset_x_values.add(stitcher.dst_offset_x);
+        stitcher.cumulative_transforms.add(new Matrix(cumulative_transform));
+
+        stitcher.dst_offset_x += slice_width;
+        if( MyDebug.LOG )
+            Log.d(TAG, "    dst_offset_x is now: " + stitcher.dst_offset_x);
     }
 
     /** Typically images will have different rotations. Rather than assuming the first image is the
      *  optimal transform (with no rotation), we rotate the transforms to the mean of the rotations.
      *  This is effectively equivalent to rotating the final image to be hopefully more level.
      */
-    private void adjustPanoramaTransforms(List<Bitmap> bitmaps, List<Matrix> cumulative_transforms,
+    private void adjustPanoramaTransforms(int n_bitmaps, List<Matrix> cumulative_transforms,
                                           int panorama_width, int slice_width, int bitmap_width, int bitmap_height) {
         float [] values = new float[9];
 
         float min_rotation = 1000, max_rotation = - 1000;
         float sum_rotation = 0.0f;
-        for(int i=0;i<bitmaps.size();i++) {
+        for(int i=0;i<n_bitmaps;i++) {
             cumulative_transforms.get(i).getValues(values);
             // get rotation anticlockwise in degrees - https://stackoverflow.com/questions/12256854/get-the-rotate-value-from-matrix-in-android
             float rotation = (float)Math.toDegrees(Math.atan2(values[Matrix.MSKEW_X], values[Matrix.MSCALE_X]));
@@ -2751,7 +2690,7 @@ public class PanoramaProcessor {
             sum_rotation += rotation;
         }
         //float mid_rotation = 0.5f*(min_rotation + max_rotation);
-        //float mid_rotation = sum_rotation/bitmaps.size();
+        //float mid_rotation = sum_rotation/n_bitmaps;
         if( MyDebug.LOG ) {
             Log.d(TAG, "min_rotation: " + min_rotation + " degrees");
             Log.d(TAG, "max_rotation: " + max_rotation + " degrees");
@@ -2791,7 +2730,7 @@ public class PanoramaProcessor {
 
         // we now apply a rotation of -mid_rotation about what will be the centre of the resultant panoramic image, remembering
         // that each matrix in cumulative_transforms is set up for each input images coordinate space
-        for(int i=0;i<bitmaps.size();i++) {
+        for(int i=0;i<n_bitmaps;i++) {
             float centre_x = panorama_width/2.0f - i*slice_width;
             float centre_y = bitmap_height/2.0f;
             // apply a post rotate of mid_rotation clockwise about (centre_x, centre_y)
@@ -2806,11 +2745,14 @@ public class PanoramaProcessor {
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void renderPanorama(List<Bitmap> bitmaps, int bitmap_width, int bitmap_height,
-                                List<Matrix> cumulative_transforms, List<Integer> align_x_values, List<Integer> dst_offset_x_values,
-                                final int blend_hwidth, final int slice_width, final int offset_x,
-                                final Bitmap panorama, final int crop_x0, final int crop_y0,
-                                final double camera_angle, long time_s) {
+    private void renderPanorama(Stitcher stitcher, FrameSource frame_source,
+                                final Bitmap panorama, final int crop_x0, final int crop_y0) throws PanoramaProcessorException {
+        final int n_bitmaps = stitcher.n_frames;
+        final int bitmap_width = stitcher.bitmap_width;
+        final int bitmap_height = stitcher.bitmap_height;
+        final List<Matrix> cumulative_transforms = stitcher.cumulative_transforms;
+        final List<Integer> align_x_values = stitcher.align_x_values;
+        final long time_s = stitcher.time_s;
 
         Rect src_rect = new Rect();
         Rect dst_rect = new Rect();
@@ -2818,14 +2760,35 @@ public class PanoramaProcessor {
         Paint p = new Paint(Paint.FILTER_BITMAP_FLAG);
         Canvas canvas = new Canvas(panorama);
 
-        for(int i=0;i<bitmaps.size();i++) {
+        for(int i=0;i<n_bitmaps;i++) {
             if( MyDebug.LOG )
                 Log.d(TAG, "render bitmap: " + i);
-            Bitmap bitmap = bitmaps.get(i);
+            Bitmap frame = frame_source.getFrame(i);
+            if( frame == null ) {
+                Log.e(TAG, "failed to load bitmap: " + i);
+                throw new PanoramaProcessorException(PanoramaProcessorException.FAILED_TO_LOAD);
+            }
+            if( frame.getWidth() != bitmap_width || frame.getHeight() != bitmap_height ) {
+                Log.e(TAG, "bitmap not of the same size as when added");
+                frame_source.releaseFrame(i, frame);
+                throw new PanoramaProcessorException(PanoramaProcessorException.UNEQUAL_SIZES);
+            }
+
+            // adjust exposure
+            {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "    adjust exposure for image: " + i);
+                HDRProcessor.HistogramInfo histogramInfo = stitcher.histogramInfos.get(i);
+                hdrProcessor.brightenImage(frame, histogramInfo.median_brightness, histogramInfo.max_brightness, stitcher.brightness_targets[i]);
+                if( MyDebug.LOG )
+                    Log.d(TAG, "### time after adjusting brightness of " + i + "th bitmap: " + (System.currentTimeMillis() - time_s));
+            }
+
+            Bitmap bitmap = frame;
             int align_x = align_x_values.get(i);
             //int align_y = align_y_values.get(i);
             int align_y = 0;
-            int dst_offset_x = dst_offset_x_values.get(i);
+            int dst_offset_x = stitcher.dst_offset_x_values.get(i);
 
             //noinspection UnusedAssignment
             boolean free_bitmap = false;
@@ -2867,7 +2830,7 @@ public class PanoramaProcessor {
                     // ...but on the last image, we don't want to shift too far off screen, as we'll then chop
                     // off part of the image.
                     // See testPanorama19, where without this fix we lose a bit along the right hand side
-                    if( i == bitmaps.size()-1 && trans_x < 0 && bake_trans_x + trans_x > 0 ) {
+                    if( i == n_bitmaps-1 && trans_x < 0 && bake_trans_x + trans_x > 0 ) {
                         bake_trans_x = - trans_x;
                         //if( true )
                         //    throw new RuntimeException(); // test
@@ -2901,13 +2864,15 @@ public class PanoramaProcessor {
                     free_bitmap = true;
                 }
             }
+            // the source frame is no longer needed once it's been transformed
+            frame_source.releaseFrame(i, frame);
 
-            renderPanoramaImage(i, bitmaps.size(), src_rect, dst_rect,
+            renderPanoramaImage(i, n_bitmaps, src_rect, dst_rect,
                     bitmap, p, bitmap_width, bitmap_height,
-                    blend_hwidth, slice_width, offset_x,
+                    stitcher.blend_hwidth, stitcher.slice_width, stitcher.offset_x,
                     panorama, canvas, crop_x0, crop_y0,
                     align_x, align_y, dst_offset_x, shift_stop_x, centre_shift_x,
-                    camera_angle, time_s);
+                    stitcher.camera_angle, time_s);
 
             if( free_bitmap ) {
                 bitmap.recycle();
@@ -2918,101 +2883,47 @@ public class PanoramaProcessor {
         }
     }
 
+    /** Completes a panorama started with startPanorama(), once all frames have been added. The
+     *  frames are requested from frame_source one at a time, so that only a single frame needs to
+     *  be held whilst rendering.
+     * @return The panorama image.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    public Bitmap panorama(List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "panorama");
-            Log.d(TAG, "camera_angle_y: " + camera_angle_y);
-        }
-
-        long time_s = 0;
-        if( MyDebug.LOG )
-            time_s = System.currentTimeMillis();
-
-        int bitmap_width = bitmaps.get(0).getWidth();
-        int bitmap_height = bitmaps.get(0).getHeight();
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "bitmap_width: " + bitmap_width);
-            Log.d(TAG, "bitmap_height: " + bitmap_height);
-        }
-
-        for(int i=1;i<bitmaps.size();i++) {
-            Bitmap bitmap = bitmaps.get(i);
-            if( bitmap.getWidth() != bitmap_width || bitmap.getHeight() != bitmap_height ) {
-                Log.e(TAG, "bitmaps not of equal sizes");
-                throw new PanoramaProcessorException(PanoramaProcessorException.UNEQUAL_SIZES);
-            }
-        }
-        /*{
-            // test
-            for(int i=0;i<bitmaps.size();i++) {
-                Bitmap bitmap = bitmaps.get(i);
-                saveBitmap(bitmap, "input_bitmap_" + i +".png");
-            }
-        }*/
-
-        final int slice_width = (int) (bitmap_width / panorama_pics_per_screen);
+    public Bitmap finishPanorama(Stitcher stitcher, FrameSource frame_source) throws PanoramaProcessorException {
         if( MyDebug.LOG )
-            Log.d(TAG, "slice_width: " + slice_width);
-
-        final double camera_angle = Math.toRadians(camera_angle_y);
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "camera_angle_y: " + camera_angle_y);
-            Log.d(TAG, "camera_angle: " + camera_angle);
-        }
-        // max offset error of gyro_tol_degrees - convert this to pixels
-        //int max_offset_error_x = (int)(gyro_tol_degrees * bitmap_width / mActivity.getPreview().getViewAngleY() + 0.5f);
-        //int max_offset_error_y = (int)(gyro_tol_degrees * bitmap_height / mActivity.getPreview().getViewAngleX() + 0.5f);
-        //if we use the above code, remember not to use the camera view angles, but those that the test photos were taken with!
-        //double h = ((double)bitmap_width) / (2.0 * Math.tan(camera_angle/2.0) );
-        /*int max_offset_error_x = (int)(h * Math.tan(Math.toRadians(gyro_tol_degrees)) + 0.5f);
-        max_offset_error_x *= 2; // allow a fudge factor
-        int max_offset_error_y = max_offset_error_x;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "h: " + h);
-            Log.d(TAG, "max_offset_error_x: " + max_offset_error_x);
-            Log.d(TAG, "max_offset_error_y: " + max_offset_error_y);
-        }
-        */
-
-        final int offset_x = (bitmap_width - slice_width)/2;
-        // blend_hwidth is the half-width of the region that we blend between.
-        // N.B., when using blendPyramids(), the region we actually have blending over is only half
-        // of the width of the images it receives to blend receive (i.e., the blend region width
-        // is equal to blend_hwidth), because of the code to find a best path.
-        //final int blend_hwidth = 0;
-        //final int blend_hwidth = nextPowerOf2(bitmap_width/20);
-        //final int blend_hwidth = nextPowerOf2(bitmap_width/10);
-        final int blend_hwidth = nextMultiple((int)(bitmap_width/6.1f+0.5f), getBlendDimension()/2);
-        //final int blend_hwidth = nextPowerOf2(bitmap_width/5);
-        final int align_hwidth = bitmap_width/10;
-        //final int align_hwidth = bitmap_width/5;
-        if( MyDebug.LOG ) {
-            Log.d(TAG, "    blend_hwidth: " + blend_hwidth);
-            Log.d(TAG, "    align_hwidth: " + align_hwidth);
+            Log.d(TAG, "finishPanorama");
+        final int n_bitmaps = stitcher.n_frames;
+        if( n_bitmaps == 0 ) {
+            Log.e(TAG, "no frames added to panorama");
+            throw new PanoramaProcessorException(PanoramaProcessorException.INVALID_N_IMAGES);
         }
-
-        List<Matrix> cumulative_transforms = new ArrayList<>(); // i-th entry is the transform to apply to the i-th bitmap so that it's aligned to the same space as the 1st bitmap
-
-        List<Integer> align_x_values = new ArrayList<>();
-        List<Integer> dst_offset_x_values = new ArrayList<>();
-
-        computePanoramaTransforms(cumulative_transforms, align_x_values, dst_offset_x_values, bitmaps,
-                bitmap_width, bitmap_height, offset_x, slice_width, align_hwidth, time_s);
+        final int bitmap_width = stitcher.bitmap_width;
+        final int bitmap_height = stitcher.bitmap_height;
+        final int slice_width = stitcher.slice_width;
+        final int offset_x = stitcher.offset_x;
+        final double camera_angle = stitcher.camera_angle;
+        final boolean crop = stitcher.crop;
+        final List<Matrix> cumulative_transforms = stitcher.cumulative_transforms;
+        final long time_s = stitcher.time_s;
+        // the stitcher no longer needs the last frame
+        stitcher.prev_bitmap = null;
+        stitcher.prev_column_histogram = null;
+        stitcher.spare_column_histogram = null;
+        stitcher.row_buffer = null;
 
         // note that we crop the panorama_width later on, but for now we still need an estimate, before finalising
         // the transforms
-        int panorama_width = (bitmaps.size()*slice_width+2*offset_x);
+        int panorama_width = (n_bitmaps*slice_width+2*offset_x);
         if( MyDebug.LOG ) {
             Log.d(TAG, "original panorama_width: " + panorama_width);
         }
 
-        adjustPanoramaTransforms(bitmaps, cumulative_transforms, panorama_width, slice_width, bitmap_width, bitmap_height);
+        adjustPanoramaTransforms(n_bitmaps, cumulative_transforms, panorama_width, slice_width, bitmap_width, bitmap_height);
         if( MyDebug.LOG )
             Log.d(TAG, "### time after adjusting transforms: " + (System.currentTimeMillis() - time_s));
 
         //adjustExposures(bitmaps, time_s);
-        float ratio_brightnesses = adjustExposuresLocal(bitmaps, bitmap_width, bitmap_height, slice_width, time_s);
+        float ratio_brightnesses = computeBrightnessTargets(stitcher, time_s);
 
         int panorama_height = bitmap_height;
         int crop_x0 = 0;
@@ -3022,7 +2933,7 @@ public class PanoramaProcessor {
             // compute crop regions
             int crop_x1 = bitmap_width-1;
             int crop_y1 = bitmap_height-1;
-            for(int i=0;i<bitmaps.size();i++) {
+            for(int i=0;i<n_bitmaps;i++) {
                 float [] points = new float[8];
 
                 points[0] = 0.0f;
@@ -3060,7 +2971,7 @@ public class PanoramaProcessor {
                     crop_x0 = Math.max(crop_x0, (int)points[0]);
                     crop_x0 = Math.max(crop_x0, (int)points[4]);
                 }
-                if( i == bitmaps.size()-1 ) {
+                if( i == n_bitmaps-1 ) {
                     crop_x1 = Math.min(crop_x1, (int)points[2]);
                     crop_x1 = Math.min(crop_x1, (int)points[6]);
                 }
@@ -3075,7 +2986,7 @@ public class PanoramaProcessor {
             }
             /*if( crop_x0 > 0 ) {
                 // need to shift transforms over
-                for(int i=0;i<bitmaps.size();i++) {
+                for(int i=0;i<n_bitmaps;i++) {
                     cumulative_transforms.get(i).postTranslate(-crop_x0, 0.0f);
                 }
             }*/
@@ -3116,16 +3027,17 @@ public class PanoramaProcessor {
 
         if( MyDebug.LOG )
             Log.d(TAG, "### time before rendering bitmaps: " + (System.currentTimeMillis() - time_s));
-        renderPanorama(bitmaps, bitmap_width, bitmap_height, cumulative_transforms, align_x_values, dst_offset_x_values,
-                blend_hwidth, slice_width, offset_x, panorama, crop_x0, crop_y0, camera_angle, time_s);
+        try {
+            renderPanorama(stitcher, frame_source, panorama, crop_x0, crop_y0);
+        }
+        catch(PanoramaProcessorException e) {
+            panorama.recycle();
+            freeScripts();
+            throw e;
+        }
         if( MyDebug.LOG )
             Log.d(TAG, "### time after rendering bitmaps: " + (System.currentTimeMillis() - time_s));
 
-        for(Bitmap bitmap : bitmaps) {
-            bitmap.recycle();
-        }
-        bitmaps.clear();
-
         if( ratio_brightnesses >= 3.0f ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "apply contrast enhancement, ratio_brightnesses: " + ratio_brightnesses);
@@ -3156,4 +3068,50 @@ public class PanoramaProcessor {
         return panorama;
     }
 
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap panorama(final List<Bitmap> bitmaps, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+        return panorama(bitmaps, null, panorama_pics_per_screen, camera_angle_y, crop);
+    }
+
+    /** As panorama(List, float, float, boolean), but also supplies the gyro rotation matrices for
+     *  the bitmaps (one per bitmap), or null if not known. See addPanoramaFrame().
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public Bitmap panorama(final List<Bitmap> bitmaps, List<float []> gyro_rotation_matrices, float panorama_pics_per_screen, float camera_angle_y, final boolean crop) throws PanoramaProcessorException {
+        if( MyDebug.LOG ) {
+            Log.d(TAG, "panorama");
+            Log.d(TAG, "camera_angle_y: " + camera_angle_y);
+        }
+        if( gyro_rotation_matrices != null && gyro_rotation_matrices.size() != bitmaps.size() ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "gyro rotation matrices don't match bitmaps, ignoring");
+            gyro_rotation_matrices = null;
+        }
+
+        Stitcher stitcher = startPanorama(panorama_pics_per_screen, camera_angle_y, crop);
+        for(int i=0;i<bitmaps.size();i++) {
+            // all the bitmaps are kept until rendered, so nothing to do with the returned previous frame
+            addPanoramaFrame(stitcher, bitmaps.get(i), gyro_rotation_matrices != null ? gyro_rotation_matrices.get(i) : null);
+        }
+
+        Bitmap panorama = finishPanorama(stitcher, new FrameSource() {
+            @Override
+            public Bitmap getFrame(int i) {
+                return bitmaps.get(i);
+            }
+
+            @Override
+            public void releaseFrame(int i, Bitmap bitmap) {
+                // bitmaps are recycled below
+            }
+        });
+
+        for(Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        bitmaps.clear();
+
+        return panorama;
+    }
+
 }
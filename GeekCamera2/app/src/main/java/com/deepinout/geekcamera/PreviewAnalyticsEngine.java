@@ -0,0 +1,329 @@
+package com.deepinout.geekcamera;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/** Pure Java implementation of the preview analysis kernels in histogram_compute.rs (histograms,
+ *  zebra stripes and focus peaking). This works on ARGB int [] pixels (as returned by
+ *  Bitmap.getPixels()), so doesn't require RenderScript, and can be run and tested on a plain JVM.
+ *  Rows are split across a ForkJoinPool; for histograms, each task computes its own partial
+ *  histogram, and these are summed when the tasks are joined.
+ *  All operations take a subsample factor: a value of N means only every Nth row and column of
+ *  the input is analysed, giving a cheaper approximate result. For zebra stripes and focus
+ *  peaking, the output then has dimensions getSubsampledSize(width, N) x getSubsampledSize(height, N).
+ */
+public class PreviewAnalyticsEngine {
+    private static final int min_rows_per_task_c = 16;
+
+    // histogram types, equivalent to Preview.HistogramType (this class doesn't refer to
+    // Preview.HistogramType, so that it has no dependencies on Android)
+    public static final int histogram_type_rgb_c = 0;
+    public static final int histogram_type_luminance_c = 1;
+    public static final int histogram_type_value_c = 2;
+    public static final int histogram_type_intensity_c = 3;
+    public static final int histogram_type_lightness_c = 4;
+
+    private static final int focus_peaking_threshold_c = 256*256; // as in generate_focus_peaking
+    private static final int focus_peaking_on_c = 0xffffffff;
+
+    /** The parameters for zebra stripes, equivalent to the zebra_stripes_* variables in
+     *  histogram_compute.rs.
+     */
+    public static class ZebraStripesSettings {
+        final int threshold;
+        final int color_foreground; // ARGB
+        final int color_background; // ARGB
+        final int stripe_width;
+
+        public ZebraStripesSettings(int threshold, int color_foreground, int color_background, int stripe_width) {
+            this.threshold = threshold;
+            this.color_foreground = color_foreground;
+            this.color_background = color_background;
+            this.stripe_width = Math.max(stripe_width, 1);
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    public PreviewAnalyticsEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public PreviewAnalyticsEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Returns the number of samples along a dimension of the given size, when subsampling.
+     */
+    public static int getSubsampledSize(int size, int subsample) {
+        return (size + subsample - 1) / subsample;
+    }
+
+    /** Computes a histogram of the supplied image.
+     * @param pixels         The image, as ARGB pixels.
+     * @param histogram_type One of the histogram_type_*_c constants.
+     * @param subsample      Only analyse every subsample-th row and column.
+     * @return The histogram: 256 entries, or for histogram_type_rgb_c, 256*3 entries (red,
+     *         followed by green, followed by blue), matching the layout used by Preview.
+     */
+    public int [] computeHistogram(int [] pixels, int width, int height, int histogram_type, int subsample) {
+        if( subsample < 1 ) {
+            throw new IllegalArgumentException("subsample must be at least 1");
+        }
+        HistogramTask task = new HistogramTask(pixels, width, histogram_type, subsample, 0, getSubsampledSize(height, subsample));
+        return pool.invoke(task);
+    }
+
+    private static class HistogramTask extends RecursiveTask<int []> {
+        private final int [] pixels;
+        private final int width;
+        private final int histogram_type;
+        private final int subsample;
+        private final int start_sy, stop_sy; // in subsampled rows
+
+        HistogramTask(int [] pixels, int width, int histogram_type, int subsample, int start_sy, int stop_sy) {
+            this.pixels = pixels;
+            this.width = width;
+            this.histogram_type = histogram_type;
+            this.subsample = subsample;
+            this.start_sy = start_sy;
+            this.stop_sy = stop_sy;
+        }
+
+        @Override
+        protected int [] compute() {
+            if( stop_sy - start_sy <= min_rows_per_task_c ) {
+                int [] histogram = new int[histogram_type == histogram_type_rgb_c ? 256*3 : 256];
+                for(int sy=start_sy;sy<stop_sy;sy++) {
+                    addRowToHistogram(histogram, pixels, sy*subsample*width, width, histogram_type, subsample);
+                }
+                return histogram;
+            }
+            int mid_sy = (start_sy + stop_sy)/2;
+            HistogramTask task0 = new HistogramTask(pixels, width, histogram_type, subsample, start_sy, mid_sy);
+            HistogramTask task1 = new HistogramTask(pixels, width, histogram_type, subsample, mid_sy, stop_sy);
+            task1.fork();
+            int [] histogram = task0.compute();
+            int [] histogram1 = task1.join();
+            for(int i=0;i<histogram.length;i++) {
+                histogram[i] += histogram1[i];
+            }
+            return histogram;
+        }
+    }
+
+    static void addRowToHistogram(int [] histogram, int [] pixels, int row_offset, int width, int histogram_type, int subsample) {
+        for(int x=0;x<width;x+=subsample) {
+            int color = pixels[row_offset + x];
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = color & 0xff;
+            switch( histogram_type ) {
+                case histogram_type_rgb_c:
+                    histogram[r]++;
+                    histogram[256 + g]++;
+                    histogram[512 + b]++;
+                    break;
+                case histogram_type_luminance_c: {
+                    float avg = 0.299f*r + 0.587f*g + 0.114f*b;
+                    int value = Math.min((int)(avg+0.5f), 255); // round to nearest
+                    histogram[value]++;
+                    break;
+                }
+                case histogram_type_value_c:
+                    histogram[Math.max(Math.max(r, g), b)]++;
+                    break;
+                case histogram_type_intensity_c: {
+                    float avg = (r + g + b)/3.0f;
+                    int value = Math.min((int)(avg+0.5f), 255); // round to nearest
+                    histogram[value]++;
+                    break;
+                }
+                case histogram_type_lightness_c: {
+                    int max_value = Math.max(Math.max(r, g), b);
+                    int min_value = Math.min(Math.min(r, g), b);
+                    float avg = (min_value + max_value)/2.0f;
+                    int value = Math.min((int)(avg+0.5f), 255); // round to nearest
+                    histogram[value]++;
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unknown histogram_type: " + histogram_type);
+            }
+        }
+    }
+
+    /** Generates the zebra stripes overlay, equivalent to generate_zebra_stripes.
+     * @param pixels    The image, as ARGB pixels.
+     * @param subsample Only analyse every subsample-th row and column.
+     * @param output    Receives the overlay as ARGB pixels, of the subsampled size. Pixels below
+     *                  the threshold are set to transparent.
+     */
+    public void generateZebraStripes(int [] pixels, int width, int height, ZebraStripesSettings settings, int subsample, int [] output) {
+        if( subsample < 1 ) {
+            throw new IllegalArgumentException("subsample must be at least 1");
+        }
+        RowsTask task = new RowsTask(RowsTask.kernel_zebra_stripes_c, pixels, width, height, settings, subsample, output, 0, getSubsampledSize(height, subsample));
+        pool.invoke(task);
+    }
+
+    /** Generates the focus peaking overlay, equivalent to generate_focus_peaking followed by the
+     *  median filter generate_focus_peaking_filtered.
+     * @param pixels    The image, as ARGB pixels.
+     * @param subsample Only analyse every subsample-th row and column; the edge detection then
+     *                  compares pixels subsample apart.
+     * @param temp      Work array, of the same size as output.
+     * @param output    Receives the overlay as ARGB pixels, of the subsampled size. Pixels that
+     *                  aren't in focus are set to transparent.
+     */
+    public void generateFocusPeaking(int [] pixels, int width, int height, int subsample, int [] temp, int [] output) {
+        if( subsample < 1 ) {
+            throw new IllegalArgumentException("subsample must be at least 1");
+        }
+        int sub_height = getSubsampledSize(height, subsample);
+        pool.invoke(new RowsTask(RowsTask.kernel_focus_peaking_c, pixels, width, height, null, subsample, temp, 0, sub_height));
+        // the median filter reads neighbouring rows, so must wait until the first pass is complete
+        pool.invoke(new RowsTask(RowsTask.kernel_focus_peaking_filtered_c, temp, width, height, null, subsample, output, 0, sub_height));
+    }
+
+    /** Applies a per-pixel kernel to rows [start_sy, stop_sy) of the subsampled output.
+     */
+    private static class RowsTask extends RecursiveAction {
+        static final int kernel_zebra_stripes_c = 0;
+        static final int kernel_focus_peaking_c = 1;
+        static final int kernel_focus_peaking_filtered_c = 2;
+
+        private final int kernel;
+        private final int [] input;
+        private final int width, height; // of the full resolution image
+        private final ZebraStripesSettings settings;
+        private final int subsample;
+        private final int [] output;
+        private final int start_sy, stop_sy;
+
+        RowsTask(int kernel, int [] input, int width, int height, ZebraStripesSettings settings, int subsample, int [] output, int start_sy, int stop_sy) {
+            this.kernel = kernel;
+            this.input = input;
+            this.width = width;
+            this.height = height;
+            this.settings = settings;
+            this.subsample = subsample;
+            this.output = output;
+            this.start_sy = start_sy;
+            this.stop_sy = stop_sy;
+        }
+
+        @Override
+        protected void compute() {
+            if( stop_sy - start_sy <= min_rows_per_task_c ) {
+                for(int sy=start_sy;sy<stop_sy;sy++) {
+                    switch( kernel ) {
+                        case kernel_zebra_stripes_c:
+                            zebraStripesRow(input, width, settings, subsample, sy, output);
+                            break;
+                        case kernel_focus_peaking_c:
+                            focusPeakingRow(input, width, height, subsample, sy, output);
+                            break;
+                        case kernel_focus_peaking_filtered_c:
+                            focusPeakingFilteredRow(input, width, height, subsample, sy, output);
+                            break;
+                    }
+                }
+            }
+            else {
+                int mid_sy = (start_sy + stop_sy)/2;
+                invokeAll(
+                        new RowsTask(kernel, input, width, height, settings, subsample, output, start_sy, mid_sy),
+                        new RowsTask(kernel, input, width, height, settings, subsample, output, mid_sy, stop_sy)
+                );
+            }
+        }
+    }
+
+    private static void zebraStripesRow(int [] pixels, int width, ZebraStripesSettings settings, int subsample, int sy, int [] output) {
+        final int sub_width = getSubsampledSize(width, subsample);
+        final int y = sy*subsample;
+        int in_offset = y*width;
+        int out_offset = sy*sub_width;
+        for(int sx=0;sx<sub_width;sx++) {
+            int x = sx*subsample;
+            int color = pixels[in_offset + x];
+            int value = Math.max(Math.max((color >> 16) & 0xff, (color >> 8) & 0xff), color & 0xff);
+            int out;
+            if( value >= settings.threshold ) {
+                int stripe = (x+y)/settings.stripe_width;
+                out = stripe % 2 == 0 ? settings.color_background : settings.color_foreground;
+            }
+            else {
+                out = 0;
+            }
+            output[out_offset + sx] = out;
+        }
+    }
+
+    private static void focusPeakingRow(int [] pixels, int width, int height, int subsample, int sy, int [] output) {
+        final int sub_width = getSubsampledSize(width, subsample);
+        final int sub_height = getSubsampledSize(height, subsample);
+        final int out_offset = sy*sub_width;
+        if( sy < 1 || sy >= sub_height-1 ) {
+            for(int sx=0;sx<sub_width;sx++) {
+                output[out_offset + sx] = 0;
+            }
+            return;
+        }
+        final int y = sy*subsample;
+        final int row1 = y*width;
+        final int row0 = row1 - subsample*width;
+        final int row2 = row1 + subsample*width;
+        output[out_offset] = 0;
+        output[out_offset + sub_width-1] = 0;
+        for(int sx=1;sx<sub_width-1;sx++) {
+            int x = sx*subsample;
+            int x0 = x - subsample;
+            int x2 = x + subsample;
+            // as in the RenderScript kernel, take the Laplacian of each colour channel, and
+            // threshold on the sum of squares (this is exact in integer arithmetic)
+            int p0 = pixels[row0 + x0], p1 = pixels[row0 + x], p2 = pixels[row0 + x2];
+            int p3 = pixels[row1 + x0], p4 = pixels[row1 + x], p5 = pixels[row1 + x2];
+            int p6 = pixels[row2 + x0], p7 = pixels[row2 + x], p8 = pixels[row2 + x2];
+            int strength = 0;
+            for(int shift=0;shift<=16;shift+=8) {
+                int value = 8*((p4 >> shift) & 0xff)
+                        - ((p0 >> shift) & 0xff) - ((p1 >> shift) & 0xff) - ((p2 >> shift) & 0xff)
+                        - ((p3 >> shift) & 0xff) - ((p5 >> shift) & 0xff)
+                        - ((p6 >> shift) & 0xff) - ((p7 >> shift) & 0xff) - ((p8 >> shift) & 0xff);
+                strength += value*value;
+            }
+            output[out_offset + sx] = strength > focus_peaking_threshold_c ? focus_peaking_on_c : 0;
+        }
+    }
+
+    private static void focusPeakingFilteredRow(int [] input, int width, int height, int subsample, int sy, int [] output) {
+        final int sub_width = getSubsampledSize(width, subsample);
+        final int sub_height = getSubsampledSize(height, subsample);
+        final int offset = sy*sub_width;
+        if( sy < 1 || sy >= sub_height-1 ) {
+            System.arraycopy(input, offset, output, offset, sub_width);
+            return;
+        }
+        output[offset] = input[offset];
+        output[offset + sub_width-1] = input[offset + sub_width-1];
+        for(int sx=1;sx<sub_width-1;sx++) {
+            int i = offset + sx;
+            int count = 0;
+            // input is greyscale, so only need to check one channel
+            if( (input[i - sub_width] & 0xff) == 255 )
+                count++;
+            if( (input[i - 1] & 0xff) == 255 )
+                count++;
+            if( (input[i] & 0xff) == 255 )
+                count++;
+            if( (input[i + 1] & 0xff) == 255 )
+                count++;
+            if( (input[i + sub_width] & 0xff) == 255 )
+                count++;
+            output[i] = count >= 3 ? focus_peaking_on_c : 0;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.deepinout.geekcamera;
+
+import java.util.Random;
+
+/** Robust estimation of the transformation between two sets of matched points, by RANSAC, for
+ *  panorama alignment (see PanoramaProcessor.autoAlignmentByFeature()).
+ *  Hypotheses are computed from minimal samples of the matches, and scored by counting the matches
+ *  that they map to within max_inlier_dist. Sampling stops early once enough hypotheses have been
+ *  tried to find an all-inlier sample with the requested confidence, given the best inlier ratio
+ *  found so far (or once every match is an inlier).
+ *  If there are no more possible samples than the maximum number of iterations, samples are
+ *  enumerated in order of the highest index they use, so the matches earliest in the arrays
+ *  (callers should sort them so these are the best matches) are tried first. Otherwise samples are
+ *  chosen randomly, using the supplied seed so that results are reproducible.
+ *  The points are held in parallel primitive arrays. This has no dependencies on Android, so can be
+ *  run on a plain JVM.
+ */
+public class RansacEstimator {
+    public enum Model {
+        TRANSLATION(1), // translation only
+        RIGID(2), // rotation and translation
+        SIMILARITY(2), // uniform scale, rotation and translation
+        HOMOGRAPHY(4); // full perspective transformation
+
+        private final int sample_size;
+
+        Model(int sample_size) {
+            this.sample_size = sample_size;
+        }
+
+        /** The number of matches needed to compute a hypothesis for this model.
+         */
+        public int getSampleSize() {
+            return sample_size;
+        }
+    }
+
+    /** The result of estimate().
+     */
+    public static class Result {
+        public final Model model;
+        // the 3x3 transformation matrix in row major order, mapping points in the first set to the
+        // second; null if no valid hypothesis was found
+        public final float [] transform;
+        public final boolean [] inliers; // whether each match is an inlier of transform
+        public final int n_inliers;
+        public final int [] sample; // the indices of the matches that transform was computed from
+        public final int iterations; // the number of hypotheses that were scored
+
+        Result(Model model, float [] transform, boolean [] inliers, int n_inliers, int [] sample, int iterations) {
+            this.model = model;
+            this.transform = transform;
+            this.inliers = inliers;
+            this.n_inliers = n_inliers;
+            this.sample = sample;
+            this.iterations = iterations;
+        }
+    }
+
+    private final Model model;
+    private final float max_inlier_dist2;
+    private final long seed;
+    private float confidence = 0.999f;
+    private int max_iterations = 1000;
+    private float min_sample_dist2;
+    private float max_rotation = (float)Math.PI;
+    private int min_inliers;
+    private boolean [] sample_mask;
+
+    // scratch space for computing homographies
+    private final double [] system = new double[8*9];
+
+    public RansacEstimator(Model model, float max_inlier_dist, long seed) {
+        this.model = model;
+        this.max_inlier_dist2 = max_inlier_dist*max_inlier_dist;
+        this.seed = seed;
+    }
+
+    /** The probability required that at least one sample consisting only of inliers has been
+     *  tried, before stopping early. Defaults to 0.999.
+     */
+    public void setConfidence(float confidence) {
+        this.confidence = confidence;
+    }
+
+    /** The maximum number of hypotheses to score. Defaults to 1000.
+     */
+    public void setMaxIterations(int max_iterations) {
+        this.max_iterations = max_iterations;
+    }
+
+    /** Samples with two points closer than this (in either set of points) are rejected, as they
+     *  give unreliable rotations and scales.
+     */
+    public void setMinSampleDist(float min_sample_dist) {
+        this.min_sample_dist2 = min_sample_dist*min_sample_dist;
+    }
+
+    /** Hypotheses of the RIGID or SIMILARITY models that rotate by more than this (in radians) are
+     *  rejected.
+     */
+    public void setMaxRotation(float max_rotation) {
+        this.max_rotation = max_rotation;
+    }
+
+    /** Hypotheses with fewer inliers than this are rejected.
+     */
+    public void setMinInliers(int min_inliers) {
+        this.min_inliers = min_inliers;
+    }
+
+    /** If non-null, only matches i for which sample_mask[i] is true are used to compute
+     *  hypotheses; all matches are still used when counting inliers.
+     */
+    public void setSampleMask(boolean [] sample_mask) {
+        this.sample_mask = sample_mask;
+    }
+
+    /** Returns the number of hypotheses needed to find an all-inlier sample of sample_size matches
+     *  with the given confidence, if a fraction inlier_ratio of the matches are inliers.
+     */
+    public static int getRequiredIterations(float confidence, float inlier_ratio, int sample_size, int max_iterations) {
+        if( inlier_ratio >= 1.0f )
+            return 1;
+        double all_inliers = Math.pow(inlier_ratio, sample_size);
+        double log_outliers = Math.log(1.0 - all_inliers);
+        if( !(log_outliers < 0.0) )
+            return max_iterations; // all_inliers is too small to make progress
+        double iterations = Math.ceil(Math.log(1.0 - confidence) / log_outliers);
+        return (int)Math.max(1.0, Math.min(max_iterations, iterations));
+    }
+
+    /** Returns the number of inliers for the transformation, writing whether each match is an
+     *  inlier to inliers.
+     */
+    public int countInliers(float [] transform, float [] x0, float [] y0, float [] x1, float [] y1, int n, boolean [] inliers) {
+        final float h0 = transform[0], h1 = transform[1], h2 = transform[2];
+        final float h3 = transform[3], h4 = transform[4], h5 = transform[5];
+        final float h6 = transform[6], h7 = transform[7], h8 = transform[8];
+        int count = 0;
+        if( h6 == 0.0f && h7 == 0.0f && h8 == 1.0f ) {
+            // affine, so no need to divide
+            for(int i=0;i<n;i++) {
+                float dx = h0*x0[i] + h1*y0[i] + h2 - x1[i];
+                float dy = h3*x0[i] + h4*y0[i] + h5 - y1[i];
+                boolean inlier = dx*dx + dy*dy <= max_inlier_dist2;
+                inliers[i] = inlier;
+                if( inlier )
+                    count++;
+            }
+        }
+        else {
+            for(int i=0;i<n;i++) {
+                float w = h6*x0[i] + h7*y0[i] + h8;
+                boolean inlier = false;
+                if( w > 0.0f ) {
+                    float dx = (h0*x0[i] + h1*y0[i] + h2)/w - x1[i];
+                    float dy = (h3*x0[i] + h4*y0[i] + h5)/w - y1[i];
+                    inlier = dx*dx + dy*dy <= max_inlier_dist2;
+                }
+                inliers[i] = inlier;
+                if( inlier )
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /** Estimates the transformation from the points (x0[i], y0[i]) to (x1[i], y1[i]), for the
+     *  first n matches.
+     */
+    public Result estimate(float [] x0, float [] y0, float [] x1, float [] y1, int n) {
+        final int sample_size = model.getSampleSize();
+        int [] sample = new int[sample_size];
+        int [] best_sample = new int[sample_size];
+        float [] transform = new float[9];
+        float [] best_transform = null;
+        boolean [] inliers = new boolean[n];
+        boolean [] best_inliers = new boolean[n];
+        int best_n_inliers = 0;
+        int iterations = 0;
+        if( n < sample_size ) {
+            return new Result(model, null, best_inliers, 0, null, 0);
+        }
+
+        // decide whether to enumerate every sample
+        long n_samples = 1;
+        for(int i=0;i<sample_size;i++) {
+            n_samples = n_samples * (n-i) / (i+1);
+        }
+        final boolean enumerate = n_samples <= max_iterations;
+        Random random = enumerate ? null : new Random(seed);
+        // when sampling randomly, also limit the number of samples that are rejected before scoring
+        final int max_attempts = enumerate ? (int)n_samples : 10*max_iterations;
+        for(int i=0;i<sample_size;i++) {
+            sample[i] = i;
+        }
+
+        int required_iterations = max_iterations;
+        for(int attempt=0;attempt<max_attempts && iterations<required_iterations;attempt++) {
+            if( enumerate ) {
+                if( attempt > 0 )
+                    nextCombination(sample, n);
+            }
+            else {
+                randomSample(random, sample, n);
+            }
+
+            if( !isValidSample(sample, x0, y0, x1, y1) )
+                continue;
+            if( !computeTransform(sample, x0, y0, x1, y1, transform) )
+                continue;
+            iterations++;
+
+            int n_inliers = countInliers(transform, x0, y0, x1, y1, n, inliers);
+            if( n_inliers > best_n_inliers && n_inliers >= min_inliers ) {
+                // found an improved model
+                best_n_inliers = n_inliers;
+                if( best_transform == null )
+                    best_transform = new float[9];
+                System.arraycopy(transform, 0, best_transform, 0, 9);
+                System.arraycopy(sample, 0, best_sample, 0, sample_size);
+                boolean [] temp = best_inliers;
+                best_inliers = inliers;
+                inliers = temp;
+                if( best_n_inliers == n ) {
+                    // no point trying any further
+                    break;
+                }
+                required_iterations = getRequiredIterations(confidence, best_n_inliers/(float)n, sample_size, max_iterations);
+            }
+        }
+
+        return new Result(model, best_transform, best_inliers, best_n_inliers, best_transform == null ? null : best_sample, iterations);
+    }
+
+    /** Advances sample to the next combination of indices less than n, in colexicographic order
+     *  (so in order of the highest index).
+     */
+    private static void nextCombination(int [] sample, int n) {
+        final int k = sample.length;
+        for(int i=0;i<k;i++) {
+            int limit = i == k-1 ? n : sample[i+1];
+            if( sample[i]+1 < limit ) {
+                sample[i]++;
+                for(int j=0;j<i;j++) {
+                    sample[j] = j;
+                }
+                return;
+            }
+        }
+    }
+
+    private static void randomSample(Random random, int [] sample, int n) {
+        for(int i=0;i<sample.length;i++) {
+            boolean repeated;
+            do {
+                sample[i] = random.nextInt(n);
+                repeated = false;
+                for(int j=0;j<i && !repeated;j++) {
+                    repeated = sample[j] == sample[i];
+                }
+            }
+            while( repeated );
+        }
+    }
+
+    private boolean isValidSample(int [] sample, float [] x0, float [] y0, float [] x1, float [] y1) {
+        for(int i=0;i<sample.length;i++) {
+            int index = sample[i];
+            if( sample_mask != null && !sample_mask[index] )
+                return false;
+            for(int j=0;j<i;j++) {
+                int index2 = sample[j];
+                float dx0 = x0[index] - x0[index2];
+                float dy0 = y0[index] - y0[index2];
+                float dx1 = x1[index] - x1[index2];
+                float dy1 = y1[index] - y1[index2];
+                // always reject coincident points, as they don't define a transformation
+                if( dx0*dx0 + dy0*dy0 < Math.max(min_sample_dist2, 1.0e-5f) || dx1*dx1 + dy1*dy1 < Math.max(min_sample_dist2, 1.0e-5f) )
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /** Computes the hypothesis for the sample, returning false if it isn't valid.
+     */
+    private boolean computeTransform(int [] sample, float [] x0, float [] y0, float [] x1, float [] y1, float [] transform) {
+        switch( model ) {
+            case TRANSLATION: {
+                int i = sample[0];
+                setAffine(transform, 1.0f, 0.0f, x1[i] - x0[i], 0.0f, 1.0f, y1[i] - y0[i]);
+                return true;
+            }
+            case RIGID:
+            case SIMILARITY: {
+                int i = sample[0], j = sample[1];
+                float dx0 = x0[i] - x0[j];
+                float dy0 = y0[i] - y0[j];
+                float dx1 = x1[i] - x1[j];
+                float dy1 = y1[i] - y1[j];
+                float angle = (float)(Math.atan2(dy1, dx1) - Math.atan2(dy0, dx0));
+                if( angle < -Math.PI )
+                    angle += 2.0f*Math.PI;
+                else if( angle > Math.PI )
+                    angle -= 2.0f*Math.PI;
+                if( Math.abs(angle) > max_rotation )
+                    return false;
+                float scale = 1.0f;
+                if( model == Model.SIMILARITY ) {
+                    scale = (float)Math.sqrt((dx1*dx1 + dy1*dy1) / (dx0*dx0 + dy0*dy0));
+                }
+                float a = scale * (float)Math.cos(angle);
+                float b = scale * (float)Math.sin(angle);
+                // map the midpoint of the sample in the first set to the midpoint in the second
+                float c0_x = 0.5f*(x0[i] + x0[j]), c0_y = 0.5f*(y0[i] + y0[j]);
+                float c1_x = 0.5f*(x1[i] + x1[j]), c1_y = 0.5f*(y1[i] + y1[j]);
+                setAffine(transform, a, -b, c1_x - (a*c0_x - b*c0_y), b, a, c1_y - (b*c0_x + a*c0_y));
+                return true;
+            }
+            case HOMOGRAPHY:
+                return computeHomography(sample, x0, y0, x1, y1, transform);
+        }
+        return false;
+    }
+
+    private static void setAffine(float [] transform, float h0, float h1, float h2, float h3, float h4, float h5) {
+        transform[0] = h0;
+        transform[1] = h1;
+        transform[2] = h2;
+        transform[3] = h3;
+        transform[4] = h4;
+        transform[5] = h5;
+        transform[6] = 0.0f;
+        transform[7] = 0.0f;
+        transform[8] = 1.0f;
+    }
+
+    /** Computes the homography (with h8 == 1) mapping the 4 points of the sample exactly, by
+     *  solving the 8x8 linear system with Gaussian elimination. Returns false if the points are
+     *  degenerate.
+     */
+    private boolean computeHomography(int [] sample, float [] x0, float [] y0, float [] x1, float [] y1, float [] transform) {
+        final int cols = 9;
+        for(int k=0;k<4;k++) {
+            int i = sample[k];
+            double x = x0[i], y = y0[i], u = x1[i], v = y1[i];
+            int row = 2*k*cols;
+            // u = (h0 x + h1 y + h2) / (h6 x + h7 y + 1)
+            system[row] = x; system[row+1] = y; system[row+2] = 1.0; system[row+3] = 0.0; system[row+4] = 0.0; system[row+5] = 0.0;
+            system[row+6] = -u*x; system[row+7] = -u*y; system[row+8] = u;
+            row += cols;
+            // v = (h3 x + h4 y + h5) / (h6 x + h7 y + 1)
+            system[row] = 0.0; system[row+1] = 0.0; system[row+2] = 0.0; system[row+3] = x; system[row+4] = y; system[row+5] = 1.0;
+            system[row+6] = -v*x; system[row+7] = -v*y; system[row+8] = v;
+        }
+
+        for(int c=0;c<8;c++) {
+            // partial pivoting
+            int pivot = c;
+            for(int r=c+1;r<8;r++) {
+                if( Math.abs(system[r*cols+c]) > Math.abs(system[pivot*cols+c]) )
+                    pivot = r;
+            }
+            if( Math.abs(system[pivot*cols+c]) < 1.0e-9 )
+                return false;
+            if( pivot != c ) {
+                for(int k=0;k<cols;k++) {
+                    double temp = system[c*cols+k];
+                    system[c*cols+k] = system[pivot*cols+k];
+                    system[pivot*cols+k] = temp;
+                }
+            }
+            for(int r=0;r<8;r++) {
+                if( r == c )
+                    continue;
+                double factor = system[r*cols+c] / system[c*cols+c];
+                if( factor == 0.0 )
+                    continue;
+                for(int k=c;k<cols;k++) {
+                    system[r*cols+k] -= factor * system[c*cols+k];
+                }
+            }
+        }
+        for(int r=0;r<8;r++) {
+            transform[r] = (float)(system[r*cols+8] / system[r*cols+r]);
+        }
+        transform[8] = 1.0f;
+
+        // reject transformations that send any of the sample points behind the camera
+        for(int k=0;k<4;k++) {
+            int i = sample[k];
+            if( transform[6]*x0[i] + transform[7]*y0[i] + 1.0f <= 0.0f )
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,82 @@
+package com.deepinout.geekcamera;
+
+/** Finds the seam along which to blend two overlapping images, for panoramas. A cost map of the
+ *  per-pixel differences between the images is computed, and then the vertical seam (one x
+ *  coordinate per row, moving by at most one pixel between rows) with minimum total cost is found
+ *  by dynamic programming in a single pass over the rows.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class SeamFinder {
+    /** Computes the squared difference of the rgb values of n ARGB pixels, as the compute_error
+     *  kernel in pyramid_blending.rs does.
+     */
+    public static void computeCostMap(int [] pixels0, int [] pixels1, int n, int [] cost) {
+        for(int i=0;i<n;i++) {
+            int color0 = pixels0[i];
+            int color1 = pixels1[i];
+            int dr = ((color0 >> 16) & 0xff) - ((color1 >> 16) & 0xff);
+            int dg = ((color0 >> 8) & 0xff) - ((color1 >> 8) & 0xff);
+            int db = (color0 & 0xff) - (color1 & 0xff);
+            cost[i] = dr*dr + dg*dg + db*db;
+        }
+    }
+
+    /** Finds the minimum cost vertical seam through the supplied cost map, restricted to columns
+     *  [min_x, max_x]. Where there are several seams of equal cost, straight seams are preferred,
+     *  as are seams ending nearer the centre of the allowed range.
+     * @param cost The cost of each pixel, in row order.
+     * @param seam Output array of length height, receiving the x coordinate of the seam for each
+     *             row.
+     * @return The total cost of the seam.
+     */
+    public static long findSeam(int [] cost, int width, int height, int min_x, int max_x, int [] seam) {
+        if( min_x < 0 || max_x >= width || min_x > max_x ) {
+            throw new IllegalArgumentException("invalid seam range");
+        }
+        // for each pixel, the offset (-1, 0 or +1) to the seam's x coordinate on the previous row
+        byte [] directions = new byte[width*height];
+        long [] prev_totals = new long[width];
+        long [] totals = new long[width];
+        for(int x=min_x;x<=max_x;x++) {
+            prev_totals[x] = cost[x];
+        }
+        for(int y=1;y<height;y++) {
+            int row = y*width;
+            for(int x=min_x;x<=max_x;x++) {
+                long best = prev_totals[x];
+                byte direction = 0;
+                if( x > min_x && prev_totals[x-1] < best ) {
+                    best = prev_totals[x-1];
+                    direction = -1;
+                }
+                if( x < max_x && prev_totals[x+1] < best ) {
+                    best = prev_totals[x+1];
+                    direction = 1;
+                }
+                totals[x] = best + cost[row+x];
+                directions[row+x] = direction;
+            }
+            long [] temp = prev_totals;
+            prev_totals = totals;
+            totals = temp;
+        }
+
+        final int centre_x = (min_x + max_x)/2;
+        int best_x = -1;
+        for(int x=min_x;x<=max_x;x++) {
+            if( best_x == -1 || prev_totals[x] < prev_totals[best_x] ||
+                    ( prev_totals[x] == prev_totals[best_x] && Math.abs(x - centre_x) < Math.abs(best_x - centre_x) ) ) {
+                best_x = x;
+            }
+        }
+        long total = prev_totals[best_x];
+
+        int x = best_x;
+        for(int y=height-1;y>=0;y--) {
+            seam[y] = x;
+            x += directions[y*width+x];
+        }
+        return total;
+    }
+}
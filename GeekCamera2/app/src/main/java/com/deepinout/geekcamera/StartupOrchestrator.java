@@ -0,0 +1,221 @@
+package com.deepinout.geekcamera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/** Coordinates the work done when the activity starts, so that independent work (opening the
+ *  camera, preloading icons, looking up sensors) runs in parallel on background threads, rather
+ *  than one after another on the UI thread. The UI thread only waits for a background task (see
+ *  Task.join()) at the point where its result is actually needed.
+ *  Also records a timeline of the startup phases: checkpoint() records the UI thread work since
+ *  the previous checkpoint, each background task records when it ran, and each join records how
+ *  long the UI thread was blocked. This is for logging, and so that tests can check that work
+ *  overlapped as expected.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class StartupOrchestrator {
+    public enum PhaseType {
+        PHASETYPE_UI, // work on the thread calling checkpoint()
+        PHASETYPE_BACKGROUND, // a task run on the executor
+        PHASETYPE_JOIN // time spent waiting in Task.join()
+    }
+
+    /** A phase of startup, with times in nanoseconds relative to the creation of the
+     *  StartupOrchestrator.
+     */
+    public static class Phase {
+        public final String name;
+        public final PhaseType type;
+        public final long start_ns;
+        public final long end_ns;
+
+        Phase(String name, PhaseType type, long start_ns, long end_ns) {
+            this.name = name;
+            this.type = type;
+            this.start_ns = start_ns;
+            this.end_ns = end_ns;
+        }
+
+        public long getDurationNs() {
+            return end_ns - start_ns;
+        }
+
+        /** Whether this phase was running at any time that the other phase was running.
+         */
+        public boolean overlaps(Phase that) {
+            return this.start_ns < that.end_ns && that.start_ns < this.end_ns;
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + type + "]: " + (start_ns/1000000) + "ms to " + (end_ns/1000000) + "ms (" + (getDurationNs()/1000000) + "ms)";
+        }
+    }
+
+    /** A task submitted to run in the background.
+     */
+    public class Task<T> {
+        private final String name;
+        private final FutureTask<T> future;
+
+        private Task(String name, FutureTask<T> future) {
+            this.name = name;
+            this.future = future;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /** Waits for the task to complete, and returns its result. If the task threw an exception,
+         *  it's rethrown wrapped in a RuntimeException. The time spent waiting (if any) is
+         *  recorded as a join phase.
+         */
+        public T join() {
+            if( future.isDone() ) {
+                return getResult();
+            }
+            long start_ns = now();
+            boolean interrupted = false;
+            try {
+                while( true ) {
+                    try {
+                        future.get();
+                        break;
+                    }
+                    catch(InterruptedException e) {
+                        // keep waiting - the caller needs the result - but restore the interrupt status afterwards
+                        interrupted = true;
+                    }
+                    catch(ExecutionException e) {
+                        break;
+                    }
+                }
+            }
+            finally {
+                addPhase(new Phase(name, PhaseType.PHASETYPE_JOIN, start_ns, now()));
+                if( interrupted ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return getResult();
+        }
+
+        private T getResult() {
+            try {
+                return future.get();
+            }
+            catch(InterruptedException e) {
+                // shouldn't happen, as already done
+                throw new RuntimeException(e);
+            }
+            catch(ExecutionException e) {
+                throw new RuntimeException("startup task " + name + " failed", e.getCause());
+            }
+        }
+    }
+
+    private final Executor executor;
+    private final long base_ns;
+    private long last_checkpoint_ns;
+    private final List<Phase> phases = new ArrayList<>();
+
+    /**
+     * @param executor The executor to run background tasks on. This should have enough threads
+     *                 for the submitted tasks to run in parallel.
+     */
+    public StartupOrchestrator(Executor executor) {
+        this.executor = executor;
+        this.base_ns = System.nanoTime();
+    }
+
+    private long now() {
+        return System.nanoTime() - base_ns;
+    }
+
+    private void addPhase(Phase phase) {
+        synchronized( phases ) {
+            phases.add(phase);
+        }
+    }
+
+    /** Records the work done on the calling thread since the previous checkpoint (or since
+     *  creation) as a phase with the supplied name.
+     * @return The duration of the phase in milliseconds.
+     */
+    public long checkpoint(String name) {
+        long start_ns = last_checkpoint_ns;
+        long end_ns = now();
+        last_checkpoint_ns = end_ns;
+        addPhase(new Phase(name, PhaseType.PHASETYPE_UI, start_ns, end_ns));
+        return (end_ns - start_ns)/1000000;
+    }
+
+    /** Starts running the callable on the executor.
+     */
+    public <T> Task<T> submit(final String name, final Callable<T> callable) {
+        FutureTask<T> future = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start_ns = now();
+                try {
+                    return callable.call();
+                }
+                finally {
+                    addPhase(new Phase(name, PhaseType.PHASETYPE_BACKGROUND, start_ns, now()));
+                }
+            }
+        });
+        executor.execute(future);
+        return new Task<>(name, future);
+    }
+
+    /** Returns the phases recorded so far, in order of their start times.
+     */
+    public List<Phase> getTimeline() {
+        List<Phase> timeline;
+        synchronized( phases ) {
+            timeline = new ArrayList<>(phases);
+        }
+        Collections.sort(timeline, new Comparator<Phase>() {
+            @Override
+            public int compare(Phase o1, Phase o2) {
+                return Long.compare(o1.start_ns, o2.start_ns);
+            }
+        });
+        return timeline;
+    }
+
+    /** Returns the first recorded phase with the supplied name and type, or null if there isn't
+     *  one.
+     */
+    public Phase getPhase(String name, PhaseType type) {
+        for(Phase phase : getTimeline()) {
+            if( phase.name.equals(name) && phase.type == type )
+                return phase;
+        }
+        return null;
+    }
+
+    /** Returns the total time the calling threads spent blocked in Task.join(), in nanoseconds.
+     */
+    public long getTotalJoinNs() {
+        long total = 0;
+        for(Phase phase : getTimeline()) {
+            if( phase.type == PhaseType.PHASETYPE_JOIN )
+                total += phase.getDurationNs();
+        }
+        return total;
+    }
+}
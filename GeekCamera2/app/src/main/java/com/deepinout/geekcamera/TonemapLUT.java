@@ -0,0 +1,240 @@
+package com.deepinout.geekcamera;
+
+/** Lookup tables for the tonemapping stages of HDRProcessor, computed once per request so that
+ *  the per-pixel work becomes a table lookup rather than evaluating the tonemapping curve in
+ *  floating point. The tables are shared by the RenderScript (see process_hdr.rs,
+ *  histogram_adjust.rs and avg_brighten.rs, which receive them as allocations) and by the Java
+ *  implementation in HDRMergeEngine.
+ *  For the HDR tonemapping, the HDR value (from 0 to the maximum value) is quantised to a table
+ *  index, by default 12 bits. For clamp, exponential, filmic and ACES tonemapping each channel
+ *  maps to an 8-bit output value. For Reinhard tonemapping, the scale depends on the maximum of
+ *  the channels, so instead the table stores the scale for each maximum value.
+ *  The tables are sized so that results are within one code value of the floating point path.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class TonemapLUT {
+    public static final int default_size_c = 4096; // 12-bit
+    private static final int max_size_c = 65536;
+
+    private final boolean per_value; // true for Reinhard
+    private final int size;
+    private final float index_scale;
+    private final byte [] values; // if !per_value, the output value for each index
+    private final float [] scales; // if per_value, the scale for each index of the maximum channel value
+
+    /** Creates the table for tonemapping HDR values from 0 to max_value with the supplied
+     *  settings (values above max_value are treated as max_value).
+     */
+    public TonemapLUT(HDRMergeEngine.TonemapSettings settings, float max_value) {
+        max_value = Math.max(max_value, 255.0f);
+        int size = default_size_c;
+        if( max_value > 0.5f*(default_size_c-1) ) {
+            // keep the step between entries to at most half an input value
+            size = Math.min(max_size_c, (int)Math.ceil(2.0f*max_value) + 1);
+        }
+        this.size = size;
+        this.index_scale = (size-1) / max_value;
+        this.per_value = settings.tonemap_algorithm == HDRMergeEngine.tonemap_algorithm_reinhard_c;
+        final float white_scale = 255.0f / HDRMergeEngine.uncharted2Tonemap(settings.W);
+        if( per_value ) {
+            values = null;
+            scales = new float[size];
+            for(int i=0;i<size;i++) {
+                float value = i / index_scale;
+                scales[i] = settings.linear_scale * 255.0f / ( settings.tonemap_scale + value );
+            }
+        }
+        else {
+            values = new byte[size];
+            scales = null;
+            for(int i=0;i<size;i++) {
+                float value = i / index_scale;
+                int color = HDRMergeEngine.tonemap(settings, white_scale, value, value, value);
+                values[i] = (byte)(color & 0xFF);
+            }
+        }
+    }
+
+    public boolean isPerValue() {
+        return per_value;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the scale to convert an HDR value to a table index.
+     */
+    public float getIndexScale() {
+        return index_scale;
+    }
+
+    /** Returns the output values, or null if isPerValue().
+     */
+    public byte [] getValues() {
+        return values;
+    }
+
+    /** Returns the scales, or null if !isPerValue().
+     */
+    public float [] getScales() {
+        return scales;
+    }
+
+    private int getIndex(float value) {
+        int index = (int)(value * index_scale + 0.5f);
+        if( index < 0 )
+            return 0;
+        else if( index >= size )
+            return size-1;
+        return index;
+    }
+
+    /** Tonemaps an HDR colour, returning an ARGB pixel.
+     */
+    public int tonemap(float hdr_r, float hdr_g, float hdr_b) {
+        int r, g, b;
+        if( per_value ) {
+            float value = Math.max(hdr_r, hdr_g);
+            value = Math.max(value, hdr_b);
+            float scale = scales[getIndex(value)];
+            r = clamp(scale * hdr_r);
+            g = clamp(scale * hdr_g);
+            b = clamp(scale * hdr_b);
+        }
+        else {
+            r = values[getIndex(hdr_r)] & 0xFF;
+            g = values[getIndex(hdr_g)] & 0xFF;
+            b = values[getIndex(hdr_b)] & 0xFF;
+        }
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Rounds and clamps to [0, 255].
+     */
+    private static int clamp(float value) {
+        value += 0.5f;
+        if( value < 0.0f )
+            return 0;
+        else if( value > 255.0f )
+            return 255;
+        return (int)value;
+    }
+
+    /** Computes the tables for the local contrast enhancement done by histogram_adjust.rs, from
+     *  the clipped cumulative histograms of each tile (as computed by
+     *  HDRProcessor.adjustHistogram()). Entry 256*(i*n_tiles+j) + v is the value that a pixel with
+     *  value (maximum of the rgb values) v in tile (i, j) should be mapped to, with hdr_alpha
+     *  already applied, so only the interpolation between tiles remains per pixel.
+     */
+    public static float [] createContrastEnhancementTables(int [] c_histogram, int n_tiles, float hdr_alpha) {
+        float [] tables = new float[n_tiles*n_tiles*256];
+        for(int tile=0;tile<n_tiles*n_tiles;tile++) {
+            int histogram_offset = 256*tile;
+            int cdf_0 = c_histogram[histogram_offset];
+            int n_pixels = c_histogram[histogram_offset+255];
+            float den = (float)(n_pixels - cdf_0);
+            for(int v=0;v<256;v++) {
+                int equal_value = v; // if the tile is empty
+                if( den > 0.0f ) {
+                    float num = (float)(c_histogram[histogram_offset+v] - cdf_0);
+                    equal_value = (int)( 255.0f * (num/den) ); // value that we should choose to fully equalise the histogram
+                }
+                tables[histogram_offset+v] = (1.0f-hdr_alpha) * v + hdr_alpha * equal_value;
+            }
+        }
+        return tables;
+    }
+
+    /** Applies the local contrast enhancement to pixel (x, y) of an image, using the tables from
+     *  createContrastEnhancementTables(). Equivalent to the histogram_adjust_lut kernel.
+     */
+    public static int contrastEnhance(int pixel, int x, int y, int width, int height, float [] tables, int n_tiles) {
+        int in_r = (pixel >> 16) & 0xFF;
+        int in_g = (pixel >> 8) & 0xFF;
+        int in_b = pixel & 0xFF;
+        int value = Math.max(in_r, in_g);
+        value = Math.max(value, in_b);
+        if( value == 0 ) {
+            return pixel | 0xFF000000;
+        }
+
+        float tx = ((float)x*n_tiles)/(float)width - 0.5f;
+        float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+        int ix = (int)Math.floor(tx);
+        int iy = (int)Math.floor(ty);
+        float alpha = 0.0f;
+        float beta = 0.0f;
+        int ix1, iy1;
+        if( ix >= 0 && ix < n_tiles-1 ) {
+            alpha = tx - ix;
+            ix1 = ix+1;
+        }
+        else {
+            ix = (ix<0) ? ix+1 : ix;
+            ix1 = ix;
+        }
+        if( iy >= 0 && iy < n_tiles-1 ) {
+            beta = ty - iy;
+            iy1 = iy+1;
+        }
+        else {
+            iy = (iy<0) ? iy+1 : iy;
+            iy1 = iy;
+        }
+        float new_value0 = (1.0f-alpha)*tables[256*(ix*n_tiles+iy)+value] + alpha*tables[256*(ix1*n_tiles+iy)+value];
+        float new_value1 = (1.0f-alpha)*tables[256*(ix*n_tiles+iy1)+value] + alpha*tables[256*(ix1*n_tiles+iy1)+value];
+        int new_value = (int)( (1.0f-beta)*new_value0 + beta*new_value1 );
+
+        float scale = ((float)new_value) / (float)value;
+        int r = Math.min(255, (int)(in_r * scale + 0.5f));
+        int g = Math.min(255, (int)(in_g * scale + 0.5f));
+        int b = Math.min(255, (int)(in_b * scale + 0.5f));
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /** Computes the scale to apply to a pixel for each value (maximum of the rgb values) from 0 to
+     *  255, for the gain/gamma brightening done by the dro_brighten kernel in avg_brighten.rs. The
+     *  parameters are as for setBrightenParameters() in avg_brighten.rs.
+     */
+    public static float [] createBrightenScales(float gain, float gamma, float low_x, float mid_x, float max_x) {
+        float gain_A = 1.0f;
+        float gain_B = 0.0f;
+        if( mid_x > low_x ) {
+            gain_A = (gain * mid_x - low_x) / (mid_x - low_x);
+            gain_B = low_x*mid_x*(1.0f-gain)/ (mid_x - low_x);
+        }
+        float [] scales = new float[256];
+        for(int value=0;value<256;value++) {
+            if( value <= low_x ) {
+                // don't scale
+                scales[value] = 1.0f;
+            }
+            else if( value <= mid_x ) {
+                scales[value] = gain_A + gain_B/value;
+            }
+            else {
+                float new_value = (float)Math.pow(value/max_x, gamma) * 255.0f;
+                scales[value] = new_value / value;
+            }
+        }
+        return scales;
+    }
+
+    /** Applies the scales from createBrightenScales() to a pixel. Equivalent to the
+     *  dro_brighten_lut kernel.
+     */
+    public static int brighten(int pixel, float [] scales) {
+        int in_r = (pixel >> 16) & 0xFF;
+        int in_g = (pixel >> 8) & 0xFF;
+        int in_b = pixel & 0xFF;
+        int value = Math.max(in_r, in_g);
+        value = Math.max(value, in_b);
+        float scale = scales[value];
+        int r = clamp(scale * in_r);
+        int g = clamp(scale * in_g);
+        int b = clamp(scale * in_b);
+        return (255 << 24) | (r << 16) | (g << 8) | b;
+    }
+}
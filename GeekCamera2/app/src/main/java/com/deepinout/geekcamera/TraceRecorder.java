@@ -0,0 +1,242 @@
+package com.deepinout.geekcamera;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Records named spans and counters, with nanosecond timestamps (from System.nanoTime()), for
+ *  collecting timing metrics without needing logging to be enabled. See GeekCamera2Trace for the
+ *  application's instance.
+ *  Each thread records into its own fixed size ring buffer, so recording doesn't take locks or
+ *  allocate memory (other than the first time a thread records, and for async spans). If a
+ *  buffer fills before it's drained, the oldest events are lost (see getNDropped()).
+ *  Events are passed to a Sink by drainTo(), e.g., HistogramTraceSink to collect latency
+ *  percentiles, or JsonTraceSink to dump the events.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class TraceRecorder {
+    /** Receives the events from drainTo(). Events from each thread are in the order they were
+     *  recorded, but events from different threads may be interleaved in any order.
+     */
+    public interface Sink {
+        void onSpan(String name, long thread_id, long start_ns, long end_ns);
+        void onCounter(String name, long thread_id, long timestamp_ns, long value);
+    }
+
+    private static final int event_type_span_c = 0;
+    private static final int event_type_counter_c = 1;
+    private static final int max_depth_c = 16; // maximum depth of nested spans remembered per thread
+
+    /** The events recorded by a single thread. The owning thread is the only writer; drainTo() is
+     *  the only reader. Each slot has a sequence number, which is the position of the event in
+     *  the slot, or -1 whilst the slot is being written - so the reader can tell if the writer
+     *  wrapped around and overwrote an event whilst it was being read.
+     */
+    private static class ThreadBuffer {
+        final WeakReference<Thread> thread;
+        final long thread_id;
+        final int mask;
+        final AtomicLongArray seqs;
+        final AtomicIntegerArray types;
+        final AtomicReferenceArray<String> names;
+        final AtomicLongArray times; // for spans, start and end; for counters, timestamp and value
+        volatile long head; // position of the next event to be written, only written by the owning thread
+        long tail; // position of the next event to be read, only accessed by drainTo()
+
+        // stack of open spans, only accessed by the owning thread
+        // if spans aren't ended, the oldest are forgotten, so that a missing endSpan() can't
+        // break the recording of later spans
+        final String [] stack_names = new String[max_depth_c];
+        final long [] stack_starts = new long[max_depth_c];
+        int stack_top = -1;
+        int stack_count; // number of valid entries, at most max_depth_c
+        int depth; // the actual depth, including forgotten spans
+
+        ThreadBuffer(Thread thread, int capacity) {
+            this.thread = new WeakReference<>(thread);
+            this.thread_id = thread.getId();
+            this.mask = capacity-1;
+            this.seqs = new AtomicLongArray(capacity);
+            for(int i=0;i<capacity;i++) {
+                seqs.set(i, -1);
+            }
+            this.types = new AtomicIntegerArray(capacity);
+            this.names = new AtomicReferenceArray<>(capacity);
+            this.times = new AtomicLongArray(2*capacity);
+        }
+
+        void write(int type, String name, long time0, long time1) {
+            long pos = head;
+            int slot = (int)(pos & mask);
+            seqs.set(slot, -1);
+            types.lazySet(slot, type);
+            names.lazySet(slot, name);
+            times.lazySet(2*slot, time0);
+            times.lazySet(2*slot+1, time1);
+            seqs.lazySet(slot, pos);
+            head = pos+1;
+        }
+
+        boolean isThreadAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
+        }
+    }
+
+    private final int capacity;
+    private final ThreadLocal<ThreadBuffer> thread_buffer = new ThreadLocal<>();
+    private final List<ThreadBuffer> buffers = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> async_starts = new ConcurrentHashMap<>();
+    private final Object drain_lock = new Object();
+    private long n_dropped; // protected by drain_lock
+
+    /**
+     * @param capacity The number of events held for each thread; must be a power of 2.
+     */
+    public TraceRecorder(int capacity) {
+        if( capacity <= 0 || (capacity & (capacity-1)) != 0 ) {
+            throw new IllegalArgumentException("capacity must be a power of 2");
+        }
+        this.capacity = capacity;
+    }
+
+    private ThreadBuffer getThreadBuffer() {
+        ThreadBuffer buffer = thread_buffer.get();
+        if( buffer == null ) {
+            buffer = new ThreadBuffer(Thread.currentThread(), capacity);
+            thread_buffer.set(buffer);
+            buffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    /** Starts a span on the calling thread, to be ended by endSpan() on the same thread. Spans
+     *  may be nested.
+     */
+    public void beginSpan(String name) {
+        ThreadBuffer buffer = getThreadBuffer();
+        buffer.stack_top = (buffer.stack_top+1) % max_depth_c;
+        buffer.stack_names[buffer.stack_top] = name;
+        buffer.stack_starts[buffer.stack_top] = System.nanoTime();
+        buffer.stack_count = Math.min(buffer.stack_count+1, max_depth_c);
+        buffer.depth++;
+    }
+
+    /** Ends the most recent span started on the calling thread.
+     */
+    public void endSpan() {
+        long time_ns = System.nanoTime();
+        ThreadBuffer buffer = getThreadBuffer();
+        if( buffer.depth == 0 ) {
+            // no span to end
+            return;
+        }
+        buffer.depth--;
+        if( buffer.stack_count == 0 ) {
+            // span was forgotten
+            return;
+        }
+        String name = buffer.stack_names[buffer.stack_top];
+        long start_ns = buffer.stack_starts[buffer.stack_top];
+        buffer.stack_names[buffer.stack_top] = null;
+        buffer.stack_top = (buffer.stack_top - 1 + max_depth_c) % max_depth_c;
+        buffer.stack_count--;
+        buffer.write(event_type_span_c, name, start_ns, time_ns);
+    }
+
+    /** Records a span that has already completed.
+     */
+    public void recordSpan(String name, long start_ns, long end_ns) {
+        getThreadBuffer().write(event_type_span_c, name, start_ns, end_ns);
+    }
+
+    private static String getAsyncKey(String name, int cookie) {
+        return name + "#" + cookie;
+    }
+
+    /** Starts a span that may be ended on a different thread, by endAsyncSpan() with the same name
+     *  and cookie. If a span with the same name and cookie is already open, it's restarted.
+     */
+    public void beginAsyncSpan(String name, int cookie) {
+        async_starts.put(getAsyncKey(name, cookie), System.nanoTime());
+    }
+
+    /** Ends a span started by beginAsyncSpan(). The span is recorded as being on the calling
+     *  thread. Does nothing if there is no such span.
+     */
+    public void endAsyncSpan(String name, int cookie) {
+        long time_ns = System.nanoTime();
+        Long start_ns = async_starts.remove(getAsyncKey(name, cookie));
+        if( start_ns != null ) {
+            recordSpan(name, start_ns, time_ns);
+        }
+    }
+
+    public void setCounter(String name, long value) {
+        getThreadBuffer().write(event_type_counter_c, name, System.nanoTime(), value);
+    }
+
+    /** Passes all events recorded since the last call to sink, and frees the buffers of threads
+     *  that have terminated.
+     * @return The number of events passed to the sink.
+     */
+    public int drainTo(Sink sink) {
+        int n_events = 0;
+        synchronized( drain_lock ) {
+            for(ThreadBuffer buffer : buffers) { // n.b., iterates over a snapshot, so safe to remove buffers
+                // check before reading, so we don't miss any final events
+                boolean thread_alive = buffer.isThreadAlive();
+                long head = buffer.head;
+                long pos = Math.max(buffer.tail, head - capacity);
+                n_dropped += pos - buffer.tail;
+                for(;pos<head;pos++) {
+                    int slot = (int)(pos & buffer.mask);
+                    if( buffer.seqs.get(slot) != pos ) {
+                        n_dropped++;
+                        continue;
+                    }
+                    int type = buffer.types.get(slot);
+                    String name = buffer.names.get(slot);
+                    long time0 = buffer.times.get(2*slot);
+                    long time1 = buffer.times.get(2*slot+1);
+                    if( buffer.seqs.get(slot) != pos ) {
+                        // overwritten whilst we were reading
+                        n_dropped++;
+                        continue;
+                    }
+                    if( type == event_type_span_c )
+                        sink.onSpan(name, buffer.thread_id, time0, time1);
+                    else
+                        sink.onCounter(name, buffer.thread_id, time0, time1);
+                    n_events++;
+                }
+                buffer.tail = head;
+                if( !thread_alive ) {
+                    buffers.remove(buffer);
+                }
+            }
+        }
+        return n_events;
+    }
+
+    /** Returns the number of events that were lost, due to a thread's buffer filling up before
+     *  being drained.
+     */
+    public long getNDropped() {
+        synchronized( drain_lock ) {
+            return n_dropped;
+        }
+    }
+
+    /** Returns the number of threads with buffers.
+     */
+    public int getNThreadBuffers() {
+        return buffers.size();
+    }
+}
@@ -0,0 +1,207 @@
+package com.deepinout.geekcamera.cameracontroller;
+
+import com.deepinout.geekcamera.MyDebug;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Caches the CameraCharacteristics for each camera, so that each is only fetched from the camera
+ *  service once per process (rather than separately by each query of CameraControllerManager2,
+ *  and again by CameraController2).
+ *  Also holds a CameraFeaturesSnapshot, which is persisted to disk, so that on later launches
+ *  the cameras can be described before the camera is opened, without querying the camera
+ *  service. The snapshot is updated each time a camera is opened, and should be loaded with
+ *  loadSnapshot() on a background thread, early in startup.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class CameraCharacteristicsCache {
+    private static final String TAG = "GC2_CharCache";
+    private static final String snapshot_filename_c = "camera_features_snapshot.bin";
+
+    private static final CameraCharacteristicsCache instance = new CameraCharacteristicsCache();
+
+    private final Map<String, CameraCharacteristics> characteristics_map = new HashMap<>();
+    private CameraFeaturesSnapshot snapshot; // lazily loaded, see getSnapshot()
+    private boolean snapshot_loaded;
+    private byte [] saved_data; // the data last read from or written to disk
+
+    private CameraCharacteristicsCache() {
+    }
+
+    public static CameraCharacteristicsCache getInstance() {
+        return instance;
+    }
+
+    /** Returns the CameraCharacteristics for the supplied camera, only querying the camera
+     *  service the first time.
+     */
+    public CameraCharacteristics getCameraCharacteristics(CameraManager manager, String camera_id) throws CameraAccessException {
+        synchronized( characteristics_map ) {
+            CameraCharacteristics characteristics = characteristics_map.get(camera_id);
+            if( characteristics != null ) {
+                return characteristics;
+            }
+        }
+        // don't hold the lock whilst querying the camera service, so queries for other cameras
+        // aren't blocked - at worst two threads fetch the same camera
+        CameraCharacteristics characteristics = manager.getCameraCharacteristics(camera_id);
+        synchronized( characteristics_map ) {
+            CameraCharacteristics existing = characteristics_map.get(camera_id);
+            if( existing != null ) {
+                return existing;
+            }
+            characteristics_map.put(camera_id, characteristics);
+        }
+        return characteristics;
+    }
+
+    private static String getFingerprint() {
+        return Build.FINGERPRINT;
+    }
+
+    private static File getSnapshotFile(Context context) {
+        return new File(context.getCacheDir(), snapshot_filename_c);
+    }
+
+    /** Returns the snapshot, loading it from disk the first time this is called. Returns null if
+     *  there is no valid snapshot for this device build.
+     */
+    private synchronized CameraFeaturesSnapshot getSnapshot(Context context) {
+        if( !snapshot_loaded ) {
+            snapshot_loaded = true;
+            long debug_time = 0;
+            if( MyDebug.LOG )
+                debug_time = System.currentTimeMillis();
+            File file = getSnapshotFile(context);
+            if( file.exists() ) {
+                FileInputStream in = null;
+                try {
+                    in = new FileInputStream(file);
+                    byte [] data = new byte[(int)file.length()];
+                    int offset = 0;
+                    while( offset < data.length ) {
+                        int n_read = in.read(data, offset, data.length - offset);
+                        if( n_read < 0 )
+                            break;
+                        offset += n_read;
+                    }
+                    if( offset == data.length ) {
+                        snapshot = CameraFeaturesSnapshot.deserialize(data, getFingerprint());
+                        if( snapshot != null )
+                            saved_data = data;
+                    }
+                }
+                catch(IOException e) {
+                    Log.e(TAG, "failed to read camera features snapshot");
+                    e.printStackTrace();
+                }
+                finally {
+                    if( in != null ) {
+                        try {
+                            in.close();
+                        }
+                        catch(IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "loaded camera features snapshot: " + (snapshot != null));
+                Log.d(TAG, "time to load snapshot: " + (System.currentTimeMillis() - debug_time));
+            }
+        }
+        return snapshot;
+    }
+
+    /** Loads the snapshot from disk, if not already loaded. This should be called on a background
+     *  thread early in startup, so that the UI thread doesn't need to read the file - if the UI
+     *  thread needs the snapshot whilst it's still being loaded, it waits for the load to finish.
+     */
+    public void loadSnapshot(Context context) {
+        getSnapshot(context);
+    }
+
+    /** Returns the persisted information for the supplied camera, or null if not available (e.g.,
+     *  first run, the camera hasn't yet been opened, or the device has been updated).
+     */
+    public CameraFeaturesSnapshot.Camera getSnapshotCamera(Context context, String camera_id) {
+        CameraFeaturesSnapshot snapshot = getSnapshot(context);
+        return snapshot == null ? null : snapshot.getCamera(camera_id);
+    }
+
+    /** Records the information for a camera, and writes the updated snapshot to disk on a
+     *  background thread.
+     */
+    public void updateSnapshot(Context context, CameraFeaturesSnapshot.Camera camera) {
+        final byte [] data;
+        synchronized( this ) {
+            getSnapshot(context);
+            if( snapshot == null ) {
+                snapshot = new CameraFeaturesSnapshot(getFingerprint());
+            }
+            snapshot.putCamera(camera);
+            data = snapshot.serialize();
+            if( Arrays.equals(data, saved_data) ) {
+                // unchanged since the last launch, so no need to write
+                return;
+            }
+            saved_data = data;
+        }
+        final File file = getSnapshotFile(context);
+        new Thread(new Runnable() {
+            public void run() {
+                writeSnapshot(file, data);
+            }
+        }).start();
+    }
+
+    private static void writeSnapshot(File file, byte [] data) {
+        // write to a temporary file and rename, so a concurrent or interrupted write never leaves
+        // a partial snapshot
+        File temp_file = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp_file);
+            out.write(data);
+            out.close();
+            out = null;
+            if( !temp_file.renameTo(file) ) {
+                Log.e(TAG, "failed to rename camera features snapshot");
+                if( !temp_file.delete() ) {
+                    Log.e(TAG, "failed to delete temporary camera features snapshot");
+                }
+            }
+            else if( MyDebug.LOG ) {
+                Log.d(TAG, "saved camera features snapshot: " + data.length + " bytes");
+            }
+        }
+        catch(IOException e) {
+            Log.e(TAG, "failed to write camera features snapshot");
+            e.printStackTrace();
+        }
+        finally {
+            if( out != null ) {
+                try {
+                    out.close();
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -248,6 +248,11 @@ public abstract class CameraController {
         void onStarted(); // called immediately before we start capturing the picture
         void onCompleted(); // called after all relevant on*PictureTaken() callbacks have been called and returned
         void onPictureTaken(byte[] data);
+        /** Alternative to onPictureTaken(byte[]), used when the JPEG has been read into a pooled
+         *  buffer (see JpegBufferPool). Note that buffer.getData() is usually longer than the JPEG.
+         *  The callee takes over the reference, and must call buffer.release() when done with it.
+         */
+        void onPictureTaken(JpegBufferPool.Buffer buffer);
         /** Only called if RAW is requested.
          *  Caller should call raw_image.close() when done with the image.
          */
@@ -543,6 +548,11 @@ public abstract class CameraController {
     public void updatePreviewTexture() {
         // dummy implementation
     }
+    /** Called when the system is running low on memory, to drop any caches that can be recreated.
+     */
+    public void trimMemory() {
+        // dummy implementation
+    }
     /** Starts the camera preview.
      *  @throws CameraControllerException if the camera preview fails to start.
      */
@@ -17,6 +17,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -59,6 +60,7 @@ import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 
@@ -175,7 +177,7 @@ public class CameraController2 extends CameraController {
     private AutoFocusCallback autofocus_cb;
     private boolean capture_follows_autofocus_hint;
     private FaceDetectionListener face_detection_listener;
-    private int last_faces_detected = -1;
+    private volatile int last_faces_detected = -1; // accessed from the result thread, see handleFaceDetection()
     private final Object open_camera_lock = new Object(); // lock to wait for camera to be opened from CameraDevice.StateCallback
     private final Object background_camera_lock = new Object(); // lock to synchronize between UI thread and the background "CameraBackground" thread/handler
 
@@ -220,7 +222,10 @@ public class CameraController2 extends CameraController {
     private int n_burst_total; // total number of expected burst images in this capture (if known) (same for JPEG and RAW)
     private int n_burst_raw; // number of expected (remaining) burst RAW images in this capture
     private boolean burst_single_request; // if true then the burst images are returned in a single call to onBurstPictureTaken(), if false, then multiple calls to onPictureTaken() are made as soon as the image is available
-    private final List<byte []> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+    private List<byte []> pending_burst_images = new ArrayList<>(); // burst images that have been captured so far, but not yet sent to the application
+    // JPEGs that are sent to the application individually are read into buffers from this pool (burst images sent
+    // together with onBurstPictureTaken() still use exactly sized arrays, as these are always post-processed)
+    private final JpegBufferPool jpeg_buffer_pool = new JpegBufferPool(Runtime.getRuntime().maxMemory()/8);
     private final List<RawImage> pending_burst_images_raw = new ArrayList<>();
     private List<CaptureRequest> slow_burst_capture_requests; // the set of burst capture requests - used when not using captureBurst() (e.g., when use_expo_fast_burst==false, or for focus bracketing)
     private long slow_burst_start_ms = 0; // time when burst started (used for measuring performance of captures when not using captureBurst())
@@ -236,6 +241,8 @@ public class CameraController2 extends CameraController {
     private Surface mPreviewSurface;
     private HandlerThread thread;
     private Handler mCameraBackgroundHandler;
+    private HandlerThread result_thread; // for the secondary processing of preview capture results, see previewCaptureCallback
+    private volatile Handler mResultHandler;
     private Surface video_recorder_surface;
     private Surface mVideoPersistSurface;
 
@@ -273,9 +280,11 @@ public class CameraController2 extends CameraController {
     private boolean capture_result_is_ae_scanning;
     private Integer m_capture_result_ae; // latest ae_state, null if not available
     private boolean m_is_flash_required; // whether capture_result_ae suggests FLASH_REQUIRED? Or in neither FLASH_REQUIRED nor CONVERGED, this stores the last known result
-    private boolean modified_from_camera_settings;
+    private volatile boolean modified_from_camera_settings;
         // if modified_from_camera_settings set to true, then we've temporarily requested captures with settings such as
         // exposure modified from the normal ones in camera_settings
+        // n.b., use setModifiedFromCameraSettings() to set to true
+    private final AtomicInteger modified_from_camera_settings_count = new AtomicInteger(); // number of times modified_from_camera_settings has been set to true
     private boolean capture_result_has_white_balance_rggb;
     private RggbChannelVector capture_result_white_balance_rggb;
     private boolean capture_result_has_iso;
@@ -300,14 +309,26 @@ public class CameraController2 extends CameraController {
     private int mMaxInputStreams = 0;
     private int mInputFormat = ImageFormat.UNKNOWN;
     private android.util.Size mInputSize;
-    CameraTestUtils.SimpleImageReaderListener mInputImageReaderListener;
     ImageReader mInputImageReader;
     CameraTestUtils.SimpleImageWriterListener mInputImageWriterListener;
     ImageWriter mInputImageWriter;
-    CameraTestUtils.SimpleCaptureCallback mZslResultListener;
+    // frames from the input stream, paired with their capture results, for reprocessing
+    private volatile ZslRingBuffer<Image, TotalCaptureResult> zsl_ring_buffer; // accessed from the background and capture callback threads
+    private final static int zsl_max_images_c = 6; // maxImages for mInputImageReader
+    private final static int zsl_capacity_c = 4; // must be less than zsl_max_images_c, so the reader isn't starved
+    private final static int zsl_candidates_c = 3; // choose the sharpest of this many of the newest frames
+    // If true, choose the frame closest to the shutter press (less the preview display latency), rather than the
+    // sharpest of the newest frames. Only used if the sensor timestamps are in the elapsedRealtimeNanos() timebase.
+    private final static boolean zsl_select_closest_c = false;
+    //private final static boolean zsl_select_closest_c = true;
+    private final static long zsl_display_latency_c = 50000000L; // in nanoseconds
+    private boolean zsl_realtime_timestamps;
+    private long zsl_shutter_time; // elapsedRealtimeNanos() when takePicture() was called
     //#### Added For App ZSL(Reprocessable) End
 
     private long mPrintResultCounter = 0;
+    // the secondary processing of preview results (see previewCaptureCallback) happens at most at this interval, to match the display rate
+    private final static long preview_result_interval_c = 16; // in milliseconds
 
     //Vendor Tag Ops
     @SuppressLint("NewApi")
@@ -350,7 +371,8 @@ public class CameraController2 extends CameraController {
 
     private enum RequestTagType {
         CAPTURE, // request is either for a regular non-burst capture, or the last of a burst capture sequence
-        CAPTURE_BURST_IN_PROGRESS // request is for a burst capture, but isn't the last of the burst capture sequence
+        CAPTURE_BURST_IN_PROGRESS, // request is for a burst capture, but isn't the last of the burst capture sequence
+        ZSL_INPUT // request is for the preview, and also targets mInputImageReader, so its results are paired with the frames in zsl_ring_buffer
         //NONE // should be treated the same as if no tag had been set on the request - but allows the request tag type to be changed later
     }
 
@@ -1386,11 +1408,24 @@ public class CameraController2 extends CameraController {
                 Log.i(TAG, "[ZSL] onImageAvailable, timestamp:" + image.getTimestamp() +
                                 ",format:" + image.getFormat());
             }
+            // images that are sent to picture_cb individually (rather than as a single burst) are read into a pooled buffer
+            boolean use_pooled_buffer;
+            synchronized( background_camera_lock ) {
+                use_pooled_buffer = !burst_single_request;
+            }
             ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-            byte [] bytes = new byte[buffer.remaining()];
+            byte [] bytes = null;
+            JpegBufferPool.Buffer pooled_jpeg = null;
             if( MyDebug.LOG )
-                Log.i(TAG, "read " + bytes.length + " bytes");
-            buffer.get(bytes);
+                Log.i(TAG, "read " + buffer.remaining() + " bytes");
+            if( use_pooled_buffer ) {
+                pooled_jpeg = jpeg_buffer_pool.acquire(buffer.remaining());
+                buffer.get(pooled_jpeg.getData(), 0, pooled_jpeg.getLength());
+            }
+            else {
+                bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+            }
             image.close();
 
             synchronized( background_camera_lock ) {
@@ -1400,7 +1435,7 @@ public class CameraController2 extends CameraController {
                     Log.i(TAG, "n_burst: " + n_burst);
                     Log.i(TAG, "burst_single_request: " + burst_single_request);
                 }
-                if( burst_single_request ) {
+                if( !use_pooled_buffer ) {
                     pending_burst_images.add(bytes);
                     if( MyDebug.LOG ) {
                         Log.i(TAG, "pending_burst_images size is now: " + pending_burst_images.size());
@@ -1411,8 +1446,9 @@ public class CameraController2 extends CameraController {
                         if( pending_burst_images.size() > n_burst ) {
                             Log.e(TAG, "pending_burst_images size " + pending_burst_images.size() + " is greater than n_burst " + n_burst);
                         }
-                        // take a copy, so that we can clear pending_burst_images
-                        single_burst_complete_images = new ArrayList<>(pending_burst_images);
+                        // hand over the list, and start a new one for the next burst
+                        single_burst_complete_images = pending_burst_images;
+                        pending_burst_images = new ArrayList<>();
                         // continued below after lock...
                     }
                     else {
@@ -1428,17 +1464,16 @@ public class CameraController2 extends CameraController {
             if( single_burst_complete_images != null ) {
                 picture_cb.onBurstPictureTaken(single_burst_complete_images);
             }
-            else if( !burst_single_request ) {
-                picture_cb.onPictureTaken(bytes);
+            else if( use_pooled_buffer ) {
+                // picture_cb takes over our reference to pooled_jpeg
+                picture_cb.onPictureTaken(pooled_jpeg);
             }
 
             synchronized( background_camera_lock ) {
                 if( single_burst_complete_images != null ) {
-                    pending_burst_images.clear();
-
                     call_takePhotoCompleted = true;
                 }
-                else if( !burst_single_request ) {
+                else if( use_pooled_buffer ) {
                     n_burst--;
                     if( MyDebug.LOG )
                         Log.i(TAG, "n_burst is now " + n_burst);
@@ -1876,6 +1911,9 @@ public class CameraController2 extends CameraController {
         thread = new HandlerThread("CameraBackground"); 
         thread.start(); 
         mCameraBackgroundHandler = new Handler(thread.getLooper());
+        result_thread = new HandlerThread("CameraResults");
+        result_thread.start();
+        mResultHandler = new Handler(result_thread.getLooper());
 
         GeekCamera2Trace.beginSection(GeekCamera2Trace.GET_CAMERA_MANAGER);
         final CameraManager manager = (CameraManager)context.getSystemService(Context.CAMERA_SERVICE);
@@ -1898,7 +1936,7 @@ public class CameraController2 extends CameraController {
                         // we should be able to get characteristics at any time, but Google Camera only does so when camera opened - so do so similarly to be safe
                         if( MyDebug.LOG )
                             Log.i(TAG, "try to get camera characteristics");
-                        characteristics = manager.getCameraCharacteristics(cameraIdS);
+                        characteristics = CameraCharacteristicsCache.getInstance().getCameraCharacteristics(manager, cameraIdS);
                         mAvailableSessionKeys = characteristics.getAvailableSessionKeys();
                         if( MyDebug.LOG )
                             Log.i(TAG, "successfully obtained camera characteristics");
@@ -2026,12 +2064,13 @@ public class CameraController2 extends CameraController {
             if(MyDebug.LOG)
                 Log.i(TAG, "get camera id list");
             this.cameraIdS = manager.getCameraIdList()[cameraId];
-            mStaticMetadata = new StaticMetadata(manager.getCameraCharacteristics(cameraIdS));
+            CameraCharacteristicsCache characteristics_cache = CameraCharacteristicsCache.getInstance();
+            mStaticMetadata = new StaticMetadata(characteristics_cache.getCameraCharacteristics(manager, cameraIdS));
             mIsLogicalMultiCamera = mStaticMetadata.isCapabilitySupported(
                     CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_LOGICAL_MULTI_CAMERA);
             Log.i(TAG, "Physical_Camera mIsLogicalMultiCamera:" + mIsLogicalMultiCamera);
             if (mIsLogicalMultiCamera) {
-                Set<String> physicalCameraIds = manager.getCameraCharacteristics(cameraIdS).getPhysicalCameraIds();
+                Set<String> physicalCameraIds = mStaticMetadata.getCharacteristics().getPhysicalCameraIds();
                 mPhysicalCameraIds = new String[2];
                 if (physicalCameraIds.size() >= 2 && mCapturePhysicalStream) {
                     mEnableCapturePhysicalStream = true;
@@ -2040,7 +2079,7 @@ public class CameraController2 extends CameraController {
                 int index = 0;
                 for (String physicalCameraId : physicalCameraIds) {
                     StaticMetadata physicalStaticMetadata =
-                            new StaticMetadata(manager.getCameraCharacteristics(physicalCameraId));
+                            new StaticMetadata(characteristics_cache.getCameraCharacteristics(manager, physicalCameraId));
                     if (index == 0) {
                         mPhysical0JpegSize = physicalStaticMetadata.getJpegOutputSizesChecked()[0];
                         mPhysicalCameraIds[0] = physicalCameraId;
@@ -2223,6 +2262,8 @@ public class CameraController2 extends CameraController {
         }
         closePictureImageReader();
         releaseInputImageReader();
+        // buffers still held by the application are unaffected, and are released as normal
+        jpeg_buffer_pool.clear();
         /*if( previewImageReader != null ) {
             previewImageReader.close();
             previewImageReader = null;
@@ -2240,9 +2281,28 @@ public class CameraController2 extends CameraController {
                 e.printStackTrace();
             }
         }
+        if( result_thread != null ) {
+            // close after the camera thread, as that submits the results
+            mResultHandler = null;
+            result_thread.quitSafely();
+            try {
+                result_thread.join();
+                result_thread = null;
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
         GeekCamera2Trace.endSection();
     }
 
+    @Override
+    public void trimMemory() {
+        if( MyDebug.LOG )
+            Log.i(TAG, "trimMemory, pooled jpeg bytes: " + jpeg_buffer_pool.getPooledBytes());
+        jpeg_buffer_pool.clear();
+    }
+
     /** Enforce a minimum number of points in tonemap curves - needed due to Galaxy S10e having wrong behaviour if fewer
      *  than 16 or in some cases 32 points?! OnePlus 3T meanwhile has more gradual behaviour where it gets better at 64 points.
      */
@@ -2323,9 +2383,9 @@ public class CameraController2 extends CameraController {
 
     private void releaseInputImageReader() {
         GeekCamera2Trace.beginSection("releaseInputImageReader");
-        if (mInputImageReaderListener != null) {
-            mInputImageReaderListener.drain();
-            mInputImageReaderListener = null;
+        if (zsl_ring_buffer != null) {
+            zsl_ring_buffer.clear();
+            zsl_ring_buffer = null;
         }
         if (mInputImageReader != null) {
             mInputImageReader.close();
@@ -2336,10 +2396,6 @@ public class CameraController2 extends CameraController {
             mInputImageWriter = null;
             mInputImageWriterListener = null;
         }
-        if (mZslResultListener != null) {
-            mZslResultListener.drain();
-            mZslResultListener = null;
-        }
         GeekCamera2Trace.endSection();
     }
 
@@ -2842,9 +2898,24 @@ public class CameraController2 extends CameraController {
         camera_features.view_angle_x = view_angle.getWidth();
         camera_features.view_angle_y = view_angle.getHeight();
 
+        CameraCharacteristicsCache.getInstance().updateSnapshot(context, createSnapshotCamera(camera_features));
+
         return camera_features;
     }
 
+    /** Distils the information about this camera to be persisted for later launches, see
+     *  CameraCharacteristicsCache.
+     */
+    private CameraFeaturesSnapshot.Camera createSnapshotCamera(CameraFeatures camera_features) {
+        CameraFeaturesSnapshot.Camera snapshot_camera = new CameraFeaturesSnapshot.Camera(cameraIdS);
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        snapshot_camera.facing = facing != null ? facing : -1;
+        Integer hardware_level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        snapshot_camera.hardware_level = hardware_level != null ? hardware_level : -1;
+        snapshot_camera.view_angle_x = camera_features.view_angle_x;
+        return snapshot_camera;
+    }
+
     private boolean isVideoSizeSupportedByCamera(StreamConfigurationMap configs,
                                                  android.util.Size sz,
                                                  int frameRate) {
@@ -5552,16 +5623,74 @@ public class CameraController2 extends CameraController {
         if (mEnableReprocessable && mMaxInputStreams > 0 && mIsReprocesableSupport) {
             Log.i(TAG, "[ZSL] setupInputStreamImageReader mInputSize:" + mInputSize +
                             ",mInputFormat:" + mInputFormat);
-            mInputImageReaderListener = new CameraTestUtils.SimpleImageReaderListener(true, 4);
-            mInputImageReader = CameraTestUtils.makeImageReader(mInputSize,
-                    mInputFormat,
-                    6,
-                    mInputImageReaderListener,
-                    mCameraBackgroundHandler);
-            mZslResultListener = new CameraTestUtils.SimpleCaptureCallback(true, 50);
+            zsl_ring_buffer = new ZslRingBuffer<>(zsl_capacity_c, new ZslRingBuffer.Recycler<Image>() {
+                @Override
+                public void recycle(Image image) {
+                    image.close();
+                }
+            });
+            Integer timestamp_source = mStaticMetadata.getCharacteristics().get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            zsl_realtime_timestamps = timestamp_source != null && timestamp_source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+            mInputImageReader = ImageReader.newInstance(mInputSize.getWidth(), mInputSize.getHeight(), mInputFormat, zsl_max_images_c);
+            mInputImageReader.setOnImageAvailableListener(new InputOnImageAvailableListener(), mCameraBackgroundHandler);
         }
     }
 
+    /** Receives the frames of the input stream for ZSL reprocessing, and stores them in
+     *  zsl_ring_buffer.
+     */
+    private class InputOnImageAvailableListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if( image == null ) {
+                return;
+            }
+            ZslRingBuffer<Image, TotalCaptureResult> ring_buffer = zsl_ring_buffer;
+            if( ring_buffer == null ) {
+                image.close();
+                return;
+            }
+            ring_buffer.addImage(image.getTimestamp(), image);
+        }
+    }
+
+    /** Returns a score for how suitable the frame with the supplied capture result is for a ZSL
+     *  capture, higher being better. As the input frames may be in a private format, this only
+     *  uses the capture result: frames where the lens isn't moving, focus has converged, and
+     *  with shorter exposure times (so less motion blur) are likely to be sharper.
+     */
+    private static float getZslScore(CaptureResult result) {
+        float score = 0.0f;
+        Integer lens_state = result.get(CaptureResult.LENS_STATE);
+        if( lens_state != null && lens_state == CaptureResult.LENS_STATE_STATIONARY ) {
+            score += 2.0f;
+        }
+        Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+        if( af_state != null && ( af_state == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED || af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED ) ) {
+            score += 1.0f;
+        }
+        Long exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if( exposure_time != null && exposure_time > 0 ) {
+            score += 1.0f / (1.0f + exposure_time / (1000000000.0f/60.0f));
+        }
+        return score;
+    }
+
+    /** Takes a frame from zsl_ring_buffer for a reprocess capture, according to the selection
+     *  policy, or returns null if no frame is available.
+     */
+    private ZslRingBuffer.Frame<Image, TotalCaptureResult> takeZslFrame() {
+        ZslRingBuffer<Image, TotalCaptureResult> ring_buffer = zsl_ring_buffer;
+        if( ring_buffer == null ) {
+            return null;
+        }
+        if( zsl_select_closest_c && zsl_realtime_timestamps ) {
+            return ring_buffer.takeClosest(zsl_shutter_time - zsl_display_latency_c);
+        }
+        return ring_buffer.takeBest(zsl_candidates_c);
+    }
+
     private void setupPhysicalCameraStreamImageReader() {
         if (mEnableCapturePhysicalStream) {
             mPhysical0ImageReader = ImageReader.newInstance(mPhysical0JpegSize.getWidth(),
@@ -5733,6 +5862,7 @@ public class CameraController2 extends CameraController {
                             );
                             mInputImageWriterListener = new CameraTestUtils.SimpleImageWriterListener(mInputImageWriter);
                             mPreviewBuilder.addTarget(mInputImageReader.getSurface());
+                            mPreviewBuilder.setTag(new RequestTagObject(RequestTagType.ZSL_INPUT));
                             Log.i(TAG, "mPreviewBuilder mInputImageReader addTarget:" + mInputImageReader.getSurface());
                         }
                         GeekCamera2Trace.isFirstPreviewBuffer = true;
@@ -6585,21 +6715,26 @@ public class CameraController2 extends CameraController {
                         Log.i(TAG, "imageReader surface: " + imageReader.getSurface().toString());
                     }
                 }
+                ZslRingBuffer.Frame<Image, TotalCaptureResult> zsl_frame = null;
                 if (mEnableReprocessable && mMaxInputStreams > 0 && mIsReprocesableSupport) {
+                    zsl_frame = takeZslFrame();
+                    if( zsl_frame == null ) {
+                        Log.e(TAG, "[ZSL] no frame available, fall back to regular capture");
+                    }
+                }
+                if( zsl_frame != null ) {
                     try {
-                        Log.i(TAG, "[ZSL] createReprocessCaptureRequest begin");
-                        Image inputImage = mInputImageReaderListener.getImage(3000);
-                        Log.i(TAG, "[ZSL] createReprocessCaptureRequest");
-                        stillBuilder = mCameraDevice.createReprocessCaptureRequest(
-                                mZslResultListener.getCaptureResult(3000, inputImage.getTimestamp()));
-                        Log.i(TAG, "[ZSL] Image writer queueInputImage, timestamp:" + inputImage.getTimestamp());
-                        mInputImageWriter.queueInputImage(inputImage);
-                        inputImage.close();
-                        Log.i(TAG, "[ZSL] createReprocessCaptureRequest end");
+                        Log.i(TAG, "[ZSL] createReprocessCaptureRequest, timestamp:" + zsl_frame.timestamp);
+                        stillBuilder = mCameraDevice.createReprocessCaptureRequest(zsl_frame.result);
+                        mInputImageWriter.queueInputImage(zsl_frame.image);
                     } catch (Exception e) {
                         Log.e(TAG, "createReprocessCaptureRequest failed:" + e.toString());
+                        stillBuilder = null;
+                    } finally {
+                        zsl_frame.image.close();
                     }
-                } else {
+                }
+                if( stillBuilder == null ) {
                     stillBuilder = mCameraDevice.createCaptureRequest(previewIsVideoMode ?
                             CameraDevice.TEMPLATE_VIDEO_SNAPSHOT : CameraDevice.TEMPLATE_STILL_CAPTURE);
                 }
@@ -6627,7 +6762,7 @@ public class CameraController2 extends CameraController {
                             Log.i(TAG, "reduce exposure shutter speed further, was: " + exposure_time);
                             Log.i(TAG, "exposure_time_scale: " + exposure_time_scale);
                         }
-                        modified_from_camera_settings = true;
+                        setModifiedFromCameraSettings();
                         setManualExposureTime(stillBuilder, exposure_time);
                     }
                 }
@@ -7120,7 +7255,7 @@ public class CameraController2 extends CameraController {
                     return;
                 }
                 try {
-                    modified_from_camera_settings = true;
+                    setModifiedFromCameraSettings();
                     if( use_expo_fast_burst && burst_type == BurstType.BURSTTYPE_EXPO ) { // alway use slow burst for focus bracketing
                         if( MyDebug.LOG )
                             Log.i(TAG, "[CS]using fast burst");
@@ -7276,7 +7411,7 @@ public class CameraController2 extends CameraController {
                                 if( !capture_result_has_exposure_time || capture_result_exposure_time < exposure_time ) {
                                     if( MyDebug.LOG )
                                         Log.i(TAG, "also set long exposure time");
-                                    modified_from_camera_settings = true;
+                                    setModifiedFromCameraSettings();
                                     setManualExposureTime(stillBuilder, exposure_time);
                                 }
                                 else {
@@ -7303,7 +7438,7 @@ public class CameraController2 extends CameraController {
                                         Log.i(TAG, "reduce exposure shutter speed further, was: " + exposure_time);
                                         Log.i(TAG, "exposure_time_scale: " + exposure_time_scale);
                                     }
-                                    modified_from_camera_settings = true;
+                                    setModifiedFromCameraSettings();
                                     setManualExposureTime(stillBuilder, exposure_time);
                                 }
                             }
@@ -7737,6 +7872,7 @@ public class CameraController2 extends CameraController {
                 return;
             }
             this.picture_cb = picture;
+            this.zsl_shutter_time = SystemClock.elapsedRealtimeNanos();
             this.jpeg_todo = true;
             this.raw_todo = imageReaderRaw != null;
             this.done_all_captures = false;
@@ -8017,9 +8153,253 @@ public class CameraController2 extends CameraController {
     }
     */
 
+    /** The fields of a capture result needed for the autofocus and auto-exposure state changes,
+     *  which are read for every frame on the camera thread. An instance is reused for each frame,
+     *  so that the camera thread doesn't allocate.
+     */
+    private static class PreviewResultState {
+        boolean has_af_state;
+        int af_state;
+        boolean has_ae_state;
+        int ae_state;
+        boolean has_flash_mode;
+        int flash_mode;
+
+        void set(CaptureResult result) {
+            // use Integer for reading, as these can be null: Google Play crashes confirmed that this can happen for af state
+            Integer value = result.get(CaptureResult.CONTROL_AF_STATE);
+            has_af_state = value != null;
+            af_state = has_af_state ? value : 0;
+            value = result.get(CaptureResult.CONTROL_AE_STATE);
+            has_ae_state = value != null;
+            ae_state = has_ae_state ? value : 0;
+            value = result.get(CaptureResult.FLASH_MODE);
+            has_flash_mode = value != null;
+            flash_mode = has_flash_mode ? value : 0;
+        }
+
+        // n.b., these don't allocate, as the states are small values, for which Integer.valueOf() returns cached instances
+
+        Integer getAFState() {
+            return has_af_state ? Integer.valueOf(af_state) : null;
+        }
+
+        Integer getAEState() {
+            return has_ae_state ? Integer.valueOf(ae_state) : null;
+        }
+
+        Integer getFlashMode() {
+            return has_flash_mode ? Integer.valueOf(flash_mode) : null;
+        }
+    }
+
+    /** A preview capture result for the secondary processing on the result thread (see
+     *  previewCaptureCallback), with the state it needs that can only be read on the camera thread.
+     */
+    private static class SecondaryPreviewResult {
+        final TotalCaptureResult result;
+        final Rect face_sensor_rect; // null if face detection wasn't enabled for the preview, otherwise the result of getViewableRect()
+        final int modified_count; // modified_from_camera_settings_count when the result was submitted
+
+        SecondaryPreviewResult(TotalCaptureResult result, Rect face_sensor_rect, int modified_count) {
+            this.result = result;
+            this.face_sensor_rect = face_sensor_rect;
+            this.modified_count = modified_count;
+        }
+    }
+
+    private final ResultCoalescer<SecondaryPreviewResult> secondary_results = new ResultCoalescer<>(new ResultCoalescer.Scheduler() {
+        @Override
+        public boolean schedule(Runnable runnable, long delay_ms) {
+            Handler handler = mResultHandler;
+            // n.b., postDelayed() returns false if the looper is quitting
+            return handler != null && handler.postDelayed(runnable, delay_ms);
+        }
+    }, new ResultCoalescer.Processor<SecondaryPreviewResult>() {
+        @Override
+        public void process(SecondaryPreviewResult result) {
+            processSecondary(result);
+        }
+    }, preview_result_interval_c);
+
+    /** Should be called when temporarily requesting captures with settings modified from the
+     *  normal ones in camera_settings (e.g., for a burst).
+     */
+    private void setModifiedFromCameraSettings() {
+        modified_from_camera_settings = true;
+        // n.b., increment after setting the flag, see previewCaptureCallback.onCaptureCompleted()
+        modified_from_camera_settings_count.incrementAndGet();
+        // a pending result is from before the settings were modified
+        secondary_results.clear();
+    }
+
+    /** Processes the latest preview result on the result thread, for the information that is
+     *  only needed at the display rate rather than for every frame.
+     */
+    private void processSecondary(SecondaryPreviewResult secondary_result) {
+        if( secondary_result.modified_count != modified_from_camera_settings_count.get() ) {
+            // capture settings were modified since the result was submitted
+            return;
+        }
+        logPreviewResult(secondary_result.result);
+        handleFaceDetection(secondary_result);
+    }
+
+    private void logPreviewResult(TotalCaptureResult result) {
+        if( result.get(CaptureResult.SENSOR_SENSITIVITY) != null ) {
+            Log.i(TAG, "AE_Practice SENSOR_SENSITIVITY:" + result.get(CaptureResult.SENSOR_SENSITIVITY));
+        }
+        if( result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null ) {
+            Log.i(TAG, "AE_Practice SENSOR_EXPOSURE_TIME:" + result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+        }
+        if( result.get(CaptureResult.SENSOR_FRAME_DURATION) != null ) {
+            Log.i(TAG, "AE_Practice SENSOR_FRAME_DURATION:" + result.get(CaptureResult.SENSOR_FRAME_DURATION));
+        }
+        if (MyDebug.LOG) {
+            if (result.get(CaptureResult.FLASH_MODE) != null &&
+                result.get(CaptureResult.FLASH_STATE) != null &&
+                result.get(CaptureResult.CONTROL_AE_MODE) != null) {
+                Log.i(TAG, "[Flash] flash mode:" + result.get(CaptureResult.FLASH_MODE) +
+                                ", ae mode:" + result.get(CaptureResult.CONTROL_AE_MODE) +
+                                ", flash state:" + result.get(CaptureResult.FLASH_STATE));
+            }
+        }
+        if (MyDebug.LOG) {
+            if (result.get(CaptureResult.CONTROL_AE_STATE) != null) {
+                int aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                String aeStateStr = "";
+                switch (aeState) {
+                    case CaptureResult.CONTROL_AE_STATE_INACTIVE:
+                        aeStateStr = "INACTIVE";
+                        break;
+                    case CaptureResult.CONTROL_AE_STATE_SEARCHING:
+                        aeStateStr = "SEARCHING";
+                        break;
+                    case CaptureResult.CONTROL_AE_STATE_CONVERGED:
+                        aeStateStr = "CONVERGED";
+                        break;
+                    case CaptureResult.CONTROL_AE_STATE_LOCKED:
+                        aeStateStr = "LOCKED";
+                        break;
+                    case CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED:
+                        aeStateStr = "FLASH_REQUIRED";
+                        break;
+                    case CaptureResult.CONTROL_AE_STATE_PRECAPTURE:
+                        aeStateStr = "PRECAPTURE";
+                        break;
+                    default:
+                        break;
+                }
+                Log.i(TAG, "AE_STATE:" + aeStateStr);
+            }
+        }
+        if (MyDebug.LOG) {
+            if (result.get(CaptureResult.CONTROL_AF_STATE) != null) {
+                int afState = result.get(CaptureResult.CONTROL_AF_STATE);
+                String afStateStr = "";
+                switch (afState) {
+                    case CaptureResult.CONTROL_AF_STATE_INACTIVE:
+                        afStateStr = "INACTIVE";
+                        break;
+                    case CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN:
+                        afStateStr = "PASSIVE_SCAN";
+                        break;
+                    case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED:
+                        afStateStr = "PASSIVE_FOCUSED";
+                        break;
+                    case CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN:
+                        afStateStr = "ACTIVE_SCAN";
+                        break;
+                    case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
+                        afStateStr = "FOCUSED_LOCKED";
+                        break;
+                    case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED:
+                        afStateStr = "NOT_FOCUSED_LOCKED";
+                        break;
+                    case CaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED:
+                        afStateStr = "PASSIVE_UNFOCUSED";
+                        break;
+                    default:
+                        break;
+                }
+                if (mPrintResultCounter % 30 == 0 ||
+                    result.get(CaptureResult.LENS_STATE) == CaptureResult.LENS_STATE_MOVING) {
+                    Log.i(TAG, "[AF_Practise] AF_STATE:" + afStateStr +
+                            ", af mode:" + result.get(CaptureResult.CONTROL_AF_MODE) +
+                            ", af scene changed:" + result.get(CaptureResult.CONTROL_AF_SCENE_CHANGE) +
+                            ", lens state:" + result.get(CaptureResult.LENS_STATE) +
+                            ", focus distance:" + result.get(CaptureResult.LENS_FOCUS_DISTANCE) +
+                            ", focus range:" + result.get(CaptureResult.LENS_FOCUS_RANGE));
+                }
+            }
+        }
+        if ( MyDebug.LOG) {
+            if (mStaticMetadata.areResultKeyAvailable(mVendorTag_camera_motion_x) &&
+                mStaticMetadata.areResultKeyAvailable(mVendorTag_camera_motion_y) &&
+                mStaticMetadata.areResultKeyAvailable(mVendorTag_subject_motion)) {
+                if (result.get(mVendorTag_camera_motion_x) != null &&
+                    result.get(mVendorTag_camera_motion_y) != null&&
+                    result.get(mVendorTag_subject_motion)!= null) {
+                    DecimalFormat decimalFormat = new DecimalFormat("0.00000000");
+                    float x = result.get(mVendorTag_camera_motion_x);
+                    float y = result.get(mVendorTag_camera_motion_y);
+                    float subject_motion = result.get(mVendorTag_subject_motion);
+                    Log.i(TAG, "VendorTag_OPS motion, subject_motion:" + decimalFormat.format(subject_motion) +
+                            ",x:" +  decimalFormat.format(x) +
+                            ",y:" +  decimalFormat.format(y));
+                }
+            }
+        }
+
+        if (MyDebug.LOG) {
+            Map<String, CaptureResult> physicalCameraResults = result.getPhysicalCameraResults();
+            if (mEnableCapturePhysicalStream &&
+                    physicalCameraResults.get(mPhysicalCameraIds[0]) != null &&
+                    physicalCameraResults.get(mPhysicalCameraIds[1]) != null) {
+                Log.i(TAG, "Physical_Camera" + mPhysicalCameraIds[0] + "'s result timestamp:" +
+                        physicalCameraResults.get(mPhysicalCameraIds[0]).get(CaptureResult.SENSOR_TIMESTAMP));
+                Log.i(TAG, "Physical_Camera" + mPhysicalCameraIds[1] + "'s result timestamp:" +
+                        physicalCameraResults.get(mPhysicalCameraIds[1]).get(CaptureResult.SENSOR_TIMESTAMP));
+            }
+        }
+    }
+
+    private void handleFaceDetection(SecondaryPreviewResult secondary_result) {
+        FaceDetectionListener face_detection_listener = this.face_detection_listener;
+        CaptureResult result = secondary_result.result;
+        Rect sensor_rect = secondary_result.face_sensor_rect;
+        if( face_detection_listener != null && sensor_rect != null ) {
+            android.hardware.camera2.params.Face [] camera_faces = result.get(CaptureResult.STATISTICS_FACES);
+            if( camera_faces != null ) {
+                if( camera_faces.length == 0 && last_faces_detected == 0 ) {
+                    // no point continually calling the callback if 0 faces detected (same behaviour as CameraController1)
+                }
+                else {
+                    last_faces_detected = camera_faces.length;
+                    CameraController.Face [] faces = new CameraController.Face[camera_faces.length];
+                    for(int i=0;i<camera_faces.length;i++) {
+                        Log.i(TAG, "[FD] face:" + camera_faces[i].toString());
+                        faces[i] = convertFromCameraFace(sensor_rect, camera_faces[i]);
+                    }
+                    face_detection_listener.onFaceDetection(faces);
+                }
+            }
+        }
+    }
+
+    /** Preview capture results are handled in two stages:
+     *  - On the camera thread, for every frame: the autofocus and auto-exposure state changes (which
+     *    drive focusing and taking photos), which only need a few fields extracted into a
+     *    PreviewResultState; updating the cached exposure information (which is also read when
+     *    taking photos); and handling of capture requests (e.g., results for photos, ZSL).
+     *  - On the result thread, at most at the display rate, for the latest result only: logging,
+     *    and face detection. See processSecondary().
+     *  This keeps the camera thread (which also handles the image callbacks) responsive.
+     */
     private final CameraCaptureSession.CaptureCallback previewCaptureCallback = new CameraCaptureSession.CaptureCallback() {
         private long last_process_frame_number = 0;
         private int last_af_state = -1;
+        private final PreviewResultState result_state = new PreviewResultState();
 
         private RequestTagType getRequestTagType(@NonNull CaptureRequest request) {
             Object tag = request.getTag();
@@ -8037,9 +8417,6 @@ public class CameraController2 extends CameraController {
                 Log.i(TAG, "[Capture_Callback] onCaptureBufferLost target:" + target +
                         ", frameNumber:" + frameNumber);
             }
-            if (mZslResultListener != null) {
-                mZslResultListener.onCaptureBufferLost(session, request, target, frameNumber);
-            }
             super.onCaptureBufferLost(session, request, target, frameNumber);
         }
 
@@ -8055,9 +8432,6 @@ public class CameraController2 extends CameraController {
                 Log.i(TAG, "[Capture_Callback] onCaptureFailed wasImageCaptured:" + failure.wasImageCaptured() +
                         ", frameNumber:" + failure.getFrameNumber());
             }
-            if (mZslResultListener != null) {
-                mZslResultListener.onCaptureFailed(session, request, failure);
-            }
             super.onCaptureFailed(session, request, failure); // API docs say this does nothing, but call it just to be safe
         }
 
@@ -8068,9 +8442,6 @@ public class CameraController2 extends CameraController {
                 Log.i(TAG, "sequenceId: " + sequenceId);
             }
             Log.i(TAG, "[Capture_Callback] onCaptureSequenceAborted sequenceId:" + sequenceId);
-            if (mZslResultListener != null) {
-                mZslResultListener.onCaptureSequenceAborted(session, sequenceId);
-            }
             super.onCaptureSequenceAborted(session, sequenceId); // API docs say this does nothing, but call it just to be safe
         }
 
@@ -8082,9 +8453,6 @@ public class CameraController2 extends CameraController {
                 Log.i(TAG, "frameNumber: " + frameNumber);
             }
             Log.i(TAG, "[CS][Capture_Callback] onCaptureSequenceCompleted sequenceId:" + sequenceId);
-            if (mZslResultListener != null) {
-                mZslResultListener.onCaptureSequenceCompleted(session, sequenceId, frameNumber);
-            }
             super.onCaptureSequenceCompleted(session, sequenceId, frameNumber); // API docs say this does nothing, but call it just to be safe
         }
 
@@ -8100,9 +8468,6 @@ public class CameraController2 extends CameraController {
             if(getRequestTagType(request) == RequestTagType.CAPTURE ) {
                 Log.i(TAG, "[Capture_Callback] onCaptureStarted timestamp:" + timestamp);
             }
-            if (mZslResultListener != null) {
-                mZslResultListener.onCaptureStarted(session, request, timestamp, frameNumber);
-            }
             // n.b., we don't play the shutter sound here for RequestTagType.CAPTURE, as it typically sounds "too late"
             // (if ever we changed this, would also need to fix for burst, where we only set the RequestTagType.CAPTURE for the last image)
             super.onCaptureStarted(session, request, timestamp, frameNumber);
@@ -8120,9 +8485,6 @@ public class CameraController2 extends CameraController {
             // not all results may be available. E.g., OnePlus 3T on Android 7 (OxygenOS 4.0.2) reports null for AF_STATE from this method.
             // We'd also need to fix up the discarding of old frames in process(), as we probably don't want to be discarding the
             // complete results from onCaptureCompleted()!
-            if (mZslResultListener != null) {
-                mZslResultListener.onCaptureProgressed(session, request, partialResult);
-            }
             super.onCaptureProgressed(session, request, partialResult); // API docs say this does nothing, but call it just to be safe (as with Google Camera)
         }
 
@@ -8141,131 +8503,44 @@ public class CameraController2 extends CameraController {
                 }
             }
             GeekCamera2Trace.setCounter(GeekCamera2Trace.FRAME_NUMBER, result.getFrameNumber());
-            if (MyDebug.LOG) {
-                if (result.get(CaptureResult.FLASH_MODE) != null &&
-                    result.get(CaptureResult.FLASH_STATE) != null &&
-                    result.get(CaptureResult.CONTROL_AE_MODE) != null) {
-                    Log.i(TAG, "[Flash] flash mode:" + result.get(CaptureResult.FLASH_MODE) +
-                                    ", ae mode:" + result.get(CaptureResult.CONTROL_AE_MODE) +
-                                    ", flash state:" + result.get(CaptureResult.FLASH_STATE));
-                }
-            }
-            if (MyDebug.LOG) {
-                if (result.get(CaptureResult.CONTROL_AE_STATE) != null) {
-                    int aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    String aeStateStr = "";
-                    switch (aeState) {
-                        case CaptureResult.CONTROL_AE_STATE_INACTIVE:
-                            aeStateStr = "INACTIVE";
-                            break;
-                        case CaptureResult.CONTROL_AE_STATE_SEARCHING:
-                            aeStateStr = "SEARCHING";
-                            break;
-                        case CaptureResult.CONTROL_AE_STATE_CONVERGED:
-                            aeStateStr = "CONVERGED";
-                            break;
-                        case CaptureResult.CONTROL_AE_STATE_LOCKED:
-                            aeStateStr = "LOCKED";
-                            break;
-                        case CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED:
-                            aeStateStr = "FLASH_REQUIRED";
-                            break;
-                        case CaptureResult.CONTROL_AE_STATE_PRECAPTURE:
-                            aeStateStr = "PRECAPTURE";
-                            break;
-                        default:
-                            break;
-                    }
-                    Log.i(TAG, "AE_STATE:" + aeStateStr);
-                }
-            }
-            if (MyDebug.LOG) {
-                if (result.get(CaptureResult.CONTROL_AF_STATE) != null) {
-                    int afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    String afStateStr = "";
-                    switch (afState) {
-                        case CaptureResult.CONTROL_AF_STATE_INACTIVE:
-                            afStateStr = "INACTIVE";
-                            break;
-                        case CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN:
-                            afStateStr = "PASSIVE_SCAN";
-                            break;
-                        case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED:
-                            afStateStr = "PASSIVE_FOCUSED";
-                            break;
-                        case CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN:
-                            afStateStr = "ACTIVE_SCAN";
-                            break;
-                        case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
-                            afStateStr = "FOCUSED_LOCKED";
-                            break;
-                        case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED:
-                            afStateStr = "NOT_FOCUSED_LOCKED";
-                            break;
-                        case CaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED:
-                            afStateStr = "PASSIVE_UNFOCUSED";
-                            break;
-                        default:
-                            break;
-                    }
-                    if (mPrintResultCounter % 30 == 0 ||
-                        result.get(CaptureResult.LENS_STATE) == CaptureResult.LENS_STATE_MOVING) {
-                        Log.i(TAG, "[AF_Practise] AF_STATE:" + afStateStr +
-                                ", af mode:" + result.get(CaptureResult.CONTROL_AF_MODE) +
-                                ", af scene changed:" + result.get(CaptureResult.CONTROL_AF_SCENE_CHANGE) +
-                                ", lens state:" + result.get(CaptureResult.LENS_STATE) +
-                                ", focus distance:" + result.get(CaptureResult.LENS_FOCUS_DISTANCE) +
-                                ", focus range:" + result.get(CaptureResult.LENS_FOCUS_RANGE));
-                    }
-                }
-            }
             if(getRequestTagType(request) == RequestTagType.CAPTURE ) {
                 Log.i(TAG, "[Capture_Callback] onCaptureCompleted timestamp:" + result.get(CaptureResult.SENSOR_TIMESTAMP));
             }
-            if ( MyDebug.LOG) {
-                if (mStaticMetadata.areResultKeyAvailable(mVendorTag_camera_motion_x) &&
-                    mStaticMetadata.areResultKeyAvailable(mVendorTag_camera_motion_y) &&
-                    mStaticMetadata.areResultKeyAvailable(mVendorTag_subject_motion)) {
-                    if (result.get(mVendorTag_camera_motion_x) != null &&
-                        result.get(mVendorTag_camera_motion_y) != null&&
-                        result.get(mVendorTag_subject_motion)!= null) {
-                        DecimalFormat decimalFormat = new DecimalFormat("0.00000000");
-                        float x = result.get(mVendorTag_camera_motion_x);
-                        float y = result.get(mVendorTag_camera_motion_y);
-                        float subject_motion = result.get(mVendorTag_subject_motion);
-                        Log.i(TAG, "VendorTag_OPS motion, subject_motion:" + decimalFormat.format(subject_motion) +
-                                ",x:" +  decimalFormat.format(x) +
-                                ",y:" +  decimalFormat.format(y));
-                    }
-                }
-            }
 
-            if (MyDebug.LOG) {
-                Map<String, CaptureResult> physicalCameraResults = result.getPhysicalCameraResults();
-                if (mEnableCapturePhysicalStream &&
-                        physicalCameraResults.get(mPhysicalCameraIds[0]) != null &&
-                        physicalCameraResults.get(mPhysicalCameraIds[1]) != null) {
-                    Log.i(TAG, "Physical_Camera" + mPhysicalCameraIds[0] + "'s result timestamp:" +
-                            physicalCameraResults.get(mPhysicalCameraIds[0]).get(CaptureResult.SENSOR_TIMESTAMP));
-                    Log.i(TAG, "Physical_Camera" + mPhysicalCameraIds[1] + "'s result timestamp:" +
-                            physicalCameraResults.get(mPhysicalCameraIds[1]).get(CaptureResult.SENSOR_TIMESTAMP));
+            process(request, result);
+            // read the count before the flag, so that if the flag is set after being read here, the
+            // count will differ and processSecondary() will discard the result
+            int modified_count = modified_from_camera_settings_count.get();
+            if( !modified_from_camera_settings ) {
+                // n.b., skip results whilst the capture settings are modified (e.g., for a burst)
+                Rect face_sensor_rect = null;
+                if( face_detection_listener != null && mPreviewBuilder != null ) {
+                    // read mPreviewBuilder here rather than on the result thread, as CaptureRequest.Builder isn't thread safe
+                    Integer face_detect_mode = mPreviewBuilder.get(CaptureRequest.STATISTICS_FACE_DETECT_MODE);
+                    if( face_detect_mode != null && face_detect_mode != CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF ) {
+                        face_sensor_rect = getViewableRect();
+                    }
                 }
+                secondary_results.submit(new SecondaryPreviewResult(result, face_sensor_rect, modified_count));
             }
-
-
-           process(request, result);
             processCompleted(request, result);
-            if (mZslResultListener != null) {
-                mZslResultListener.onCaptureCompleted(session, request, result);
+            ZslRingBuffer<Image, TotalCaptureResult> ring_buffer = zsl_ring_buffer;
+            if( ring_buffer != null && getRequestTagType(request) == RequestTagType.ZSL_INPUT ) {
+                // only requests targeting the input stream have a frame for the result, otherwise
+                // the unpaired results would displace the frames from the ring buffer
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if( timestamp != null ) {
+                    ring_buffer.addResult(timestamp, result, getZslScore(result));
+                }
             }
             super.onCaptureCompleted(session, request, result); // API docs say this does nothing, but call it just to be safe (as with Google Camera)
         }
 
         /** Updates cached information regarding the capture result status related to auto-exposure.
          */
-        private void updateCachedAECaptureStatus(CaptureResult result) {
-            Integer ae_state = result.get(CaptureResult.CONTROL_AE_STATE);
-            Integer flash_mode = result.get(CaptureResult.FLASH_MODE);
+        private void updateCachedAECaptureStatus(PreviewResultState result_state) {
+            Integer ae_state = result_state.getAEState();
+            Integer flash_mode = result_state.getFlashMode();
             /*if( MyDebug.LOG ) {
                 if( flash_mode == null )
                     Log.i(TAG, "FLASH_MODE is null");
@@ -8316,9 +8591,9 @@ public class CameraController2 extends CameraController {
             }
         }
 
-        private void handleStateChange(CaptureRequest request, CaptureResult result) {
+        private void handleStateChange(CaptureRequest request, PreviewResultState result_state) {
             // use Integer instead of int, so can compare to null: Google Play crashes confirmed that this can happen; Google Camera also ignores cases with null af state
-            Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+            Integer af_state = result_state.getAFState();
             /*if( MyDebug.LOG ) {
                 if( af_state == null )
                     Log.i(TAG, "CONTROL_AF_STATE is null");
@@ -8340,7 +8615,7 @@ public class CameraController2 extends CameraController {
                     Log.i(TAG, "CONTROL_AF_STATE = " + af_state);
             }*/
             // CONTROL_AE_STATE can be null on some devices, so as with af_state, use Integer
-            Integer ae_state = result.get(CaptureResult.CONTROL_AE_STATE);
+            Integer ae_state = result_state.getAEState();
             /*Integer awb_state = result.get(CaptureResult.CONTROL_AWB_STATE);
             if( MyDebug.LOG ) {
                 if( awb_state == null )
@@ -8640,14 +8915,15 @@ public class CameraController2 extends CameraController {
                 debug_time = System.currentTimeMillis();
             }*/
             last_process_frame_number = result.getFrameNumber();
+            result_state.set(result);
 
-            updateCachedAECaptureStatus(result);
+            updateCachedAECaptureStatus(result_state);
 
-            handleStateChange(request, result);
+            handleStateChange(request, result_state);
 
-            handleContinuousFocusMove(result);
+            handleContinuousFocusMove(result_state);
 
-            Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+            Integer af_state = result_state.getAFState();
             if( af_state != null && af_state != last_af_state ) {
                 /*if( MyDebug.LOG )
                     Log.i(TAG, "CONTROL_AF_STATE changed from " + last_af_state + " to " + af_state);*/
@@ -8659,8 +8935,8 @@ public class CameraController2 extends CameraController {
             }*/
         }
 
-        private void handleContinuousFocusMove(CaptureResult result) {
-            Integer af_state = result.get(CaptureResult.CONTROL_AF_STATE);
+        private void handleContinuousFocusMove(PreviewResultState result_state) {
+            Integer af_state = result_state.getAFState();
             if( af_state != null && af_state == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN && af_state != last_af_state ) {
                 /*if( MyDebug.LOG )
                     Log.i(TAG, "continuous focusing started");*/
@@ -8688,7 +8964,6 @@ public class CameraController2 extends CameraController {
             else if( result.get(CaptureResult.SENSOR_SENSITIVITY) != null ) {
                 capture_result_has_iso = true;
                 capture_result_iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
-                Log.i(TAG, "AE_Practice SENSOR_SENSITIVITY:" + capture_result_iso);
                 /*if( MyDebug.LOG )
                     Log.i(TAG, "capture_result_iso: " + capture_result_iso);*/
                 /*if( camera_settings.has_iso && Math.abs(camera_settings.iso - capture_result_iso) > 10 && previewBuilder != null ) {
@@ -8731,7 +9006,6 @@ public class CameraController2 extends CameraController {
             else if( result.get(CaptureResult.SENSOR_EXPOSURE_TIME) != null ) {
                 capture_result_has_exposure_time = true;
                 capture_result_exposure_time = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-                Log.i(TAG, "AE_Practice SENSOR_EXPOSURE_TIME:" + capture_result_exposure_time);
                 // If using manual exposure time longer than max_preview_exposure_time_c, the preview will be fixed to
                 // max_preview_exposure_time_c, so we should just use the requested manual exposure time.
                 // (This affects the exposure time shown on on-screen preview - whilst showing the preview exposure time
@@ -8755,7 +9029,6 @@ public class CameraController2 extends CameraController {
             else if( result.get(CaptureResult.SENSOR_FRAME_DURATION) != null ) {
                 capture_result_has_frame_duration = true;
                 capture_result_frame_duration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
-                Log.i(TAG, "AE_Practice SENSOR_FRAME_DURATION:" + capture_result_frame_duration);
             }
             else {
                 capture_result_has_frame_duration = false;
@@ -8814,30 +9087,6 @@ public class CameraController2 extends CameraController {
             }*/
         }
 
-        private void handleFaceDetection(CaptureResult result) {
-            if( face_detection_listener != null && mPreviewBuilder != null ) {
-                Integer face_detect_mode = mPreviewBuilder.get(CaptureRequest.STATISTICS_FACE_DETECT_MODE);
-                if( face_detect_mode != null && face_detect_mode != CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF ) {
-                    Rect sensor_rect = getViewableRect();
-                    android.hardware.camera2.params.Face [] camera_faces = result.get(CaptureResult.STATISTICS_FACES);
-                    if( camera_faces != null ) {
-                        if( camera_faces.length == 0 && last_faces_detected == 0 ) {
-                            // no point continually calling the callback if 0 faces detected (same behaviour as CameraController1)
-                        }
-                        else {
-                            last_faces_detected = camera_faces.length;
-                            CameraController.Face [] faces = new CameraController.Face[camera_faces.length];
-                            for(int i=0;i<camera_faces.length;i++) {
-                                Log.i(TAG, "[FD] face:" + camera_faces[i].toString());
-                                faces[i] = convertFromCameraFace(sensor_rect, camera_faces[i]);
-                            }
-                            face_detection_listener.onFaceDetection(faces);
-                        }
-                    }
-                }
-            }
-        }
-
         /** Passes the capture result to the RAW onImageAvailableListener, if it exists.
          */
         private void handleRawCaptureResult(CaptureResult result) {
@@ -8989,7 +9238,6 @@ public class CameraController2 extends CameraController {
             }
 
             updateCachedCaptureResult(result);
-            handleFaceDetection(result);
 
             if( push_repeating_request_when_torch_off && push_repeating_request_when_torch_off_id == request && mPreviewBuilder != null ) {
                 if( MyDebug.LOG )
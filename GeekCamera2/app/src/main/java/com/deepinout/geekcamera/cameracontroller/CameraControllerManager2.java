@@ -8,6 +8,7 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
@@ -46,6 +47,40 @@ public class CameraControllerManager2 extends CameraControllerManager {
         mPrintedInfo = false;
     }
 
+    /** Returns the CameraCharacteristics, only querying the camera service the first time for
+     *  each camera - see CameraCharacteristicsCache.
+     */
+    private CameraCharacteristics getCharacteristics(String cameraIdS) throws CameraAccessException {
+        return CameraCharacteristicsCache.getInstance().getCameraCharacteristics(mCameraManager, cameraIdS);
+    }
+
+    /** Returns the information persisted for the camera when it was last opened, or null if not
+     *  available. This avoids querying the camera service at all.
+     */
+    private CameraFeaturesSnapshot.Camera getSnapshotCamera(String cameraIdS) {
+        return CameraCharacteristicsCache.getInstance().getSnapshotCamera(mContext, cameraIdS);
+    }
+
+    /** Returns the CameraMetadata.LENS_FACING_* value for the camera.
+     */
+    private int getLensFacing(String cameraIdS) throws CameraAccessException {
+        CameraFeaturesSnapshot.Camera snapshot_camera = getSnapshotCamera(cameraIdS);
+        if( snapshot_camera != null && snapshot_camera.facing != -1 ) {
+            return snapshot_camera.facing;
+        }
+        return getCharacteristics(cameraIdS).get(CameraCharacteristics.LENS_FACING);
+    }
+
+    /** Returns the CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_* value for the camera.
+     */
+    private int getHardwareLevel(String cameraIdS) throws CameraAccessException {
+        CameraFeaturesSnapshot.Camera snapshot_camera = getSnapshotCamera(cameraIdS);
+        if( snapshot_camera != null && snapshot_camera.hardware_level != -1 ) {
+            return snapshot_camera.hardware_level;
+        }
+        return getCharacteristics(cameraIdS).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+    }
+
     @Override
     public int getNumberOfCameras() {
         try {
@@ -87,8 +122,8 @@ public class CameraControllerManager2 extends CameraControllerManager {
     public CameraController.Facing getFacing(int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
-            switch(characteristics.get(CameraCharacteristics.LENS_FACING)) {
+            int lens_facing = getLensFacing(cameraIdS);
+            switch(lens_facing) {
                 case CameraMetadata.LENS_FACING_FRONT:
                     return CameraController.Facing.FACING_FRONT;
                 case CameraMetadata.LENS_FACING_BACK:
@@ -96,7 +131,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
                 case CameraMetadata.LENS_FACING_EXTERNAL:
                     return CameraController.Facing.FACING_EXTERNAL;
             }
-            Log.e(TAG, "unknown camera_facing: " + characteristics.get(CameraCharacteristics.LENS_FACING));
+            Log.e(TAG, "unknown camera_facing: " + lens_facing);
         } catch(Throwable e) {
             if(MyDebug.LOG)
                 Log.e(TAG, "exception trying to get camera characteristics");
@@ -110,9 +145,8 @@ public class CameraControllerManager2 extends CameraControllerManager {
         String description = null;
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
 
-            switch( characteristics.get(CameraCharacteristics.LENS_FACING) ) {
+            switch( getLensFacing(cameraIdS) ) {
                 case CameraMetadata.LENS_FACING_FRONT:
                     description = context.getResources().getString(R.string.front_camera);
                     break;
@@ -127,8 +161,15 @@ public class CameraControllerManager2 extends CameraControllerManager {
                     return null;
             }
 
-            SizeF view_angle = CameraControllerManager2.computeViewAngles(characteristics);
-            if( view_angle.getWidth() > 90.5f ) {
+            float view_angle_x;
+            CameraFeaturesSnapshot.Camera snapshot_camera = getSnapshotCamera(cameraIdS);
+            if( snapshot_camera != null ) {
+                view_angle_x = snapshot_camera.view_angle_x;
+            }
+            else {
+                view_angle_x = CameraControllerManager2.computeViewAngles(getCharacteristics(cameraIdS)).getWidth();
+            }
+            if( view_angle_x > 90.5f ) {
                 // count as ultra-wide
                 description += ", " + context.getResources().getString(R.string.ultrawide);
             }
@@ -146,8 +187,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     public String getHardwareLevel(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
-            int hardware_level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            int hardware_level = getHardwareLevel(cameraIdS);
             switch (hardware_level) {
                 case CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY:
                     Log.d(TAG, "CameraId:" + cameraId + ",Hardware Level: LEGACY");
@@ -180,7 +220,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     public boolean isLogicalMultiCamera(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             Set<String> phySicalCameraIds = characteristics.getPhysicalCameraIds();
             int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
             List<String> capabilitiesStringList = MyUtils.convertCapabilityToString(capabilities);
@@ -246,7 +286,10 @@ public class CameraControllerManager2 extends CameraControllerManager {
      * Also see https://sourceforge.net/p/opencamera/tickets/141/ .
      */
     static boolean isHardwareLevelSupported(CameraCharacteristics c, int requiredLevel) {
-        int deviceLevel = c.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        return isHardwareLevelSupported(c.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL), requiredLevel);
+    }
+
+    private static boolean isHardwareLevelSupported(int deviceLevel, int requiredLevel) {
         if( MyDebug.LOG ) {
             switch (deviceLevel) {
                 case CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY:
@@ -292,9 +335,9 @@ public class CameraControllerManager2 extends CameraControllerManager {
     public boolean allowCamera2Support(int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
-            //return isHardwareLevelSupported(characteristics, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
-            return isHardwareLevelSupported(characteristics, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED);
+            int hardware_level = getHardwareLevel(cameraIdS);
+            //return isHardwareLevelSupported(hardware_level, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+            return isHardwareLevelSupported(hardware_level, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED);
         }
         catch(Throwable e) {
             // in theory we should only get CameraAccessException, but Google Play shows we can get a variety of exceptions
@@ -311,7 +354,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printAvailableSessionKeys(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             List <CaptureRequest.Key<?>> availabeSessionKeys = characteristics.getAvailableSessionKeys();
             for (CaptureRequest.Key sessionKey : availabeSessionKeys) {
                 Log.i(TAG, "cameraId;" + cameraIdS + ", sessionKey name:" + sessionKey.getName());
@@ -324,7 +367,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printAvailableControlModes(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             int[] availableControlMOdes = characteristics.get(CameraCharacteristics.CONTROL_AVAILABLE_MODES);
 
             for (int controlMode : availableControlMOdes) {
@@ -355,7 +398,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printAvailableAEModes(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             int[] availableAeMOdes = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES);
 
             for (int aeMode : availableAeMOdes) {
@@ -392,7 +435,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printFlashAvailable(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             Boolean flashAvailable = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
             Log.i(TAG, "[Flash]cameraId:" + cameraIdS + ", printFlashAvailable:" + flashAvailable);
         } catch (Exception e) {
@@ -403,7 +446,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printMaxAERegions(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             Integer regionCount = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
             Log.i(TAG, "[Touch AEAF]cameraId:" + cameraIdS + ", printMaxAERegions:" + regionCount);
         } catch (Exception e) {
@@ -414,7 +457,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printFocusCapability(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             Float minFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
             Float hyperFocalDistance = characteristics.get(CameraCharacteristics.LENS_INFO_HYPERFOCAL_DISTANCE);
             Integer focusDistanceCalib = characteristics.get(CameraCharacteristics.LENS_INFO_FOCUS_DISTANCE_CALIBRATION);
@@ -429,7 +472,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printAvailableStaticKeys(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             List <CameraCharacteristics.Key<?>> availabeStaticKeys = characteristics.getKeys();
             for (CameraCharacteristics.Key staticKey : availabeStaticKeys) {
                 Log.i(TAG, "cameraId;" + cameraIdS + ", availabeStaticKeys name:" + staticKey.getName());
@@ -454,7 +497,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printAvailableResultKeys(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             List <CaptureResult.Key<?>> availabeResultKeys = characteristics.getAvailableCaptureResultKeys();
             for (CaptureResult.Key resultKey : availabeResultKeys) {
                 Log.i(TAG, "cameraId:" + cameraIdS + ", availabeResultKeys name:" + resultKey.getName());
@@ -467,7 +510,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
     private void printAvailableRequestKeys(Context context, int cameraId) {
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             List <CaptureRequest.Key<?>> availabeRequestKeys = characteristics.getAvailableCaptureRequestKeys();
             for (CaptureRequest.Key requestKey : availabeRequestKeys) {
                 Log.i(TAG, "cameraId:" + cameraIdS + ", availabeRequestKeys name:" + requestKey.getName());
@@ -487,7 +530,7 @@ public class CameraControllerManager2 extends CameraControllerManager {
         Log.i(TAG, "StreamConfigurationMap++++++++++++++++++++++++++++++++++++++++++++++");
         try {
             String cameraIdS = mCameraManager.getCameraIdList()[cameraId];
-            CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraIdS);
+            CameraCharacteristics characteristics = getCharacteristics(cameraIdS);
             StreamConfigurationMap streamConfigurationMap =
                     characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
 
@@ -0,0 +1,135 @@
+package com.deepinout.geekcamera.cameracontroller;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A compact summary of the static information for each camera, as needed to describe the
+ *  cameras (see CameraControllerManager2), which can be persisted so that later launches don't
+ *  need to query CameraCharacteristics before the camera is opened. See
+ *  CameraCharacteristicsCache. Only information that is actually used before the camera is opened
+ *  is stored - once the camera is open, CameraController2 reads everything else from the live
+ *  CameraCharacteristics.
+ *  A snapshot is only valid for the device build it was taken on (identified by the
+ *  fingerprint), and for the format version; otherwise deserialize() returns null.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class CameraFeaturesSnapshot {
+    private static final int magic_c = 0x47433246; // "GC2F"
+    private static final int version_c = 2;
+
+    /** The information for a single camera.
+     */
+    public static class Camera {
+        public final String id;
+        public int facing = -1; // one of CameraMetadata.LENS_FACING_*, or -1 if unknown
+        public int hardware_level = -1; // one of CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_*, or -1 if unknown
+        public float view_angle_x; // in degrees
+
+        public Camera(String id) {
+            this.id = id;
+        }
+    }
+
+    private final String fingerprint;
+    private final Map<String, Camera> cameras = new LinkedHashMap<>();
+
+    public CameraFeaturesSnapshot(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public Camera getCamera(String id) {
+        return cameras.get(id);
+    }
+
+    /** Adds the camera, replacing any existing camera with the same id.
+     */
+    public void putCamera(Camera camera) {
+        cameras.put(camera.id, camera);
+    }
+
+    public List<String> getCameraIds() {
+        return Collections.unmodifiableList(new ArrayList<>(cameras.keySet()));
+    }
+
+    /** Reads a count, checking that it's sensible, so that corrupt data fails quickly rather than
+     *  allocating huge lists.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if( count < 0 || count > 65536 ) {
+            throw new IOException("invalid count: " + count);
+        }
+        return count;
+    }
+
+    public byte [] serialize() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(magic_c);
+            out.writeInt(version_c);
+            out.writeUTF(fingerprint);
+            out.writeInt(cameras.size());
+            for(Camera camera : cameras.values()) {
+                out.writeUTF(camera.id);
+                out.writeInt(camera.facing);
+                out.writeInt(camera.hardware_level);
+                out.writeFloat(camera.view_angle_x);
+            }
+            out.flush();
+        }
+        catch(IOException e) {
+            // shouldn't happen when writing to a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Reads a snapshot written by serialize().
+     * @return The snapshot, or null if the data is invalid, or was written for a different
+     *         fingerprint or format version.
+     */
+    public static CameraFeaturesSnapshot deserialize(byte [] data, String expected_fingerprint) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if( in.readInt() != magic_c || in.readInt() != version_c ) {
+                return null;
+            }
+            String fingerprint = in.readUTF();
+            if( !fingerprint.equals(expected_fingerprint) ) {
+                return null;
+            }
+            CameraFeaturesSnapshot snapshot = new CameraFeaturesSnapshot(fingerprint);
+            int n_cameras = readCount(in);
+            for(int i=0;i<n_cameras;i++) {
+                Camera camera = new Camera(in.readUTF());
+                camera.facing = in.readInt();
+                camera.hardware_level = in.readInt();
+                camera.view_angle_x = in.readFloat();
+                snapshot.putCamera(camera);
+            }
+            if( in.read() != -1 ) {
+                // trailing data
+                return null;
+            }
+            return snapshot;
+        }
+        catch(IOException e) {
+            // includes EOFException for truncated data
+            return null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.deepinout.geekcamera.cameracontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A pool of byte arrays for receiving JPEG data, so that captures (in particular bursts of large
+ *  JPEGs) don't each allocate a new array which then only lives until the image is saved.
+ *  Arrays are allocated in size classes (multiples of size_class_c), so an array can be reused for
+ *  a later JPEG of a similar but not identical size. This means that a Buffer's data array will
+ *  usually be longer than the JPEG it holds: callers must use Buffer.getLength().
+ *  Buffers are reference counted; when the count reaches zero, the array is returned to the pool
+ *  (unless this would exceed max_pooled_bytes, in which case it's left for garbage collection).
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class JpegBufferPool {
+    public static final int size_class_c = 256*1024;
+    // don't reuse an array that is more than this many size classes larger than needed
+    private static final int max_size_class_slack_c = 4;
+
+    private final long max_pooled_bytes;
+    private final List<byte []> free_arrays = new ArrayList<>();
+    private long pooled_bytes;
+
+    /** A JPEG held in a pooled array.
+     */
+    public static class Buffer {
+        private final JpegBufferPool pool;
+        private final byte [] data;
+        private final int length;
+        private int ref_count = 1;
+
+        private Buffer(JpegBufferPool pool, byte [] data, int length) {
+            this.pool = pool;
+            this.data = data;
+            this.length = length;
+        }
+
+        /** Returns the backing array. Only the first getLength() bytes are valid. Must not be
+         *  used after the final call to release().
+         */
+        public byte [] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /** Returns a newly allocated array holding just the JPEG, for callers that require an
+         *  exactly sized array.
+         */
+        public byte [] copyData() {
+            byte [] copy = new byte[length];
+            System.arraycopy(data, 0, copy, 0, length);
+            return copy;
+        }
+
+        /** Adds a reference, which must be balanced by a call to release().
+         */
+        public void retain() {
+            synchronized( pool ) {
+                if( ref_count <= 0 ) {
+                    throw new IllegalStateException("buffer already released");
+                }
+                ref_count++;
+            }
+        }
+
+        /** Releases a reference; once all references are released, the array is returned to the
+         *  pool.
+         */
+        public void release() {
+            synchronized( pool ) {
+                if( ref_count <= 0 ) {
+                    throw new IllegalStateException("buffer already released");
+                }
+                ref_count--;
+                if( ref_count == 0 ) {
+                    pool.recycle(data);
+                }
+            }
+        }
+    }
+
+    public JpegBufferPool(long max_pooled_bytes) {
+        this.max_pooled_bytes = max_pooled_bytes;
+    }
+
+    /** Returns the array size used for a JPEG of the supplied length.
+     */
+    public static int getSizeClass(int length) {
+        return ((length + size_class_c - 1) / size_class_c) * size_class_c;
+    }
+
+    /** Returns a buffer with a reference count of 1, whose data array is at least length bytes.
+     *  The contents of the array are undefined.
+     */
+    public synchronized Buffer acquire(int length) {
+        if( length < 0 ) {
+            throw new IllegalArgumentException("length must be non-negative");
+        }
+        final int size = getSizeClass(length);
+        final long max_size = (long)size + (long)max_size_class_slack_c*size_class_c;
+        // find the smallest free array that is large enough
+        int best = -1;
+        for(int i=0;i<free_arrays.size();i++) {
+            int this_size = free_arrays.get(i).length;
+            if( this_size >= length && this_size <= max_size && ( best == -1 || this_size < free_arrays.get(best).length ) ) {
+                best = i;
+            }
+        }
+        byte [] data;
+        if( best != -1 ) {
+            data = free_arrays.remove(best);
+            pooled_bytes -= data.length;
+        }
+        else {
+            data = new byte[size];
+        }
+        return new Buffer(this, data, length);
+    }
+
+    private void recycle(byte [] data) {
+        // called with the lock held, from Buffer.release()
+        if( pooled_bytes + data.length <= max_pooled_bytes ) {
+            free_arrays.add(data);
+            pooled_bytes += data.length;
+        }
+    }
+
+    /** Returns the number of bytes held in arrays that are waiting to be reused.
+     */
+    public synchronized long getPooledBytes() {
+        return pooled_bytes;
+    }
+
+    /** Drops all arrays waiting to be reused, so they can be garbage collected. Buffers still in
+     *  use aren't affected.
+     */
+    public synchronized void clear() {
+        free_arrays.clear();
+        pooled_bytes = 0;
+    }
+}
@@ -47,6 +47,17 @@ public class RawImage {
         }
     }
 
+    /** Returns the size in bytes of the image buffers. Must be called before close().
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public long getSizeInBytes() {
+        long size = 0;
+        for(Image.Plane plane : image.getPlanes()) {
+            size += plane.getBuffer().capacity();
+        }
+        return size;
+    }
+
     /** Closes the image. Must be called to free up resources when no longer needed. After calling
      *  this method, this object should not be used.
      */
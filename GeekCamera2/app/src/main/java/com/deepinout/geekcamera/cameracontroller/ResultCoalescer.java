@@ -0,0 +1,97 @@
+package com.deepinout.geekcamera.cameracontroller;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Passes results (e.g., preview capture results) to a processor on another thread, at no more
+ *  than a maximum rate, keeping only the latest result. This is for work that only needs the most
+ *  recent state (such as updating the cached exposure information for display), so that it
+ *  needn't run for every frame on the thread that receives the results.
+ *  submit() doesn't block or allocate, so can be called for every frame.
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class ResultCoalescer<T> {
+    /** Runs work on the processing thread, e.g., Handler.postDelayed().
+     */
+    public interface Scheduler {
+        /** Returns false if the runnable couldn't be scheduled (e.g., the processing thread has
+         *  been closed), in which case it won't be run.
+         */
+        boolean schedule(Runnable runnable, long delay_ms);
+    }
+
+    public interface Processor<T> {
+        void process(T result);
+    }
+
+    private final Scheduler scheduler;
+    private final Processor<T> processor;
+    private final long min_interval_ns;
+    private final AtomicReference<T> pending = new AtomicReference<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong n_submitted = new AtomicLong();
+    private final AtomicLong n_processed = new AtomicLong();
+    private volatile long last_process_time_ns;
+    private volatile boolean has_processed;
+
+    private final Runnable process_runnable = new Runnable() {
+        @Override
+        public void run() {
+            // must clear scheduled before taking the result, so that a result submitted in between
+            // schedules another run, rather than being left pending
+            scheduled.set(false);
+            T result = pending.getAndSet(null);
+            if( result != null ) {
+                last_process_time_ns = System.nanoTime();
+                has_processed = true;
+                n_processed.incrementAndGet();
+                processor.process(result);
+            }
+        }
+    };
+
+    /**
+     * @param min_interval_ms The minimum time between processing results, e.g., the display frame
+     *                        time.
+     */
+    public ResultCoalescer(Scheduler scheduler, Processor<T> processor, long min_interval_ms) {
+        this.scheduler = scheduler;
+        this.processor = processor;
+        this.min_interval_ns = min_interval_ms * 1000000L;
+    }
+
+    /** Sets the result to be processed, replacing any result that hasn't yet been processed.
+     */
+    public void submit(T result) {
+        n_submitted.incrementAndGet();
+        pending.set(result);
+        if( scheduled.compareAndSet(false, true) ) {
+            long delay_ms = 0;
+            if( has_processed ) {
+                long wait_ns = last_process_time_ns + min_interval_ns - System.nanoTime();
+                if( wait_ns > 0 )
+                    delay_ms = (wait_ns + 999999) / 1000000;
+            }
+            if( !scheduler.schedule(process_runnable, delay_ms) ) {
+                // otherwise no later result would ever be scheduled
+                scheduled.set(false);
+            }
+        }
+    }
+
+    /** Discards any result that hasn't yet been processed.
+     */
+    public void clear() {
+        pending.set(null);
+    }
+
+    public long getNSubmitted() {
+        return n_submitted.get();
+    }
+
+    public long getNProcessed() {
+        return n_processed.get();
+    }
+}
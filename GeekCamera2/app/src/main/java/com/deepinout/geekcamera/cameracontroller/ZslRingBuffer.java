@@ -0,0 +1,234 @@
+package com.deepinout.geekcamera.cameracontroller;
+
+/** Holds the most recent frames for zero shutter lag (ZSL) reprocess captures, pairing each input
+ *  image with its capture result by sensor timestamp.
+ *  Images and results may arrive in either order, on different threads. The buffer has a fixed
+ *  number of slots, so lookups are bounded by the capacity, and no allocations are made per frame.
+ *  When a new frame arrives with the buffer full, the oldest frame is evicted, and its image
+ *  recycled. When a frame is taken for a capture, the older frames are recycled too, as they can
+ *  no longer be chosen in preference to newer frames.
+ *  The buffer is generic in the image and result types (Image and TotalCaptureResult in
+ *  CameraController2).
+ *  Note that this class should avoid calls to the Android API, so we can perform local unit
+ *  testing on it.
+ */
+public class ZslRingBuffer<I, R> {
+    /** Called to release images that are no longer needed, e.g., Image.close().
+     */
+    public interface Recycler<I> {
+        void recycle(I image);
+    }
+
+    /** An image with its capture result. The caller takes ownership of the image.
+     */
+    public static class Frame<I, R> {
+        public final long timestamp;
+        public final I image;
+        public final R result;
+
+        private Frame(long timestamp, I image, R result) {
+            this.timestamp = timestamp;
+            this.image = image;
+            this.result = result;
+        }
+    }
+
+    private final Recycler<I> recycler;
+    private final int capacity;
+    private final long [] timestamps;
+    private final Object [] images;
+    private final Object [] results;
+    private final float [] scores;
+    private final boolean [] occupied;
+    private int next_slot; // the slot to use for the next new frame - this holds the oldest frame, if any
+    private long newest_timestamp = Long.MIN_VALUE;
+
+    /**
+     * @param capacity The maximum number of frames held. Since each frame may hold an image, this
+     *                 should be less than the maxImages of the ImageReader supplying the images.
+     */
+    public ZslRingBuffer(int capacity, Recycler<I> recycler) {
+        if( capacity <= 0 ) {
+            throw new IllegalArgumentException("invalid capacity");
+        }
+        this.recycler = recycler;
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.images = new Object[capacity];
+        this.results = new Object[capacity];
+        this.scores = new float[capacity];
+        this.occupied = new boolean[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private int findSlot(long timestamp) {
+        for(int i=0;i<capacity;i++) {
+            if( occupied[i] && timestamps[i] == timestamp )
+                return i;
+        }
+        return -1;
+    }
+
+    /** Returns the slot for the frame with the supplied timestamp, allocating a new slot (evicting
+     *  the oldest frame) if necessary. Returns -1 if the frame is older than the frames already
+     *  held, which means the frame it would be paired with has already been evicted or taken.
+     */
+    private int findOrAllocateSlot(long timestamp) {
+        int slot = findSlot(timestamp);
+        if( slot != -1 )
+            return slot;
+        if( timestamp <= newest_timestamp )
+            return -1;
+        slot = next_slot;
+        clearSlot(slot);
+        occupied[slot] = true;
+        timestamps[slot] = timestamp;
+        newest_timestamp = timestamp;
+        next_slot = (next_slot+1) % capacity;
+        return slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void clearSlot(int slot) {
+        if( images[slot] != null ) {
+            recycler.recycle((I)images[slot]);
+            images[slot] = null;
+        }
+        results[slot] = null;
+        scores[slot] = 0.0f;
+        occupied[slot] = false;
+    }
+
+    /** Adds an image. If the image can't be used (as its frame is too old), it's recycled
+     *  immediately.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void addImage(long timestamp, I image) {
+        int slot = findOrAllocateSlot(timestamp);
+        if( slot == -1 ) {
+            recycler.recycle(image);
+            return;
+        }
+        if( images[slot] != null ) {
+            // shouldn't happen, but don't leak the previous image
+            recycler.recycle((I)images[slot]);
+        }
+        images[slot] = image;
+    }
+
+    /** Adds a capture result.
+     * @param score A measure of how suitable the frame is to be taken, for takeBest() - e.g., how
+     *              sharp the frame is likely to be.
+     */
+    public synchronized void addResult(long timestamp, R result, float score) {
+        int slot = findOrAllocateSlot(timestamp);
+        if( slot == -1 ) {
+            return;
+        }
+        results[slot] = result;
+        scores[slot] = score;
+    }
+
+    private boolean isComplete(int slot) {
+        return occupied[slot] && images[slot] != null && results[slot] != null;
+    }
+
+    /** Removes the frame in the supplied slot, and recycles all older frames.
+     */
+    @SuppressWarnings("unchecked")
+    private Frame<I, R> take(int slot) {
+        long timestamp = timestamps[slot];
+        Frame<I, R> frame = new Frame<>(timestamp, (I)images[slot], (R)results[slot]);
+        images[slot] = null; // now owned by the caller
+        clearSlot(slot);
+        for(int i=0;i<capacity;i++) {
+            if( occupied[i] && timestamps[i] < timestamp ) {
+                clearSlot(i);
+            }
+        }
+        return frame;
+    }
+
+    /** Returns the slot of the index-th newest complete frame (where 0 is the newest), or -1 if
+     *  there aren't enough complete frames.
+     */
+    private int getNewestComplete(int index) {
+        // frames are allocated in increasing order of timestamps, so search backwards from the
+        // newest slot
+        for(int i=1;i<=capacity;i++) {
+            int slot = (next_slot - i + capacity) % capacity;
+            if( isComplete(slot) ) {
+                if( index == 0 )
+                    return slot;
+                index--;
+            }
+        }
+        return -1;
+    }
+
+    /** Takes the newest frame with both an image and result, or returns null if there is none.
+     */
+    public synchronized Frame<I, R> takeLatest() {
+        int slot = getNewestComplete(0);
+        return slot == -1 ? null : take(slot);
+    }
+
+    /** Takes the frame with the highest score from the n_candidates newest frames with both an
+     *  image and result (preferring the newer frame if scores are equal), or returns null if there
+     *  is none.
+     */
+    public synchronized Frame<I, R> takeBest(int n_candidates) {
+        int best_slot = -1;
+        for(int i=0;i<n_candidates;i++) {
+            int slot = getNewestComplete(i);
+            if( slot == -1 )
+                break;
+            if( best_slot == -1 || scores[slot] > scores[best_slot] )
+                best_slot = slot;
+        }
+        return best_slot == -1 ? null : take(best_slot);
+    }
+
+    /** Takes the frame with both an image and result whose timestamp is closest to
+     *  target_timestamp (preferring the newer frame if equally close), or returns null if there is
+     *  none.
+     */
+    public synchronized Frame<I, R> takeClosest(long target_timestamp) {
+        int best_slot = -1;
+        long best_diff = Long.MAX_VALUE;
+        for(int slot=0;slot<capacity;slot++) {
+            if( !isComplete(slot) )
+                continue;
+            long diff = Math.abs(timestamps[slot] - target_timestamp);
+            if( diff < best_diff || ( diff == best_diff && timestamps[slot] > timestamps[best_slot] ) ) {
+                best_slot = slot;
+                best_diff = diff;
+            }
+        }
+        return best_slot == -1 ? null : take(best_slot);
+    }
+
+    /** Returns the number of images currently held.
+     */
+    public synchronized int getNImages() {
+        int count = 0;
+        for(int i=0;i<capacity;i++) {
+            if( images[i] != null )
+                count++;
+        }
+        return count;
+    }
+
+    /** Recycles all images, and removes all frames.
+     */
+    public synchronized void clear() {
+        for(int i=0;i<capacity;i++) {
+            clearSlot(i);
+        }
+        next_slot = 0;
+        newest_timestamp = Long.MIN_VALUE;
+    }
+}
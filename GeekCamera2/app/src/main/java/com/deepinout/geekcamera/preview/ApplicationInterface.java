@@ -15,6 +15,7 @@ import android.view.MotionEvent;
 
 import com.deepinout.geekcamera.MyDebug;
 import com.deepinout.geekcamera.cameracontroller.CameraController;
+import com.deepinout.geekcamera.cameracontroller.JpegBufferPool;
 import com.deepinout.geekcamera.cameracontroller.RawImage;
 
 /** Provides communication between the Preview and the rest of the application
@@ -234,6 +235,7 @@ public interface ApplicationInterface {
     // callbacks
     void onDrawPreview(Canvas canvas);
     boolean onPictureTaken(byte [] data, Date current_date);
+    boolean onPictureTaken(JpegBufferPool.Buffer buffer, Date current_date); // as onPictureTaken(byte [], Date), but must call buffer.release() when done with the data
     boolean onBurstPictureTaken(List<byte []> images, Date current_date);
     boolean onRawPictureTaken(RawImage raw_image, Date current_date);
     boolean onRawBurstPictureTaken(List<RawImage> raw_images, Date current_date);
@@ -10,6 +10,7 @@ import android.util.Pair;
 import android.view.MotionEvent;
 
 import com.deepinout.geekcamera.cameracontroller.CameraController;
+import com.deepinout.geekcamera.cameracontroller.JpegBufferPool;
 import com.deepinout.geekcamera.cameracontroller.RawImage;
 
 /** A partial implementation of ApplicationInterface that provides "default" implementations. So
@@ -621,6 +622,14 @@ public abstract class BasicApplicationInterface implements ApplicationInterface
 
     }
 
+    @Override
+    public boolean onPictureTaken(JpegBufferPool.Buffer buffer, Date current_date) {
+        // by default, copy to an exactly sized array, and use onPictureTaken(byte [], Date)
+        byte [] data = buffer.copyData();
+        buffer.release();
+        return onPictureTaken(data, current_date);
+    }
+
     @Override
     public boolean onBurstPictureTaken(List<byte[]> images, Date current_date) {
         return false;
@@ -1,10 +1,13 @@
 package com.deepinout.geekcamera.preview;
 
 import com.deepinout.geekcamera.GeekCamera2Trace;
+import com.deepinout.geekcamera.cameracontroller.JpegBufferPool;
 import com.deepinout.geekcamera.cameracontroller.RawImage;
 //import com.deepinout.geekcamera.MainActivity;
 import com.deepinout.geekcamera.MyDebug;
+import com.deepinout.geekcamera.PreviewAnalyticsEngine;
 import com.deepinout.geekcamera.R;
+import com.deepinout.geekcamera.StartupOrchestrator;
 import com.deepinout.geekcamera.ScriptC_histogram_compute;
 import com.deepinout.geekcamera.TakePhoto;
 import com.deepinout.geekcamera.ToastBoxer;
@@ -33,6 +36,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -72,10 +76,9 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
 import android.renderscript.Allocation;
-import android.renderscript.Element;
 import android.renderscript.RSInvalidStateException;
+import android.renderscript.RSRuntimeException;
 import android.renderscript.RenderScript;
-import android.renderscript.Type;
 import androidx.annotation.RequiresApi;
 import androidx.core.content.ContextCompat;
 import android.util.Log;
@@ -124,6 +127,14 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private Bitmap mPreviewBitmap;
     private long last_preview_bitmap_time_ms; // time the last preview_bitmap was updated
     private RefreshPreviewBitmapTask refreshPreviewBitmapTask;
+    private PreviewBitmapArena previewBitmapArena; // buffers reused by refreshPreviewBitmapTask, lazily created
+    public enum PreviewAnalyticsBackend {
+        PREVIEWANALYTICSBACKEND_RENDERSCRIPT,
+        PREVIEWANALYTICSBACKEND_CPU // pure Java, see PreviewAnalyticsEngine
+    }
+    private PreviewAnalyticsBackend preview_analytics_backend = PreviewAnalyticsBackend.PREVIEWANALYTICSBACKEND_RENDERSCRIPT;
+    private PreviewAnalyticsEngine previewAnalyticsEngine; // lazily created, only used for PREVIEWANALYTICSBACKEND_CPU
+    private int histogram_subsample = 1; // only used for PREVIEWANALYTICSBACKEND_CPU
 
     private boolean want_histogram; // whether to generate a histogram, requires want_preview_bitmap==true
     public enum HistogramType {
@@ -169,6 +180,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     }
     private CameraOpenState mCameraOpenState = CameraOpenState.CAMERAOPENSTATE_CLOSED;
     private AsyncTask<Void, Void, CameraController> mOpenCameraTask; // background task used for opening camera
+    private StartupOrchestrator.Task<CameraController> early_open_camera_task; // camera being opened by startEarlyCameraOpen(), not yet taken by openCamera()
+    private int early_open_camera_id;
     private CloseCameraTask mCloseCameraTask; // background task used for closing camera
     private boolean has_permissions = true; // whether we have permissions necessary to operate the camera (camera, storage); assume true until we've been denied one of them
     private boolean is_video;
@@ -1549,6 +1562,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 		 */
         if( use_background_thread ) {
             final int cameraId_f = cameraId;
+            final StartupOrchestrator.Task<CameraController> early_task = takeEarlyCameraOpen(cameraId);
 
             mOpenCameraTask = new AsyncTask<Void, Void, CameraController>() {
                 private static final String TAG = "Preview/openCamera";
@@ -1557,7 +1571,16 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 protected CameraController doInBackground(Void... voids) {
                     if( MyDebug.LOG )
                         Log.d(TAG, "doInBackground, async task: " + this);
-                    CameraController tmpCameraController = openCameraCore(cameraId_f);
+                    CameraController tmpCameraController = null;
+                    if( early_task != null ) {
+                        // camera is already opening (or open) from startEarlyCameraOpen()
+                        tmpCameraController = early_task.join();
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "took early opened camera: " + tmpCameraController);
+                    }
+                    if( tmpCameraController == null ) {
+                        tmpCameraController = openCameraCore(cameraId_f);
+                    }
                     GeekCamera2Trace.beginAsyncSection(GeekCamera2Trace.OPEN_CAMERA_AYSNC_TASK, 0);
                     return tmpCameraController;
                 }
@@ -1613,6 +1636,91 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         }
     }
 
+    /** Starts opening the camera on a background thread of the orchestrator, so that this can
+     *  happen whilst the activity is still being created, rather than waiting for the preview
+     *  surface to be available. The camera controller is then taken by openCamera(), which still
+     *  performs the rest of the setup once the surface is ready.
+     *  This does nothing if the camera can't be opened yet - e.g., if we don't have permissions
+     *  (we don't request them here, that's left to openCamera()) - in which case openCamera()
+     *  opens the camera as normal.
+     */
+    public void startEarlyCameraOpen(StartupOrchestrator orchestrator) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "startEarlyCameraOpen");
+        if( Build.VERSION.SDK_INT < Build.VERSION_CODES.M ) {
+            // consistent with use_background_thread in openCamera()
+            if( MyDebug.LOG )
+                Log.d(TAG, "camera not opened on background thread for this Android version");
+            return;
+        }
+        else if( applicationInterface.isPreviewInBackground() ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "don't open camera as preview in background");
+            return;
+        }
+        else if( mCameraOpenState != CameraOpenState.CAMERAOPENSTATE_CLOSED || early_open_camera_task != null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "camera already opening or opened");
+            return;
+        }
+        if( ContextCompat.checkSelfPermission(getContext(), Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "camera permission not available");
+            return;
+        }
+        if( applicationInterface.needsStoragePermission() && ContextCompat.checkSelfPermission(getContext(), Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "storage permission not available");
+            return;
+        }
+        final int cameraId = applicationInterface.getCameraIdPref();
+        if( cameraId < 0 || cameraId >= mCameraControllerManager.getNumberOfCameras() ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "invalid cameraId: " + cameraId);
+            return;
+        }
+        early_open_camera_id = cameraId;
+        early_open_camera_task = orchestrator.submit("open_camera", new Callable<CameraController>() {
+            @Override
+            public CameraController call() {
+                return openCameraCore(cameraId);
+            }
+        });
+    }
+
+    /** Returns the task from startEarlyCameraOpen(), if it's for the supplied camera. Otherwise
+     *  (e.g., the camera id was changed by an intent since the task was started), the early
+     *  opened camera is released and null is returned.
+     */
+    private StartupOrchestrator.Task<CameraController> takeEarlyCameraOpen(int cameraId) {
+        StartupOrchestrator.Task<CameraController> task = early_open_camera_task;
+        early_open_camera_task = null;
+        if( task != null && early_open_camera_id != cameraId ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "early opened camera " + early_open_camera_id + " not wanted, now want " + cameraId);
+            releaseEarlyCameraOpen(task);
+            task = null;
+        }
+        return task;
+    }
+
+    /** Releases the camera from startEarlyCameraOpen() if it wasn't taken by openCamera(), e.g.,
+     *  because the activity paused first.
+     */
+    private void releaseEarlyCameraOpen(final StartupOrchestrator.Task<CameraController> task) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "releaseEarlyCameraOpen");
+        // camera may still be opening, so wait and release on a background thread
+        new Thread(new Runnable() {
+            public void run() {
+                CameraController camera_controller = task.join();
+                if( camera_controller != null ) {
+                    camera_controller.release();
+                }
+            }
+        }).start();
+    }
+
     /** Open the camera - this should be called from background thread, to avoid hogging the UI thread.
      */
     private CameraController openCameraCore(int cameraId) {
@@ -5345,6 +5453,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             return;
         }
 
+        // only start timing once a still capture is actually issued (i.e., not for video, or whilst the timer counts down)
+        GeekCamera2Trace.beginAsyncSection(GeekCamera2Trace.GC2_CAPTURE_SHUTTER_2_SAVED, 0);
         takePhoto(false, continuous_fast_burst);
         if( MyDebug.LOG )
             Log.d(TAG, "takePicture exit");
@@ -6133,6 +6243,20 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 }
             }
 
+            public void onPictureTaken(JpegBufferPool.Buffer buffer) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "onPictureTaken (pooled buffer)");
+                initDate();
+                if( !applicationInterface.onPictureTaken(buffer, current_date) ) {
+                    if( MyDebug.LOG )
+                        Log.e(TAG, "applicationInterface.onPictureTaken failed");
+                    success = false;
+                }
+                else {
+                    success = true;
+                }
+            }
+
             public void onRawPictureTaken(RawImage raw_image) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "onRawPictureTaken");
@@ -7328,6 +7452,10 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         this.is_paused = true;
         if( activity_is_pausing )
             this.app_is_paused = true; // note, if activity_is_paused==false, we don't change app_is_paused, in case app was paused indicated via a separate call to onPause
+        if( early_open_camera_task != null ) {
+            releaseEarlyCameraOpen(early_open_camera_task);
+            early_open_camera_task = null;
+        }
         if( mCameraOpenState == CameraOpenState.CAMERAOPENSTATE_OPENING ) {
             if( MyDebug.LOG )
                 Log.d(TAG, "cancel open_camera_task");
@@ -7362,6 +7490,11 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             }
         }
         freePreviewBitmap(); // in case onDestroy() called directly without onPause()
+        if( early_open_camera_task != null ) {
+            // in case onDestroy() called directly without onResume()
+            releaseEarlyCameraOpen(early_open_camera_task);
+            early_open_camera_task = null;
+        }
 
         if( rs != null ) {
             try {
@@ -7779,16 +7912,42 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
     private void recycleBitmapForPreviewTask(final Bitmap bitmap) {
         if( MyDebug.LOG )
             Log.d(TAG, "recycleBitmapForPreviewTask");
+        runWhenPreviewTaskNotRunning(new Runnable() {
+            @Override
+            public void run() {
+                bitmap.recycle();
+            }
+        });
+    }
+
+    /* Releases the supplied arena, but if the refreshPreviewBitmapTask is running, waits until
+	   it isn't running.
+	 */
+    private void releaseArenaForPreviewTask(final PreviewBitmapArena arena) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "releaseArenaForPreviewTask");
+        runWhenPreviewTaskNotRunning(new Runnable() {
+            @Override
+            public void run() {
+                arena.release();
+            }
+        });
+    }
+
+    /* Runs the supplied runnable immediately if the refreshPreviewBitmapTask isn't running,
+	   otherwise waits until it isn't running.
+	 */
+    private void runWhenPreviewTaskNotRunning(final Runnable runnable) {
         if( !refreshPreviewBitmapTaskIsRunning() ) {
             if( MyDebug.LOG )
-                Log.d(TAG, "refreshPreviewBitmapTask not running, can recycle bitmap");
-            bitmap.recycle();
+                Log.d(TAG, "refreshPreviewBitmapTask not running, can free resources");
+            runnable.run();
         }
         else {
-            // Don't want to recycle bitmap whilst thread is running!
+            // Don't want to free resources whilst thread is running!
             // See test testPreviewBitmap().
             if( MyDebug.LOG )
-                Log.d(TAG, "refreshPreviewBitmapTask still running, wait before recycle bitmap");
+                Log.d(TAG, "refreshPreviewBitmapTask still running, wait before freeing resources");
             final Handler handler = new Handler();
             final long recycle_delay = 500;
             handler.postDelayed(new Runnable() {
@@ -7796,12 +7955,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 public void run() {
                     if( !refreshPreviewBitmapTaskIsRunning() ) {
                         if( MyDebug.LOG )
-                            Log.d(TAG, "refreshPreviewBitmapTask not running now, can recycle bitmap");
-                        bitmap.recycle();
+                            Log.d(TAG, "refreshPreviewBitmapTask not running now, can free resources");
+                        runnable.run();
                     }
                     else {
                         if( MyDebug.LOG )
-                            Log.d(TAG, "refreshPreviewBitmapTask still running, wait again before recycle bitmap");
+                            Log.d(TAG, "refreshPreviewBitmapTask still running, wait again before freeing resources");
                         handler.postDelayed(this, recycle_delay);
                     }
                 }
@@ -7809,6 +7968,14 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         }
     }
 
+    private void freePreviewBitmapArena() {
+        if( previewBitmapArena != null ) {
+            releaseArenaForPreviewTask(previewBitmapArena);
+            // as with the bitmaps, the refreshPreviewBitmapTask takes its own reference
+            previewBitmapArena = null;
+        }
+    }
+
     private void freePreviewBitmap() {
         if( MyDebug.LOG )
             Log.d(TAG, "freePreviewBitmap");
@@ -7820,6 +7987,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             // as it takes it's own reference. But we shouldn't recycle until the background thread is complete.
             mPreviewBitmap = null;
         }
+        freePreviewBitmapArena();
         freeZebraStripesBitmap();
         freeFocusPeakingBitmap();
     }
@@ -7932,6 +8100,46 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         this.want_histogram = false;
     }
 
+    /** Sets whether the histogram, zebra stripes and focus peaking are generated with RenderScript
+     *  (the default), or with PreviewAnalyticsEngine. Note that if RenderScript fails to
+     *  initialise, we fall back to PREVIEWANALYTICSBACKEND_CPU.
+     */
+    public void setPreviewAnalyticsBackend(PreviewAnalyticsBackend preview_analytics_backend) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setPreviewAnalyticsBackend: " + preview_analytics_backend);
+        this.preview_analytics_backend = preview_analytics_backend;
+    }
+
+    public PreviewAnalyticsBackend getPreviewAnalyticsBackend() {
+        return this.preview_analytics_backend;
+    }
+
+    /** For PREVIEWANALYTICSBACKEND_CPU, sets the histogram to be computed from only every
+     *  histogram_subsample-th row and column of the preview, for a cheaper approximate histogram.
+     *  A value of 1 (the default) means every pixel is used.
+     */
+    public void setHistogramSubsample(int histogram_subsample) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "setHistogramSubsample: " + histogram_subsample);
+        this.histogram_subsample = Math.max(histogram_subsample, 1);
+    }
+
+    private static int getAnalyticsHistogramType(HistogramType histogram_type) {
+        switch( histogram_type ) {
+            case HISTOGRAM_TYPE_RGB:
+                return PreviewAnalyticsEngine.histogram_type_rgb_c;
+            case HISTOGRAM_TYPE_LUMINANCE:
+                return PreviewAnalyticsEngine.histogram_type_luminance_c;
+            case HISTOGRAM_TYPE_INTENSITY:
+                return PreviewAnalyticsEngine.histogram_type_intensity_c;
+            case HISTOGRAM_TYPE_LIGHTNESS:
+                return PreviewAnalyticsEngine.histogram_type_lightness_c;
+            case HISTOGRAM_TYPE_VALUE:
+            default:
+                return PreviewAnalyticsEngine.histogram_type_value_c;
+        }
+    }
+
     public int [] getHistogram() {
         return this.histogram;
     }
@@ -7990,6 +8198,8 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
         private final WeakReference<Bitmap> preview_bitmapReference;
         private final WeakReference<Bitmap> zebra_stripes_bitmap_bufferReference;
         private final WeakReference<Bitmap> focus_peaking_bitmap_bufferReference;
+        private final WeakReference<PreviewBitmapArena> arenaReference;
+        private final PreviewAnalyticsEngine analyticsEngine; // null if using RenderScript
         private final boolean update_histogram;
 
         RefreshPreviewBitmapTask(Preview preview, boolean update_histogram) {
@@ -7999,23 +8209,55 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             this.focus_peaking_bitmap_bufferReference = new WeakReference<>(preview.focus_peaking_bitmap_buffer);
             this.update_histogram = update_histogram;
 
-            if( preview.rs == null ) {
-                // create on the UI thread rather than doInBackground(), to avoid threading issues
-                if( MyDebug.LOG )
-                    Log.d(TAG, "create renderscript object");
-                preview.rs = RenderScript.create(preview.getContext());
+            if( preview.preview_analytics_backend == PreviewAnalyticsBackend.PREVIEWANALYTICSBACKEND_RENDERSCRIPT ) {
+                try {
+                    if( preview.rs == null ) {
+                        // create on the UI thread rather than doInBackground(), to avoid threading issues
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "create renderscript object");
+                        preview.rs = RenderScript.create(preview.getContext());
+                    }
+                    if( preview.histogramScript == null ) {
+                        // create on the UI thread rather than doInBackground(), to avoid threading issues
+                        if( MyDebug.LOG )
+                            Log.d(TAG, "create histogramScript");
+                        preview.histogramScript = new ScriptC_histogram_compute(preview.rs);
+                    }
+                }
+                catch(RSRuntimeException e) {
+                    Log.e(TAG, "failed to initialise renderscript, fall back to cpu");
+                    e.printStackTrace();
+                    preview.preview_analytics_backend = PreviewAnalyticsBackend.PREVIEWANALYTICSBACKEND_CPU;
+                }
             }
-            if( preview.histogramScript == null ) {
-                // create on the UI thread rather than doInBackground(), to avoid threading issues
-                if( MyDebug.LOG )
-                    Log.d(TAG, "create histogramScript");
-                preview.histogramScript = new ScriptC_histogram_compute(preview.rs);
+            if( preview.preview_analytics_backend == PreviewAnalyticsBackend.PREVIEWANALYTICSBACKEND_CPU ) {
+                if( preview.previewAnalyticsEngine == null ) {
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "create previewAnalyticsEngine");
+                    preview.previewAnalyticsEngine = new PreviewAnalyticsEngine();
+                }
+                this.analyticsEngine = preview.previewAnalyticsEngine;
+            }
+            else {
+                this.analyticsEngine = null;
             }
             // take a local copy, so preview.histogramScript can be set to null whilst background thread is running
             this.histogramScriptReference = new WeakReference<>(preview.histogramScript);
+
+            if( preview.previewBitmapArena != null && !preview.previewBitmapArena.matches(preview.rs, preview.mPreviewBitmap, preview.histogram_type) ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "preview bitmap or histogram type changed, discard previewBitmapArena");
+                // no task is running (we're about to start one), so can release immediately
+                preview.previewBitmapArena.release();
+                preview.previewBitmapArena = null;
+            }
+            if( preview.previewBitmapArena == null && preview.mPreviewBitmap != null ) {
+                preview.previewBitmapArena = new PreviewBitmapArena(preview.rs, preview.mPreviewBitmap, preview.histogram_type);
+            }
+            this.arenaReference = new WeakReference<>(preview.previewBitmapArena);
         }
 
-        private static int [] computeHistogram(Allocation allocation_in, RenderScript rs, ScriptC_histogram_compute histogramScript, HistogramType histogram_type) {
+        private static int [] computeHistogram(Allocation allocation_in, PreviewBitmapArena arena, ScriptC_histogram_compute histogramScript, HistogramType histogram_type) {
             long debug_time = 0;
             if( MyDebug.LOG ) {
                 Log.d(TAG, "computeHistogram");
@@ -8027,9 +8269,9 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
             if( histogram_type == HistogramType.HISTOGRAM_TYPE_RGB ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "rgb histogram");
-                Allocation histogramAllocationR = Allocation.createSized(rs, Element.I32(rs), 256);
-                Allocation histogramAllocationG = Allocation.createSized(rs, Element.I32(rs), 256);
-                Allocation histogramAllocationB = Allocation.createSized(rs, Element.I32(rs), 256);
+                Allocation histogramAllocationR = arena.getHistogramAllocationR();
+                Allocation histogramAllocationG = arena.getHistogramAllocationG();
+                Allocation histogramAllocationB = arena.getHistogramAllocationB();
 
                 if( MyDebug.LOG )
                     Log.d(TAG, "bind histogram allocations");
@@ -8047,7 +8289,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
                 new_histogram = new int[256*3];
                 int c=0;
-                int [] temp = new int[256];
+                int [] temp = arena.getHistogramTemp();
 
                 histogramAllocationR.copyTo(temp);
                 for(int i=0;i<256;i++)
@@ -8062,17 +8304,11 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     new_histogram[c++] = temp[i];
                 if( MyDebug.LOG )
                     Log.d(TAG, "time after copying histogram data: " + (System.currentTimeMillis() - debug_time));
-
-                histogramAllocationR.destroy();
-                histogramAllocationG.destroy();
-                histogramAllocationB.destroy();
-                if( MyDebug.LOG )
-                    Log.d(TAG, "time after destroying allocations: " + (System.currentTimeMillis() - debug_time));
             }
             else {
                 if( MyDebug.LOG )
                     Log.d(TAG, "single channel histogram");
-                Allocation histogramAllocation = Allocation.createSized(rs, Element.I32(rs), 256);
+                Allocation histogramAllocation = arena.getHistogramAllocation();
 
                 if( MyDebug.LOG )
                     Log.d(TAG, "bind histogram allocation");
@@ -8103,12 +8339,52 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 histogramAllocation.copyTo(new_histogram);
                 if( MyDebug.LOG )
                     Log.d(TAG, "time after copying histogram data: " + (System.currentTimeMillis() - debug_time));
+            }
+            return new_histogram;
+        }
+
+        /** Equivalent to the RenderScript code in doInBackground(), but using analyticsEngine.
+         */
+        private void computeWithEngine(Preview preview, PreviewBitmapArena arena, Bitmap preview_bitmap, Bitmap zebra_stripes_bitmap_buffer, Bitmap focus_peaking_bitmap_buffer, RefreshPreviewBitmapTaskResult result) {
+            long debug_time = 0;
+            if( MyDebug.LOG ) {
+                Log.d(TAG, "computeWithEngine");
+                debug_time = System.currentTimeMillis();
+            }
+            int width = preview_bitmap.getWidth();
+            int height = preview_bitmap.getHeight();
+            int [] pixels = arena.getInputPixels(width*height);
+            preview_bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            if( MyDebug.LOG )
+                Log.d(TAG, "time after getPixels: " + (System.currentTimeMillis() - debug_time));
 
-                histogramAllocation.destroy();
+            if( update_histogram ) {
+                result.new_histogram = analyticsEngine.computeHistogram(pixels, width, height, getAnalyticsHistogramType(preview.histogram_type), preview.histogram_subsample);
                 if( MyDebug.LOG )
-                    Log.d(TAG, "time after destroying allocations: " + (System.currentTimeMillis() - debug_time));
+                    Log.d(TAG, "time after computeHistogram: " + (System.currentTimeMillis() - debug_time));
+            }
+
+            // the overlays aren't subsampled, as the buffers have the same size as the preview bitmap
+            if( preview.want_zebra_stripes && zebra_stripes_bitmap_buffer != null ) {
+                PreviewAnalyticsEngine.ZebraStripesSettings settings = new PreviewAnalyticsEngine.ZebraStripesSettings(preview.zebra_stripes_threshold,
+                        preview.zebra_stripes_color_foreground, preview.zebra_stripes_color_background, zebra_stripes_bitmap_buffer.getWidth()/20);
+                int [] output = arena.getZebraStripesPixels(width*height);
+                analyticsEngine.generateZebraStripes(pixels, width, height, settings, 1, output);
+                zebra_stripes_bitmap_buffer.setPixels(output, 0, width, 0, 0, width, height);
+                result.new_zebra_stripes_bitmap = arena.createRotatedZebraStripesBitmap(zebra_stripes_bitmap_buffer, preview.getDisplayRotationDegrees());
+                if( MyDebug.LOG )
+                    Log.d(TAG, "time after creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
+            }
+
+            if( preview.want_focus_peaking && focus_peaking_bitmap_buffer != null ) {
+                int [] temp = arena.getFocusPeakingTempPixels(width*height);
+                int [] output = arena.getFocusPeakingPixels(width*height);
+                analyticsEngine.generateFocusPeaking(pixels, width, height, 1, temp, output);
+                focus_peaking_bitmap_buffer.setPixels(output, 0, width, 0, 0, width, height);
+                result.new_focus_peaking_bitmap = arena.createRotatedFocusPeakingBitmap(focus_peaking_bitmap_buffer, preview.getDisplayRotationDegrees());
+                if( MyDebug.LOG )
+                    Log.d(TAG, "time after creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
             }
-            return new_histogram;
         }
 
         @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -8127,7 +8403,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 return null;
             }
             ScriptC_histogram_compute histogramScript = histogramScriptReference.get();
-            if( histogramScript == null ) {
+            if( histogramScript == null && analyticsEngine == null ) {
                 if( MyDebug.LOG )
                     Log.d(TAG, "histogramScript is null");
                 return null;
@@ -8138,6 +8414,12 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                     Log.d(TAG, "preview_bitmap is null");
                 return null;
             }
+            PreviewBitmapArena arena = arenaReference.get();
+            if( arena == null ) {
+                if( MyDebug.LOG )
+                    Log.d(TAG, "arena is null");
+                return null;
+            }
             Bitmap zebra_stripes_bitmap_buffer = zebra_stripes_bitmap_bufferReference.get();
             Bitmap focus_peaking_bitmap_buffer = focus_peaking_bitmap_bufferReference.get();
             Activity activity = (Activity)preview.getContext();
@@ -8157,11 +8439,18 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 if( MyDebug.LOG )
                     Log.d(TAG, "time after getBitmap: " + (System.currentTimeMillis() - debug_time));
 
-                Allocation allocation_in = Allocation.createFromBitmap(preview.rs, preview_bitmap);
+                if( analyticsEngine != null ) {
+                    computeWithEngine(preview, arena, preview_bitmap, zebra_stripes_bitmap_buffer, focus_peaking_bitmap_buffer, result);
+                    if( MyDebug.LOG )
+                        Log.d(TAG, "time taken: " + (System.currentTimeMillis() - debug_time));
+                    return result;
+                }
+
+                Allocation allocation_in = arena.getInputAllocation();
 				/*if( true )
 					throw new RSInvalidStateException("test"); // test*/
                 if( MyDebug.LOG )
-                    Log.d(TAG, "time after createFromBitmap: " + (System.currentTimeMillis() - debug_time));
+                    Log.d(TAG, "time after getInputAllocation: " + (System.currentTimeMillis() - debug_time));
 
                 if( update_histogram ) {
                     if( MyDebug.LOG )
@@ -8169,7 +8458,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 
                     if( MyDebug.LOG )
                         Log.d(TAG, "time before computeHistogram: " + (System.currentTimeMillis() - debug_time));
-                    result.new_histogram = computeHistogram(allocation_in, preview.rs, histogramScript, preview.histogram_type);
+                    result.new_histogram = computeHistogram(allocation_in, arena, histogramScript, preview.histogram_type);
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after computeHistogram: " + (System.currentTimeMillis() - debug_time));
                 }
@@ -8177,7 +8466,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 if( preview.want_zebra_stripes && zebra_stripes_bitmap_buffer != null ) {
                     if( MyDebug.LOG )
                         Log.d(TAG, "generate zebra stripes bitmap");
-                    Allocation output_allocation = Allocation.createFromBitmap(preview.rs, zebra_stripes_bitmap_buffer);
+                    Allocation output_allocation = arena.getZebraStripesAllocation(zebra_stripes_bitmap_buffer);
 
                     histogramScript.set_zebra_stripes_threshold(preview.zebra_stripes_threshold);
                     histogramScript.set_zebra_stripes_foreground_r(Color.red(preview.zebra_stripes_color_foreground));
@@ -8197,7 +8486,6 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                         Log.d(TAG, "time after histogramScript generate_zebra_stripes: " + (System.currentTimeMillis() - debug_time));
 
                     output_allocation.copyTo(zebra_stripes_bitmap_buffer);
-                    output_allocation.destroy();
 
                     // The original orientation of the bitmap we get from textureView.getBitmap() needs to be rotated to
                     // account for the orientation of camera vs device, but not to account for the current orientation
@@ -8208,10 +8496,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 					}*/
                     if( MyDebug.LOG )
                         Log.d(TAG, "time before creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(-rotation_degrees);
-                    result.new_zebra_stripes_bitmap = Bitmap.createBitmap(zebra_stripes_bitmap_buffer, 0, 0,
-                            zebra_stripes_bitmap_buffer.getWidth(), zebra_stripes_bitmap_buffer.getHeight(), matrix, false);
+                    result.new_zebra_stripes_bitmap = arena.createRotatedZebraStripesBitmap(zebra_stripes_bitmap_buffer, rotation_degrees);
 
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after creating new_zebra_stripes_bitmap: " + (System.currentTimeMillis() - debug_time));
@@ -8236,7 +8521,7 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                 if( preview.want_focus_peaking && focus_peaking_bitmap_buffer != null ) {
                     if( MyDebug.LOG )
                         Log.d(TAG, "generate focus peaking bitmap");
-                    Allocation output_allocation = Allocation.createFromBitmap(preview.rs, focus_peaking_bitmap_buffer);
+                    Allocation output_allocation = arena.getFocusPeakingAllocation(focus_peaking_bitmap_buffer);
 
                     histogramScript.set_bitmap(allocation_in);
 
@@ -8247,32 +8532,24 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
                         Log.d(TAG, "time after histogramScript generate_focus_peaking: " + (System.currentTimeMillis() - debug_time));
 
                     // median filter
-                    Allocation filtered_allocation = Allocation.createTyped(preview.rs, Type.createXY(preview.rs, Element.RGBA_8888(preview.rs), focus_peaking_bitmap_buffer.getWidth(), focus_peaking_bitmap_buffer.getHeight()));
+                    Allocation filtered_allocation = arena.getFocusPeakingFilteredAllocation(focus_peaking_bitmap_buffer.getWidth(), focus_peaking_bitmap_buffer.getHeight());
                     histogramScript.set_bitmap(output_allocation);
                     if( MyDebug.LOG )
                         Log.d(TAG, "time before histogramScript generate_focus_peaking_filtered: " + (System.currentTimeMillis() - debug_time));
                     histogramScript.forEach_generate_focus_peaking_filtered(output_allocation, filtered_allocation);
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after histogramScript generate_focus_peaking_filtered: " + (System.currentTimeMillis() - debug_time));
-                    output_allocation.destroy();
-                    output_allocation = filtered_allocation;
 
-                    output_allocation.copyTo(focus_peaking_bitmap_buffer);
-                    output_allocation.destroy();
+                    filtered_allocation.copyTo(focus_peaking_bitmap_buffer);
 
                     // See comments above for zebra stripes
                     int rotation_degrees = preview.getDisplayRotationDegrees();
                     if( MyDebug.LOG )
                         Log.d(TAG, "time before creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(-rotation_degrees);
-                    result.new_focus_peaking_bitmap = Bitmap.createBitmap(focus_peaking_bitmap_buffer, 0, 0,
-                            focus_peaking_bitmap_buffer.getWidth(), focus_peaking_bitmap_buffer.getHeight(), matrix, false);
+                    result.new_focus_peaking_bitmap = arena.createRotatedFocusPeakingBitmap(focus_peaking_bitmap_buffer, rotation_degrees);
                     if( MyDebug.LOG )
                         Log.d(TAG, "time after creating new_focus_peaking_bitmap: " + (System.currentTimeMillis() - debug_time));
                 }
-
-                allocation_in.destroy();
             }
             catch(IllegalStateException e) {
                 if( MyDebug.LOG )
@@ -8317,13 +8594,20 @@ public class Preview implements SurfaceHolder.Callback, TextureView.SurfaceTextu
 					Log.d(TAG, "    histogram[" + i + "]: " + preview.histogram[i]);
 			}*/
 
+            // the previous bitmaps are no longer displayed, so hand them back to the arena for reuse
             if( preview.zebra_stripes_bitmap != null ) {
-                preview.zebra_stripes_bitmap.recycle();
+                if( preview.previewBitmapArena != null )
+                    preview.previewBitmapArena.returnZebraStripesBitmap(preview.zebra_stripes_bitmap);
+                else
+                    preview.zebra_stripes_bitmap.recycle();
             }
             preview.zebra_stripes_bitmap = result.new_zebra_stripes_bitmap;
 
             if( preview.focus_peaking_bitmap != null ) {
-                preview.focus_peaking_bitmap.recycle();
+                if( preview.previewBitmapArena != null )
+                    preview.previewBitmapArena.returnFocusPeakingBitmap(preview.focus_peaking_bitmap);
+                else
+                    preview.focus_peaking_bitmap.recycle();
             }
             preview.focus_peaking_bitmap = result.new_focus_peaking_bitmap;
 
@@ -0,0 +1,295 @@
+package com.deepinout.geekcamera.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.util.Log;
+
+import com.deepinout.geekcamera.MyDebug;
+
+/** Holds the RenderScript allocations and bitmaps used by Preview.RefreshPreviewBitmapTask, so
+ *  that they can be reused between refreshes rather than reallocated each time (with histogram,
+ *  zebra stripes and focus peaking all enabled, the refresh runs every 40ms, and the garbage
+ *  from reallocating these buffers causes visible jank on the preview).
+ *  An arena is tied to a preview bitmap and histogram type; Preview creates a new arena when
+ *  either changes, and releases it along with the preview bitmap.
+ *  The methods should only be called from the refresh task's background thread, or from the UI
+ *  thread whilst the task isn't running.
+ */
+class PreviewBitmapArena {
+    private static final String TAG = "PreviewBitmapArena";
+
+    private final RenderScript rs;
+    private final Bitmap preview_bitmap;
+    private final Preview.HistogramType histogram_type;
+
+    private Allocation allocation_in;
+    private Allocation histogramAllocation;
+    private Allocation histogramAllocationR;
+    private Allocation histogramAllocationG;
+    private Allocation histogramAllocationB;
+    private final int [] histogram_temp = new int[256];
+
+    private final OutputBuffers zebra_stripes = new OutputBuffers();
+    private final OutputBuffers focus_peaking = new OutputBuffers();
+    private Allocation focus_peaking_filtered_allocation;
+
+    // used instead of the allocations, for Preview.PreviewAnalyticsBackend.PREVIEWANALYTICSBACKEND_CPU
+    private int [] pixels_in;
+    private int [] zebra_stripes_pixels;
+    private int [] focus_peaking_pixels;
+    private int [] focus_peaking_temp_pixels;
+
+    private boolean released;
+
+    /** The buffers used to generate one of the overlay bitmaps (zebra stripes or focus peaking).
+     */
+    private static class OutputBuffers {
+        Bitmap buffer; // the buffer that output_allocation was created from
+        Allocation output_allocation;
+        Bitmap spare_rotated_bitmap; // a rotated bitmap no longer being displayed, that can be written to again
+        final Matrix matrix = new Matrix();
+        final RectF rect = new RectF();
+        final Canvas canvas = new Canvas();
+
+        void release() {
+            if( output_allocation != null ) {
+                output_allocation.destroy();
+                output_allocation = null;
+            }
+            buffer = null;
+            if( spare_rotated_bitmap != null ) {
+                spare_rotated_bitmap.recycle();
+                spare_rotated_bitmap = null;
+            }
+        }
+    }
+
+    PreviewBitmapArena(RenderScript rs, Bitmap preview_bitmap, Preview.HistogramType histogram_type) {
+        if( MyDebug.LOG )
+            Log.d(TAG, "create arena for preview bitmap: " + preview_bitmap.getWidth() + " x " + preview_bitmap.getHeight() + ", histogram type: " + histogram_type);
+        this.rs = rs;
+        this.preview_bitmap = preview_bitmap;
+        this.histogram_type = histogram_type;
+    }
+
+    /** Whether this arena can be used for the supplied preview bitmap and histogram type.
+     */
+    boolean matches(RenderScript rs, Bitmap preview_bitmap, Preview.HistogramType histogram_type) {
+        return !released && this.rs == rs && this.preview_bitmap == preview_bitmap && this.histogram_type == histogram_type;
+    }
+
+    /** Returns the input allocation for the preview bitmap, with its contents updated from the
+     *  preview bitmap.
+     */
+    Allocation getInputAllocation() {
+        if( allocation_in == null ) {
+            allocation_in = Allocation.createFromBitmap(rs, preview_bitmap);
+        }
+        else {
+            allocation_in.copyFrom(preview_bitmap);
+        }
+        return allocation_in;
+    }
+
+    /** Returns the 256 entry allocation for single channel histograms.
+     */
+    Allocation getHistogramAllocation() {
+        if( histogramAllocation == null )
+            histogramAllocation = Allocation.createSized(rs, Element.I32(rs), 256);
+        return histogramAllocation;
+    }
+
+    Allocation getHistogramAllocationR() {
+        if( histogramAllocationR == null )
+            histogramAllocationR = Allocation.createSized(rs, Element.I32(rs), 256);
+        return histogramAllocationR;
+    }
+
+    Allocation getHistogramAllocationG() {
+        if( histogramAllocationG == null )
+            histogramAllocationG = Allocation.createSized(rs, Element.I32(rs), 256);
+        return histogramAllocationG;
+    }
+
+    Allocation getHistogramAllocationB() {
+        if( histogramAllocationB == null )
+            histogramAllocationB = Allocation.createSized(rs, Element.I32(rs), 256);
+        return histogramAllocationB;
+    }
+
+    /** Scratch array for copying a 256 entry histogram allocation.
+     */
+    int [] getHistogramTemp() {
+        return histogram_temp;
+    }
+
+    private static int [] ensureSize(int [] array, int size) {
+        if( array == null || array.length != size )
+            array = new int[size];
+        return array;
+    }
+
+    /** Returns an array of the given size, to receive the pixels of the preview bitmap.
+     */
+    int [] getInputPixels(int size) {
+        pixels_in = ensureSize(pixels_in, size);
+        return pixels_in;
+    }
+
+    int [] getZebraStripesPixels(int size) {
+        zebra_stripes_pixels = ensureSize(zebra_stripes_pixels, size);
+        return zebra_stripes_pixels;
+    }
+
+    int [] getFocusPeakingPixels(int size) {
+        focus_peaking_pixels = ensureSize(focus_peaking_pixels, size);
+        return focus_peaking_pixels;
+    }
+
+    int [] getFocusPeakingTempPixels(int size) {
+        focus_peaking_temp_pixels = ensureSize(focus_peaking_temp_pixels, size);
+        return focus_peaking_temp_pixels;
+    }
+
+    private Allocation getOutputAllocation(OutputBuffers buffers, Bitmap buffer) {
+        if( buffers.buffer != buffer ) {
+            // the buffer has been recreated since we last used it
+            if( buffers.output_allocation != null )
+                buffers.output_allocation.destroy();
+            buffers.output_allocation = Allocation.createFromBitmap(rs, buffer);
+            buffers.buffer = buffer;
+        }
+        return buffers.output_allocation;
+    }
+
+    Allocation getZebraStripesAllocation(Bitmap zebra_stripes_bitmap_buffer) {
+        return getOutputAllocation(zebra_stripes, zebra_stripes_bitmap_buffer);
+    }
+
+    Allocation getFocusPeakingAllocation(Bitmap focus_peaking_bitmap_buffer) {
+        return getOutputAllocation(focus_peaking, focus_peaking_bitmap_buffer);
+    }
+
+    /** Returns the allocation used as the output of the focus peaking median filter.
+     */
+    Allocation getFocusPeakingFilteredAllocation(int width, int height) {
+        if( focus_peaking_filtered_allocation != null &&
+                ( focus_peaking_filtered_allocation.getType().getX() != width || focus_peaking_filtered_allocation.getType().getY() != height ) ) {
+            focus_peaking_filtered_allocation.destroy();
+            focus_peaking_filtered_allocation = null;
+        }
+        if( focus_peaking_filtered_allocation == null ) {
+            focus_peaking_filtered_allocation = Allocation.createTyped(rs, Type.createXY(rs, Element.RGBA_8888(rs), width, height));
+        }
+        return focus_peaking_filtered_allocation;
+    }
+
+    /** Equivalent to Bitmap.createBitmap(buffer, 0, 0, width, height, matrix, false) where matrix
+     *  is a rotation by -rotation_degrees, but writes into a pooled bitmap where possible.
+     */
+    private Bitmap createRotatedBitmap(OutputBuffers buffers, Bitmap buffer, int rotation_degrees) {
+        buffers.matrix.reset();
+        buffers.matrix.postRotate(-rotation_degrees);
+        buffers.rect.set(0, 0, buffer.getWidth(), buffer.getHeight());
+        buffers.matrix.mapRect(buffers.rect);
+        buffers.matrix.postTranslate(-buffers.rect.left, -buffers.rect.top);
+        int width = Math.round(buffers.rect.width());
+        int height = Math.round(buffers.rect.height());
+
+        Bitmap bitmap = buffers.spare_rotated_bitmap;
+        buffers.spare_rotated_bitmap = null;
+        if( bitmap != null && ( bitmap.isRecycled() || bitmap.getWidth() != width || bitmap.getHeight() != height ) ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "spare rotated bitmap no longer matches");
+            bitmap.recycle();
+            bitmap = null;
+        }
+        if( bitmap == null ) {
+            if( MyDebug.LOG )
+                Log.d(TAG, "create rotated bitmap: " + width + " x " + height);
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        else {
+            bitmap.eraseColor(0);
+        }
+        buffers.canvas.setBitmap(bitmap);
+        buffers.canvas.drawBitmap(buffer, buffers.matrix, null);
+        buffers.canvas.setBitmap(null);
+        return bitmap;
+    }
+
+    Bitmap createRotatedZebraStripesBitmap(Bitmap zebra_stripes_bitmap_buffer, int rotation_degrees) {
+        return createRotatedBitmap(zebra_stripes, zebra_stripes_bitmap_buffer, rotation_degrees);
+    }
+
+    Bitmap createRotatedFocusPeakingBitmap(Bitmap focus_peaking_bitmap_buffer, int rotation_degrees) {
+        return createRotatedBitmap(focus_peaking, focus_peaking_bitmap_buffer, rotation_degrees);
+    }
+
+    private void returnRotatedBitmap(OutputBuffers buffers, Bitmap bitmap) {
+        if( released || buffers.spare_rotated_bitmap != null ) {
+            bitmap.recycle();
+        }
+        else {
+            buffers.spare_rotated_bitmap = bitmap;
+        }
+    }
+
+    /** Called when a zebra stripes bitmap returned by createRotatedZebraStripesBitmap() is no
+     *  longer displayed, so it can be reused (or recycled if not needed).
+     */
+    void returnZebraStripesBitmap(Bitmap bitmap) {
+        returnRotatedBitmap(zebra_stripes, bitmap);
+    }
+
+    /** As returnZebraStripesBitmap(), but for focus peaking bitmaps.
+     */
+    void returnFocusPeakingBitmap(Bitmap bitmap) {
+        returnRotatedBitmap(focus_peaking, bitmap);
+    }
+
+    /** Destroys all allocations and recycles any spare bitmaps. Must not be called whilst the
+     *  refresh task might be using the arena.
+     */
+    void release() {
+        if( MyDebug.LOG )
+            Log.d(TAG, "release");
+        released = true;
+        if( allocation_in != null ) {
+            allocation_in.destroy();
+            allocation_in = null;
+        }
+        if( histogramAllocation != null ) {
+            histogramAllocation.destroy();
+            histogramAllocation = null;
+        }
+        if( histogramAllocationR != null ) {
+            histogramAllocationR.destroy();
+            histogramAllocationR = null;
+        }
+        if( histogramAllocationG != null ) {
+            histogramAllocationG.destroy();
+            histogramAllocationG = null;
+        }
+        if( histogramAllocationB != null ) {
+            histogramAllocationB.destroy();
+            histogramAllocationB = null;
+        }
+        zebra_stripes.release();
+        focus_peaking.release();
+        if( focus_peaking_filtered_allocation != null ) {
+            focus_peaking_filtered_allocation.destroy();
+            focus_peaking_filtered_allocation = null;
+        }
+        pixels_in = null;
+        zebra_stripes_pixels = null;
+        focus_peaking_pixels = null;
+        focus_peaking_temp_pixels = null;
+    }
+}
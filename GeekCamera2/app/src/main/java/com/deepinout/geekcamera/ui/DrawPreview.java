@@ -9,8 +9,8 @@ import java.util.Calendar;
 import java.util.List;
 import java.util.Locale;
 
+import com.deepinout.geekcamera.AutoStabiliseCrop;
 import com.deepinout.geekcamera.GyroSensor;
-import com.deepinout.geekcamera.ImageSaver;
 import com.deepinout.geekcamera.LocationSupplier;
 import com.deepinout.geekcamera.MainActivity;
 import com.deepinout.geekcamera.MyApplicationInterface;
@@ -1934,7 +1934,7 @@ public class DrawPreview {
                     p.setTextSize(14 * scale + 0.5f); // convert dps to pixels
                     p.setTextAlign(Paint.Align.CENTER);
                     int pixels_offset_y = 2 * text_y; // avoid overwriting the zoom
-                    int n_images_to_save = applicationInterface.getImageSaver().getNRealImagesToSave();
+                    int n_images_to_save = applicationInterface.getImageSaver().getNImagesToSave();
                     String string = getContext().getResources().getString(R.string.processing) + " (" + n_images_to_save + " " + getContext().getResources().getString(R.string.remaining) + ")";
                     applicationInterface.drawTextWithBackground(canvas, p, string, Color.LTGRAY, Color.BLACK, canvas.getWidth() / 2, text_base_y - pixels_offset_y);
                 }
@@ -2324,7 +2324,7 @@ public class DrawPreview {
             double w0 = (w1 * Math.cos(level_angle_rad_abs) + h1 * Math.sin(level_angle_rad_abs));
             double h0 = (w1 * Math.sin(level_angle_rad_abs) + h1 * Math.cos(level_angle_rad_abs));
 
-            if( ImageSaver.autoStabiliseCrop(auto_stabilise_crop, level_angle_rad_abs, w0, h0, w1, h1, canvas.getWidth(), canvas.getHeight()) ) {
+            if( AutoStabiliseCrop.computeCrop(auto_stabilise_crop, level_angle_rad_abs, w0, h0, w1, h1, canvas.getWidth(), canvas.getHeight()) ) {
                 int w2 = auto_stabilise_crop[0];
                 int h2 = auto_stabilise_crop[1];
                 int cx = canvas.getWidth()/2;
@@ -461,3 +461,20 @@ uchar4 __attribute__((kernel)) dro_brighten(uchar4 rgb, uint32_t x, uint32_t y)
 
     return out;
 }
+
+// As dro_brighten, but using the scales computed by TonemapLUT.createBrightenScales(), indexed by
+// the max rgb value.
+rs_allocation brighten_scales;
+
+uchar4 __attribute__((kernel)) dro_brighten_lut(uchar4 rgb, uint32_t x, uint32_t y) {
+    uchar value = max(rgb.r, rgb.g);
+    value = max(value, rgb.b);
+    float scale = rsGetElementAt_float(brighten_scales, value);
+    float3 hdr = scale * convert_float3(rgb.rgb);
+
+    uchar4 out;
+    out.rgb = convert_uchar3(clamp(hdr+0.5f, 0.f, 255.f));
+    out.a = 255;
+
+    return out;
+}
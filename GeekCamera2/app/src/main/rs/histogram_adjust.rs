@@ -121,3 +121,58 @@ uchar4 __attribute__((kernel)) histogram_adjust(uchar4 in, uint32_t x, uint32_t
     
     return out;
 }
+
+// As histogram_adjust, but using the tables computed by TonemapLUT.createContrastEnhancementTables(),
+// which already include hdr_alpha.
+rs_allocation ce_tables;
+
+uchar4 __attribute__((kernel)) histogram_adjust_lut(uchar4 in, uint32_t x, uint32_t y) {
+    uchar value = max(in.r, in.g);
+    value = max(value, in.b);
+    if( value == 0 ) {
+        uchar4 out = in;
+        out.a = 255;
+        return out;
+    }
+
+    float tx = ((float)x*n_tiles)/(float)width - 0.5f;
+    float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+
+    int ix = (int)floor(tx);
+    int iy = (int)floor(ty);
+    float alpha = 0.0f;
+    float beta = 0.0f;
+    int ix1, iy1;
+    if( ix >= 0 && ix < n_tiles-1 ) {
+        alpha = tx - ix;
+        ix1 = ix+1;
+    }
+    else {
+        ix = (ix<0) ? ix+1 : ix;
+        ix1 = ix;
+    }
+    if( iy >= 0 && iy < n_tiles-1 ) {
+        beta = ty - iy;
+        iy1 = iy+1;
+    }
+    else {
+        iy = (iy<0) ? iy+1 : iy;
+        iy1 = iy;
+    }
+    float new_value00 = rsGetElementAt_float(ce_tables, 256*(ix*n_tiles+iy)+value);
+    float new_value10 = rsGetElementAt_float(ce_tables, 256*(ix1*n_tiles+iy)+value);
+    float new_value01 = rsGetElementAt_float(ce_tables, 256*(ix*n_tiles+iy1)+value);
+    float new_value11 = rsGetElementAt_float(ce_tables, 256*(ix1*n_tiles+iy1)+value);
+    float new_value0 = (1.0f-alpha)*new_value00 + alpha*new_value10;
+    float new_value1 = (1.0f-alpha)*new_value01 + alpha*new_value11;
+    int new_value = (int)( (1.0f-beta)*new_value0 + beta*new_value1 );
+
+    float scale = ((float)new_value) / (float)value;
+
+    uchar4 out;
+    out.r = min(255, (int)(in.r * scale + 0.5f));
+    out.g = min(255, (int)(in.g * scale + 0.5f));
+    out.b = min(255, (int)(in.b * scale + 0.5f));
+    out.a = 255;
+    return out;
+}
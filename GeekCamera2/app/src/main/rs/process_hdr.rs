@@ -56,6 +56,14 @@ float W = 11.2f;
 // for various:
 float linear_scale = 1.0f;
 
+// if non-zero, tonemap with the lookup tables computed by TonemapLUT, rather than evaluating the
+// algorithm per pixel (tonemap_algorithm is still needed, to know which table to use)
+int use_tonemap_lut = 0;
+rs_allocation tonemap_lut; // uchar output values, for all algorithms except Reinhard
+rs_allocation tonemap_lut_scales; // float scales indexed by the max rgb value, for Reinhard
+int tonemap_lut_size = 1;
+float tonemap_lut_index_scale = 1.0f;
+
 static float Uncharted2Tonemap(float x) {
     const float A = 0.15f;
     const float B = 0.50f;
@@ -66,7 +74,35 @@ static float Uncharted2Tonemap(float x) {
     return ((x*(A*x+C*B)+D*E)/(x*(A*x+B)+D*F))-E/F;
 }
 
+static int getTonemapLUTIndex(float value) {
+    int index = (int)(value * tonemap_lut_index_scale + 0.5f);
+    return clamp(index, 0, tonemap_lut_size-1);
+}
+
+static uchar4 tonemapLUT(float3 hdr) {
+    uchar4 out;
+    if( tonemap_algorithm == tonemap_algorithm_reinhard_c ) {
+        float value = fmax(hdr.r, hdr.g);
+        value = fmax(value, hdr.b);
+        float scale = rsGetElementAt_float(tonemap_lut_scales, getTonemapLUTIndex(value));
+        float3 out_f = scale * hdr;
+        out.r = (uchar)clamp(out_f.r+0.5f, 0.0f, 255.0f);
+        out.g = (uchar)clamp(out_f.g+0.5f, 0.0f, 255.0f);
+        out.b = (uchar)clamp(out_f.b+0.5f, 0.0f, 255.0f);
+    }
+    else {
+        out.r = rsGetElementAt_uchar(tonemap_lut, getTonemapLUTIndex(hdr.r));
+        out.g = rsGetElementAt_uchar(tonemap_lut, getTonemapLUTIndex(hdr.g));
+        out.b = rsGetElementAt_uchar(tonemap_lut, getTonemapLUTIndex(hdr.b));
+    }
+    out.a = 255;
+    return out;
+}
+
 static uchar4 tonemap(float3 hdr) {
+    if( use_tonemap_lut ) {
+        return tonemapLUT(hdr);
+    }
     // tonemap
     uchar4 out;
     switch( tonemap_algorithm )
@@ -2,18 +2,40 @@ package com.deepinout.geekcamera.test;
 
 import android.media.CamcorderProfile;
 
+import com.deepinout.geekcamera.AutoStabiliseCrop;
 import com.deepinout.geekcamera.MainActivity;
 import com.deepinout.geekcamera.MyApplicationInterface;
 import com.deepinout.geekcamera.cameracontroller.CameraController;
 import com.deepinout.geekcamera.cameracontroller.CameraController2;
+import com.deepinout.geekcamera.cameracontroller.CameraFeaturesSnapshot;
+import com.deepinout.geekcamera.cameracontroller.JpegBufferPool;
+import com.deepinout.geekcamera.cameracontroller.ResultCoalescer;
+import com.deepinout.geekcamera.cameracontroller.ZslRingBuffer;
+import com.deepinout.geekcamera.ColumnHistogram;
+import com.deepinout.geekcamera.FeatureMatcher;
+import com.deepinout.geekcamera.GyroAlignmentPrior;
+import com.deepinout.geekcamera.GyroFusion;
+import com.deepinout.geekcamera.HDRCalibration;
+import com.deepinout.geekcamera.HDRMergeEngine;
 import com.deepinout.geekcamera.HDRProcessor;
+import com.deepinout.geekcamera.HistogramTraceSink;
 import com.deepinout.geekcamera.ImageSaver;
+import com.deepinout.geekcamera.JsonTraceSink;
 import com.deepinout.geekcamera.LocationSupplier;
+import com.deepinout.geekcamera.MTBAligner;
+import com.deepinout.geekcamera.PreviewAnalyticsEngine;
+import com.deepinout.geekcamera.RansacEstimator;
+import com.deepinout.geekcamera.SeamFinder;
+import com.deepinout.geekcamera.StartupOrchestrator;
+import com.deepinout.geekcamera.TonemapLUT;
+import com.deepinout.geekcamera.TraceRecorder;
 import com.deepinout.geekcamera.preview.Preview;
 import com.deepinout.geekcamera.preview.VideoQualityHandler;
 import com.deepinout.geekcamera.TextFormatter;
 import com.deepinout.geekcamera.ui.DrawPreview;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 import java.text.ParseException;
@@ -23,6 +45,12 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -39,6 +67,19 @@ class Log {
 public class UnitTest {
     private static final String TAG = "UnitTest";
 
+    // shared by the tests of the classes that process images in parallel
+    private ForkJoinPool test_pool;
+
+    @Before
+    public void createTestPool() {
+        test_pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void shutdownTestPool() {
+        test_pool.shutdown();
+    }
+
     @Test
     public void testLocationToDMS() {
         Log.d(TAG, "testLocationToDMS");
@@ -552,27 +593,61 @@ public class UnitTest {
     public void testImageSaverQueueSize() {
         Log.d(TAG, "testImageSaverQueueSize");
 
-        // if any of these values change, review the comments in ImageSaver.getQueueSize().
+        // if any of these values change, review the comments in ImageSaver.computeQueueBudget().
+
+        final long jpeg_size = 5*1024*1024;
+        final long dng_size = 6*jpeg_size;
 
-        assertTrue(ImageSaver.computeQueueSize(64) >= 6);
+        // should always be enough for a photo with RAW+JPEG
+        assertTrue(ImageSaver.computeQueueBudget(0) >= dng_size);
+        assertTrue(ImageSaver.computeQueueBudget(64) >= dng_size);
 
-        assertTrue(ImageSaver.computeQueueSize(128) >= ImageSaver.computeQueueSize(64));
+        assertTrue(ImageSaver.computeQueueBudget(128) >= ImageSaver.computeQueueBudget(64));
+        assertTrue(ImageSaver.computeQueueBudget(128) <= 128L*1024*1024/2);
 
-        assertTrue(ImageSaver.computeQueueSize(256) >= ImageSaver.computeQueueSize(128));
-        assertTrue(ImageSaver.computeQueueSize(256) <= 19);
+        assertTrue(ImageSaver.computeQueueBudget(256) >= ImageSaver.computeQueueBudget(128));
+        assertTrue(ImageSaver.computeQueueBudget(256) <= 256L*1024*1024/2);
 
-        assertTrue(ImageSaver.computeQueueSize(512) >= ImageSaver.computeQueueSize(256));
-        assertTrue(ImageSaver.computeQueueSize(512) >= 34);
-        assertTrue(ImageSaver.computeQueueSize(512) <= 70);
+        assertTrue(ImageSaver.computeQueueBudget(512) >= ImageSaver.computeQueueBudget(256));
+        // at least a burst of 5 with RAW+JPEG, and a burst of 20 JPEGs
+        assertTrue(ImageSaver.computeQueueBudget(512) >= 5*(jpeg_size+dng_size));
+        assertTrue(ImageSaver.computeQueueBudget(512) >= 20*jpeg_size);
+        // should be more than the old fixed queue of 34 JPEG slots, but still reserve 160MB for post-processing
+        assertTrue(ImageSaver.computeQueueBudget(512) > 34*jpeg_size);
+        assertTrue(ImageSaver.computeQueueBudget(512) <= (512L-160L)*1024*1024);
     }
 
     @Test
     public void testImageSaverRequestCost() {
         Log.d(TAG, "testImageSaverRequestCost");
 
-        assertTrue( ImageSaver.computeRequestCost(true, 1) > ImageSaver.computeRequestCost(false, 1));
-        assertEquals( ImageSaver.computeRequestCost(false, 3), 3*ImageSaver.computeRequestCost(false, 1));
+        List<byte []> jpeg_images = new ArrayList<>();
+        assertEquals( 0, ImageSaver.computeRequestCost(jpeg_images, null));
+        jpeg_images.add(new byte[1000]);
+        assertEquals( 1000, ImageSaver.computeRequestCost(jpeg_images, null));
+        jpeg_images.add(new byte[234]);
+        jpeg_images.add(new byte[5]);
+        assertEquals( 1239, ImageSaver.computeRequestCost(jpeg_images, null));
+        assertEquals( 0, ImageSaver.computeRequestCost(null, null));
+
+        assertEquals( 3*1000, ImageSaver.computePhotoCost(0, 3, 1000, 6000));
+        assertEquals( 6000+1000, ImageSaver.computePhotoCost(1, 1, 1000, 6000));
+        assertTrue( ImageSaver.computePhotoCost(1, 0, 1000, 6000) > ImageSaver.computePhotoCost(0, 1, 1000, 6000));
+    }
 
+    @Test
+    public void testImageSaverWouldBlock() {
+        Log.d(TAG, "testImageSaverWouldBlock");
+
+        final long budget = 100;
+        // an empty queue never blocks, even if the request is larger than the budget
+        assertFalse( ImageSaver.wouldBlock(0, 50, budget));
+        assertFalse( ImageSaver.wouldBlock(0, 500, budget));
+
+        assertFalse( ImageSaver.wouldBlock(50, 50, budget));
+        assertTrue( ImageSaver.wouldBlock(50, 51, budget));
+        assertTrue( ImageSaver.wouldBlock(100, 1, budget));
+        assertFalse( ImageSaver.wouldBlock(99, 1, budget));
     }
 
     private static class float4 {
@@ -711,6 +786,181 @@ public class UnitTest {
 
     }
 
+    /** Image stored as an array of ARGB pixels, for testing HDRCalibration.
+     */
+    private static class ArrayPixelSource implements HDRCalibration.PixelSource {
+        final int [] pixels;
+        final int width;
+        int n_reads;
+
+        ArrayPixelSource(int [] pixels, int width) {
+            this.pixels = pixels;
+            this.width = width;
+        }
+
+        @Override
+        public void getRow(int [] out, int x, int y, int row_width) {
+            assertTrue(x >= 0 && x + row_width <= width);
+            System.arraycopy(pixels, y*width + x, out, 0, row_width);
+            n_reads++;
+        }
+    }
+
+    /** Creates a grey image whose value varies smoothly over the image, from 0 to max_value, and
+     *  the same image transformed by value -> scale * value + offset.
+     */
+    private static int [][] createResponseImages(int width, int height, float max_value, float scale, float offset) {
+        int [] in_pixels = new int[width*height];
+        int [] out_pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                float value = max_value * (0.5f + 0.25f*(float)Math.sin(x*0.05f) + 0.25f*(float)Math.cos(y*0.07f));
+                int in_value = (int)(value + 0.5f);
+                int out_value = Math.min(255, (int)(scale * in_value + offset + 0.5f));
+                in_pixels[y*width+x] = (255 << 24) | (in_value << 16) | (in_value << 8) | in_value;
+                out_pixels[y*width+x] = (255 << 24) | (out_value << 16) | (out_value << 8) | out_value;
+            }
+        }
+        return new int[][]{in_pixels, out_pixels};
+    }
+
+    /** Tests that HDRCalibration fits the response function between two images, reading each row
+     *  of samples once, and that a denser sample grid gives the same function.
+     */
+    @Test
+    public void testHDRCalibrationFit() {
+        Log.d(TAG, "testHDRCalibrationFit");
+
+        final int width = 400, height = 300;
+        int [][] images = createResponseImages(width, height, 150.0f, 1.5f, 10.0f);
+        final int [] n_samples = new int[]{100, 1000, 2500, 10000};
+        for(int n : n_samples) {
+            ArrayPixelSource in_source = new ArrayPixelSource(images[0], width);
+            ArrayPixelSource out_source = new ArrayPixelSource(images[1], width);
+            HDRCalibration calibration = new HDRCalibration(n);
+            calibration.sampleResponse(in_source, out_source, width, height, 0, 0);
+            int n_w_samples = (int)Math.sqrt(n);
+            int n_h_samples = n/n_w_samples;
+            Log.d(TAG, "n: " + n + " samples: " + calibration.getNSamples());
+            assertEquals(n_w_samples*n_h_samples, calibration.getNSamples());
+            assertEquals(n_h_samples, in_source.n_reads);
+            assertEquals(n_h_samples, out_source.n_reads);
+
+            assertTrue(calibration.fit());
+            Log.d(TAG, "    parameter_A: " + calibration.getParameterA());
+            Log.d(TAG, "    parameter_B: " + calibration.getParameterB());
+            assertEquals(1.5f, calibration.getParameterA(), 0.02f);
+            assertEquals(10.0f, calibration.getParameterB(), 1.0f);
+        }
+    }
+
+    /** Tests that HDRCalibration gives identical results when repeated, including when reusing the
+     *  same instance.
+     */
+    @Test
+    public void testHDRCalibrationDeterministic() {
+        Log.d(TAG, "testHDRCalibrationDeterministic");
+
+        final int width = 320, height = 240;
+        int [][] images = createResponseImages(width, height, 200.0f, 0.5f, 0.0f);
+        int [][] images2 = createResponseImages(width, height, 100.0f, 2.0f, 5.0f);
+        HDRCalibration calibration = new HDRCalibration(2500);
+        HDRCalibration calibration2 = new HDRCalibration(2500);
+
+        calibration.sampleResponse(new ArrayPixelSource(images[0], width), new ArrayPixelSource(images[1], width), width, height, 3, -2);
+        calibration.fit();
+        double [] x_samples = calibration.getXSamples().clone();
+        double [] weights = calibration.getWeights().clone();
+        float parameter_A = calibration.getParameterA();
+        float parameter_B = calibration.getParameterB();
+
+        // reuse with different images, then repeat the first
+        calibration.sampleResponse(new ArrayPixelSource(images2[0], width), new ArrayPixelSource(images2[1], width), width, height, 0, 0);
+        calibration.fit();
+        calibration.sampleResponse(new ArrayPixelSource(images[0], width), new ArrayPixelSource(images[1], width), width, height, 3, -2);
+        calibration.fit();
+        calibration2.sampleResponse(new ArrayPixelSource(images[0], width), new ArrayPixelSource(images[1], width), width, height, 3, -2);
+        calibration2.fit();
+
+        for(HDRCalibration c : new HDRCalibration[]{calibration, calibration2}) {
+            for(int i=0;i<c.getNSamples();i++) {
+                assertEquals(x_samples[i], c.getXSamples()[i], 0.0);
+                assertEquals(weights[i], c.getWeights()[i], 0.0);
+            }
+            assertEquals(parameter_A, c.getParameterA(), 0.0f);
+            assertEquals(parameter_B, c.getParameterB(), 0.0f);
+        }
+    }
+
+    /** Tests HDRCalibration with offsets, where samples outside the in image are skipped.
+     */
+    @Test
+    public void testHDRCalibrationOffsets() {
+        Log.d(TAG, "testHDRCalibrationOffsets");
+
+        final int width = 200, height = 100;
+        int [][] images = createResponseImages(width, height, 150.0f, 1.0f, 20.0f);
+        HDRCalibration calibration = new HDRCalibration(100);
+
+        // sample x coordinates are 18, 36, ..., 163, 181, so an offset of 40 loses the last 2 columns;
+        // sample y coordinates are 9, 18, ..., 90, so an offset of -15 loses the first row
+        calibration.sampleResponse(new ArrayPixelSource(images[0], width), new ArrayPixelSource(images[1], width), width, height, 40, -15);
+        assertEquals(8*9, calibration.getNSamples());
+        for(int i=0;i<calibration.getNSamples();i++) {
+            assertTrue(calibration.getWeights()[i] >= 0.0);
+        }
+
+        // offset too large, so we only have a dummy sample, which isn't enough to fit
+        calibration.sampleResponse(new ArrayPixelSource(images[0], width), new ArrayPixelSource(images[1], width), width, height, width, 0);
+        assertEquals(1, calibration.getNSamples());
+        assertEquals(255.0, calibration.getXSamples()[0], 0.0);
+        try {
+            calibration.fit();
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+    }
+
+    /** Tests that HDRCalibration's luminance histogram matches sampling each pixel individually.
+     */
+    @Test
+    public void testHDRCalibrationLuminance() {
+        Log.d(TAG, "testHDRCalibrationLuminance");
+
+        final int width = 256, height = 192;
+        int [] pixels = new int[width*height];
+        Random random = new Random(12345);
+        for(int i=0;i<pixels.length;i++) {
+            pixels[i] = (255 << 24) | random.nextInt(0x1000000);
+        }
+        final int x0 = width/4, y0 = height/4, region_width = width/2, region_height = height/2;
+        final int n_samples = 100;
+        final int n_w_samples = (int)Math.sqrt(n_samples);
+        final int n_h_samples = n_samples/n_w_samples;
+
+        int [] expected_histo = new int[256];
+        for(int y=0;y<n_h_samples;y++) {
+            int y_coord = y0 + (int)(((y+1.0)/(n_h_samples+1.0)) * region_height);
+            for(int x=0;x<n_w_samples;x++) {
+                int x_coord = x0 + (int)(((x+1.0)/(n_w_samples+1.0)) * region_width);
+                int color = pixels[y_coord*width + x_coord];
+                int luminance = Math.max((color >> 16) & 0xFF, (color >> 8) & 0xFF);
+                luminance = Math.max(luminance, color & 0xFF);
+                expected_histo[luminance]++;
+            }
+        }
+
+        ArrayPixelSource source = new ArrayPixelSource(pixels, width);
+        HDRCalibration calibration = new HDRCalibration(n_samples);
+        int [] histo = new int[256];
+        int total = calibration.sampleLuminanceHistogram(source, x0, y0, region_width, region_height, histo);
+        assertEquals(n_samples, total);
+        assertEquals(n_h_samples, source.n_reads);
+        assertArrayEquals(expected_histo, histo);
+    }
+
     @Test
     public void testFocusBracketingDistances() {
         Log.d(TAG, "testFocusBracketingDistances");
@@ -956,4 +1206,2139 @@ public class UnitTest {
         assertEquals(luminanceInfos.get(2), luminanceInfosSorted.get(5));
 
     }
+
+    /** Tests that the HDRMergeEngine leaves the image unchanged when merging identical images with
+     *  the clamp tonemapping.
+     */
+    @Test
+    public void testHDRMergeEngineIdentity() {
+        Log.d(TAG, "testHDRMergeEngineIdentity");
+
+        final int width = 37, height = 53;
+        Random random = new Random(0);
+        int [] image = new int[width*height];
+        for(int i=0;i<image.length;i++) {
+            image[i] = 0xff000000 | (random.nextInt() & 0xffffff);
+        }
+        for(int n_bitmaps=2;n_bitmaps<=7;n_bitmaps++) {
+            int [][] pixels = new int[n_bitmaps][];
+            int [] y0 = new int[n_bitmaps];
+            float [] parameter_A = new float[n_bitmaps];
+            float [] parameter_B = new float[n_bitmaps];
+            for(int i=0;i<n_bitmaps;i++) {
+                pixels[i] = image;
+                parameter_A[i] = 1.0f;
+            }
+            int [] output = new int[width*height];
+            HDRMergeEngine engine = new HDRMergeEngine();
+            HDRMergeEngine.TonemapSettings settings = new HDRMergeEngine.TonemapSettings(HDRMergeEngine.tonemap_algorithm_clamp_c);
+            engine.mergeRows(new HDRMergeEngine.Band(pixels, y0), n_bitmaps/2, width, height, 0, height, new int[n_bitmaps], new int[n_bitmaps], parameter_A, parameter_B, settings, output);
+            for(int i=0;i<image.length;i++) {
+                assertEquals("n_bitmaps " + n_bitmaps + " pixel " + i, image[i], output[i]);
+            }
+        }
+    }
+
+    /** Tests that the HDRMergeEngine gives the same results when split into bands and across
+     *  threads, as when run on a single thread for the whole image.
+     */
+    @Test
+    public void testHDRMergeEngineBands() {
+        Log.d(TAG, "testHDRMergeEngineBands");
+
+        final int width = 64, height = 97;
+        final int n_bitmaps = 5;
+        final int base_bitmap = 2;
+        Random random = new Random(1);
+        int [][] images = new int[n_bitmaps][width*height];
+        for(int i=0;i<n_bitmaps;i++) {
+            for(int j=0;j<width*height;j++) {
+                images[i][j] = 0xff000000 | (random.nextInt() & 0xffffff);
+            }
+        }
+        int [] offsets_x = {3, -2, 0, 1, -4};
+        int [] offsets_y = {-5, 2, 0, -1, 6};
+        float [] parameter_A = {4.0f, 2.0f, 1.0f, 0.5f, 0.25f};
+        float [] parameter_B = {-1.0f, 2.0f, 0.0f, 1.0f, 3.0f};
+
+        final int [] algorithms = {HDRMergeEngine.tonemap_algorithm_clamp_c, HDRMergeEngine.tonemap_algorithm_exponential_c,
+                HDRMergeEngine.tonemap_algorithm_reinhard_c, HDRMergeEngine.tonemap_algorithm_filmic_c, HDRMergeEngine.tonemap_algorithm_aces_c};
+        for(int algorithm : algorithms) {
+            HDRMergeEngine.TonemapSettings settings = new HDRMergeEngine.TonemapSettings(algorithm);
+
+            int [] expected = new int[width*height];
+            new HDRMergeEngine(test_pool).mergeRows(new HDRMergeEngine.Band(images, new int[n_bitmaps]), base_bitmap, width, height, 0, height, offsets_x, offsets_y, parameter_A, parameter_B, settings, expected);
+
+            final int band_height = 10;
+            HDRMergeEngine engine = new HDRMergeEngine(test_pool);
+            int [] band_output = new int[width*band_height];
+            for(int band_y0=0;band_y0<height;band_y0+=band_height) {
+                int band_y1 = Math.min(band_y0+band_height, height);
+                int [][] band_pixels = new int[n_bitmaps][];
+                int [] band_start = new int[n_bitmaps];
+                for(int i=0;i<n_bitmaps;i++) {
+                    int src_y0 = Math.max(band_y0 + offsets_y[i], 0);
+                    int src_y1 = Math.min(band_y1 + offsets_y[i], height);
+                    band_start[i] = src_y0;
+                    band_pixels[i] = new int[width*band_height];
+                    if( src_y1 > src_y0 ) {
+                        System.arraycopy(images[i], src_y0*width, band_pixels[i], 0, (src_y1-src_y0)*width);
+                    }
+                }
+                engine.mergeRows(new HDRMergeEngine.Band(band_pixels, band_start), base_bitmap, width, height, band_y0, band_y1, offsets_x, offsets_y, parameter_A, parameter_B, settings, band_output);
+                for(int i=0;i<(band_y1-band_y0)*width;i++) {
+                    assertEquals(algorithm + " pixel " + (band_y0*width+i), expected[band_y0*width+i], band_output[i]);
+                }
+            }
+        }
+    }
+
+    /** Tests that FeatureMatcher.findCandidates() finds the same candidates as comparing every pair
+     *  of features.
+     */
+    @Test
+    public void testFeatureMatcherCandidates() {
+        Log.d(TAG, "testFeatureMatcherCandidates");
+
+        final int width = 640, height = 480;
+        final int n0 = 300, n1 = 250;
+        final int max_dist_x = width, max_dist_y = height/16;
+        Random random = new Random(0);
+        int [] xs0 = new int[n0], ys0 = new int[n0];
+        int [] xs1 = new int[n1], ys1 = new int[n1];
+        for(int i=0;i<n0;i++) {
+            xs0[i] = random.nextInt(width);
+            ys0[i] = random.nextInt(height);
+        }
+        for(int i=0;i<n1;i++) {
+            xs1[i] = random.nextInt(width);
+            ys1[i] = random.nextInt(height);
+        }
+
+        FeatureMatcher.Candidates candidates = FeatureMatcher.findCandidates(xs0, ys0, xs1, ys1, max_dist_x, max_dist_y);
+        int count = 0;
+        for(int i=0;i<n0;i++) {
+            List<Integer> expected = new ArrayList<>();
+            for(int j=0;j<n1;j++) {
+                if( Math.abs(xs1[j]-xs0[i]) < max_dist_x && Math.abs(ys1[j]-ys0[i]) < max_dist_y ) {
+                    expected.add(j);
+                }
+            }
+            List<Integer> found = new ArrayList<>();
+            for(int k=candidates.corner_start[i];k<candidates.corner_start[i+1];k++) {
+                assertEquals(i, candidates.index0[k]);
+                found.add(candidates.index1[k]);
+            }
+            Collections.sort(found);
+            assertEquals(expected, found);
+            count += expected.size();
+        }
+        assertEquals(count, candidates.size);
+    }
+
+    /** Tests FeatureMatcher.selectMatches(): each feature is used at most once, matches are in order
+     *  of distance, and Lowe's test rejects ambiguous matches.
+     */
+    @Test
+    public void testFeatureMatcherSelectMatches() {
+        Log.d(TAG, "testFeatureMatcherSelectMatches");
+
+        // 3 features in each image, all within range of each other
+        int [] xs = {10, 20, 30};
+        int [] ys = {10, 10, 10};
+        FeatureMatcher.Candidates candidates = FeatureMatcher.findCandidates(xs, ys, xs, ys, 100, 100);
+        assertEquals(9, candidates.size);
+        // distances, indexed by [index0][index1]
+        float [][] distances = {
+                {0.1f, 0.5f, 0.6f}, // clear best match with 0
+                {0.9f, 0.3f, 0.32f}, // ambiguous between 1 and 2, so should be rejected by Lowe's test
+                {0.7f, 0.8f, 0.2f} // clear best match with 2
+        };
+        for(int k=0;k<candidates.size;k++) {
+            candidates.distance[k] = distances[candidates.index0[k]][candidates.index1[k]];
+        }
+
+        FeatureMatcher.Matches matches = FeatureMatcher.selectMatches(candidates, 3, 3, 8, 0.8f);
+        assertEquals(2, matches.size);
+        assertEquals(0, matches.index0[0]);
+        assertEquals(0, matches.index1[0]);
+        assertEquals(0.1f, matches.distance[0], 1.0e-5f);
+        assertEquals(2, matches.index0[1]);
+        assertEquals(2, matches.index1[1]);
+        assertEquals(0.2f, matches.distance[1], 1.0e-5f);
+        assertTrue(matches.rejected0[1]);
+        assertFalse(matches.rejected0[0]);
+
+        // even if only keeping the best candidate for each feature, Lowe's test should still use the next best
+        matches = FeatureMatcher.selectMatches(candidates, 3, 3, 1, 0.8f);
+        assertEquals(2, matches.size);
+        assertTrue(matches.rejected0[1]);
+        matches = FeatureMatcher.selectMatches(candidates, 3, 3, 0, 0.8f);
+        assertEquals(0, matches.size);
+    }
+
+    /** The previous implementation of FeatureMatcher.computeDistance(), accumulating as floats.
+     */
+    private static float computeDistanceFloat(int [] pixels0, int pixel_idx0, int [] pixels1, int pixel_idx1, int wid2) {
+        float fsum = 0, gsum = 0;
+        float f2sum = 0, g2sum = 0;
+        float fgsum = 0;
+        for(int i=0;i<wid2;i++) {
+            int value0 = pixels0[pixel_idx0++];
+            int value1 = pixels1[pixel_idx1++];
+            fsum += value0;
+            f2sum += value0*value0;
+            gsum += value1;
+            g2sum += value1*value1;
+            fgsum += value0*value1;
+        }
+        float fden = wid2*f2sum - fsum*fsum;
+        float f_recip = fden==0 ? 0.0f : 1/ fden;
+        float gden = wid2*g2sum - gsum*gsum;
+        float g_recip = gden==0 ? 0.0f : 1/ gden;
+        float fg_corr = wid2*fgsum-fsum*gsum;
+        return 1.0f-Math.abs((fg_corr*fg_corr*f_recip*g_recip));
+    }
+
+    /** Tests that FeatureMatcher.computeDistance() with integer accumulators is bit exact with
+     *  accumulating as floats, and that computing in parallel gives the same results.
+     */
+    @Test
+    public void testFeatureMatcherDistances() {
+        Log.d(TAG, "testFeatureMatcherDistances");
+
+        Random random = new Random(0);
+        for(int radius=2;radius<=5;radius++) {
+            final int wid = 2*radius+1;
+            final int wid2 = wid*wid;
+            final int n_corners = 100;
+            int [] pixels0 = new int[n_corners*wid2];
+            int [] pixels1 = new int[n_corners*wid2];
+            for(int i=0;i<n_corners*wid2;i++) {
+                pixels0[i] = random.nextInt(256);
+                pixels1[i] = random.nextInt(256);
+            }
+            // include some extreme descriptors: flat (zero variance), saturated, and perfectly correlated
+            for(int i=0;i<wid2;i++) {
+                pixels0[i] = 0;
+                pixels1[wid2+i] = 255;
+                pixels1[2*wid2+i] = pixels0[2*wid2+i];
+            }
+
+            int [] xs = new int[n_corners];
+            int [] ys = new int[n_corners];
+            FeatureMatcher.Candidates candidates = FeatureMatcher.findCandidates(xs, ys, xs, ys, 1, 1);
+            assertEquals(n_corners*n_corners, candidates.size);
+            FeatureMatcher.computeDistancesParallel(test_pool, candidates, pixels0, pixels1, wid2);
+            for(int k=0;k<candidates.size;k++) {
+                int idx0 = candidates.index0[k]*wid2;
+                int idx1 = candidates.index1[k]*wid2;
+                float expected = computeDistanceFloat(pixels0, idx0, pixels1, idx1, wid2);
+                assertEquals(Float.floatToIntBits(expected), Float.floatToIntBits(FeatureMatcher.computeDistance(pixels0, idx0, pixels1, idx1, wid2)));
+                assertEquals(Float.floatToIntBits(expected), Float.floatToIntBits(candidates.distance[k]));
+            }
+        }
+    }
+
+    /** Returns the pixels of the supplied image at every subsample-th row and column.
+     */
+    private static int [] decimatePixels(int [] pixels, int width, int height, int subsample) {
+        int sub_width = PreviewAnalyticsEngine.getSubsampledSize(width, subsample);
+        int sub_height = PreviewAnalyticsEngine.getSubsampledSize(height, subsample);
+        int [] result = new int[sub_width*sub_height];
+        for(int y=0;y<sub_height;y++) {
+            for(int x=0;x<sub_width;x++) {
+                result[y*sub_width+x] = pixels[y*subsample*width + x*subsample];
+            }
+        }
+        return result;
+    }
+
+    /** Tests PreviewAnalyticsEngine.computeHistogram() against a direct computation, for all
+     *  histogram types, with and without subsampling.
+     */
+    @Test
+    public void testPreviewAnalyticsEngineHistogram() {
+        Log.d(TAG, "testPreviewAnalyticsEngineHistogram");
+
+        final int width = 101, height = 77;
+        Random random = new Random(0);
+        int [] pixels = new int[width*height];
+        for(int i=0;i<pixels.length;i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        // include the extremes
+        pixels[0] = 0xff000000;
+        pixels[1] = 0xffffffff;
+
+        PreviewAnalyticsEngine engine = new PreviewAnalyticsEngine(test_pool);
+        int [] types = {PreviewAnalyticsEngine.histogram_type_rgb_c, PreviewAnalyticsEngine.histogram_type_luminance_c,
+                PreviewAnalyticsEngine.histogram_type_value_c, PreviewAnalyticsEngine.histogram_type_intensity_c,
+                PreviewAnalyticsEngine.histogram_type_lightness_c};
+        for(int type : types) {
+            int [] expected = new int[type == PreviewAnalyticsEngine.histogram_type_rgb_c ? 256*3 : 256];
+            for(int color : pixels) {
+                int r = (color >> 16) & 0xff;
+                int g = (color >> 8) & 0xff;
+                int b = color & 0xff;
+                switch( type ) {
+                    case PreviewAnalyticsEngine.histogram_type_rgb_c:
+                        expected[r]++;
+                        expected[256+g]++;
+                        expected[512+b]++;
+                        break;
+                    case PreviewAnalyticsEngine.histogram_type_luminance_c:
+                        expected[(int)(0.299f*r + 0.587f*g + 0.114f*b + 0.5f)]++;
+                        break;
+                    case PreviewAnalyticsEngine.histogram_type_value_c:
+                        expected[Math.max(r, Math.max(g, b))]++;
+                        break;
+                    case PreviewAnalyticsEngine.histogram_type_intensity_c:
+                        expected[(int)((r + g + b)/3.0f + 0.5f)]++;
+                        break;
+                    case PreviewAnalyticsEngine.histogram_type_lightness_c:
+                        expected[(int)((Math.min(r, Math.min(g, b)) + Math.max(r, Math.max(g, b)))/2.0f + 0.5f)]++;
+                        break;
+                }
+            }
+            assertArrayEquals(expected, engine.computeHistogram(pixels, width, height, type, 1));
+
+            // subsampling should be equivalent to computing the histogram of the decimated image
+            for(int subsample=2;subsample<=5;subsample++) {
+                int sub_width = PreviewAnalyticsEngine.getSubsampledSize(width, subsample);
+                int sub_height = PreviewAnalyticsEngine.getSubsampledSize(height, subsample);
+                int [] decimated = decimatePixels(pixels, width, height, subsample);
+                int [] histogram = engine.computeHistogram(pixels, width, height, type, subsample);
+                assertArrayEquals(engine.computeHistogram(decimated, sub_width, sub_height, type, 1), histogram);
+                int total = 0;
+                for(int i=0;i<256;i++)
+                    total += histogram[i];
+                assertEquals(sub_width*sub_height, total);
+            }
+        }
+    }
+
+    /** Tests PreviewAnalyticsEngine.generateZebraStripes().
+     */
+    @Test
+    public void testPreviewAnalyticsEngineZebraStripes() {
+        Log.d(TAG, "testPreviewAnalyticsEngineZebraStripes");
+
+        final int width = 64, height = 48;
+        final int threshold = 240;
+        final int foreground = 0xff000000, background = 0xffffffff;
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // left half is overexposed in the blue channel only, right half is below threshold
+                pixels[y*width+x] = x < width/2 ? 0xff1020f0 : 0xffefefef;
+            }
+        }
+
+        PreviewAnalyticsEngine engine = new PreviewAnalyticsEngine(test_pool);
+        PreviewAnalyticsEngine.ZebraStripesSettings settings = new PreviewAnalyticsEngine.ZebraStripesSettings(threshold, foreground, background, 8);
+        int [] output = new int[width*height];
+        engine.generateZebraStripes(pixels, width, height, settings, 1, output);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int expected = x < width/2 ? ( ((x+y)/8) % 2 == 0 ? background : foreground ) : 0;
+                assertEquals(expected, output[y*width+x]);
+            }
+        }
+
+        // when subsampling, the stripes are still computed from the full resolution coordinates
+        final int subsample = 3;
+        int sub_width = PreviewAnalyticsEngine.getSubsampledSize(width, subsample);
+        int sub_height = PreviewAnalyticsEngine.getSubsampledSize(height, subsample);
+        int [] sub_output = new int[sub_width*sub_height];
+        engine.generateZebraStripes(pixels, width, height, settings, subsample, sub_output);
+        for(int y=0;y<sub_height;y++) {
+            for(int x=0;x<sub_width;x++) {
+                assertEquals(output[y*subsample*width + x*subsample], sub_output[y*sub_width+x]);
+            }
+        }
+    }
+
+    /** Tests PreviewAnalyticsEngine.generateFocusPeaking(), including the median filter.
+     */
+    @Test
+    public void testPreviewAnalyticsEngineFocusPeaking() {
+        Log.d(TAG, "testPreviewAnalyticsEngineFocusPeaking");
+
+        final int width = 40, height = 30;
+        final int line_x = 10;
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                pixels[y*width+x] = x == line_x ? 0xffffffff : 0xff000000;
+            }
+        }
+        // an isolated pixel with a weak edge, which shouldn't be marked
+        pixels[15*width+30] = 0xff101010;
+
+        PreviewAnalyticsEngine engine = new PreviewAnalyticsEngine(test_pool);
+        int [] temp = new int[width*height];
+        int [] output = new int[width*height];
+        engine.generateFocusPeaking(pixels, width, height, 1, temp, output);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // the edge detection marks the line and its neighbours, except for the image border
+                boolean expected = x >= line_x-1 && x <= line_x+1 && y >= 1 && y < height-1;
+                assertEquals("x: " + x + " y: " + y, expected ? 0xffffffff : 0, output[y*width+x]);
+            }
+        }
+
+        // subsampling should be equivalent to running on the decimated image
+        Random random = new Random(0);
+        for(int i=0;i<pixels.length;i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        for(int subsample=1;subsample<=3;subsample++) {
+            int sub_width = PreviewAnalyticsEngine.getSubsampledSize(width, subsample);
+            int sub_height = PreviewAnalyticsEngine.getSubsampledSize(height, subsample);
+            int [] decimated = decimatePixels(pixels, width, height, subsample);
+            int [] expected = new int[sub_width*sub_height];
+            int [] sub_output = new int[sub_width*sub_height];
+            engine.generateFocusPeaking(decimated, sub_width, sub_height, 1, new int[sub_width*sub_height], expected);
+            engine.generateFocusPeaking(pixels, width, height, subsample, new int[sub_width*sub_height], sub_output);
+            assertArrayEquals(expected, sub_output);
+        }
+    }
+
+    /** Tests reuse and reference counting of JpegBufferPool.
+     */
+    @Test
+    public void testJpegBufferPool() {
+        Log.d(TAG, "testJpegBufferPool");
+
+        final int size_class = JpegBufferPool.size_class_c;
+        JpegBufferPool pool = new JpegBufferPool(8*size_class);
+
+        JpegBufferPool.Buffer buffer0 = pool.acquire(6*size_class+1);
+        assertEquals(6*size_class+1, buffer0.getLength());
+        assertEquals(7*size_class, buffer0.getData().length);
+        byte [] data0 = buffer0.getData();
+        for(int i=0;i<buffer0.getLength();i++) {
+            data0[i] = (byte)i;
+        }
+        byte [] copy = buffer0.copyData();
+        assertEquals(6*size_class+1, copy.length);
+        for(int i=0;i<copy.length;i++) {
+            assertEquals((byte)i, copy[i]);
+        }
+
+        // array only returned to the pool once all references are released
+        buffer0.retain();
+        buffer0.release();
+        assertEquals(0, pool.getPooledBytes());
+        buffer0.release();
+        assertEquals(7*size_class, pool.getPooledBytes());
+        try {
+            buffer0.release();
+            fail();
+        }
+        catch(IllegalStateException e) {
+            // expected
+        }
+
+        // a jpeg of a similar size reuses the array
+        JpegBufferPool.Buffer buffer1 = pool.acquire(7*size_class-10);
+        assertSame(data0, buffer1.getData());
+        assertEquals(0, pool.getPooledBytes());
+        buffer1.release();
+
+        // but a much smaller jpeg doesn't, nor does one that's too large
+        JpegBufferPool.Buffer buffer2 = pool.acquire(10);
+        assertNotSame(data0, buffer2.getData());
+        assertEquals(size_class, buffer2.getData().length);
+        JpegBufferPool.Buffer buffer3 = pool.acquire(7*size_class+1);
+        assertNotSame(data0, buffer3.getData());
+        assertEquals(8*size_class, buffer3.getData().length);
+        assertEquals(7*size_class, pool.getPooledBytes());
+
+        // the pool doesn't hold on to more than the maximum
+        buffer3.release();
+        assertEquals(7*size_class, pool.getPooledBytes());
+        buffer2.release();
+        assertEquals(8*size_class, pool.getPooledBytes());
+
+        pool.clear();
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    /** Records the images recycled by a ZslRingBuffer.
+     */
+    private static class ZslTestRecycler implements ZslRingBuffer.Recycler<String> {
+        final List<String> recycled = new ArrayList<>();
+
+        @Override
+        public void recycle(String image) {
+            recycled.add(image);
+        }
+    }
+
+    /** Tests that ZslRingBuffer pairs images with results by timestamp, whichever arrives first,
+     *  and recycles evicted and stale images.
+     */
+    @Test
+    public void testZslRingBufferPairing() {
+        Log.d(TAG, "testZslRingBufferPairing");
+
+        ZslTestRecycler recycler = new ZslTestRecycler();
+        ZslRingBuffer<String, String> ring_buffer = new ZslRingBuffer<>(3, recycler);
+        assertNull(ring_buffer.takeLatest());
+
+        // image before result
+        ring_buffer.addImage(100, "image100");
+        assertNull(ring_buffer.takeLatest());
+        ring_buffer.addResult(100, "result100", 0.0f);
+        // result before image
+        ring_buffer.addResult(200, "result200", 0.0f);
+        ring_buffer.addImage(200, "image200");
+        // image without a result
+        ring_buffer.addImage(300, "image300");
+        assertEquals(3, ring_buffer.getNImages());
+        assertEquals(0, recycler.recycled.size());
+
+        // a new frame evicts the oldest
+        ring_buffer.addImage(400, "image400");
+        assertEquals(1, recycler.recycled.size());
+        assertEquals("image100", recycler.recycled.get(0));
+        assertEquals(3, ring_buffer.getNImages());
+
+        // a stale image (older than the frames held, and not matching any) is recycled immediately
+        ring_buffer.addImage(150, "image150");
+        assertEquals(2, recycler.recycled.size());
+        assertEquals("image150", recycler.recycled.get(1));
+        // as is a stale result ignored
+        ring_buffer.addResult(100, "result100", 0.0f);
+        assertEquals(3, ring_buffer.getNImages());
+
+        // the newest complete frame is 200
+        ZslRingBuffer.Frame<String, String> frame = ring_buffer.takeLatest();
+        assertNotNull(frame);
+        assertEquals(200, frame.timestamp);
+        assertEquals("image200", frame.image);
+        assertEquals("result200", frame.result);
+        // the taken image isn't recycled, but newer frames are kept
+        assertEquals(2, recycler.recycled.size());
+        assertEquals(2, ring_buffer.getNImages());
+        assertNull(ring_buffer.takeLatest());
+
+        ring_buffer.addResult(300, "result300", 0.0f);
+        ring_buffer.addResult(400, "result400", 0.0f);
+        frame = ring_buffer.takeLatest();
+        assertEquals(400, frame.timestamp);
+        // the older frame 300 can no longer be chosen, so is recycled
+        assertEquals(3, recycler.recycled.size());
+        assertEquals("image300", recycler.recycled.get(2));
+        assertEquals(0, ring_buffer.getNImages());
+
+        // frames older than those taken are stale
+        ring_buffer.addImage(300, "image300b");
+        assertEquals(4, recycler.recycled.size());
+
+        ring_buffer.addImage(500, "image500");
+        ring_buffer.addImage(600, "image600");
+        ring_buffer.clear();
+        assertEquals(6, recycler.recycled.size());
+        assertEquals(0, ring_buffer.getNImages());
+        // after clearing, timestamps may restart (e.g., for a new session)
+        ring_buffer.addImage(10, "image10");
+        ring_buffer.addResult(10, "result10", 0.0f);
+        assertEquals(10, ring_buffer.takeLatest().timestamp);
+    }
+
+    /** Tests the selection policies of ZslRingBuffer.
+     */
+    @Test
+    public void testZslRingBufferSelection() {
+        Log.d(TAG, "testZslRingBufferSelection");
+
+        ZslTestRecycler recycler = new ZslTestRecycler();
+        ZslRingBuffer<String, String> ring_buffer = new ZslRingBuffer<>(5, recycler);
+        final float [] scores = new float[]{5.0f, 1.0f, 3.0f, 3.0f, 2.0f};
+        for(int i=0;i<5;i++) {
+            long timestamp = 1000 + 33*i;
+            ring_buffer.addImage(timestamp, "image" + i);
+            ring_buffer.addResult(timestamp, "result" + i, scores[i]);
+        }
+
+        // best of the newest 3 - frames 2 and 3 have the same score, so take the newer
+        ZslRingBuffer.Frame<String, String> frame = ring_buffer.takeBest(3);
+        assertEquals("image3", frame.image);
+        assertEquals("result3", frame.result);
+        assertEquals(1000 + 33*3, frame.timestamp);
+        // frames 0 to 2 are recycled, even though frame 0 had the best score
+        assertEquals(3, recycler.recycled.size());
+        assertEquals(1, ring_buffer.getNImages());
+
+        for(int i=5;i<9;i++) {
+            long timestamp = 1000 + 33*i;
+            ring_buffer.addImage(timestamp, "image" + i);
+            ring_buffer.addResult(timestamp, "result" + i, 0.0f);
+        }
+        // frames 4 to 8 are held; closest to a target between 6 and 7, nearer 6
+        frame = ring_buffer.takeClosest(1000 + 33*6 + 10);
+        assertEquals("image6", frame.image);
+        assertEquals(5, recycler.recycled.size());
+        // a target after all frames gives the newest, recycling frame 7
+        frame = ring_buffer.takeClosest(1000 + 33*20);
+        assertEquals("image8", frame.image);
+        assertEquals(6, recycler.recycled.size());
+        assertNull(ring_buffer.takeBest(3));
+
+        try {
+            new ZslRingBuffer<String, String>(0, recycler);
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Tests that CameraFeaturesSnapshot survives serialization, and that invalid or out of date
+     *  data is rejected.
+     */
+    @Test
+    public void testCameraFeaturesSnapshot() {
+        Log.d(TAG, "testCameraFeaturesSnapshot");
+
+        final String fingerprint = "vendor/device/device:11/RQ1A/1234:user/release-keys";
+        CameraFeaturesSnapshot snapshot = new CameraFeaturesSnapshot(fingerprint);
+        CameraFeaturesSnapshot.Camera camera0 = new CameraFeaturesSnapshot.Camera("0");
+        camera0.facing = 1;
+        camera0.hardware_level = 3;
+        camera0.view_angle_x = 66.5f;
+        snapshot.putCamera(camera0);
+        CameraFeaturesSnapshot.Camera camera1 = new CameraFeaturesSnapshot.Camera("1");
+        camera1.facing = 0;
+        snapshot.putCamera(camera1);
+
+        byte [] data = snapshot.serialize();
+        Log.d(TAG, "snapshot size: " + data.length);
+        CameraFeaturesSnapshot snapshot2 = CameraFeaturesSnapshot.deserialize(data, fingerprint);
+        assertNotNull(snapshot2);
+        assertEquals(fingerprint, snapshot2.getFingerprint());
+        assertEquals(2, snapshot2.getCameraIds().size());
+        assertEquals("0", snapshot2.getCameraIds().get(0));
+        assertEquals("1", snapshot2.getCameraIds().get(1));
+        assertNull(snapshot2.getCamera("2"));
+
+        CameraFeaturesSnapshot.Camera camera = snapshot2.getCamera("0");
+        assertEquals(1, camera.facing);
+        assertEquals(3, camera.hardware_level);
+        assertEquals(66.5f, camera.view_angle_x, 0.0f);
+        camera = snapshot2.getCamera("1");
+        assertEquals(0, camera.facing);
+        assertEquals(-1, camera.hardware_level);
+        assertEquals(0.0f, camera.view_angle_x, 0.0f);
+
+        // reserializing gives the same data
+        assertArrayEquals(data, snapshot2.serialize());
+
+        // snapshot from a different build is rejected
+        assertNull(CameraFeaturesSnapshot.deserialize(data, fingerprint + "2"));
+
+        // as is truncated, extended or corrupt data
+        for(int length=0;length<data.length;length++) {
+            byte [] truncated = new byte[length];
+            System.arraycopy(data, 0, truncated, 0, length);
+            assertNull(CameraFeaturesSnapshot.deserialize(truncated, fingerprint));
+        }
+        byte [] extended = new byte[data.length+1];
+        System.arraycopy(data, 0, extended, 0, data.length);
+        assertNull(CameraFeaturesSnapshot.deserialize(extended, fingerprint));
+        byte [] corrupt = data.clone();
+        corrupt[5] ^= 0x40; // in the version
+        assertNull(CameraFeaturesSnapshot.deserialize(corrupt, fingerprint));
+    }
+
+    /** Tests that StartupOrchestrator runs tasks in parallel with the calling thread, and records
+     *  the startup timeline.
+     */
+    @Test
+    public void testStartupOrchestrator() throws InterruptedException {
+        Log.d(TAG, "testStartupOrchestrator");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            StartupOrchestrator orchestrator = new StartupOrchestrator(executor);
+            final CountDownLatch ui_done = new CountDownLatch(1);
+            final CountDownLatch task_started = new CountDownLatch(1);
+
+            // a task that can only complete once the "UI thread" has done its work - so it must run in parallel
+            StartupOrchestrator.Task<Integer> slow_task = orchestrator.submit("open_camera", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    task_started.countDown();
+                    ui_done.await();
+                    Thread.sleep(20);
+                    return 123;
+                }
+            });
+            StartupOrchestrator.Task<String> fast_task = orchestrator.submit("preload_icons", new Callable<String>() {
+                @Override
+                public String call() {
+                    return "icons";
+                }
+            });
+            task_started.await();
+            Thread.sleep(10);
+            orchestrator.checkpoint("create_preview");
+            ui_done.countDown();
+
+            assertEquals(123, (int)slow_task.join());
+            assertTrue(slow_task.isDone());
+            // wait for the fast task to have finished, so that joining doesn't need to wait
+            while( !fast_task.isDone() ) {
+                Thread.sleep(1);
+            }
+            assertEquals("icons", fast_task.join());
+            orchestrator.checkpoint("camera_setup");
+
+            StartupOrchestrator.Phase ui_phase = orchestrator.getPhase("create_preview", StartupOrchestrator.PhaseType.PHASETYPE_UI);
+            StartupOrchestrator.Phase open_phase = orchestrator.getPhase("open_camera", StartupOrchestrator.PhaseType.PHASETYPE_BACKGROUND);
+            StartupOrchestrator.Phase open_join = orchestrator.getPhase("open_camera", StartupOrchestrator.PhaseType.PHASETYPE_JOIN);
+            StartupOrchestrator.Phase setup_phase = orchestrator.getPhase("camera_setup", StartupOrchestrator.PhaseType.PHASETYPE_UI);
+            assertNotNull(ui_phase);
+            assertNotNull(open_phase);
+            assertNotNull(open_join);
+            assertNotNull(setup_phase);
+            assertNotNull(orchestrator.getPhase("preload_icons", StartupOrchestrator.PhaseType.PHASETYPE_BACKGROUND));
+            // the fast task was already done, so joining it shouldn't have been recorded
+            assertNull(orchestrator.getPhase("preload_icons", StartupOrchestrator.PhaseType.PHASETYPE_JOIN));
+            assertNull(orchestrator.getPhase("open_camera", StartupOrchestrator.PhaseType.PHASETYPE_UI));
+
+            // checkpoints follow on from each other
+            assertEquals(0, ui_phase.start_ns);
+            assertEquals(ui_phase.end_ns, setup_phase.start_ns);
+            // the camera was opening in parallel with the UI work
+            assertTrue(open_phase.overlaps(ui_phase));
+            assertTrue(open_phase.getDurationNs() >= 20000000L);
+            assertTrue(open_join.start_ns >= ui_phase.end_ns);
+            assertTrue(open_join.end_ns >= open_phase.end_ns);
+            assertEquals(open_join.getDurationNs(), orchestrator.getTotalJoinNs());
+
+            List<StartupOrchestrator.Phase> timeline = orchestrator.getTimeline();
+            assertEquals(5, timeline.size());
+            for(int i=1;i<timeline.size();i++) {
+                assertTrue(timeline.get(i-1).start_ns <= timeline.get(i).start_ns);
+            }
+
+            // exceptions are passed on to the joining thread
+            StartupOrchestrator.Task<Void> failing_task = orchestrator.submit("init_sensors", new Callable<Void>() {
+                @Override
+                public Void call() {
+                    throw new IllegalStateException("no sensors");
+                }
+            });
+            try {
+                failing_task.join();
+                fail();
+            }
+            catch(RuntimeException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            assertNotNull(orchestrator.getPhase("init_sensors", StartupOrchestrator.PhaseType.PHASETYPE_BACKGROUND));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /** Collects the events from a TraceRecorder, for testing.
+     */
+    private static class TestTraceSink implements TraceRecorder.Sink {
+        final List<String> events = new ArrayList<>();
+        final List<long []> times = new ArrayList<>();
+
+        @Override
+        public synchronized void onSpan(String name, long thread_id, long start_ns, long end_ns) {
+            events.add("span:" + name);
+            times.add(new long[]{thread_id, start_ns, end_ns});
+        }
+
+        @Override
+        public synchronized void onCounter(String name, long thread_id, long timestamp_ns, long value) {
+            events.add("counter:" + name + "=" + value);
+            times.add(new long[]{thread_id, timestamp_ns, value});
+        }
+    }
+
+    /** Tests recording spans and counters with TraceRecorder.
+     */
+    @Test
+    public void testTraceRecorder() throws InterruptedException {
+        Log.d(TAG, "testTraceRecorder");
+
+        final TraceRecorder recorder = new TraceRecorder(8);
+        recorder.beginSpan("outer");
+        recorder.beginSpan("inner");
+        recorder.setCounter("frame", 42);
+        recorder.endSpan();
+        recorder.endSpan();
+        recorder.endSpan(); // extra end should be ignored
+        recorder.recordSpan("done", 100, 250);
+        recorder.beginAsyncSpan("capture", 0);
+
+        // async span ended on another thread
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recorder.endAsyncSpan("capture", 0);
+                recorder.endAsyncSpan("capture", 0); // no longer open, so ignored
+                recorder.endAsyncSpan("not_started", 0);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        TestTraceSink sink = new TestTraceSink();
+        assertEquals(2, recorder.getNThreadBuffers());
+        assertEquals(5, recorder.drainTo(sink));
+        // the other thread has finished, so its buffer should be freed once drained
+        assertEquals(1, recorder.getNThreadBuffers());
+        assertEquals(0, recorder.getNDropped());
+
+        long this_thread_id = Thread.currentThread().getId();
+        int index = sink.events.indexOf("span:capture");
+        assertTrue(index >= 0);
+        assertEquals(thread.getId(), sink.times.get(index)[0]);
+        sink.events.remove(index);
+        sink.times.remove(index);
+        assertEquals("counter:frame=42", sink.events.get(0));
+        assertEquals("span:inner", sink.events.get(1));
+        assertEquals("span:outer", sink.events.get(2));
+        assertEquals("span:done", sink.events.get(3));
+        for(long [] time : sink.times) {
+            assertEquals(this_thread_id, time[0]);
+        }
+        long [] inner = sink.times.get(1);
+        long [] outer = sink.times.get(2);
+        assertTrue(inner[1] <= inner[2]);
+        assertTrue(outer[1] <= inner[1]);
+        assertTrue(outer[2] >= inner[2]);
+        assertEquals(100, sink.times.get(3)[1]);
+        assertEquals(250, sink.times.get(3)[2]);
+
+        // already drained
+        assertEquals(0, recorder.drainTo(new TestTraceSink()));
+
+        // if the buffer overflows, the oldest events are dropped
+        for(int i=0;i<11;i++) {
+            recorder.setCounter("count", i);
+        }
+        sink = new TestTraceSink();
+        assertEquals(8, recorder.drainTo(sink));
+        assertEquals(3, recorder.getNDropped());
+        assertEquals("counter:count=3", sink.events.get(0));
+        assertEquals("counter:count=10", sink.events.get(7));
+
+        // spans that are never ended don't break later spans
+        for(int i=0;i<20;i++) {
+            recorder.beginSpan("leaked");
+        }
+        recorder.beginSpan("a");
+        recorder.beginSpan("b");
+        recorder.endSpan();
+        recorder.endSpan();
+        sink = new TestTraceSink();
+        assertEquals(2, recorder.drainTo(sink));
+        assertEquals("span:b", sink.events.get(0));
+        assertEquals("span:a", sink.events.get(1));
+        // ending the leaked spans only records those still remembered (14), though only 8 fit in the buffer
+        long n_dropped = recorder.getNDropped();
+        for(int i=0;i<20;i++) {
+            recorder.endSpan();
+        }
+        sink = new TestTraceSink();
+        assertEquals(8, recorder.drainTo(sink));
+        assertEquals(n_dropped + 6, recorder.getNDropped());
+
+        try {
+            new TraceRecorder(100);
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Tests that TraceRecorder can be drained whilst other threads are recording, without
+     *  losing or corrupting events other than those counted as dropped.
+     */
+    @Test
+    public void testTraceRecorderConcurrent() throws InterruptedException {
+        Log.d(TAG, "testTraceRecorderConcurrent");
+
+        final TraceRecorder recorder = new TraceRecorder(64);
+        final int n_threads = 4;
+        final int n_events = 20000;
+        Thread [] threads = new Thread[n_threads];
+        for(int i=0;i<n_threads;i++) {
+            final String name = "thread" + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j=0;j<n_events;j++) {
+                        recorder.setCounter(name, j);
+                    }
+                }
+            });
+        }
+        final long [][] last_values = new long[n_threads][];
+        final boolean [] ok = new boolean[]{true};
+        TraceRecorder.Sink sink = new TraceRecorder.Sink() {
+            @Override
+            public void onSpan(String name, long thread_id, long start_ns, long end_ns) {
+                ok[0] = false;
+            }
+
+            @Override
+            public void onCounter(String name, long thread_id, long timestamp_ns, long value) {
+                int thread_index = Integer.parseInt(name.substring("thread".length()));
+                if( last_values[thread_index] == null ) {
+                    last_values[thread_index] = new long[]{-1};
+                }
+                // values from each thread must be in order, and in range
+                if( value <= last_values[thread_index][0] || value >= n_events ) {
+                    ok[0] = false;
+                }
+                last_values[thread_index][0] = value;
+            }
+        };
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        long n_received = 0;
+        boolean any_alive = true;
+        while( any_alive ) {
+            any_alive = false;
+            for(Thread thread : threads) {
+                if( thread.isAlive() )
+                    any_alive = true;
+            }
+            n_received += recorder.drainTo(sink);
+        }
+        n_received += recorder.drainTo(sink);
+        Log.d(TAG, "received: " + n_received + " dropped: " + recorder.getNDropped());
+        assertTrue(ok[0]);
+        assertEquals((long)n_threads*n_events, n_received + recorder.getNDropped());
+        for(int i=0;i<n_threads;i++) {
+            // the last event is never lost
+            assertEquals(n_events-1, last_values[i][0]);
+        }
+        assertEquals(0, recorder.getNThreadBuffers());
+    }
+
+    /** Tests the percentiles computed by HistogramTraceSink.
+     */
+    @Test
+    public void testHistogramTraceSink() {
+        Log.d(TAG, "testHistogramTraceSink");
+
+        HistogramTraceSink sink = new HistogramTraceSink();
+        assertNull(sink.getHistogram("save"));
+
+        // durations of 1ms to 100ms
+        for(int i=100;i>=1;i--) {
+            long start_ns = 1000000000L * i;
+            sink.onSpan("save", 1, start_ns, start_ns + 1000000L * i);
+        }
+        sink.onSpan("click", 1, 500, 510);
+        sink.onCounter("frame", 1, 0, 5);
+        sink.onCounter("frame", 1, 10, 6);
+
+        assertEquals(2, sink.getSpanNames().size());
+        assertEquals("click", sink.getSpanNames().get(0));
+        assertEquals("save", sink.getSpanNames().get(1));
+        assertEquals(6L, (long)sink.getCounter("frame"));
+        assertNull(sink.getCounter("missing"));
+
+        HistogramTraceSink.Histogram histogram = sink.getHistogram("save");
+        assertEquals(100, histogram.getCount());
+        assertEquals(1000000L, histogram.getMinNs());
+        assertEquals(100000000L, histogram.getMaxNs());
+        assertEquals(50500000L, histogram.getMeanNs());
+        final double [] fractions = new double[]{0.0, 0.5, 0.95, 0.99, 1.0};
+        final long [] expected = new long[]{1000000L, 50000000L, 95000000L, 99000000L, 100000000L};
+        for(int i=0;i<fractions.length;i++) {
+            long value = histogram.getPercentileNs(fractions[i]);
+            Log.d(TAG, "percentile " + fractions[i] + ": " + value);
+            assertEquals(expected[i], value, expected[i]/16.0);
+        }
+
+        // small durations are exact
+        histogram = sink.getHistogram("click");
+        assertEquals(10, histogram.getPercentileNs(0.5));
+
+        // histograms returned are copies
+        sink.onSpan("click", 1, 0, 20);
+        assertEquals(1, histogram.getCount());
+        assertEquals(2, sink.getHistogram("click").getCount());
+
+        String summary = sink.getSummary();
+        Log.d(TAG, summary);
+        assertTrue(summary.contains("save: n=100"));
+
+        sink.clear();
+        assertEquals(0, sink.getSpanNames().size());
+        assertEquals(0, new HistogramTraceSink.Histogram().getPercentileNs(0.5));
+    }
+
+    /** Tests the output of JsonTraceSink.
+     */
+    @Test
+    public void testJsonTraceSink() {
+        Log.d(TAG, "testJsonTraceSink");
+
+        JsonTraceSink sink = new JsonTraceSink(2);
+        assertEquals("{\"traceEvents\":[\n\n],\"displayTimeUnit\":\"ns\"}\n", sink.getJson());
+        sink.onSpan("save \"jpeg\"", 7, 1234567, 2234568);
+        sink.onCounter("frame", 8, 5000, 42);
+        sink.onCounter("frame", 8, 6000, 43);
+        assertEquals(2, sink.getNEvents());
+        assertEquals(1, sink.getNSkipped());
+        String json = sink.getJson();
+        Log.d(TAG, json);
+        assertEquals("{\"traceEvents\":[\n" +
+                "{\"name\":\"save \\\"jpeg\\\"\",\"ph\":\"X\",\"pid\":0,\"tid\":7,\"ts\":1234.567,\"dur\":1000.001},\n" +
+                "{\"name\":\"frame\",\"ph\":\"C\",\"pid\":0,\"tid\":8,\"ts\":5.000,\"args\":{\"value\":42}}\n" +
+                "],\"displayTimeUnit\":\"ns\"}\n", json);
+
+        sink.clear();
+        assertEquals(0, sink.getNEvents());
+        assertEquals(0, sink.getNSkipped());
+    }
+
+    /** A ResultCoalescer.Scheduler that holds the scheduled runnables, so the test can choose when
+     *  to run them.
+     */
+    private static class TestResultScheduler implements ResultCoalescer.Scheduler {
+        final List<Runnable> runnables = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+        boolean closed;
+
+        @Override
+        public boolean schedule(Runnable runnable, long delay_ms) {
+            if( closed )
+                return false;
+            runnables.add(runnable);
+            delays.add(delay_ms);
+            return true;
+        }
+
+        void runAll() {
+            List<Runnable> to_run = new ArrayList<>(runnables);
+            runnables.clear();
+            for(Runnable runnable : to_run) {
+                runnable.run();
+            }
+        }
+    }
+
+    /** Tests that ResultCoalescer processes only the latest result, and schedules at most one run
+     *  at a time.
+     */
+    @Test
+    public void testResultCoalescer() {
+        Log.d(TAG, "testResultCoalescer");
+
+        TestResultScheduler scheduler = new TestResultScheduler();
+        final List<Integer> processed = new ArrayList<>();
+        ResultCoalescer<Integer> coalescer = new ResultCoalescer<>(scheduler, new ResultCoalescer.Processor<Integer>() {
+            @Override
+            public void process(Integer result) {
+                processed.add(result);
+            }
+        }, 1000000); // long interval, so the delay is always non-zero after the first result
+
+        // first result is processed without delay
+        coalescer.submit(1);
+        coalescer.submit(2);
+        coalescer.submit(3);
+        assertEquals(1, scheduler.runnables.size());
+        assertEquals(0, (long)scheduler.delays.get(0));
+        scheduler.runAll();
+        assertEquals(1, processed.size());
+        assertEquals(3, (int)processed.get(0));
+        assertEquals(3, coalescer.getNSubmitted());
+        assertEquals(1, coalescer.getNProcessed());
+
+        // later results wait for the interval
+        coalescer.submit(4);
+        coalescer.submit(5);
+        assertEquals(1, scheduler.runnables.size());
+        assertTrue(scheduler.delays.get(1) > 0);
+        assertTrue(scheduler.delays.get(1) <= 1000000);
+        scheduler.runAll();
+        assertEquals(2, processed.size());
+        assertEquals(5, (int)processed.get(1));
+
+        // a result submitted whilst processing is scheduled again rather than lost
+        final List<ResultCoalescer<Integer>> coalescer_ref = new ArrayList<>();
+        final List<Integer> processed2 = new ArrayList<>();
+        TestResultScheduler scheduler2 = new TestResultScheduler();
+        coalescer_ref.add(new ResultCoalescer<>(scheduler2, new ResultCoalescer.Processor<Integer>() {
+            @Override
+            public void process(Integer result) {
+                processed2.add(result);
+                if( result == 1 )
+                    coalescer_ref.get(0).submit(2);
+            }
+        }, 0));
+        coalescer_ref.get(0).submit(1);
+        scheduler2.runAll();
+        assertEquals(1, scheduler2.runnables.size());
+        scheduler2.runAll();
+        assertEquals(2, processed2.size());
+        assertEquals(2, (int)processed2.get(1));
+
+        // cleared results aren't processed
+        coalescer.submit(6);
+        coalescer.clear();
+        scheduler.runAll();
+        assertEquals(2, processed.size());
+        assertEquals(6, coalescer.getNSubmitted());
+        assertEquals(2, coalescer.getNProcessed());
+        // but a later result is
+        coalescer.submit(7);
+        assertEquals(1, scheduler.runnables.size());
+        scheduler.runAll();
+        assertEquals(3, processed.size());
+        assertEquals(7, (int)processed.get(2));
+
+        // a result that can't be scheduled doesn't stop later results from being scheduled
+        scheduler.closed = true;
+        coalescer.submit(8);
+        assertEquals(0, scheduler.runnables.size());
+        scheduler.closed = false;
+        coalescer.submit(9);
+        assertEquals(1, scheduler.runnables.size());
+        scheduler.runAll();
+        assertEquals(4, processed.size());
+        assertEquals(9, (int)processed.get(3));
+    }
+
+    /** Returns a greyscale texture with detail at both coarse and fine scales, shifted so that
+     *  pixel (x+shift_x, y+shift_y) of the returned image is the same as pixel (x, y) of the
+     *  unshifted texture.
+     */
+    private static byte [] createMTBTestImage(int width, int height, int shift_x, int shift_y) {
+        final int coarse_c = 32, fine_c = 4;
+        final int n_cells = 64;
+        Random random = new Random(0);
+        int [] coarse = new int[n_cells*n_cells];
+        int [] fine = new int[n_cells*n_cells*64];
+        for(int i=0;i<coarse.length;i++)
+            coarse[i] = random.nextInt(256);
+        for(int i=0;i<fine.length;i++)
+            fine[i] = random.nextInt(256);
+        byte [] grey = new byte[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // offset so that the texture coordinates are non-negative
+                int tx = x - shift_x + 64;
+                int ty = y - shift_y + 64;
+                int c = coarse[(ty/coarse_c)*n_cells + tx/coarse_c];
+                int f = fine[(ty/fine_c)*n_cells*8 + tx/fine_c];
+                grey[y*width+x] = (byte)((3*c + f)/4);
+            }
+        }
+        return grey;
+    }
+
+    /** Tests that MTBAligner.computeError() with packed bitmaps gives the same result as comparing
+     *  each pixel, including for offsets that aren't a multiple of the word size.
+     */
+    @Test
+    public void testMTBAlignerError() {
+        Log.d(TAG, "testMTBAlignerError");
+
+        final int width = 150, height = 40, median = 128;
+        byte [] grey0 = createMTBTestImage(width, height, 0, 0);
+        byte [] grey1 = createMTBTestImage(width, height, 3, 1);
+        MTBAligner.MTBPyramid pyramid0 = MTBAligner.createPyramid(grey0, width, height, median, 1);
+        MTBAligner.MTBPyramid pyramid1 = MTBAligner.createPyramid(grey1, width, height, median, 1);
+        assertEquals(0, MTBAligner.computeError(pyramid0, pyramid0, 0, 0, 0, 0, width, 0, height));
+
+        int [][] offsets = {{0, 0}, {3, 1}, {-5, 2}, {63, -1}, {-65, 0}, {70, 3}};
+        for(int [] offset : offsets) {
+            int off_x = offset[0];
+            int off_y = offset[1];
+            int x0 = Math.max(0, -off_x);
+            int x1 = Math.min(width, width - off_x);
+            int y0 = Math.max(0, -off_y);
+            int y1 = Math.min(height, height - off_y);
+            long expected = 0;
+            for(int y=y0;y<y1;y++) {
+                for(int x=x0;x<x1;x++) {
+                    int value0 = grey0[y*width+x] & 0xff;
+                    int value1 = grey1[(y+off_y)*width+x+off_x] & 0xff;
+                    if( Math.abs(value0 - median) > MTBAligner.min_diff_c && Math.abs(value1 - median) > MTBAligner.min_diff_c && (value0 > median) != (value1 > median) )
+                        expected++;
+                }
+            }
+            Log.d(TAG, "offset " + off_x + " , " + off_y + " error: " + expected);
+            assertEquals(expected, MTBAligner.computeError(pyramid0, pyramid1, 0, off_x, off_y, x0, x1, y0, y1));
+        }
+    }
+
+    /** Tests that MTBAligner.align() recovers known offsets.
+     */
+    @Test
+    public void testMTBAligner() {
+        Log.d(TAG, "testMTBAligner");
+
+        final int width = 320, height = 240;
+        final int initial_step_size = 32;
+        final int n_levels = MTBAligner.getNLevels(initial_step_size);
+        assertEquals(5, n_levels);
+        assertEquals(1, MTBAligner.getNLevels(1));
+        assertEquals(32, MTBAligner.getInitialStepSize(4160, 1));
+
+        int [][] shifts = {{0, 0}, {5, -3}, {-17, 9}, {30, 21}, {-1, -31}};
+        MTBAligner.MTBPyramid [] pyramids = new MTBAligner.MTBPyramid[shifts.length+1];
+        pyramids[0] = MTBAligner.createPyramid(createMTBTestImage(width, height, 0, 0), width, height, 128, n_levels);
+        for(int i=0;i<shifts.length;i++) {
+            pyramids[i+1] = MTBAligner.createPyramid(createMTBTestImage(width, height, shifts[i][0], shifts[i][1]), width, height, 128, n_levels);
+        }
+        int [] offsets_x = new int[pyramids.length];
+        int [] offsets_y = new int[pyramids.length];
+        MTBAligner aligner = new MTBAligner(test_pool);
+        aligner.align(offsets_x, offsets_y, pyramids, 0, initial_step_size, 1);
+        assertEquals(0, offsets_x[0]);
+        assertEquals(0, offsets_y[0]);
+        for(int i=0;i<shifts.length;i++) {
+            Log.d(TAG, "image " + (i+1) + " offsets: " + offsets_x[i+1] + " , " + offsets_y[i+1]);
+            assertEquals(shifts[i][0], offsets_x[i+1]);
+            assertEquals(shifts[i][1], offsets_y[i+1]);
+        }
+
+        // images not suitable for alignment are left with zero offsets
+        pyramids[2] = null;
+        aligner.align(offsets_x, offsets_y, pyramids, 0, initial_step_size, 1);
+        assertEquals(0, offsets_x[2]);
+        assertEquals(0, offsets_y[2]);
+        assertEquals(shifts[0][0], offsets_x[1]);
+        pyramids[0] = null;
+        aligner.align(offsets_x, offsets_y, pyramids, 0, initial_step_size, 1);
+        for(int i=0;i<pyramids.length;i++) {
+            assertEquals(0, offsets_x[i]);
+            assertEquals(0, offsets_y[i]);
+        }
+
+        // for a small image, the coarsest levels are too small to align at, so the largest steps
+        // must be tested at a finer level
+        final int small_width = 256, small_height = 96;
+        int [][] small_shifts = {{20, -12}, {-18, 17}, {3, 24}};
+        MTBAligner.MTBPyramid [] small_pyramids = new MTBAligner.MTBPyramid[small_shifts.length+1];
+        small_pyramids[0] = MTBAligner.createPyramid(createMTBTestImage(small_width, small_height, 0, 0), small_width, small_height, 128, n_levels);
+        for(int i=0;i<small_shifts.length;i++) {
+            small_pyramids[i+1] = MTBAligner.createPyramid(createMTBTestImage(small_width, small_height, small_shifts[i][0], small_shifts[i][1]), small_width, small_height, 128, n_levels);
+        }
+        offsets_x = new int[small_pyramids.length];
+        offsets_y = new int[small_pyramids.length];
+        aligner.align(offsets_x, offsets_y, small_pyramids, 0, initial_step_size, 1);
+        for(int i=0;i<small_shifts.length;i++) {
+            Log.d(TAG, "small image " + (i+1) + " offsets: " + offsets_x[i+1] + " , " + offsets_y[i+1]);
+            assertEquals(small_shifts[i][0], offsets_x[i+1]);
+            assertEquals(small_shifts[i][1], offsets_y[i+1]);
+        }
+    }
+
+    /** Computes the median of the value (maximum of r, g, b) of the supplied pixels, in the same
+     *  way as HDRProcessor.getHistogramInfo().
+     */
+    private static int bruteForceMedian(int [] pixels, int width, int height, int x0, int x1, int step) {
+        int [] histo = new int[256];
+        int total = 0;
+        for(int y=0;y<height;y+=step) {
+            for(int x=0;x<width;x+=step) {
+                if( x < x0 || x >= x1 )
+                    continue;
+                int color = pixels[y*width+x];
+                int value = Math.max((color >> 16) & 0xff, Math.max((color >> 8) & 0xff, color & 0xff));
+                histo[value]++;
+                total++;
+            }
+        }
+        int count = 0;
+        for(int v=0;v<256;v++) {
+            count += histo[v];
+            if( count >= total/2 )
+                return v;
+        }
+        return -1;
+    }
+
+    /** Tests that ColumnHistogram gives the same strip medians and means as computing them
+     *  directly.
+     */
+    @Test
+    public void testColumnHistogram() {
+        Log.d(TAG, "testColumnHistogram");
+
+        final int width = 203, height = 57;
+        final int column_width = 8;
+        int [] pixels = new int[width*height];
+        Random random = new Random(42);
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // brightness increasing from left to right, with noise
+                int base = (x*200)/width;
+                int r = Math.min(255, base + random.nextInt(40));
+                int g = Math.min(255, base + random.nextInt(40));
+                int b = random.nextInt(64);
+                pixels[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        for(int step=1;step<=2;step++) {
+            ColumnHistogram histogram = new ColumnHistogram(width, column_width, step);
+            for(int pass=0;pass<2;pass++) {
+                if( pass == 1 ) {
+                    // check the histogram can be reused
+                    histogram.reset();
+                }
+                for(int y=0;y<height;y+=step) {
+                    histogram.addRow(pixels, y*width);
+                }
+                histogram.finish();
+
+                // strips on column boundaries (the final column is partial)
+                int [][] strips = {{0, 8}, {0, width}, {16, 96}, {40, 48}, {104, width}, {200, width}};
+                for(int [] strip : strips) {
+                    int x0 = strip[0], x1 = strip[1];
+                    if( x1 == width ) {
+                        // the end of the image rounds to the final column boundary
+                        assertEquals(histogram.getCount(x0, x1), histogram.getCount(x0, ((width+column_width-1)/column_width)*column_width));
+                    }
+                    int expected_median = bruteForceMedian(pixels, width, height, x0, x1, step);
+                    Log.d(TAG, "strip " + x0 + " to " + x1 + " median " + histogram.getMedian(x0, x1) + " expected " + expected_median);
+                    assertEquals(expected_median, histogram.getMedian(x0, x1));
+
+                    long sum = 0;
+                    int count = 0;
+                    for(int y=0;y<height;y+=step) {
+                        for(int x=0;x<width;x+=step) {
+                            if( x < x0 || x >= x1 )
+                                continue;
+                            int color = pixels[y*width+x];
+                            sum += Math.max((color >> 16) & 0xff, Math.max((color >> 8) & 0xff, color & 0xff));
+                            count++;
+                        }
+                    }
+                    assertEquals(count, histogram.getCount(x0, x1));
+                    assertEquals(sum/(float)count, histogram.getMean(x0, x1), 1.0e-3f);
+                }
+
+                // strips not on column boundaries are rounded to the nearest boundary
+                assertEquals(histogram.getMedian(16, 96), histogram.getMedian(13, 99));
+                assertEquals(histogram.getMedian(16, 96), histogram.getMedian(19, 92));
+                assertEquals(histogram.getMean(16, 96), histogram.getMean(13, 99), 0.0f);
+
+                // empty strips
+                assertEquals(-1, histogram.getMedian(40, 40));
+                assertEquals(-1, histogram.getMedian(40, 42));
+                assertEquals(0, histogram.getCount(48, 40));
+                assertEquals(-1.0f, histogram.getMean(48, 40), 0.0f);
+            }
+        }
+
+        // the strip brightness should increase from left to right
+        ColumnHistogram histogram = new ColumnHistogram(width, column_width, 1);
+        for(int y=0;y<height;y++) {
+            histogram.addRow(pixels, y*width);
+        }
+        histogram.finish();
+        assertTrue(histogram.getMedian(0, 40) < histogram.getMedian(80, 120));
+        assertTrue(histogram.getMedian(80, 120) < histogram.getMedian(160, width));
+        assertTrue(histogram.getMean(0, 40) < histogram.getMean(160, width));
+    }
+
+    /** Returns the cost of the cheapest seam through the cost map, in columns [min_x, max_x],
+     *  by trying every seam.
+     */
+    private static long bruteForceSeamCost(int [] cost, int width, int height, int min_x, int max_x, int y, int x) {
+        long this_cost = cost[y*width+x];
+        if( y == height-1 )
+            return this_cost;
+        long best = Long.MAX_VALUE;
+        for(int dx=-1;dx<=1;dx++) {
+            int next_x = x+dx;
+            if( next_x >= min_x && next_x <= max_x ) {
+                best = Math.min(best, bruteForceSeamCost(cost, width, height, min_x, max_x, y+1, next_x));
+            }
+        }
+        return this_cost + best;
+    }
+
+    /** Tests that SeamFinder finds valid minimum cost seams.
+     */
+    @Test
+    public void testSeamFinder() {
+        Log.d(TAG, "testSeamFinder");
+
+        // cost map
+        int [] pixels0 = new int[]{0xff000000, 0xff102030, 0xffffffff};
+        int [] pixels1 = new int[]{0xff000000, 0xff132010, 0xff000000};
+        int [] cost = new int[3];
+        SeamFinder.computeCostMap(pixels0, pixels1, 3, cost);
+        assertEquals(0, cost[0]);
+        assertEquals(3*3 + 0 + 32*32, cost[1]);
+        assertEquals(3*255*255, cost[2]);
+
+        // uniform costs give a straight seam in the centre of the range
+        final int width = 9, height = 6;
+        cost = new int[width*height];
+        int [] seam = new int[height];
+        assertEquals(0, SeamFinder.findSeam(cost, width, height, 2, 6, seam));
+        for(int y=0;y<height;y++) {
+            assertEquals(4, seam[y]);
+        }
+
+        // seam follows a valley of low costs
+        final int [] valley = new int[]{2, 3, 4, 5, 5, 4};
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                cost[y*width+x] = x == valley[y] ? 1 : 100;
+            }
+        }
+        assertEquals(height, SeamFinder.findSeam(cost, width, height, 2, 6, seam));
+        for(int y=0;y<height;y++) {
+            assertEquals(valley[y], seam[y]);
+        }
+
+        // the seam must stay within the range, even if cheaper pixels lie outside
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                cost[y*width+x] = x < 3 ? 0 : 10 + x;
+            }
+        }
+        assertEquals(13*height, SeamFinder.findSeam(cost, width, height, 3, 6, seam));
+        for(int y=0;y<height;y++) {
+            assertEquals(3, seam[y]);
+        }
+
+        // random costs: compare with trying every seam
+        Random random = new Random(0);
+        for(int test=0;test<20;test++) {
+            for(int i=0;i<cost.length;i++) {
+                cost[i] = random.nextInt(1000);
+            }
+            final int min_x = 1, max_x = 7;
+            long seam_cost = SeamFinder.findSeam(cost, width, height, min_x, max_x, seam);
+            long expected_cost = Long.MAX_VALUE;
+            for(int x=min_x;x<=max_x;x++) {
+                expected_cost = Math.min(expected_cost, bruteForceSeamCost(cost, width, height, min_x, max_x, 0, x));
+            }
+            assertEquals(expected_cost, seam_cost);
+            long path_cost = 0;
+            for(int y=0;y<height;y++) {
+                assertTrue(seam[y] >= min_x && seam[y] <= max_x);
+                if( y > 0 )
+                    assertTrue(Math.abs(seam[y] - seam[y-1]) <= 1);
+                path_cost += cost[y*width+seam[y]];
+            }
+            assertEquals(seam_cost, path_cost);
+        }
+    }
+
+    /** Creates n matches by mapping random points with the supplied transformation, where every
+     *  outlier_step'th match is instead given a random destination. Returns whether each match is
+     *  an inlier.
+     */
+    private static boolean [] createRansacMatches(Random random, float [] transform, int n, int outlier_step, float [] x0, float [] y0, float [] x1, float [] y1) {
+        boolean [] is_inlier = new boolean[n];
+        for(int i=0;i<n;i++) {
+            x0[i] = random.nextInt(1000);
+            y0[i] = random.nextInt(1000);
+            if( i % outlier_step == outlier_step-1 ) {
+                x1[i] = random.nextInt(1000);
+                y1[i] = random.nextInt(1000);
+                float w = transform[6]*x0[i] + transform[7]*y0[i] + transform[8];
+                float dx = (transform[0]*x0[i] + transform[1]*y0[i] + transform[2])/w - x1[i];
+                float dy = (transform[3]*x0[i] + transform[4]*y0[i] + transform[5])/w - y1[i];
+                is_inlier[i] = dx*dx + dy*dy <= 25.0f; // random destination happened to be close
+            }
+            else {
+                float w = transform[6]*x0[i] + transform[7]*y0[i] + transform[8];
+                x1[i] = (transform[0]*x0[i] + transform[1]*y0[i] + transform[2])/w;
+                y1[i] = (transform[3]*x0[i] + transform[4]*y0[i] + transform[5])/w;
+                is_inlier[i] = true;
+            }
+        }
+        return is_inlier;
+    }
+
+    /** Tests that RansacEstimator recovers each model in the presence of outliers.
+     */
+    @Test
+    public void testRansacEstimator() {
+        Log.d(TAG, "testRansacEstimator");
+
+        assertEquals(17, RansacEstimator.getRequiredIterations(0.99f, 0.5f, 2, 1000));
+        assertEquals(1, RansacEstimator.getRequiredIterations(0.99f, 1.0f, 4, 1000));
+        assertEquals(1000, RansacEstimator.getRequiredIterations(0.99f, 0.0f, 4, 1000));
+
+        final int n = 60;
+        float [] x0 = new float[n];
+        float [] y0 = new float[n];
+        float [] x1 = new float[n];
+        float [] y1 = new float[n];
+        float angle = (float)(5.0*Math.PI/180.0);
+        float cos = (float)Math.cos(angle), sin = (float)Math.sin(angle);
+        float [][] transforms = new float[][] {
+                {1.0f, 0.0f, 35.0f, 0.0f, 1.0f, -12.0f, 0.0f, 0.0f, 1.0f},
+                {cos, -sin, 20.0f, sin, cos, 4.0f, 0.0f, 0.0f, 1.0f},
+                {1.1f*cos, -1.1f*sin, -8.0f, 1.1f*sin, 1.1f*cos, 30.0f, 0.0f, 0.0f, 1.0f},
+                {1.02f, 0.03f, 15.0f, -0.01f, 0.98f, 6.0f, 2.0e-5f, -1.0e-5f, 1.0f}
+        };
+        RansacEstimator.Model [] models = new RansacEstimator.Model[] {
+                RansacEstimator.Model.TRANSLATION,
+                RansacEstimator.Model.RIGID,
+                RansacEstimator.Model.SIMILARITY,
+                RansacEstimator.Model.HOMOGRAPHY
+        };
+        Random random = new Random(0);
+        for(int test=0;test<models.length;test++) {
+            Log.d(TAG, "model: " + models[test]);
+            float [] transform = transforms[test];
+            boolean [] is_inlier = createRansacMatches(random, transform, n, 3, x0, y0, x1, y1);
+            int expected_n_inliers = 0;
+            for(boolean inlier : is_inlier) {
+                if( inlier )
+                    expected_n_inliers++;
+            }
+
+            RansacEstimator estimator = new RansacEstimator(models[test], 5.0f, 1234);
+            estimator.setMaxIterations(200);
+            RansacEstimator.Result result = estimator.estimate(x0, y0, x1, y1, n);
+            Log.d(TAG, "    inliers: " + result.n_inliers + " iterations: " + result.iterations);
+            assertEquals(models[test], result.model);
+            assertNotNull(result.transform);
+            assertEquals(expected_n_inliers, result.n_inliers);
+            for(int i=0;i<n;i++) {
+                assertEquals(is_inlier[i], result.inliers[i]);
+            }
+            // the sample should be all inliers, so the transformation should be almost exact
+            for(int i=0;i<9;i++) {
+                assertEquals(transform[i], result.transform[i], i >= 6 ? 1.0e-6f : 0.05f*Math.max(1.0f, Math.abs(transform[i])));
+            }
+            // should stop well before the maximum number of iterations, given 2/3 inliers
+            assertTrue(result.iterations < 200);
+
+            // same seed gives the same result
+            RansacEstimator.Result result2 = new RansacEstimator(models[test], 5.0f, 1234).estimate(x0, y0, x1, y1, n);
+            assertArrayEquals(result.transform, result2.transform, 0.0f);
+            assertArrayEquals(result.sample, result2.sample);
+            assertEquals(result.iterations, result2.iterations);
+        }
+
+        // constraints on samples
+        createRansacMatches(random, transforms[1], n, 3, x0, y0, x1, y1);
+        RansacEstimator estimator = new RansacEstimator(RansacEstimator.Model.RIGID, 5.0f, 0);
+        estimator.setMaxRotation((float)(2.0*Math.PI/180.0));
+        assertNull(estimator.estimate(x0, y0, x1, y1, n).transform);
+        estimator = new RansacEstimator(RansacEstimator.Model.RIGID, 5.0f, 0);
+        boolean [] sample_mask = new boolean[n];
+        sample_mask[0] = true;
+        sample_mask[1] = true;
+        estimator.setSampleMask(sample_mask);
+        // few enough matches that every sample is enumerated, so only one sample is valid
+        RansacEstimator.Result result = estimator.estimate(x0, y0, x1, y1, 20);
+        assertEquals(1, result.iterations);
+        assertArrayEquals(new int[]{0, 1}, result.sample);
+        estimator = new RansacEstimator(RansacEstimator.Model.RIGID, 5.0f, 0);
+        estimator.setMinInliers(n);
+        assertNull(estimator.estimate(x0, y0, x1, y1, n).transform);
+        assertNull(new RansacEstimator(RansacEstimator.Model.HOMOGRAPHY, 5.0f, 0).estimate(x0, y0, x1, y1, 3).transform);
+    }
+
+    /** Replay harness for GyroFusion: feeds a recorded stream of gyroscope events, where event i
+     *  has timestamp timestamps[i] (in nanoseconds) and angular speeds values[3*i] to
+     *  values[3*i+2]. If accel is non-null, an accelerometer event with those values is fed
+     *  before each gyroscope event.
+     */
+    private static void replayGyroStream(GyroFusion fusion, long [] timestamps, float [] values, float [] accel) {
+        for(int i=0;i<timestamps.length;i++) {
+            if( accel != null )
+                fusion.onAccelerometer(accel[0], accel[1], accel[2]);
+            fusion.onGyroscope(timestamps[i], values[3*i], values[3*i+1], values[3*i+2]);
+        }
+    }
+
+    /** Returns the timestamps for a stream of n gyroscope events at the supplied rate.
+     */
+    private static long [] createGyroTimestamps(int n, float rate_hz) {
+        long [] timestamps = new long[n];
+        for(int i=0;i<n;i++) {
+            timestamps[i] = 1000000000L + (long)(i * 1.0e9 / rate_hz);
+        }
+        return timestamps;
+    }
+
+    /** Returns the values for a stream of n gyroscope events, each with angular speed (x, y, z).
+     */
+    private static float [] createGyroValues(int n, float x, float y, float z) {
+        float [] values = new float[3*n];
+        for(int i=0;i<n;i++) {
+            values[3*i] = x;
+            values[3*i+1] = y;
+            values[3*i+2] = z;
+        }
+        return values;
+    }
+
+    /** Tests replaying recorded gyroscope streams through GyroFusion.
+     */
+    @Test
+    public void testGyroFusionReplay() {
+        Log.d(TAG, "testGyroFusionReplay");
+
+        // rotate at 90 degrees per second about the y axis for 1 second, at 200Hz
+        final int n = 201;
+        long [] timestamps = createGyroTimestamps(n, 200.0f);
+        GyroFusion fusion = new GyroFusion();
+        replayGyroStream(fusion, timestamps, createGyroValues(n, 0.0f, (float)(0.5*Math.PI), 0.0f), null);
+        float [] matrix = new float[9];
+        fusion.getRotationMatrix(matrix);
+        float [] expected = new float[]{0.0f, 0.0f, 1.0f, 0.0f, 1.0f, 0.0f, -1.0f, 0.0f, 0.0f};
+        for(int i=0;i<9;i++) {
+            assertEquals(expected[i], matrix[i], 1.0e-4f);
+        }
+        float [] in = new float[]{1.0f, 0.0f, 0.0f};
+        float [] out = new float[3];
+        fusion.getRelativeInverseVector(out, in);
+        // inverse rotation of the x axis is (R^T)(1, 0, 0), i.e., the first row of R
+        assertEquals(0.0f, out[0], 1.0e-4f);
+        assertEquals(0.0f, out[1], 1.0e-4f);
+        assertEquals(1.0f, out[2], 1.0e-4f);
+
+        // compare a long stream of varying (smoothed) rotations against integrating the rotation
+        // matrix in double precision
+        Random random = new Random(0);
+        final int n_random = 20000;
+        timestamps = createGyroTimestamps(n_random, 400.0f);
+        float [] values = new float[3*n_random];
+        for(int i=0;i<3*n_random;i++) {
+            values[i] = (float)(random.nextGaussian() * 3.0);
+        }
+        fusion = new GyroFusion();
+        replayGyroStream(fusion, timestamps, values, null);
+        double [] reference = new double[]{1.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 1.0};
+        double [] delta = new double[9];
+        double [] temp = new double[9];
+        float [] smoothed = new float[3];
+        for(int i=0;i<n_random;i++) {
+            for(int j=0;j<3;j++) {
+                // same filter as GyroFusion
+                smoothed[j] = i == 0 ? values[3*i+j] : 0.5f * smoothed[j] + 0.5f * values[3*i+j];
+            }
+            if( i == 0 )
+                continue;
+            double dT = (timestamps[i] - timestamps[i-1]) * 1.0e-9;
+            double omega = Math.sqrt(smoothed[0]*smoothed[0] + smoothed[1]*smoothed[1] + smoothed[2]*smoothed[2]);
+            double ax = smoothed[0]/omega, ay = smoothed[1]/omega, az = smoothed[2]/omega;
+            double c = Math.cos(omega*dT), s = Math.sin(omega*dT), t = 1.0 - c;
+            // Rodrigues' rotation formula
+            delta[0] = t*ax*ax + c;    delta[1] = t*ax*ay - s*az; delta[2] = t*ax*az + s*ay;
+            delta[3] = t*ax*ay + s*az; delta[4] = t*ay*ay + c;    delta[5] = t*ay*az - s*ax;
+            delta[6] = t*ax*az - s*ay; delta[7] = t*ay*az + s*ax; delta[8] = t*az*az + c;
+            for(int r=0;r<3;r++) {
+                for(int col=0;col<3;col++) {
+                    temp[r*3+col] = reference[r*3]*delta[col] + reference[r*3+1]*delta[3+col] + reference[r*3+2]*delta[6+col];
+                }
+            }
+            System.arraycopy(temp, 0, reference, 0, 9);
+        }
+        fusion.getRotationMatrix(matrix);
+        for(int i=0;i<9;i++) {
+            assertEquals(reference[i], matrix[i], 2.0e-3);
+        }
+        // and the matrix should still be a rotation
+        for(int r=0;r<3;r++) {
+            for(int r2=0;r2<3;r2++) {
+                float dot = matrix[r*3]*matrix[r2*3] + matrix[r*3+1]*matrix[r2*3+1] + matrix[r*3+2]*matrix[r2*3+2];
+                assertEquals(r == r2 ? 1.0f : 0.0f, dot, 1.0e-4f);
+            }
+        }
+
+        // a gyro drift around the z axis should be corrected by the accelerometer
+        final int n_drift = 2001;
+        timestamps = createGyroTimestamps(n_drift, 200.0f);
+        values = createGyroValues(n_drift, 0.0f, 0.0f, 0.1f);
+        float [] accel = new float[]{0.0f, 9.81f, 0.0f};
+        fusion = new GyroFusion();
+        replayGyroStream(fusion, timestamps, values, accel);
+        float [] up = new float[]{0.0f, 1.0f, 0.0f};
+        fusion.getRelativeInverseVectorGyroOnly(out, up);
+        // gyro only has rotated by 1 radian
+        assertEquals(Math.cos(1.0), out[1], 1.0e-3);
+        fusion.getRelativeInverseVector(out, up);
+        assertTrue(out[1] > 0.99f);
+    }
+
+    /** Tests the panorama targets of GyroFusion.
+     */
+    @Test
+    public void testGyroFusionTargets() {
+        Log.d(TAG, "testGyroFusionTargets");
+
+        final int [] achieved = new int[]{-1};
+        final int [] n_too_far = new int[]{0};
+        GyroFusion.TargetCallback callback = new GyroFusion.TargetCallback() {
+            @Override
+            public void onAchieved(int indx) {
+                if( achieved[0] == -1 )
+                    achieved[0] = indx;
+            }
+
+            @Override
+            public void onTooFar() {
+                n_too_far[0]++;
+            }
+        };
+
+        // rotating to the right by 90 degrees per second points at (1, 0, 0) after 1 second; the
+        // target to the left should never be achieved
+        final float target_angle = (float)Math.toRadians(1.0);
+        final float upright_angle_tol = (float)Math.toRadians(2.0);
+        final float too_far_angle = (float)Math.toRadians(135.0);
+        final int n = 241;
+        GyroFusion fusion = new GyroFusion();
+        fusion.setTarget(1.0f, 0.0f, 0.0f, target_angle, upright_angle_tol, too_far_angle, callback);
+        fusion.addTarget(-1.0f, 0.0f, 0.0f);
+        long [] timestamps = createGyroTimestamps(n, 200.0f);
+        float [] values = createGyroValues(n, 0.0f, (float)(-0.5*Math.PI), 0.0f);
+        for(int i=0;i<n && achieved[0]==-1;i++) {
+            fusion.onGyroscope(timestamps[i], values[3*i], values[3*i+1], values[3*i+2]);
+            assertEquals(0, fusion.isUpright());
+        }
+        assertEquals(0, achieved[0]);
+        assertTrue(fusion.isTargetAchieved());
+        assertEquals(0, n_too_far[0]);
+
+        // now we are too far from both targets
+        fusion.setTarget(-1.0f, 0.0f, 0.0f, target_angle, upright_angle_tol, (float)Math.toRadians(45.0), callback);
+        fusion.addTarget(0.0f, 0.0f, 1.0f);
+        fusion.onGyroscope(timestamps[n-1] + 5000000L, 0.0f, 0.0f, 0.0f);
+        assertFalse(fusion.isTargetAchieved());
+        assertEquals(1, n_too_far[0]);
+
+        // rolling the device means it's no longer upright
+        fusion = new GyroFusion();
+        fusion.setTarget(0.0f, 0.0f, -1.0f, target_angle, upright_angle_tol, too_far_angle, callback);
+        timestamps = createGyroTimestamps(21, 200.0f);
+        values = createGyroValues(21, 0.0f, 0.0f, 1.0f);
+        replayGyroStream(fusion, timestamps, values, null);
+        assertTrue(fusion.isUpright() != 0);
+        assertFalse(fusion.isTargetAchieved());
+
+        // capacity of the target table
+        fusion.clearTarget();
+        fusion.setTarget(0.0f, 0.0f, -1.0f, target_angle, upright_angle_tol, too_far_angle, callback);
+        for(int i=1;i<GyroFusion.max_targets_c;i++) {
+            fusion.addTarget(0.0f, 0.0f, -1.0f);
+        }
+        try {
+            fusion.addTarget(0.0f, 0.0f, -1.0f);
+            fail();
+        }
+        catch(RuntimeException e) {
+            // expected
+        }
+    }
+
+    /** Tests that FeatureMatcher.findCandidates() with an expected offset finds the same candidates
+     *  as comparing every pair of features.
+     */
+    @Test
+    public void testFeatureMatcherCandidatesOffset() {
+        Log.d(TAG, "testFeatureMatcherCandidatesOffset");
+
+        final int width = 640, height = 480;
+        final int n0 = 300, n1 = 250;
+        final int max_dist_x = width/4, max_dist_y = height/24;
+        final int [][] offsets = {{0, 0}, {-120, 25}, {200, -40}, {-600, -470}, {0, 500}};
+        Random random = new Random(0);
+        int [] xs0 = new int[n0], ys0 = new int[n0];
+        int [] xs1 = new int[n1], ys1 = new int[n1];
+        for(int i=0;i<n0;i++) {
+            xs0[i] = random.nextInt(width);
+            ys0[i] = random.nextInt(height);
+        }
+        for(int i=0;i<n1;i++) {
+            xs1[i] = random.nextInt(width);
+            ys1[i] = random.nextInt(height);
+        }
+
+        for(int [] offset : offsets) {
+            Log.d(TAG, "offset: " + offset[0] + " , " + offset[1]);
+            FeatureMatcher.Candidates candidates = FeatureMatcher.findCandidates(xs0, ys0, xs1, ys1, offset[0], offset[1], max_dist_x, max_dist_y);
+            int count = 0;
+            for(int i=0;i<n0;i++) {
+                List<Integer> expected = new ArrayList<>();
+                for(int j=0;j<n1;j++) {
+                    if( Math.abs(xs1[j]-xs0[i]-offset[0]) < max_dist_x && Math.abs(ys1[j]-ys0[i]-offset[1]) < max_dist_y ) {
+                        expected.add(j);
+                    }
+                }
+                List<Integer> found = new ArrayList<>();
+                for(int k=candidates.corner_start[i];k<candidates.corner_start[i+1];k++) {
+                    assertEquals(i, candidates.index0[k]);
+                    found.add(candidates.index1[k]);
+                }
+                Collections.sort(found);
+                assertEquals(expected, found);
+                count += expected.size();
+            }
+            assertEquals(count, candidates.size);
+        }
+    }
+
+    /** Returns the row major matrix for a rotation by angle (in radians) about the supplied axis
+     *  (0 for x, 1 for y, 2 for z).
+     */
+    private static float [] createRotationMatrix(int axis, double angle) {
+        float c = (float)Math.cos(angle);
+        float s = (float)Math.sin(angle);
+        switch( axis ) {
+            case 0:
+                return new float[]{1, 0, 0, 0, c, -s, 0, s, c};
+            case 1:
+                return new float[]{c, 0, s, 0, 1, 0, -s, 0, c};
+            default:
+                return new float[]{c, -s, 0, s, c, 0, 0, 0, 1};
+        }
+    }
+
+    private static float [] multiplyMatrices(float [] a, float [] b) {
+        float [] result = new float[9];
+        for(int i=0;i<3;i++) {
+            for(int j=0;j<3;j++) {
+                for(int k=0;k<3;k++) {
+                    result[i*3+j] += a[i*3+k] * b[k*3+j];
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Tests the offsets predicted by GyroAlignmentPrior for rotations between frames.
+     */
+    @Test
+    public void testGyroAlignmentPrior() {
+        Log.d(TAG, "testGyroAlignmentPrior");
+
+        final float focal_length = GyroAlignmentPrior.getFocalLength(1000, 2.0*Math.atan(0.5));
+        assertEquals(1000.0f, focal_length, 1.0e-2f);
+        final float [] identity = createRotationMatrix(0, 0.0);
+        float [] result = new float[2];
+
+        assertTrue(GyroAlignmentPrior.predictOffset(identity, identity, focal_length, result));
+        assertEquals(0.0f, result[0], 1.0e-3f);
+        assertEquals(0.0f, result[1], 1.0e-3f);
+
+        // whatever the orientation of the first frame, turning right by 20 degrees should move the
+        // centre of the second frame to the right
+        final double yaw = Math.toRadians(20.0);
+        final float expected_x = (float)(focal_length * Math.tan(yaw));
+        float [][] refs = {
+                identity,
+                createRotationMatrix(2, Math.toRadians(90.0)),
+                multiplyMatrices(createRotationMatrix(0, Math.toRadians(30.0)), createRotationMatrix(1, Math.toRadians(-70.0)))
+        };
+        for(float [] ref : refs) {
+            float [] matrix = multiplyMatrices(ref, createRotationMatrix(1, -yaw));
+            assertTrue(GyroAlignmentPrior.predictOffset(ref, matrix, focal_length, result));
+            Log.d(TAG, "result: " + result[0] + " , " + result[1]);
+            assertEquals(expected_x, result[0], 1.0e-2f);
+            assertEquals(0.0f, result[1], 1.0e-2f);
+        }
+
+        // tilting up should move the centre of the second frame up, i.e., negative y
+        final double pitch = Math.toRadians(5.0);
+        assertTrue(GyroAlignmentPrior.predictOffset(identity, createRotationMatrix(0, pitch), focal_length, result));
+        assertEquals(0.0f, result[0], 1.0e-2f);
+        assertEquals((float)(-focal_length * Math.tan(pitch)), result[1], 1.0e-2f);
+
+        // no prediction if the frames are too far apart
+        assertFalse(GyroAlignmentPrior.predictOffset(identity, createRotationMatrix(1, Math.toRadians(75.0)), focal_length, result));
+        assertFalse(GyroAlignmentPrior.predictOffset(identity, createRotationMatrix(1, Math.toRadians(180.0)), focal_length, result));
+    }
+
+    /** Asserts that each colour channel of the supplied ARGB pixels differ by at most max_diff.
+     */
+    private static void assertPixelsClose(String message, int expected, int actual, int max_diff) {
+        for(int shift=0;shift<=16;shift+=8) {
+            int expected_c = (expected >> shift) & 0xff;
+            int actual_c = (actual >> shift) & 0xff;
+            if( Math.abs(expected_c - actual_c) > max_diff ) {
+                fail(message + ": expected " + Integer.toHexString(expected) + " actual " + Integer.toHexString(actual));
+            }
+        }
+    }
+
+    /** Golden test for TonemapLUT: HDR merging with the lookup table should be within one code
+     *  value of the floating point tonemapping, for all algorithms, and for a range of maximum HDR
+     *  values.
+     */
+    @Test
+    public void testTonemapLUT() {
+        Log.d(TAG, "testTonemapLUT");
+
+        final int width = 128, height = 64;
+        final int n_bitmaps = 3;
+        Random random = new Random(0);
+        int [][] images = new int[n_bitmaps][width*height];
+        for(int i=0;i<n_bitmaps;i++) {
+            for(int j=0;j<width*height;j++) {
+                images[i][j] = 0xff000000 | (random.nextInt() & 0xffffff);
+            }
+        }
+        final float [][] parameter_As = {{1.5f, 1.0f, 0.7f}, {4.0f, 1.0f, 0.25f}, {16.0f, 1.0f, 1.0f/16.0f}};
+        final int [] algorithms = {HDRMergeEngine.tonemap_algorithm_clamp_c, HDRMergeEngine.tonemap_algorithm_exponential_c,
+                HDRMergeEngine.tonemap_algorithm_reinhard_c, HDRMergeEngine.tonemap_algorithm_filmic_c, HDRMergeEngine.tonemap_algorithm_aces_c};
+        HDRMergeEngine engine = new HDRMergeEngine();
+        for(float [] parameter_A : parameter_As) {
+            float [] parameter_B = new float[n_bitmaps];
+            float max_value = parameter_A[0] * 255.0f;
+            for(int algorithm : algorithms) {
+                Log.d(TAG, "max_value " + max_value + " algorithm " + algorithm);
+                // parameters as set by HDRProcessor.computeTonemapSettings()
+                HDRMergeEngine.TonemapSettings settings = new HDRMergeEngine.TonemapSettings(algorithm);
+                final float tonemap_scale = 255.0f;
+                settings.setTonemapScale(tonemap_scale);
+                if( algorithm == HDRMergeEngine.tonemap_algorithm_exponential_c )
+                    settings.setLinearScale((float)(1.0 / (1.0 - Math.exp(-HDRMergeEngine.exposure_c * max_value / 255.0))));
+                else if( algorithm == HDRMergeEngine.tonemap_algorithm_reinhard_c )
+                    settings.setLinearScale((max_value + tonemap_scale) / max_value);
+                else if( algorithm == HDRMergeEngine.tonemap_algorithm_filmic_c )
+                    settings.setW(HDRMergeEngine.filmic_exposure_bias_c * max_value);
+
+                int [] expected = new int[width*height];
+                engine.mergeRows(new HDRMergeEngine.Band(images, new int[n_bitmaps]), 1, width, height, 0, height, new int[n_bitmaps], new int[n_bitmaps], parameter_A, parameter_B, settings, expected);
+
+                TonemapLUT lut = new TonemapLUT(settings, max_value);
+                assertTrue(lut.getSize() >= TonemapLUT.default_size_c);
+                assertEquals(algorithm == HDRMergeEngine.tonemap_algorithm_reinhard_c, lut.isPerValue());
+                settings.setLUT(lut);
+                int [] output = new int[width*height];
+                engine.mergeRows(new HDRMergeEngine.Band(images, new int[n_bitmaps]), 1, width, height, 0, height, new int[n_bitmaps], new int[n_bitmaps], parameter_A, parameter_B, settings, output);
+
+                int n_exact = 0;
+                for(int i=0;i<width*height;i++) {
+                    assertPixelsClose("max_value " + max_value + " algorithm " + algorithm + " pixel " + i, expected[i], output[i], 1);
+                    if( expected[i] == output[i] )
+                        n_exact++;
+                }
+                Log.d(TAG, "    exact: " + n_exact + " of " + width*height);
+            }
+        }
+    }
+
+    /** Floating point implementation of the histogram_adjust kernel in histogram_adjust.rs, used
+     *  as the reference for testContrastEnhancementLUT().
+     */
+    private static int histogramAdjustReference(int pixel, int x, int y, int width, int height, int [] c_histogram, int n_tiles, float hdr_alpha) {
+        int in_r = (pixel >> 16) & 0xff;
+        int in_g = (pixel >> 8) & 0xff;
+        int in_b = pixel & 0xff;
+        int value = Math.max(in_r, Math.max(in_g, in_b));
+        float tx = ((float)x*n_tiles)/(float)width - 0.5f;
+        float ty = ((float)y*n_tiles)/(float)height - 0.5f;
+        int ix = (int)Math.floor(tx);
+        int iy = (int)Math.floor(ty);
+        int equal_value;
+        if( ix >= 0 && ix < n_tiles-1 && iy >= 0 && iy < n_tiles-1 ) {
+            float alpha = tx - ix;
+            float beta = ty - iy;
+            float equal_value0 = (1.0f-alpha)*getEqualValueReference(c_histogram, 256*(ix*n_tiles+iy), value) + alpha*getEqualValueReference(c_histogram, 256*((ix+1)*n_tiles+iy), value);
+            float equal_value1 = (1.0f-alpha)*getEqualValueReference(c_histogram, 256*(ix*n_tiles+iy+1), value) + alpha*getEqualValueReference(c_histogram, 256*((ix+1)*n_tiles+iy+1), value);
+            equal_value = (int)((1.0f-beta)*equal_value0 + beta*equal_value1);
+        }
+        else if( ix >= 0 && ix < n_tiles-1 ) {
+            int this_y = (iy<0) ? iy+1 : iy;
+            float alpha = tx - ix;
+            equal_value = (int)((1.0f-alpha)*getEqualValueReference(c_histogram, 256*(ix*n_tiles+this_y), value) + alpha*getEqualValueReference(c_histogram, 256*((ix+1)*n_tiles+this_y), value));
+        }
+        else if( iy >= 0 && iy < n_tiles-1 ) {
+            int this_x = (ix<0) ? ix+1 : ix;
+            float beta = ty - iy;
+            equal_value = (int)((1.0f-beta)*getEqualValueReference(c_histogram, 256*(this_x*n_tiles+iy), value) + beta*getEqualValueReference(c_histogram, 256*(this_x*n_tiles+iy+1), value));
+        }
+        else {
+            int this_x = (ix<0) ? ix+1 : ix;
+            int this_y = (iy<0) ? iy+1 : iy;
+            equal_value = getEqualValueReference(c_histogram, 256*(this_x*n_tiles+this_y), value);
+        }
+        int new_value = (int)( (1.0f-hdr_alpha) * value + hdr_alpha * equal_value );
+        float scale = ((float)new_value) / (float)value;
+        int r = Math.min(255, (int)(in_r * scale + 0.5f));
+        int g = Math.min(255, (int)(in_g * scale + 0.5f));
+        int b = Math.min(255, (int)(in_b * scale + 0.5f));
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int getEqualValueReference(int [] c_histogram, int histogram_offset, int value) {
+        int cdf_v = c_histogram[histogram_offset+value];
+        int cdf_0 = c_histogram[histogram_offset];
+        int n_pixels = c_histogram[histogram_offset+255];
+        float num = (float)(cdf_v - cdf_0);
+        float den = (float)(n_pixels - cdf_0);
+        return (int)( 255.0f * (num/den) );
+    }
+
+    /** Golden test for TonemapLUT.contrastEnhance(): the local contrast enhancement with the
+     *  lookup tables should be within one code value of the floating point histogram_adjust
+     *  kernel.
+     */
+    @Test
+    public void testContrastEnhancementLUT() {
+        Log.d(TAG, "testContrastEnhancementLUT");
+
+        final int width = 97, height = 61;
+        final int n_tiles = 4;
+        Random random = new Random(0);
+        int [] image = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                // a gradient plus noise, so the tiles have different histograms; avoid black pixels,
+                // for which the reference divides by zero
+                int base = 1 + (150*x)/width + (100*y)/height;
+                int r = Math.min(255, base + random.nextInt(5));
+                int g = Math.min(255, base/2 + random.nextInt(40));
+                int b = Math.min(255, random.nextInt(base+1));
+                image[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        // cumulative histograms of each tile, tiled as in HDRProcessor.adjustHistogram()
+        int [] c_histogram = new int[n_tiles*n_tiles*256];
+        for(int i=0;i<n_tiles;i++) {
+            int start_x = (int)(((double)i)/(double)n_tiles * width);
+            int stop_x = (int)(((double)i+1.0)/(double)n_tiles * width);
+            for(int j=0;j<n_tiles;j++) {
+                int start_y = (int)(((double)j)/(double)n_tiles * height);
+                int stop_y = (int)(((double)j+1.0)/(double)n_tiles * height);
+                int histogram_offset = 256*(i*n_tiles+j);
+                for(int y=start_y;y<stop_y;y++) {
+                    for(int x=start_x;x<stop_x;x++) {
+                        int pixel = image[y*width+x];
+                        int value = Math.max((pixel >> 16) & 0xff, Math.max((pixel >> 8) & 0xff, pixel & 0xff));
+                        c_histogram[histogram_offset+value]++;
+                    }
+                }
+                for(int v=1;v<256;v++) {
+                    c_histogram[histogram_offset+v] += c_histogram[histogram_offset+v-1];
+                }
+            }
+        }
+
+        final float [] hdr_alphas = {0.0f, 0.25f, 0.5f, 1.0f};
+        for(float hdr_alpha : hdr_alphas) {
+            float [] tables = TonemapLUT.createContrastEnhancementTables(c_histogram, n_tiles, hdr_alpha);
+            for(int y=0;y<height;y++) {
+                for(int x=0;x<width;x++) {
+                    int pixel = image[y*width+x];
+                    int expected = histogramAdjustReference(pixel, x, y, width, height, c_histogram, n_tiles, hdr_alpha);
+                    int actual = TonemapLUT.contrastEnhance(pixel, x, y, width, height, tables, n_tiles);
+                    assertPixelsClose("hdr_alpha " + hdr_alpha + " pixel " + x + " , " + y, expected, actual, 1);
+                    if( hdr_alpha == 0.0f ) {
+                        assertEquals(pixel, actual);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Golden test for TonemapLUT.createBrightenScales() and TonemapLUT.brighten(): checks against
+     *  output values of the dro_brighten kernel in avg_brighten.rs, worked out by hand for each
+     *  region of the piecewise function.
+     */
+    @Test
+    public void testBrightenLUT() {
+        Log.d(TAG, "testBrightenLUT");
+
+        // gain 1, gamma 1 with low_x = mid_x = 0 and max_x = 255 is the identity
+        float [] scales = TonemapLUT.createBrightenScales(1.0f, 1.0f, 0.0f, 0.0f, 255.0f);
+        assertEquals(256, scales.length);
+        for(int value=1;value<256;value++) {
+            assertEquals(1.0f, scales[value], 1.0e-5f);
+        }
+        assertEquals(0xffc86432, TonemapLUT.brighten(0xffc86432, scales));
+
+        // gain 2, gamma 0.5, low_x 20, mid_x 60, max_x 240:
+        // gain_A = (2*60 - 20)/(60 - 20) = 2.5, gain_B = 20*60*(1 - 2)/(60 - 20) = -30
+        scales = TonemapLUT.createBrightenScales(2.0f, 0.5f, 20.0f, 60.0f, 240.0f);
+        // value <= low_x: unchanged
+        assertEquals(1.0f, scales[10], 1.0e-5f);
+        assertEquals(1.0f, scales[20], 1.0e-5f);
+        assertEquals(0xff0a0500, TonemapLUT.brighten(0xff0a0500, scales)); // (10, 5, 0)
+        // low_x < value <= mid_x: scale = 2.5 - 30/value
+        assertEquals(1.5f, scales[30], 1.0e-5f);
+        assertEquals(1.75f, scales[40], 1.0e-5f);
+        assertEquals(2.0f, scales[60], 1.0e-5f); // so mid_x maps to gain*mid_x
+        assertEquals(0xff2d2d2d, TonemapLUT.brighten(0xff1e1e1e, scales)); // (30, 30, 30) -> (45, 45, 45)
+        assertEquals(0xff46230e, TonemapLUT.brighten(0xff281408, scales)); // (40, 20, 8) -> (70, 35, 14)
+        assertEquals(0xff783c06, TonemapLUT.brighten(0xff3c1e03, scales)); // (60, 30, 3) -> (120, 60, 6)
+        // value > mid_x: new value = (value/240)^0.5 * 255
+        // 135: sqrt(0.5625) * 255 = 191.25, scale 1.41667
+        assertEquals(191.25f/135.0f, scales[135], 1.0e-5f);
+        assertEquals(0xffbf9926, TonemapLUT.brighten(0xff876c1b, scales)); // (135, 108, 27) -> (191, 153, 38)
+        // 240: maps to 255, scale 1.0625
+        assertEquals(1.0625f, scales[240], 1.0e-5f);
+        assertEquals(0xffff8011, TonemapLUT.brighten(0xfff07810, scales)); // (240, 120, 16) -> (255, 128, 17)
+        // 255: beyond max_x, so scale 1.03078 and the max component is clamped
+        assertEquals(0xffff6700, TonemapLUT.brighten(0xffff6400, scales)); // (255, 100, 0) -> (255, 103, 0)
+        // the max component selects the scale, whichever channel it's in
+        assertEquals(0xff0e2346, TonemapLUT.brighten(0xff081428, scales)); // (8, 20, 40) -> (14, 35, 70)
+    }
+
+    /** Tests the crop region computed by AutoStabiliseCrop.
+     */
+    @Test
+    public void testAutoStabiliseCrop() {
+        Log.d(TAG, "testAutoStabiliseCrop");
+
+        final int w1 = 4000, h1 = 3000;
+        int [] crop = new int[2];
+
+        // no rotation
+        assertTrue(AutoStabiliseCrop.computeCrop(crop, 0.0, w1, h1, w1, h1, w1, h1));
+        assertEquals(w1, crop[0]);
+        assertEquals(h1, crop[1]);
+
+        for(int angle=1;angle<=45;angle++) {
+            double level_angle_rad_abs = Math.toRadians(angle);
+            double cos_theta = Math.cos(level_angle_rad_abs);
+            double sin_theta = Math.sin(level_angle_rad_abs);
+            // as ImageSaver.autoStabilise()
+            double w0 = w1 * cos_theta + h1 * sin_theta;
+            double h0 = w1 * sin_theta + h1 * cos_theta;
+            assertTrue(AutoStabiliseCrop.computeCrop(crop, level_angle_rad_abs, w0, h0, w1, h1, (int)w0, (int)h0));
+            int w2 = crop[0];
+            int h2 = crop[1];
+            assertTrue(w2 > 0 && w2 < w1);
+            assertTrue(h2 > 0 && h2 < h1);
+            // the crop should keep the aspect ratio of the rotated image
+            assertEquals(w0/h0, ((double)w2)/(double)h2, 0.01);
+            // and the corners of the crop should be within the rotated original image
+            for(int sign=-1;sign<=1;sign+=2) {
+                double cx = 0.5*w2;
+                double cy = sign*0.5*h2;
+                double rx = cx * cos_theta + cy * sin_theta;
+                double ry = -cx * sin_theta + cy * cos_theta;
+                assertTrue(Math.abs(rx) <= 0.5*w1 + 1.0);
+                assertTrue(Math.abs(ry) <= 0.5*h1 + 1.0);
+            }
+        }
+
+        // the crop is limited to the maximum size
+        assertTrue(AutoStabiliseCrop.computeCrop(crop, 0.0, w1, h1, w1, h1, w1/2, h1/4));
+        assertEquals(w1/2, crop[0]);
+        assertEquals(h1/4, crop[1]);
+    }
 }
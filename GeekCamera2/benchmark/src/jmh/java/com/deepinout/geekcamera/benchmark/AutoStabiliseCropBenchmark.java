@@ -0,0 +1,64 @@
+package com.deepinout.geekcamera.benchmark;
+
+import com.deepinout.geekcamera.AutoStabiliseCrop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks AutoStabiliseCrop, as used by ImageSaver.autoStabilise() for photos, and by
+ *  DrawPreview for the auto-level crop guide (which is computed for every preview frame). A sweep
+ *  of angles is used, as the level angle changes from frame to frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AutoStabiliseCropBenchmark {
+    private static final int n_angles_c = 90; // from 0 to 44.5 degrees
+
+    @Param({"12MP", "48MP"})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private double [] angles;
+    private double [] rotated_widths;
+    private double [] rotated_heights;
+    private final int [] crop = new int[2];
+
+    @Setup
+    public void setup() {
+        int [] size = BenchmarkUtils.getResolution(resolution);
+        width = size[0];
+        height = size[1];
+        angles = new double[n_angles_c];
+        rotated_widths = new double[n_angles_c];
+        rotated_heights = new double[n_angles_c];
+        for(int i=0;i<n_angles_c;i++) {
+            double angle = Math.toRadians(0.5*i);
+            angles[i] = angle;
+            // as ImageSaver.autoStabilise()
+            rotated_widths[i] = width * Math.cos(angle) + height * Math.sin(angle);
+            rotated_heights[i] = width * Math.sin(angle) + height * Math.cos(angle);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(n_angles_c)
+    public void computeCrop(Blackhole blackhole) {
+        for(int i=0;i<n_angles_c;i++) {
+            blackhole.consume(AutoStabiliseCrop.computeCrop(crop, angles[i], rotated_widths[i], rotated_heights[i], width, height, (int)rotated_widths[i], (int)rotated_heights[i]));
+            blackhole.consume(crop[0]);
+            blackhole.consume(crop[1]);
+        }
+    }
+}
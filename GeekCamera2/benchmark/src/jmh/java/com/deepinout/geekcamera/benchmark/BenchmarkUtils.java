@@ -0,0 +1,42 @@
+package com.deepinout.geekcamera.benchmark;
+
+import java.util.Random;
+
+/** Helpers for creating synthetic input data for the benchmarks.
+ */
+class BenchmarkUtils {
+    /** Returns the {width, height} for the supplied resolution name, at 4:3 aspect ratio.
+     */
+    static int [] getResolution(String resolution) {
+        switch( resolution ) {
+            case "12MP":
+                return new int[]{4000, 3000};
+            case "48MP":
+                return new int[]{8000, 6000};
+            default:
+                throw new IllegalArgumentException("unknown resolution: " + resolution);
+        }
+    }
+
+    /** Creates ARGB pixels with smooth gradients plus noise, so that pixels aren't all in the same
+     *  branch of the kernels being benchmarked.
+     * @param scale Multiplier for the brightness, to simulate different exposures.
+     */
+    static int [] createSyntheticPixels(Random random, int width, int height, float scale) {
+        int [] pixels = new int[width*height];
+        for(int y=0;y<height;y++) {
+            for(int x=0;x<width;x++) {
+                int base = (int)(255.0f * x / width);
+                int r = clamp((int)(scale * (base + random.nextInt(16))));
+                int g = clamp((int)(scale * ((base + y) % 256)));
+                int b = clamp((int)(scale * (255 - base)));
+                pixels[y*width+x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
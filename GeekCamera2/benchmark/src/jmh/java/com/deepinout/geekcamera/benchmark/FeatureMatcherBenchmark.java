@@ -0,0 +1,102 @@
+package com.deepinout.geekcamera.benchmark;
+
+import com.deepinout.geekcamera.FeatureMatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks the feature matching done by PanoramaProcessor.autoAlignmentByFeature(): finding
+ *  candidate matches, computing the distances between them, and choosing the matches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FeatureMatcherBenchmark {
+    private static final int feature_descriptor_radius_c = 3; // should match PanoramaProcessor
+
+    private static final int width_c = 1024; // panorama alignment is done on scaled down images
+    private static final int height_c = 768;
+
+    @Param({"200", "2000", "5000"})
+    public int n_corners;
+
+    @Param({"16"}) // average number of candidate matches for each corner
+    public int n_candidates;
+
+    private int wid2;
+    private int [] pixels0;
+    private int [] pixels1;
+    private int [] match_index0;
+    private int [] match_index1;
+    private float [] distances;
+    private int [] xs0, ys0, xs1, ys1;
+    private FeatureMatcher.Candidates candidates;
+
+    @Setup
+    public void setup() {
+        final int wid = 2*feature_descriptor_radius_c+1;
+        wid2 = wid*wid;
+        Random random = new Random(0);
+        pixels0 = new int[n_corners*wid2];
+        pixels1 = new int[n_corners*wid2];
+        for(int i=0;i<n_corners*wid2;i++) {
+            pixels0[i] = random.nextInt(256);
+            pixels1[i] = random.nextInt(256);
+        }
+        int n_matches = n_corners*n_candidates;
+        match_index0 = new int[n_matches];
+        match_index1 = new int[n_matches];
+        for(int i=0;i<n_matches;i++) {
+            match_index0[i] = i/n_candidates;
+            match_index1[i] = random.nextInt(n_corners);
+        }
+        distances = new float[n_matches];
+
+        xs0 = new int[n_corners];
+        ys0 = new int[n_corners];
+        xs1 = new int[n_corners];
+        ys1 = new int[n_corners];
+        for(int i=0;i<n_corners;i++) {
+            xs0[i] = random.nextInt(width_c);
+            ys0[i] = random.nextInt(height_c);
+            xs1[i] = random.nextInt(width_c);
+            ys1[i] = random.nextInt(height_c);
+        }
+        candidates = FeatureMatcher.findCandidates(xs0, ys0, xs1, ys1, width_c, height_c/16);
+        FeatureMatcher.computeDistances(candidates, 0, candidates.size, pixels0, pixels1, wid2);
+    }
+
+    @Benchmark
+    public float[] computeDistances() {
+        for(int i=0;i<match_index0.length;i++) {
+            distances[i] = FeatureMatcher.computeDistance(pixels0, match_index0[i]*wid2, pixels1, match_index1[i]*wid2, wid2);
+        }
+        return distances;
+    }
+
+    @Benchmark
+    public FeatureMatcher.Candidates computeDistancesParallel() {
+        FeatureMatcher.computeDistancesParallel(ForkJoinPool.commonPool(), candidates, pixels0, pixels1, wid2);
+        return candidates;
+    }
+
+    @Benchmark
+    public FeatureMatcher.Candidates findCandidates() {
+        return FeatureMatcher.findCandidates(xs0, ys0, xs1, ys1, width_c, height_c/16);
+    }
+
+    @Benchmark
+    public FeatureMatcher.Matches selectMatches() {
+        return FeatureMatcher.selectMatches(candidates, n_corners, n_corners, 8, 0.8f);
+    }
+}
@@ -0,0 +1,99 @@
+package com.deepinout.geekcamera.benchmark;
+
+import com.deepinout.geekcamera.GyroFusion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks replaying a stream of sensor events through GyroFusion, as GyroSensor does whilst
+ *  taking a panorama: a slow sweep about the vertical axis with hand shake, with gyroscope and
+ *  accelerometer events interleaved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GyroFusionBenchmark {
+    private static final float sensor_rate_c = 200.0f; // events per second for each sensor, as for SENSOR_DELAY_GAME
+    private static final float duration_c = 10.0f; // in seconds
+
+    // as MyApplicationInterface.setNextPanoramaPoint()
+    private static final float target_angle_c = 1.0f * 0.01745329252f;
+    private static final float upright_angle_tol_c = 2.0f * 0.017452406437f;
+    private static final float too_far_angle_c = 45.0f * 0.01745329252f;
+
+    @Param({"false", "true"})
+    public boolean with_targets;
+
+    private long [] timestamps;
+    private float [] gyro_values;
+    private float [] accel_values;
+    private GyroFusion fusion;
+    private final float [] matrix = new float[9];
+
+    private final GyroFusion.TargetCallback target_callback = new GyroFusion.TargetCallback() {
+        @Override
+        public void onAchieved(int indx) {
+        }
+
+        @Override
+        public void onTooFar() {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        final int n_events = (int)(sensor_rate_c * duration_c);
+        Random random = new Random(0);
+        timestamps = new long[n_events];
+        gyro_values = new float[3*n_events];
+        accel_values = new float[3*n_events];
+        long timestamp = 1000000000L;
+        for(int i=0;i<n_events;i++) {
+            // jitter the event times, as real sensor streams aren't exactly periodic
+            timestamp += (long)(1.0e9f/sensor_rate_c * (0.9f + 0.2f*random.nextFloat()));
+            timestamps[i] = timestamp;
+            // sweep at about 20 degrees per second about the y axis, plus hand shake
+            gyro_values[3*i] = (float)(random.nextGaussian() * 0.05);
+            gyro_values[3*i+1] = 0.35f + (float)(random.nextGaussian() * 0.05);
+            gyro_values[3*i+2] = (float)(random.nextGaussian() * 0.05);
+            accel_values[3*i] = (float)(random.nextGaussian() * 0.2);
+            accel_values[3*i+1] = 9.81f + (float)(random.nextGaussian() * 0.2);
+            accel_values[3*i+2] = (float)(random.nextGaussian() * 0.2);
+        }
+        fusion = new GyroFusion();
+    }
+
+    @Benchmark
+    public void replay(Blackhole blackhole) {
+        // as GyroSensor.startRecording()
+        fusion.resetSensorValues();
+        fusion.resetTimestamp();
+        fusion.setToIdentity();
+        if( with_targets ) {
+            // targets for the second picture of a panorama, to the right and to the left
+            float angle = 0.5f*(float)Math.toRadians(50.0f);
+            fusion.setTarget((float)Math.sin(angle), 0.0f, (float)-Math.cos(angle), target_angle_c, upright_angle_tol_c, too_far_angle_c, target_callback);
+            fusion.addTarget((float)Math.sin(-angle), 0.0f, (float)-Math.cos(-angle));
+        }
+        else {
+            fusion.clearTarget();
+        }
+        for(int i=0;i<timestamps.length;i++) {
+            fusion.onGyroscope(timestamps[i], gyro_values[3*i], gyro_values[3*i+1], gyro_values[3*i+2]);
+            fusion.onAccelerometer(accel_values[3*i], accel_values[3*i+1], accel_values[3*i+2]);
+        }
+        fusion.getRotationMatrix(matrix);
+        blackhole.consume(matrix);
+        blackhole.consume(fusion.isUpright());
+    }
+}
@@ -0,0 +1,88 @@
+package com.deepinout.geekcamera.benchmark;
+
+import com.deepinout.geekcamera.HDRCalibration;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks the sampling done by HDRProcessor.createFunctionFromBitmaps() (sampling the
+ *  response between two exposures, then fitting the response function) and
+ *  HDRProcessor.computeMedianLuminance() (sampling the luminance histogram).
+ *  The rows are read from a synthetic band of pixels that is repeated down the frame, so that we
+ *  don't need to hold full size 48MP frames in memory; as with Bitmap.getPixels(), each row read
+ *  is a bulk copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HDRCalibrationBenchmark {
+    private static final int band_height_c = 64;
+    private static final int n_luminance_samples_c = 100; // should match HDRProcessor
+
+    @Param({"12MP", "48MP"})
+    public String resolution;
+
+    @Param({"100", "2500"}) // HDRProcessor uses 2500 for the response functions, previously 100
+    public int n_response_samples;
+
+    private int width;
+    private int height;
+    private HDRCalibration.PixelSource in_source;
+    private HDRCalibration.PixelSource out_source;
+    private HDRCalibration response_calibration;
+    private HDRCalibration luminance_calibration;
+    private int [] histo;
+
+    /** Returns a PixelSource for a frame of the current width, that repeats the supplied band.
+     */
+    private HDRCalibration.PixelSource createPixelSource(final int [] band_pixels) {
+        return new HDRCalibration.PixelSource() {
+            @Override
+            public void getRow(int [] pixels, int x, int y, int row_width) {
+                System.arraycopy(band_pixels, (y % band_height_c)*width + x, pixels, 0, row_width);
+            }
+        };
+    }
+
+    @Setup
+    public void setup() {
+        int [] size = BenchmarkUtils.getResolution(resolution);
+        width = size[0];
+        height = size[1];
+        Random random = new Random(0);
+        // exposures 2 stops apart
+        in_source = createPixelSource(BenchmarkUtils.createSyntheticPixels(random, width, band_height_c, 0.25f));
+        out_source = createPixelSource(BenchmarkUtils.createSyntheticPixels(random, width, band_height_c, 1.0f));
+        response_calibration = new HDRCalibration(n_response_samples);
+        luminance_calibration = new HDRCalibration(n_luminance_samples_c);
+        histo = new int[256];
+    }
+
+    @Benchmark
+    public void createResponseFunction(Blackhole blackhole) {
+        // typical small offset from hand shake
+        response_calibration.sampleResponse(in_source, out_source, width, height, 3, -2);
+        blackhole.consume(response_calibration.fit());
+        blackhole.consume(response_calibration.getParameterA());
+        blackhole.consume(response_calibration.getParameterB());
+    }
+
+    @Benchmark
+    public int sampleLuminanceHistogram() {
+        // region as used for the MTB alignment, the central half of the image
+        for(int i=0;i<histo.length;i++) {
+            histo[i] = 0;
+        }
+        return luminance_calibration.sampleLuminanceHistogram(out_source, width/4, height/4, width/2, height/2, histo);
+    }
+}
@@ -0,0 +1,98 @@
+package com.deepinout.geekcamera.benchmark;
+
+import com.deepinout.geekcamera.HDRMergeEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks merging a full frame with HDRMergeEngine, processing the image in bands as done by
+ *  HDRProcessor.processHDRCoreCPU(). The same synthetic band of pixels is used for every band of
+ *  the frame, so that we don't need to hold full size 48MP frames in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HDRMergeEngineBenchmark {
+    private static final int band_height_c = 128; // should match HDRProcessor.processHDRCoreCPU()
+
+    @Param({"12MP", "48MP"})
+    public String resolution;
+
+    @Param({"3", "5"})
+    public int n_bitmaps;
+
+    @Param({"2"}) // HDRMergeEngine.tonemap_algorithm_reinhard_c
+    public int tonemap_algorithm;
+
+    private int width;
+    private int height;
+    private int base_bitmap;
+    private int [] offsets_x;
+    private int [] offsets_y;
+    private float [] parameter_A;
+    private float [] parameter_B;
+    private int [][] band_pixels;
+    private int [] band_y0;
+    private int [] output;
+    private HDRMergeEngine engine;
+    private HDRMergeEngine.TonemapSettings settings;
+
+    @Setup
+    public void setup() {
+        int [] size = BenchmarkUtils.getResolution(resolution);
+        width = size[0];
+        height = size[1];
+        base_bitmap = n_bitmaps % 2 == 0 ? n_bitmaps/2 : (n_bitmaps - 1) / 2;
+
+        offsets_x = new int[n_bitmaps];
+        offsets_y = new int[n_bitmaps];
+        parameter_A = new float[n_bitmaps];
+        parameter_B = new float[n_bitmaps];
+        int max_offset_y = 0;
+        for(int i=0;i<n_bitmaps;i++) {
+            int exposure_step = i - base_bitmap;
+            // typical small offsets from hand shake, and response functions for exposures 2 stops apart
+            offsets_x[i] = 3*exposure_step;
+            offsets_y[i] = -2*exposure_step;
+            parameter_A[i] = (float)Math.pow(4.0, -exposure_step);
+            parameter_B[i] = 0.0f;
+            max_offset_y = Math.max(max_offset_y, Math.abs(offsets_y[i]));
+        }
+
+        Random random = new Random(0);
+        band_pixels = new int[n_bitmaps][];
+        for(int i=0;i<n_bitmaps;i++) {
+            float scale = 1.0f/parameter_A[i];
+            band_pixels[i] = BenchmarkUtils.createSyntheticPixels(random, width, band_height_c + 2*max_offset_y, scale);
+        }
+        band_y0 = new int[n_bitmaps];
+        output = new int[width*band_height_c];
+        engine = new HDRMergeEngine();
+        settings = new HDRMergeEngine.TonemapSettings(tonemap_algorithm);
+        settings.setTonemapScale(0.5f*255.0f);
+        settings.setLinearScale(1.5f);
+    }
+
+    @Benchmark
+    public void mergeFrame(Blackhole blackhole) {
+        HDRMergeEngine.Band band = new HDRMergeEngine.Band(band_pixels, band_y0);
+        for(int y0=0;y0<height;y0+=band_height_c) {
+            int y1 = Math.min(y0+band_height_c, height);
+            for(int i=0;i<n_bitmaps;i++) {
+                band_y0[i] = Math.max(y0 + offsets_y[i], 0);
+            }
+            engine.mergeRows(band, base_bitmap, width, height, y0, y1, offsets_x, offsets_y, parameter_A, parameter_B, settings, output);
+            blackhole.consume(output);
+        }
+    }
+}